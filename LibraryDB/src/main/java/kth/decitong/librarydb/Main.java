@@ -4,7 +4,18 @@ import javafx.application.Application;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
 import kth.decitong.librarydb.model.BooksDbImpl;
+import kth.decitong.librarydb.model.BooksDbInterface;
+import kth.decitong.librarydb.model.GuardedBooksDb;
+import kth.decitong.librarydb.model.RecordingBooksDb;
+import kth.decitong.librarydb.model.ShardedBooksDb;
+import kth.decitong.librarydb.model.RemoteBooksDb;
 import kth.decitong.librarydb.view.BooksPane;
+import kth.decitong.librarydb.view.FxStallWatchdog;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Application start up.
@@ -12,11 +23,54 @@ import kth.decitong.librarydb.view.BooksPane;
  * @author anderslm@kth.se
  */
 public class Main extends Application {
+    private FxStallWatchdog stallWatchdog;
 
     @Override
     public void start(Stage primaryStage) {
+        // -Dlibrarydb.fxStallMillis=100 logs every freeze of the UI longer than 100 ms,
+        // with the stack of the FX thread, and a stall histogram on exit
+        long fxStallMillis = Long.getLong("librarydb.fxStallMillis", 0);
+        if (fxStallMillis > 0) {
+            stallWatchdog = FxStallWatchdog.start(fxStallMillis);
+        }
+
+        // -Dlibrarydb.server=http://host:port uses a shared BooksDbServer instead of MongoDB
+        String server = System.getProperty("librarydb.server");
+        // -Dlibrarydb.shards="mongodb://host1:27017 mongodb://host2:27017" spreads books over several servers;
+        // the connection strings may also be separated by commas
+        String shards = System.getProperty("librarydb.shards");
+        // -Dlibrarydb.uri=mongodb://host1,host2,host3/?replicaSet=rs0 connects to another deployment
+        String uri = System.getProperty("librarydb.uri", BooksDbImpl.DEFAULT_CONNECTION_STRING);
+        // -Dlibrarydb.readPreference=secondaryPreferred -Dlibrarydb.maxStaleness=90 routes searches
+        // to secondaries; -Dlibrarydb.readYourWrites=true makes them see this client's writes
+        String readPreference = System.getProperty("librarydb.readPreference");
+        long maxStaleness = Long.getLong("librarydb.maxStaleness", 0);
+        boolean readYourWrites = Boolean.getBoolean("librarydb.readYourWrites");
+        Path snapshots = Paths.get(System.getProperty("user.home"), ".librarydb");
 
-        BooksDbImpl booksDb = new BooksDbImpl();
+        BooksDbInterface backend;
+        if (server != null) {
+            backend = new RemoteBooksDb(server);
+        } else {
+            List<BooksDbImpl> mongoDbs = new ArrayList<>();
+            if (shards != null) {
+                for (String connectionString : BooksDbImpl.splitConnectionStrings(shards)) {
+                    mongoDbs.add(new BooksDbImpl(snapshots.resolve("shard-" + mongoDbs.size()), connectionString));
+                }
+            } else {
+                mongoDbs.add(new BooksDbImpl(snapshots, uri));
+            }
+            for (BooksDbImpl mongoDb : mongoDbs) {
+                if (readPreference != null) {
+                    mongoDb.enableReadRouting(readPreference, maxStaleness);
+                }
+                if (readYourWrites) {
+                    mongoDb.enableReadYourWrites();
+                }
+            }
+            backend = mongoDbs.size() == 1 ? mongoDbs.get(0) : new ShardedBooksDb(mongoDbs);
+        }
+        BooksDbInterface booksDb = new RecordingBooksDb(new GuardedBooksDb(backend));
         BooksPane root = new BooksPane(booksDb);
         Scene scene = new Scene(root, 800, 600);
 
@@ -27,6 +81,13 @@ public class Main extends Application {
         primaryStage.show();
     }
 
+    @Override
+    public void stop() {
+        if (stallWatchdog != null) {
+            stallWatchdog.close();
+        }
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
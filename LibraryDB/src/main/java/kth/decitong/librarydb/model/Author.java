@@ -9,6 +9,7 @@ public class Author implements Comparable<Author> {
     private final String lastName;
     private final Date birthDate;
     private final ArrayList<Book> books;
+    private long version;
 
     public Author(int authorID, String firstName, String lastName, Date birthDate) {
         this.authorID = authorID;
@@ -49,6 +50,18 @@ public class Author implements Comparable<Author> {
         return birthDate;
     }
 
+    /**
+     * @return the number of updates made to the stored author when this copy was read,
+     *         used to detect a concurrent update
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
     public ArrayList<Book> getBooks() {
         return new ArrayList<>(books);
     }
@@ -0,0 +1,76 @@
+package kth.decitong.librarydb.model;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * The fields to change in a partial update of an author, see
+ * {@link BooksDbInterface#updateAuthor}. A null field is left as it is, so an update
+ * cannot clear a field. The author id and books are not changed by updates.
+ */
+public final class AuthorChanges {
+    private final String firstName;
+    private final String lastName;
+    private final Date birthDate;
+
+    /**
+     * @param firstName the new first name, or null to keep it
+     * @param lastName the new last name, or null to keep it
+     * @param birthDate the new birth date, or null to keep it
+     */
+    public AuthorChanges(String firstName, String lastName, Date birthDate) {
+        this.firstName = firstName;
+        this.lastName = lastName;
+        this.birthDate = birthDate;
+    }
+
+    /**
+     * @return the changes that turn the given author into one with the given fields, with
+     *         the fields that are already equal left out
+     */
+    public static AuthorChanges between(Author author, String firstName, String lastName, Date birthDate) {
+        return new AuthorChanges(
+                Objects.equals(author.getFirstName(), firstName) ? null : firstName,
+                Objects.equals(author.getLastName(), lastName) ? null : lastName,
+                Objects.equals(author.getBirthDate(), birthDate) ? null : birthDate);
+    }
+
+    public String getFirstName() {
+        return firstName;
+    }
+
+    public String getLastName() {
+        return lastName;
+    }
+
+    public Date getBirthDate() {
+        return birthDate;
+    }
+
+    /**
+     * @return true if no field is changed
+     */
+    public boolean isEmpty() {
+        return firstName == null && lastName == null && birthDate == null;
+    }
+
+    /**
+     * @return true if the first or last name is changed, which are also embedded in books
+     */
+    public boolean changesName() {
+        return firstName != null || lastName != null;
+    }
+
+    /**
+     * @return a copy of the author with these changes applied and the next version
+     */
+    Author applyTo(Author author) {
+        Author updated = new Author(author.getAuthorID(),
+                firstName != null ? firstName : author.getFirstName(),
+                lastName != null ? lastName : author.getLastName(),
+                birthDate != null ? birthDate : author.getBirthDate());
+        author.getBooks().forEach(updated::addBook);
+        updated.setVersion(author.getVersion() + 1);
+        return updated;
+    }
+}
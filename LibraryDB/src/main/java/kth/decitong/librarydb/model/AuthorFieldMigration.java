@@ -0,0 +1,103 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Moves the author ids of books stored with the legacy 'authorIDs' field into the
+ * 'authors' field that everything else reads and writes, and removes 'authorIDs'.
+ * Readers merge both fields (see {@link #authorIds}), so a book looks the same before,
+ * during and after the migration, and the migration can run while clients are online.
+ * <p>
+ * The books are rewritten in parallel over _id ranges, see {@link BookMigration}. Every
+ * update is guarded by the author fields it was computed from, so a book changed in the
+ * meantime (e.g. by addAuthorToBook) is left for the next run instead of being
+ * overwritten. A book whose author list grows loses its embedded author summaries, which
+ * {@link BooksDbImpl} then rebuilds.
+ */
+public final class AuthorFieldMigration extends BookMigration {
+    static final String LEGACY_FIELD = "authorIDs";
+    private static final System.Logger LOGGER = System.getLogger(AuthorFieldMigration.class.getName());
+
+    /**
+     * @param books the 'books' collection
+     * @param checkpointFile where the progress is saved
+     * @param workers number of ranges migrated in parallel
+     * @param batchSize books read and written per round trip
+     * @param maxBooksPerSecond maximum number of books rewritten per second, or 0 for no limit
+     */
+    AuthorFieldMigration(MongoCollection<Document> books, Path checkpointFile, int workers, int batchSize,
+                         int maxBooksPerSecond) {
+        super(books, "author-ids", "migrating author ids", checkpointFile, workers, batchSize, maxBooksPerSecond);
+    }
+
+    /**
+     * @return the ids of the book document's authors: the 'authors' field followed by the
+     *         ids found only in the legacy 'authorIDs' field
+     */
+    static List<Integer> authorIds(Document bookDoc) {
+        List<Integer> authors = bookDoc.getList("authors", Integer.class, Collections.emptyList());
+        List<Integer> legacy = bookDoc.getList(LEGACY_FIELD, Integer.class);
+        if (legacy == null || authors.containsAll(legacy)) {
+            return authors;
+        }
+        Set<Integer> merged = new LinkedHashSet<>(authors);
+        merged.addAll(legacy);
+        return new ArrayList<>(merged);
+    }
+
+    @Override
+    long run(Progress progress) throws BooksDbException {
+        long migrated = super.run(progress);
+        long changed = remaining();
+        if (changed > 0) {
+            LOGGER.log(System.Logger.Level.WARNING, changed + " books changed during the migration still have "
+                    + LEGACY_FIELD + "; run the migration again");
+        }
+        return migrated;
+    }
+
+    @Override
+    Bson selection() {
+        return Filters.exists(LEGACY_FIELD);
+    }
+
+    @Override
+    Bson projection() {
+        return Projections.include("authors", LEGACY_FIELD, "authorSummaries");
+    }
+
+    @Override
+    WriteModel<Document> rewrite(Document bookDoc) {
+        return new UpdateOneModel<>(
+                Filters.and(Filters.eq("_id", bookDoc.get("_id")),
+                        Filters.eq("authors", bookDoc.get("authors")),
+                        Filters.eq(LEGACY_FIELD, bookDoc.get(LEGACY_FIELD))),
+                migration(bookDoc));
+    }
+
+    private static Bson migration(Document bookDoc) {
+        List<Integer> authors = bookDoc.getList("authors", Integer.class, Collections.emptyList());
+        List<Integer> merged = authorIds(bookDoc);
+        List<Bson> updates = new ArrayList<>(Arrays.asList(
+                Updates.set("authors", merged), Updates.unset(LEGACY_FIELD)));
+        if (merged.size() > authors.size() && bookDoc.containsKey("authorSummaries")) {
+            updates.add(Updates.unset("authorSummaries"));
+        }
+        return Updates.combine(updates);
+    }
+}
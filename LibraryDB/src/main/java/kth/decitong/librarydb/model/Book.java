@@ -12,6 +12,7 @@ public class Book implements Comparable<Book>{
     private int rating;
     private final ArrayList<Author> authors;
     private final Genre genre;
+    private long version;
 
     public Book(int bookId, String isbn, String title, Date published, int rating, Genre genre) {
         this.bookId = bookId;
@@ -48,6 +49,18 @@ public class Book implements Comparable<Book>{
         }
     }
 
+    /**
+     * @return the number of updates made to the stored book when this copy was read,
+     *         used to detect a concurrent update
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    void setVersion(long version) {
+        this.version = version;
+    }
+
     public ArrayList<Author> getAuthors() {
         return new ArrayList<>(authors);
     }
@@ -0,0 +1,89 @@
+package kth.decitong.librarydb.model;
+
+import java.util.Date;
+import java.util.Objects;
+
+/**
+ * The fields to change in a partial update of a book, see
+ * {@link BooksDbInterface#updateBook}. A null field is left as it is, so an update cannot
+ * clear a field. The book id, ISBN and authors are not changed by updates.
+ */
+public final class BookChanges {
+    private final String title;
+    private final Date published;
+    private final Integer rating;
+    private final Genre genre;
+
+    /**
+     * @param title the new title, or null to keep it
+     * @param published the new publication date, or null to keep it
+     * @param rating the new rating 1-5, or null to keep it
+     * @param genre the new genre, or null to keep it
+     */
+    public BookChanges(String title, Date published, Integer rating, Genre genre) {
+        if (rating != null && (rating < 1 || rating > 5)) {
+            throw new IllegalArgumentException("Invalid rating");
+        }
+        this.title = title;
+        this.published = published;
+        this.rating = rating;
+        this.genre = genre;
+    }
+
+    /**
+     * @return changes setting only the rating, for example to re-rate a whole genre
+     */
+    public static BookChanges rating(int rating) {
+        return new BookChanges(null, null, rating, null);
+    }
+
+    /**
+     * @return the changes that turn the given book into one with the given fields, with
+     *         the fields that are already equal left out
+     */
+    public static BookChanges between(Book book, String title, Date published, int rating, Genre genre) {
+        return new BookChanges(
+                Objects.equals(book.getTitle(), title) ? null : title,
+                Objects.equals(book.getPublished(), published) ? null : published,
+                book.getRating() == rating ? null : rating,
+                book.getGenre() == genre ? null : genre);
+    }
+
+    public String getTitle() {
+        return title;
+    }
+
+    public Date getPublished() {
+        return published;
+    }
+
+    public Integer getRating() {
+        return rating;
+    }
+
+    public Genre getGenre() {
+        return genre;
+    }
+
+    /**
+     * @return true if no field is changed
+     */
+    public boolean isEmpty() {
+        return title == null && published == null && rating == null && genre == null;
+    }
+
+    /**
+     * @return a copy of the book with these changes applied, the same authors and the
+     *         next version
+     */
+    Book applyTo(Book book) {
+        Book updated = new Book(book.getBookId(), book.getIsbn(),
+                title != null ? title : book.getTitle(),
+                published != null ? published : book.getPublished(),
+                rating != null ? rating : book.getRating(),
+                genre != null ? genre : book.getGenre());
+        book.getAuthors().forEach(updated::addAuthors);
+        updated.setVersion(book.getVersion() + 1);
+        return updated;
+    }
+}
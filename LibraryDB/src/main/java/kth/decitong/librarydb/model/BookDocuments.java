@@ -0,0 +1,158 @@
+package kth.decitong.librarydb.model;
+
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Converts books and authors to and from self-contained documents, used as the JSON
+ * transport format between {@link RemoteBooksDb} and the headless server. Unlike the
+ * documents stored in MongoDB, a book document embeds its authors in full.
+ */
+public final class BookDocuments {
+
+    private BookDocuments() {
+    }
+
+    public static Document fromBook(Book book) {
+        List<Document> authors = new ArrayList<>();
+        for (Author author : book.getAuthors()) {
+            authors.add(fromAuthor(author));
+        }
+        return new Document("bookId", book.getBookId())
+                .append("isbn", book.getIsbn())
+                .append("title", book.getTitle())
+                .append("published", book.getPublished())
+                .append("rating", book.getRating())
+                .append("genre", book.getGenre().name())
+                .append("version", book.getVersion())
+                .append("authors", authors);
+    }
+
+    public static Book toBook(Document doc) {
+        Book book = new Book(doc.getInteger("bookId"), doc.getString("isbn"), doc.getString("title"),
+                doc.getDate("published"), doc.getInteger("rating"), Genre.valueOf(doc.getString("genre")));
+        book.setVersion(version(doc));
+        List<Document> authors = doc.getList("authors", Document.class);
+        if (authors != null) {
+            for (Document author : authors) {
+                book.addAuthors(toAuthor(author));
+            }
+        }
+        return book;
+    }
+
+    public static Document fromAuthor(Author author) {
+        return new Document("authorID", author.getAuthorID())
+                .append("firstName", author.getFirstName())
+                .append("lastName", author.getLastName())
+                .append("birthDate", author.getBirthDate())
+                .append("version", author.getVersion());
+    }
+
+    public static Author toAuthor(Document doc) {
+        Author author = new Author(doc.getInteger("authorID"), doc.getString("firstName"), doc.getString("lastName"),
+                doc.getDate("birthDate"));
+        author.setVersion(version(doc));
+        return author;
+    }
+
+    public static Document fromFacetSelection(FacetSelection selection) {
+        List<String> genres = new ArrayList<>();
+        for (Genre genre : selection.getGenres()) {
+            genres.add(genre.name());
+        }
+        return new Document("genres", genres)
+                .append("ratings", new ArrayList<>(selection.getRatings()))
+                .append("fromYear", selection.getFromYear())
+                .append("toYear", selection.getToYear());
+    }
+
+    public static FacetSelection toFacetSelection(Document doc) {
+        Set<Genre> genres = EnumSet.noneOf(Genre.class);
+        for (String genre : doc.getList("genres", String.class)) {
+            genres.add(Genre.valueOf(genre));
+        }
+        return new FacetSelection(genres, new TreeSet<>(doc.getList("ratings", Integer.class)),
+                doc.getInteger("fromYear"), doc.getInteger("toYear"));
+    }
+
+    /**
+     * Facet counts are keyed by the genre name or the number as a string, since JSON
+     * object keys are strings.
+     */
+    public static Document fromFacetResult(FacetResult result) {
+        List<Document> books = new ArrayList<>();
+        for (Book book : result.getBooks()) {
+            books.add(fromBook(book));
+        }
+        Document genreCounts = new Document();
+        result.getGenreCounts().forEach((genre, count) -> genreCounts.append(genre.name(), count));
+        Document ratingCounts = new Document();
+        result.getRatingCounts().forEach((rating, count) -> ratingCounts.append(rating.toString(), count));
+        Document yearCounts = new Document();
+        result.getYearCounts().forEach((year, count) -> yearCounts.append(year.toString(), count));
+        return new Document("total", result.getTotal())
+                .append("books", books)
+                .append("genreCounts", genreCounts)
+                .append("ratingCounts", ratingCounts)
+                .append("yearCounts", yearCounts);
+    }
+
+    public static FacetResult toFacetResult(Document doc) {
+        List<Book> books = new ArrayList<>();
+        for (Document book : doc.getList("books", Document.class)) {
+            books.add(toBook(book));
+        }
+        Map<Genre, Integer> genreCounts = new EnumMap<>(Genre.class);
+        doc.get("genreCounts", Document.class).forEach((genre, count) ->
+                genreCounts.put(Genre.valueOf(genre), ((Number) count).intValue()));
+        return new FacetResult(doc.getInteger("total"), books, genreCounts,
+                toCounts(doc.get("ratingCounts", Document.class)), toCounts(doc.get("yearCounts", Document.class)));
+    }
+
+    private static SortedMap<Integer, Integer> toCounts(Document doc) {
+        SortedMap<Integer, Integer> counts = new TreeMap<>();
+        doc.forEach((key, count) -> counts.put(Integer.valueOf(key), ((Number) count).intValue()));
+        return counts;
+    }
+
+    public static Document fromBookChanges(BookChanges changes) {
+        return new Document("title", changes.getTitle())
+                .append("published", changes.getPublished())
+                .append("rating", changes.getRating())
+                .append("genre", changes.getGenre() == null ? null : changes.getGenre().name());
+    }
+
+    public static BookChanges toBookChanges(Document doc) {
+        String genre = doc.getString("genre");
+        return new BookChanges(doc.getString("title"), doc.getDate("published"), doc.getInteger("rating"),
+                genre == null ? null : Genre.valueOf(genre));
+    }
+
+    public static Document fromAuthorChanges(AuthorChanges changes) {
+        return new Document("firstName", changes.getFirstName())
+                .append("lastName", changes.getLastName())
+                .append("birthDate", changes.getBirthDate());
+    }
+
+    public static AuthorChanges toAuthorChanges(Document doc) {
+        return new AuthorChanges(doc.getString("firstName"), doc.getString("lastName"), doc.getDate("birthDate"));
+    }
+
+    /**
+     * Versions are sent as JSON numbers, which come back as int or long by size.
+     */
+    private static long version(Document doc) {
+        Number version = doc.get("version", Number.class);
+        return version == null ? 0 : version.longValue();
+    }
+}
@@ -0,0 +1,179 @@
+package kth.decitong.librarydb.model;
+
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes books one at a time to a CSV or JSON Lines file, so an export holds only the
+ * book being written in memory. The file is written through a buffered file channel,
+ * optionally gzip-compressed, to a temporary file next to the target that replaces the
+ * target only when {@link #finish} succeeds; a failed or abandoned export never leaves a
+ * partial file behind.
+ * <p>
+ * CSV has a header line and the columns bookId, isbn, title, published (yyyy-mm-dd),
+ * rating, genre and authors (full names separated by "; "). JSON Lines has one book per
+ * line in the transport format of {@link BookDocuments}, with the authors embedded.
+ */
+public final class BookExporter implements Closeable {
+    /** How often progress is reported, in books. */
+    public static final int PROGRESS_INTERVAL = 10_000;
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+    private static final DateTimeFormatter DATE = DateTimeFormatter.ISO_LOCAL_DATE.withZone(ZoneOffset.UTC);
+
+    public enum Format { CSV, JSONL }
+
+    /** Receives the number of books written so far. */
+    public interface Progress {
+        void exported(long books);
+    }
+
+    private final Path target;
+    private final Path temporary;
+    private final Format format;
+    private final Progress progress;
+    private final Writer out;
+    private long count;
+    private boolean finished;
+
+    /**
+     * @param target the file to write
+     * @param format CSV or JSONL
+     * @param gzip whether to gzip the file
+     * @param progress receives the count every {@link #PROGRESS_INTERVAL} books and at the
+     *                 end, or null
+     * @throws IOException if the temporary file could not be created
+     */
+    public BookExporter(Path target, Format format, boolean gzip, Progress progress) throws IOException {
+        this.target = target.toAbsolutePath();
+        this.format = format;
+        this.progress = progress;
+        this.temporary = Files.createTempFile(this.target.getParent(), this.target.getFileName().toString(), ".part");
+        OutputStream stream = Channels.newOutputStream(FileChannel.open(temporary,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        try {
+            if (gzip) {
+                // fastest compression level, so compressing keeps up with the disk
+                stream = new GZIPOutputStream(stream, BUFFER_SIZE) {
+                    {
+                        def.setLevel(Deflater.BEST_SPEED);
+                    }
+                };
+            } else {
+                stream = new BufferedOutputStream(stream, BUFFER_SIZE);
+            }
+        } catch (IOException e) {
+            stream.close();
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        this.out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), BUFFER_SIZE);
+        if (format == Format.CSV) {
+            out.write("bookId,isbn,title,published,rating,genre,authors\n");
+        }
+    }
+
+    public void write(Book book) throws IOException {
+        if (format == Format.CSV) {
+            writeCsv(book);
+        } else {
+            out.write(BookDocuments.fromBook(book).toJson(JSON));
+            out.write('\n');
+        }
+        if (++count % PROGRESS_INTERVAL == 0 && progress != null) {
+            progress.exported(count);
+        }
+    }
+
+    /**
+     * Flushes and closes the file and moves it to the target.
+     * @return the number of books written
+     * @throws IOException if the file could not be written or moved
+     */
+    public long finish() throws IOException {
+        out.close();
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        finished = true;
+        if (progress != null) {
+            progress.exported(count);
+        }
+        return count;
+    }
+
+    /**
+     * Deletes the temporary file unless {@link #finish} succeeded.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!finished) {
+            try {
+                out.close();
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    private void writeCsv(Book book) throws IOException {
+        out.write(Integer.toString(book.getBookId()));
+        out.write(',');
+        writeCsvField(book.getIsbn());
+        out.write(',');
+        writeCsvField(book.getTitle());
+        out.write(',');
+        if (book.getPublished() != null) {
+            out.write(DATE.format(book.getPublished().toInstant()));
+        }
+        out.write(',');
+        out.write(Integer.toString(book.getRating()));
+        out.write(',');
+        out.write(book.getGenre().name());
+        out.write(',');
+        StringBuilder authors = new StringBuilder();
+        List<Author> bookAuthors = book.getAuthors();
+        for (int i = 0; i < bookAuthors.size(); i++) {
+            if (i > 0) {
+                authors.append("; ");
+            }
+            authors.append(bookAuthors.get(i).getFirstName()).append(' ').append(bookAuthors.get(i).getLastName());
+        }
+        writeCsvField(authors.toString());
+        out.write('\n');
+    }
+
+    /**
+     * Writes the value, quoted if it contains a comma, a quote or a line break.
+     */
+    private void writeCsvField(String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            out.write(value);
+            return;
+        }
+        out.write('"');
+        out.write(value.replace("\"", "\"\""));
+        out.write('"');
+    }
+}
@@ -0,0 +1,326 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites the books selected by a subclass in parallel, while clients keep using the
+ * catalogue. The collection is split into _id ranges at split points picked from a $sample
+ * of the ids, and a fixed pool of workers migrates the ranges in parallel. A worker reads
+ * the selected books of its range a page at a time in _id order and rewrites each page
+ * with one unordered bulkWrite. Subclasses guard every update by the fields it was
+ * computed from, so a book changed in the meantime is left for the next run instead of
+ * being overwritten.
+ * <p>
+ * The position reached in every range is saved to a checkpoint file at most once a
+ * second and when a worker fails. A migration started with an existing checkpoint file
+ * continues from the saved positions with the same ranges; the file is deleted when the
+ * migration completes. A rate limit shared by the workers caps the books rewritten per
+ * second, which keeps the extra load on the server predictable next to live traffic.
+ */
+public abstract class BookMigration {
+    private static final int RANGES_PER_WORKER = 4;
+    private static final int SAMPLES_PER_RANGE = 20;
+    private static final long CHECKPOINT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.EXTENDED).build();
+
+    /**
+     * Receives the total number of books migrated so far, from the worker threads.
+     */
+    public interface Progress {
+        void migrated(long books);
+    }
+
+    /** An _id range; a null bound is open. */
+    private static final class Range {
+        private final Object from;
+        private final Object to;
+        /** The last _id migrated, or null if the range has not been started. */
+        private volatile Object position;
+        private volatile boolean done;
+
+        private Range(Object from, Object to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    final MongoCollection<Document> books;
+    private final String name;
+    private final String description;
+    private final Path checkpointFile;
+    private final int workers;
+    private final int batchSize;
+    private final long nanosPerBook;
+    private final AtomicLong migrated = new AtomicLong();
+    private final Object throttleLock = new Object();
+    private long nextFreeAt;
+    private List<Range> ranges;
+    private long checkpointSavedAt;
+
+    /**
+     * @param books the 'books' collection
+     * @param name names the worker threads and the checkpoint, e.g. "author-ids"
+     * @param description what the migration does, for error messages, e.g. "migrating author ids"
+     * @param checkpointFile where the progress is saved
+     * @param workers number of ranges migrated in parallel
+     * @param batchSize books read and written per round trip
+     * @param maxBooksPerSecond maximum number of books rewritten per second, or 0 for no limit
+     */
+    BookMigration(MongoCollection<Document> books, String name, String description, Path checkpointFile,
+                  int workers, int batchSize, int maxBooksPerSecond) {
+        if (workers < 1 || batchSize < 1 || maxBooksPerSecond < 0) {
+            throw new IllegalArgumentException("Invalid workers, batch size or rate");
+        }
+        this.books = books;
+        this.name = name;
+        this.description = description;
+        this.checkpointFile = checkpointFile;
+        this.workers = workers;
+        this.batchSize = batchSize;
+        this.nanosPerBook = maxBooksPerSecond == 0 ? 0 : TimeUnit.SECONDS.toNanos(1) / maxBooksPerSecond;
+    }
+
+    /**
+     * @return the filter matching the books that still need the migration
+     */
+    abstract Bson selection();
+
+    /**
+     * @return the fields a page of books is read with, or null for whole documents
+     */
+    abstract Bson projection();
+
+    /**
+     * @return the guarded update of one selected book
+     */
+    abstract WriteModel<Document> rewrite(Document bookDoc);
+
+    /**
+     * Migrates all selected books, continuing from the checkpoint file if there is one.
+     * @param progress receives the number of books migrated after each batch, or null
+     * @return the number of books migrated by this run
+     * @throws BooksDbException if a worker failed or the checkpoint could not be read or
+     *         written; the positions reached are saved first
+     */
+    long run(Progress progress) throws BooksDbException {
+        try {
+            ranges = Files.exists(checkpointFile) ? loadCheckpoint() : split(workers * RANGES_PER_WORKER);
+            saveCheckpoint(true);
+        } catch (IOException e) {
+            throw new BooksDbException("Error accessing migration checkpoint " + checkpointFile + ": "
+                    + e.getMessage(), e);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, task -> {
+            Thread thread = new Thread(task, name + "-migration");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (Range range : ranges) {
+                if (!range.done) {
+                    futures.add(executor.submit(() -> {
+                        migrate(range, progress);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            executor.shutdownNow();
+            saveCheckpointQuietly();
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new BooksDbException("Error " + description + ": " + cause.getMessage(), (Exception) cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+            saveCheckpointQuietly();
+            throw new BooksDbException("Interrupted while " + description, e);
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            Files.deleteIfExists(checkpointFile);
+        } catch (IOException e) {
+            throw new BooksDbException("Error deleting migration checkpoint " + checkpointFile + ": "
+                    + e.getMessage(), e);
+        }
+        return migrated.get();
+    }
+
+    /**
+     * @return the number of books that still need the migration, e.g. because they
+     *         changed while it ran
+     */
+    long remaining() {
+        return books.countDocuments(selection());
+    }
+
+    private void migrate(Range range, Progress progress) throws IOException, InterruptedException {
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Bson> filters = new ArrayList<>();
+            filters.add(selection());
+            if (range.position != null) {
+                filters.add(Filters.gt("_id", range.position));
+            } else if (range.from != null) {
+                filters.add(Filters.gte("_id", range.from));
+            }
+            if (range.to != null) {
+                filters.add(Filters.lt("_id", range.to));
+            }
+            List<Document> page = books.find(Filters.and(filters))
+                    .projection(projection())
+                    .sort(Sorts.ascending("_id"))
+                    .limit(batchSize)
+                    .into(new ArrayList<>());
+            if (page.isEmpty()) {
+                range.done = true;
+                saveCheckpoint(false);
+                return;
+            }
+            throttle(page.size());
+
+            List<WriteModel<Document>> updates = new ArrayList<>(page.size());
+            for (Document bookDoc : page) {
+                updates.add(rewrite(bookDoc));
+            }
+            int matched = books.bulkWrite(updates, new BulkWriteOptions().ordered(false)).getMatchedCount();
+            range.position = page.get(page.size() - 1).get("_id");
+            long total = migrated.addAndGet(matched);
+            if (progress != null) {
+                progress.migrated(total);
+            }
+            saveCheckpoint(false);
+        }
+        throw new InterruptedException();
+    }
+
+    /**
+     * Waits until the rate limit allows rewriting the given number of books.
+     */
+    private void throttle(int count) throws InterruptedException {
+        if (nanosPerBook == 0) {
+            return;
+        }
+        long wait;
+        synchronized (throttleLock) {
+            long now = System.nanoTime();
+            long start = Math.max(nextFreeAt, now);
+            nextFreeAt = start + count * nanosPerBook;
+            wait = start - now;
+        }
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Splits the ids into ranges at evenly spaced ids of a sorted random sample. Fewer
+     * ranges are returned when the collection is small.
+     */
+    private List<Range> split(int count) {
+        List<Object> sample = new ArrayList<>();
+        for (Document doc : books.aggregate(Arrays.asList(
+                Aggregates.sample(count * SAMPLES_PER_RANGE),
+                Aggregates.project(Projections.include("_id")),
+                Aggregates.sort(Sorts.ascending("_id"))))) {
+            sample.add(doc.get("_id"));
+        }
+        List<Range> split = new ArrayList<>(count);
+        Object from = null;
+        for (int i = SAMPLES_PER_RANGE; i < sample.size(); i += SAMPLES_PER_RANGE) {
+            Object to = sample.get(i);
+            if (!to.equals(from)) {
+                split.add(new Range(from, to));
+                from = to;
+            }
+        }
+        split.add(new Range(from, null));
+        return split;
+    }
+
+    private List<Range> loadCheckpoint() throws IOException {
+        Document checkpoint = Document.parse(Files.readString(checkpointFile, StandardCharsets.UTF_8));
+        String savedName = checkpoint.getString("migration");
+        if (savedName != null && !savedName.equals(name)) {
+            throw new IOException("the checkpoint belongs to the " + savedName + " migration");
+        }
+        List<Range> loaded = new ArrayList<>();
+        for (Document saved : checkpoint.getList("ranges", Document.class)) {
+            Range range = new Range(saved.get("from"), saved.get("to"));
+            range.position = saved.get("position");
+            range.done = saved.getBoolean("done", false);
+            loaded.add(range);
+        }
+        return loaded;
+    }
+
+    private synchronized void saveCheckpoint(boolean force) throws IOException {
+        long now = System.nanoTime();
+        if (!force && now - checkpointSavedAt < CHECKPOINT_INTERVAL_NANOS) {
+            return;
+        }
+        List<Document> saved = new ArrayList<>(ranges.size());
+        for (Range range : ranges) {
+            saved.add(new Document("from", range.from)
+                    .append("to", range.to)
+                    .append("position", range.position)
+                    .append("done", range.done));
+        }
+        Document checkpoint = new Document("collection", books.getNamespace().getFullName())
+                .append("migration", name)
+                .append("ranges", saved);
+        Path directory = checkpointFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, checkpointFile.getFileName().toString(), ".tmp");
+        try {
+            Files.writeString(tempFile, checkpoint.toJson(JSON), StandardCharsets.UTF_8);
+            Files.move(tempFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        checkpointSavedAt = now;
+    }
+
+    private void saveCheckpointQuietly() {
+        try {
+            saveCheckpoint(true);
+        } catch (IOException | MongoException e) {
+            // the failure being reported matters more; the migration resumes from an
+            // older checkpoint at worst
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package kth.decitong.librarydb.model;
+
+import org.bson.Document;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The layouts of the documents in the 'books' collection. V1 is the original layout, with
+ * full field names, the genre as its name and the publication date as a date. V2 is the
+ * compact layout: field names of one or two letters, the genre as its
+ * {@link Genre#getCode code} and the publication date as a day number, counted from
+ * 1970-01-01 in UTC. A V1 date is read as its calendar day, see {@link CalendarDays}:
+ * the midnight UTC the application stores, or the local midnight an older client stored,
+ * so converting a V1 book keeps its day whatever the time zone of the migration. The
+ * book id is called 'bookId' in both, so the id allocator, the write-behind queue and
+ * every lookup by id work the same whatever the layout of a document.
+ * <p>
+ * {@link BooksDbImpl} names fields by their V1 names and maps them with {@link #key}. The
+ * static methods read a document in whichever layout it has, so a catalogue can hold both
+ * while it is migrated, see {@link Phase}.
+ */
+public enum BookSchema {
+    V1(new String[] {"isbn", "title", "titleFolded", "published", "rating", "genre", "authors",
+            "authorSummaries", "version"}),
+    V2(new String[] {"i", "t", "tf", "p", "r", "g", "a", "as", "v"});
+
+    /**
+     * The steps of the online migration from V1 to V2. Clients re-read the phase every few
+     * seconds, and the migration waits after each step until all of them have seen it, so
+     * no two clients are more than one step apart. Neighbouring steps are compatible:
+     * documents written in both layouts serve clients reading either, and the V1 fields
+     * are only removed once no client reads them.
+     */
+    public enum Phase {
+        /** Read and write V1. */
+        V1(BookSchema.V1, BookSchema.V1),
+        /** Read V1 and write both layouts into every document while existing books are expanded. */
+        EXPANDING(BookSchema.V1, BookSchema.V1, BookSchema.V2),
+        /** Read V2, every book has it, and still write both layouts. */
+        SWITCHING(BookSchema.V2, BookSchema.V1, BookSchema.V2),
+        /** Read and write V2 while the V1 fields are removed. */
+        CONTRACTING(BookSchema.V2, BookSchema.V2),
+        /** Read and write V2. */
+        V2(BookSchema.V2, BookSchema.V2);
+
+        private final BookSchema readSchema;
+        private final List<BookSchema> writeSchemas;
+
+        Phase(BookSchema readSchema, BookSchema... writeSchemas) {
+            this.readSchema = readSchema;
+            this.writeSchemas = Collections.unmodifiableList(Arrays.asList(writeSchemas));
+        }
+
+        /**
+         * @return the layout searches and updates filter and sort on
+         */
+        public BookSchema readSchema() {
+            return readSchema;
+        }
+
+        /**
+         * @return the layouts every write must keep up to date
+         */
+        public List<BookSchema> writeSchemas() {
+            return writeSchemas;
+        }
+    }
+
+    /** Static fields of an enum are not initialized yet when its constructor runs. */
+    private static final class Fields {
+        /** The V1 names of the fields with a key in every layout, in the order of the keys. */
+        static final String[] NAMES = {"isbn", "title", "titleFolded", "published", "rating", "genre",
+                "authors", "authorSummaries", "version"};
+    }
+
+    private final Map<String, String> keys = new LinkedHashMap<>();
+
+    BookSchema(String[] keys) {
+        for (int i = 0; i < keys.length; i++) {
+            this.keys.put(Fields.NAMES[i], keys[i]);
+        }
+    }
+
+    /**
+     * @param field the V1 name of a field, or 'bookId'
+     * @return the name of the field in this layout
+     * @throws IllegalArgumentException if there is no such field
+     */
+    String key(String field) {
+        if (field.equals("bookId")) {
+            return field;
+        }
+        String key = keys.get(field);
+        if (key == null) {
+            throw new IllegalArgumentException("No book field " + field);
+        }
+        return key;
+    }
+
+    /**
+     * @return the V1 names of the fields every layout has, except 'bookId'
+     */
+    static List<String> fieldNames() {
+        return Arrays.asList(Fields.NAMES);
+    }
+
+    /**
+     * @return every field name of this layout except 'bookId', plus the legacy author id
+     *         field in V1; what removing the layout from a document removes
+     */
+    List<String> keys() {
+        List<String> all = new ArrayList<>(keys.values());
+        if (this == V1) {
+            all.add(AuthorFieldMigration.LEGACY_FIELD);
+        }
+        return all;
+    }
+
+    /**
+     * @return the genre as stored in this layout
+     */
+    Object genre(Genre genre) {
+        return this == V1 ? genre.toString() : genre.getCode();
+    }
+
+    /**
+     * @return the date as stored in this layout, or null for null
+     */
+    Object published(Date published) {
+        if (published == null) {
+            return null;
+        }
+        return this == V1 ? published : day(published);
+    }
+
+    /**
+     * Maps a time to the stored value that is the lower bound of the books published at or
+     * after it, for range searches: the first day starting at or after it in V2, and the
+     * earliest date that day can be stored as in V1.
+     */
+    Object publishedBound(Date time) {
+        int day = day(time);
+        if (startOf(day).before(time)) {
+            day++;
+        }
+        return this == V1 ? CalendarDays.firstStoredOf(LocalDate.ofEpochDay(day)) : day;
+    }
+
+    /**
+     * @return the fields of a new book in this layout, without authors
+     */
+    Document fields(Book book) {
+        return new Document(key("isbn"), book.getIsbn())
+                .append(key("title"), book.getTitle())
+                .append(key("titleFolded"), TextQuery.fold(book.getTitle()))
+                .append(key("published"), published(book.getPublished()))
+                .append(key("rating"), book.getRating())
+                .append(key("genre"), genre(book.getGenre()));
+    }
+
+    /**
+     * Converts the fields of a stored book document, in either layout, to this layout.
+     * Legacy author ids are merged into the authors; 'bookId' and '_id' are left out.
+     */
+    Document convert(Document bookDoc) {
+        Book book = toBook(bookDoc);
+        Document converted = fields(book).append(key("authors"), authorIds(bookDoc));
+        List<Document> summaries = authorSummaries(bookDoc);
+        if (summaries != null) {
+            converted.append(key("authorSummaries"), summaries);
+        }
+        if (book.getVersion() != 0) {
+            converted.append(key("version"), book.getVersion());
+        }
+        return converted;
+    }
+
+    /**
+     * @return the layout of the document: V2 if it has the compact ISBN field, which only
+     *         a complete V2 book has
+     */
+    static BookSchema of(Document bookDoc) {
+        return bookDoc.containsKey(V2.key("isbn")) ? V2 : V1;
+    }
+
+    /**
+     * @return the book stored in the document, in either layout, without its authors
+     */
+    static Book toBook(Document bookDoc) {
+        BookSchema schema = of(bookDoc);
+        Book book = new Book(bookDoc.getInteger("bookId"), bookDoc.getString(schema.key("isbn")),
+                bookDoc.getString(schema.key("title")), schema.readPublished(bookDoc),
+                bookDoc.getInteger(schema.key("rating")), genreOf(bookDoc.get(schema.key("genre"))));
+        Number version = bookDoc.get(schema.key("version"), Number.class);
+        book.setVersion(version == null ? 0 : version.longValue());
+        return book;
+    }
+
+    /**
+     * @return the ids of the book's authors, in either layout
+     */
+    static List<Integer> authorIds(Document bookDoc) {
+        if (of(bookDoc) == V1) {
+            return AuthorFieldMigration.authorIds(bookDoc);
+        }
+        return bookDoc.getList(V2.key("authors"), Integer.class, Collections.emptyList());
+    }
+
+    /**
+     * @return the embedded author summaries, in either layout, or null if there are none
+     */
+    static List<Document> authorSummaries(Document bookDoc) {
+        return bookDoc.getList(of(bookDoc).key("authorSummaries"), Document.class);
+    }
+
+    /**
+     * @param stored a genre as stored in either layout
+     */
+    static Genre genreOf(Object stored) {
+        if (stored instanceof Number) {
+            return Genre.fromCode(((Number) stored).intValue());
+        }
+        return Genre.valueOf(((String) stored).toUpperCase());
+    }
+
+    private Date readPublished(Document bookDoc) {
+        if (this == V1) {
+            return CalendarDays.normalize(bookDoc.getDate(key("published")));
+        }
+        Integer day = bookDoc.getInteger(key("published"));
+        return day == null ? null : startOf(day);
+    }
+
+    private static int day(Date date) {
+        return (int) CalendarDays.toLocalDate(date).toEpochDay();
+    }
+
+    private static Date startOf(int day) {
+        return CalendarDays.toDate(LocalDate.ofEpochDay(day));
+    }
+}
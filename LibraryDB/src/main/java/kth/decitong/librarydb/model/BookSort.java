@@ -0,0 +1,45 @@
+package kth.decitong.librarydb.model;
+
+import java.util.Comparator;
+import java.util.Date;
+
+/**
+ * Orders for sorted, limited book searches: best rated first, newest first, or by title.
+ */
+public enum BookSort {
+    Rating("rating", -1, Comparator.comparingInt(Book::getRating).reversed()),
+    Published("published", -1, Comparator.comparing(Book::getPublished,
+            Comparator.nullsLast(Comparator.<Date>reverseOrder()))),
+    Title("title", 1, Comparator.comparing(Book::getTitle, Comparator.nullsLast(Comparator.<String>naturalOrder())));
+
+    private final String field;
+    private final int direction;
+    private final Comparator<Book> comparator;
+
+    BookSort(String field, int direction, Comparator<Book> comparator) {
+        this.field = field;
+        this.direction = direction;
+        this.comparator = comparator;
+    }
+
+    /**
+     * @return the name of the sorted field in the book documents
+     */
+    public String getField() {
+        return field;
+    }
+
+    /**
+     * @return 1 for ascending, -1 for descending
+     */
+    public int getDirection() {
+        return direction;
+    }
+
+    /**
+     * @return the same order for books already in memory
+     */
+    public Comparator<Book> comparator() {
+        return comparator;
+    }
+}
@@ -0,0 +1,35 @@
+package kth.decitong.librarydb.model;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for one call to a {@link BooksDbInterface}, committed by
+ * {@link RecordingBooksDb}. The event duration is the time the caller waited. The round
+ * trips are those counted by {@link RoundTripCounter}: the call's own, including those of
+ * shard scatters it waits for, but not those of background work such as snapshot and
+ * index rebuilds, backfills and write-behind flushes.
+ */
+@Name("kth.decitong.librarydb.BooksDbCall")
+@Label("Books DB Call")
+@Category({"LibraryDB", "Data Layer"})
+@Description("A call to the books data layer")
+@StackTrace(false)
+public class BooksDbCallEvent extends jdk.jfr.Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Rows")
+    @Description("Books or authors returned")
+    int rows;
+
+    @Label("Round Trips")
+    @Description("Database or server requests made by the call, excluding background rebuilds, backfills and write-behind flushes")
+    long roundTrips;
+
+    @Label("Failed")
+    boolean failed;
+}
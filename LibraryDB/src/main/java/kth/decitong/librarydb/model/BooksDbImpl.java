@@ -1,27 +1,466 @@
 package kth.decitong.librarydb.model;
 
+import com.mongodb.ClientSessionOptions;
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
 import com.mongodb.MongoException;
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
 import com.mongodb.ServerApi;
 import com.mongodb.ServerApiVersion;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.AggregateIterable;
+import com.mongodb.client.ClientSession;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Collation;
+import com.mongodb.client.model.CollationStrength;
+import com.mongodb.client.model.Field;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.MergeOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.result.DeleteResult;
 import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
+import org.bson.conversions.Bson;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
 import java.util.regex.Pattern;
 
+/**
+ * The MongoDB data layer.
+ * <p>
+ * Thread-safety: one instance is shared by all threads. Everything that belongs to an open
+ * connection (the client, the database, the collection handles, the ID allocators and the
+ * write-behind queues) is created by {@link #connect} in one connection object whose handles
+ * never change, and is published through a single volatile field. Each call reads that
+ * field once and works on the same connection throughout. A disconnect first unpublishes
+ * the connection, so later calls fail with a {@link BooksDbException}, then waits for the
+ * calls still using it before closing the client; no call ever sees a half-initialized or
+ * closed connection.
+ * <p>
+ * The connection moves through {@link State}: DISCONNECTED, CONNECTING, CONNECTED,
+ * DISCONNECTING and back to DISCONNECTED. Transitions are serialized by a lock, so
+ * concurrent connects and disconnects cannot interleave, and a connect while connected (or
+ * a disconnect while disconnected) fails with a {@link BooksDbException}. Searches and
+ * writes do not take the lock. The configuration methods must be called before the first
+ * {@link #connect}.
+ */
 public class BooksDbImpl implements BooksDbInterface {
-    private MongoClient mongoClient;
-    private MongoDatabase database;
+    /** Upper bound on the number of books returned by a single search. */
+    public static final int MAX_SEARCH_RESULTS = 1000;
+    /** Upper bound on the number of ranked candidates returned by a fuzzy search. */
+    public static final int MAX_FUZZY_RESULTS = 100;
+    /** The local mongod used unless another connection string is given. */
+    public static final String DEFAULT_CONNECTION_STRING = "mongodb://localhost:27017";
+    /**
+     * Separates connection strings in a list: whitespace, or a comma followed by the next
+     * scheme, since a comma inside a connection string separates the hosts of a replica set.
+     */
+    private static final Pattern CONNECTION_STRING_SEPARATOR =
+            Pattern.compile("\\s*,\\s*(?=mongodb(?:\\+srv)?://)|\\s+");
+    private static final int SEARCH_BATCH_SIZE = 100;
+    private static final int EXPORT_BATCH_SIZE = 1000;
+    private static final long DUPLICATE_FILTER_MIN_CAPACITY = 10_000;
+    private static final double DUPLICATE_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final long SNAPSHOT_CHECK_INTERVAL_MILLIS = 5_000;
+    private static final int SNAPSHOT_REBUILD_ATTEMPTS = 5;
+    /** How long this client's writes collect in the snapshot before it is saved to its file. */
+    private static final long SNAPSHOT_SAVE_DELAY_MILLIS = 30_000;
+    private static final int READ_TIMEOUT_SECONDS = 30;
+    /** How often a connection re-reads the phase of the book schema migration. */
+    private static final long SCHEMA_CHECK_INTERVAL_MILLIS = 5_000;
+    /**
+     * How long ago a connection must have confirmed the phase of the book schema migration
+     * to write books. A client that cannot re-read the phase refuses to write rather than
+     * keep writing a layout the migration may have moved past.
+     */
+    private static final long SCHEMA_PHASE_MAX_AGE_MILLIS = 2 * SCHEMA_CHECK_INTERVAL_MILLIS;
+    /**
+     * How long a schema migration waits after changing the phase: until every client has
+     * either confirmed the new phase or stopped writing, and the calls started in the
+     * previous phase have ended.
+     */
+    private static final long SCHEMA_PHASE_GRACE_MILLIS = SCHEMA_PHASE_MAX_AGE_MILLIS
+            + TimeUnit.SECONDS.toMillis(READ_TIMEOUT_SECONDS);
+    private static final int MAX_EXPANSION_PASSES = 5;
+    private static final String SCHEMA_META_ID = "bookSchema";
+    private static final int ID_BLOCK_SIZE = 50;
+    private static final int GENRE_CACHE_MAX_BOOKS = 10_000;
+    private static final int FOLDED_BACKFILL_BATCH_SIZE = 1000;
+    /**
+     * Shadow fields holding {@link TextQuery#fold folded} titles and names, indexed for
+     * searches; the title's is named by its V1 name, see {@link BookSchema}.
+     */
+    private static final String TITLE_FOLDED = "titleFolded";
+    private static final String FIRST_NAME_FOLDED = "firstNameFolded";
+    private static final String LAST_NAME_FOLDED = "lastNameFolded";
+    /** Ignores case and accents; used with the collation indexes until the shadow fields are filled. */
+    private static final Collation PRIMARY_COLLATION = Collation.builder()
+            .locale("en")
+            .collationStrength(CollationStrength.PRIMARY)
+            .build();
+    private static final System.Logger LOGGER = System.getLogger(BooksDbImpl.class.getName());
+
+    /** Lifecycle of the connection to the database. */
+    public enum State { DISCONNECTED, CONNECTING, CONNECTED, DISCONNECTING }
+
+    /**
+     * Everything that belongs to one open connection. The handles are all set before the
+     * connection is published and never change; only the count of calls using it does.
+     */
+    static final class Connection {
+        final MongoClient client;
+        final MongoDatabase database;
+        final MongoCollection<Document> books;
+        final MongoCollection<Document> authors;
+        final MongoCollection<Document> catalogueMeta;
+        /** The collections as read by searches and author listings. */
+        final MongoCollection<Document> readBooks;
+        final MongoCollection<Document> readAuthors;
+        final boolean readsFromPrimary;
+        final boolean causal;
+        IdAllocator bookIds;
+        IdAllocator authorIds;
+        WriteBehindQueue booksQueue;
+        WriteBehindQueue authorsQueue;
+        /** The duplicate filters, or null if they are disabled or not loaded. */
+        volatile KnownBooks knownBooks;
+        final AtomicBoolean knownBooksLoading = new AtomicBoolean();
+
+        private final CallPermits permits = new CallPermits();
+        /** Set while a background thread re-reads the schema phase. */
+        final AtomicBoolean schemaRefreshing = new AtomicBoolean();
+        /** Set once every book and author has its folded shadow fields. */
+        volatile boolean foldedFieldsReady;
+        /** The phase of the migration to the compact book schema, re-read every few seconds. */
+        volatile BookSchema.Phase schemaPhase = BookSchema.Phase.V1;
+        volatile long schemaCheckedAt;
+        /** When a read of the phase that began at this time last succeeded. */
+        volatile long schemaConfirmedAt;
+        private final Object schemaLock = new Object();
+        private final Object causalLock = new Object();
+        private BsonTimestamp lastWriteTime;
+        private BsonDocument lastWriteClusterTime;
+
+        /**
+         * @param readPreference where searches read from, or null for the primary
+         * @param causal whether reads must see the writes made through this connection
+         */
+        Connection(MongoClient client, String databaseName, ReadPreference readPreference, boolean causal) {
+            this.client = client;
+            this.database = client.getDatabase(databaseName);
+            this.books = database.getCollection("books");
+            this.authors = database.getCollection("authors");
+            this.catalogueMeta = database.getCollection("catalogue_meta");
+            this.readsFromPrimary = readPreference == null;
+            this.causal = causal;
+            MongoCollection<Document> routedBooks = readsFromPrimary ? books : books.withReadPreference(readPreference);
+            MongoCollection<Document> routedAuthors = readsFromPrimary ? authors : authors.withReadPreference(readPreference);
+            this.readBooks = causal ? routedBooks.withReadConcern(ReadConcern.MAJORITY) : routedBooks;
+            this.readAuthors = causal ? routedAuthors.withReadConcern(ReadConcern.MAJORITY) : routedAuthors;
+        }
+
+        FindIterable<Document> findBooks(ClientSession session, Bson filter) {
+            return session != null ? readBooks.find(session, filter) : readBooks.find(filter);
+        }
+
+        FindIterable<Document> findAuthors(ClientSession session, Bson filter) {
+            return session != null ? readAuthors.find(session, filter) : readAuthors.find(filter);
+        }
+
+        AggregateIterable<Document> aggregateBooks(ClientSession session, List<Bson> pipeline) {
+            return session != null ? readBooks.aggregate(session, pipeline) : readBooks.aggregate(pipeline);
+        }
+
+        AggregateIterable<Document> aggregateAuthors(ClientSession session, List<Bson> pipeline) {
+            return session != null ? readAuthors.aggregate(session, pipeline) : readAuthors.aggregate(pipeline);
+        }
+
+        /**
+         * @return a causally consistent session that reads after the last write made through
+         *         this connection, or null unless reads must see those writes
+         */
+        ClientSession startReadSession() {
+            if (!causal) {
+                return null;
+            }
+            ClientSession session = startCausalSession();
+            synchronized (causalLock) {
+                if (lastWriteTime != null) {
+                    session.advanceClusterTime(lastWriteClusterTime);
+                    session.advanceOperationTime(lastWriteTime);
+                }
+            }
+            return session;
+        }
+
+        ClientSession startCausalSession() {
+            return client.startSession(ClientSessionOptions.builder().causallyConsistent(true).build());
+        }
+
+        /**
+         * Moves to the given phase, which the database had at or after the given time, if
+         * the phase is still the expected one. A caller that lost the race to another
+         * refresh or to the migration leaves their phase in place.
+         * @return whether the phase was set
+         */
+        boolean confirmSchemaPhase(BookSchema.Phase expected, BookSchema.Phase phase, long confirmedAt) {
+            synchronized (schemaLock) {
+                if (schemaPhase != expected) {
+                    return false;
+                }
+                schemaPhase = phase;
+                schemaConfirmedAt = Math.max(schemaConfirmedAt, confirmedAt);
+                return true;
+            }
+        }
+
+        /**
+         * Remembers the time of a write made in the session, if it is the latest so far.
+         */
+        void recordWrite(ClientSession session) {
+            BsonTimestamp time = session.getOperationTime();
+            synchronized (causalLock) {
+                if (time != null && (lastWriteTime == null || time.compareTo(lastWriteTime) > 0)) {
+                    lastWriteTime = time;
+                    lastWriteClusterTime = session.getClusterTime();
+                }
+            }
+        }
+
+        boolean tryAcquire() {
+            return permits.tryAcquire();
+        }
+
+        void release() {
+            permits.release();
+        }
+
+        /**
+         * Rejects new calls and waits for the calls still using the connection to finish.
+         */
+        void drain() {
+            permits.drain();
+        }
+    }
+
+    private final Object lifecycleLock = new Object();
+    private volatile State state = State.DISCONNECTED;
+    private volatile Connection connection;
+
+    private final Path snapshotDirectory;
+    private final String connectionString;
+    private final AtomicBoolean snapshotRebuilding = new AtomicBoolean();
+    private final AtomicBoolean snapshotRefreshRequested = new AtomicBoolean();
+    private final Object snapshotLock = new Object();
+    private volatile Path snapshotFile;
+    private volatile CatalogueSnapshot snapshot;
+    private volatile long snapshotCheckedAt;
+    private volatile long savedSnapshotToken = -1;
+    /** The newest change token this client has read or written, -1 if none yet. */
+    private final AtomicLong latestChangeToken = new AtomicLong(-1);
+    private final AtomicBoolean snapshotSaveScheduled = new AtomicBoolean();
+    private final CatalogueIndex<FuzzyIndex> fuzzyIndex = new CatalogueIndex<>("fuzzy-index", FuzzyIndex::new);
+    private final CatalogueIndex<FacetIndex> facetIndex = new CatalogueIndex<>("facet-index", FacetIndex::new);
+
+    private int writeBehindBatchSize;
+    private long writeBehindDelayMillis;
+    private boolean embedAuthorSummaries;
+    private boolean compactSchema;
+    private boolean duplicateFilters;
+    private ReadPreference readPreference;
+    private boolean readYourWrites;
+    private final ReadCache readCache = new ReadCache(SNAPSHOT_CHECK_INTERVAL_MILLIS);
+    private int warmUpMinConnections = 4;
+    private int warmUpHotGenres = 3;
+
+    /**
+     * Creates a data layer that always reads from the database.
+     */
+    public BooksDbImpl() {
+        this(null);
+    }
+
+    /**
+     * Creates a data layer that keeps a binary snapshot of the catalogue in the given
+     * directory, one file per database. While the snapshot matches the change token in the
+     * database it is used as the read source for searches and author listings.
+     * @param snapshotDirectory directory for snapshot files, or null to disable snapshots
+     */
+    public BooksDbImpl(Path snapshotDirectory) {
+        this(snapshotDirectory, DEFAULT_CONNECTION_STRING);
+    }
+
+    /**
+     * Creates a data layer for the MongoDB deployment at the given connection string, so
+     * that several instances can talk to different servers, e.g. as the shards of a
+     * {@link ShardedBooksDb}. Give each instance its own snapshot directory.
+     * @param snapshotDirectory directory for snapshot files, or null to disable snapshots
+     * @param connectionString e.g. mongodb://localhost:27018
+     */
+    public BooksDbImpl(Path snapshotDirectory, String connectionString) {
+        this.snapshotDirectory = snapshotDirectory;
+        this.connectionString = connectionString;
+    }
+
+    /**
+     * Splits a list of connection strings, e.g. the shards of a {@link ShardedBooksDb},
+     * separated by whitespace or commas. A comma only separates two connection strings
+     * when the next one starts with its scheme, so
+     * "mongodb://a:27017,b:27017/?replicaSet=rs0, mongodb://c:27017" is two.
+     * @return the connection strings, in order
+     */
+    public static List<String> splitConnectionStrings(String list) {
+        List<String> connectionStrings = new ArrayList<>();
+        for (String connectionString : CONNECTION_STRING_SEPARATOR.split(list.trim())) {
+            if (!connectionString.isEmpty()) {
+                connectionStrings.add(connectionString);
+            }
+        }
+        return connectionStrings;
+    }
+
+    /**
+     * Routes addBook, addAuthor and deleteBook through write-behind queues that group
+     * concurrent writes into bulkWrite batches. Each caller still blocks until its own write
+     * has been committed and gets its own success or failure, but many concurrent callers
+     * share one round trip. Must be called before {@link #connect}; pending writes are
+     * flushed by {@link #disconnect}.
+     * @param maxBatchSize flush a batch when it holds this many writes
+     * @param maxDelayMillis flush a batch when its oldest write has waited this long
+     */
+    public void enableWriteBehind(int maxBatchSize, long maxDelayMillis) {
+        if (maxBatchSize < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid batch size or delay");
+        }
+        this.writeBehindBatchSize = maxBatchSize;
+        this.writeBehindDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Switches to the schema where each book document embeds a summary (ID, first name,
+     * last name and birth date) of each of its authors in 'authorSummaries', next to the
+     * author IDs in 'authors'. Searches then read books without joining the 'authors'
+     * collection. Books written before the switch are backfilled in the background after
+     * connecting, and {@link #updateAuthor} fans a changed author out to all of its books.
+     * A book whose summaries do not cover all of its authors, e.g. one the backfill has
+     * not reached yet, is read with the join. Must be called before {@link #connect}.
+     */
+    public void enableEmbeddedAuthorSummaries() {
+        this.embedAuthorSummaries = true;
+    }
+
+    /**
+     * Stores the books of a new, empty catalogue in the compact {@link BookSchema#V2}
+     * layout. A catalogue that already has books keeps its layout until it is migrated
+     * with {@link #migrateToCompactSchema}. Must be called before {@link #connect}.
+     */
+    public void enableCompactSchema() {
+        this.compactSchema = true;
+    }
+
+    /**
+     * Keeps Bloom filters of the ISBNs and book ids in the catalogue, so that
+     * {@link #importBooks} only asks the server about the books that might be duplicates.
+     * The filters are built when connecting, from one pass over the two fields, and every
+     * book added through this instance is added to them. When the change token shows that
+     * another client wrote, they are rebuilt in the background. Must be called before
+     * {@link #connect}.
+     */
+    public void enableDuplicateFilters() {
+        this.duplicateFilters = true;
+    }
+
+    /**
+     * Sends searches, {@link #getAllAuthors} and {@link #getAuthorsForBook} to the replica
+     * set members picked by the given read preference, so that adding members adds read
+     * throughput. Writes, change tokens, duplicate checks and snapshot builds stay on the
+     * primary. Results read from another member are not put in the read cache, since they
+     * may be older than the change token they would be cached under. Must be called before
+     * {@link #connect}.
+     * @param mode primary, primaryPreferred, secondary, secondaryPreferred or nearest
+     * @param maxStalenessSeconds how far behind the primary a member may be and still be
+     *                            read from, at least 90; or 0 for no bound
+     * @throws IllegalArgumentException if the mode is unknown or the bound is below 90 s
+     */
+    public void enableReadRouting(String mode, long maxStalenessSeconds) {
+        if (maxStalenessSeconds != 0 && maxStalenessSeconds < 90) {
+            throw new IllegalArgumentException("The maximum staleness must be at least 90 seconds");
+        }
+        ReadPreference preference = maxStalenessSeconds == 0 ? ReadPreference.valueOf(mode)
+                : ReadPreference.valueOf(mode, Collections.emptyList(), maxStalenessSeconds, TimeUnit.SECONDS);
+        this.readPreference = mode.equals("primary") ? null : preference;
+    }
+
+    /**
+     * Makes the reads of this instance see its own writes even when they are routed to
+     * secondaries. Each read runs in a causally consistent session that starts after the
+     * last write made through this instance, so a member that has not replicated that
+     * write yet waits for it before answering. Writes and routed reads use majority write
+     * and read concern, so the guarantee also holds across a failover. Requires a replica
+     * set. Must be called before {@link #connect}.
+     */
+    public void enableReadYourWrites() {
+        this.readYourWrites = true;
+    }
+
+    /**
+     * Configures {@link #warmUp}. Must be called before {@link #connect}.
+     * @param minConnections connections the pool keeps open, and opens during warm-up
+     * @param hotGenres number of most-used genres to prefetch into the cache
+     */
+    public void configureWarmUp(int minConnections, int hotGenres) {
+        if (minConnections < 0 || hotGenres < 0) {
+            throw new IllegalArgumentException("Invalid warm-up configuration");
+        }
+        this.warmUpMinConnections = minConnections;
+        this.warmUpHotGenres = hotGenres;
+    }
 
     /**
      * Establishes a connection to a MongoDB database using the specified database name.
@@ -34,45 +473,130 @@ public class BooksDbImpl implements BooksDbInterface {
      */
     @Override
     public void connect(String databaseName) throws BooksDbException {
-        String connectionString = "mongodb://localhost:27017";
-
         ServerApi serverApi = ServerApi.builder()
                 .version(ServerApiVersion.V1)
                 .build();
 
+        // bounded timeouts, so a slow or unreachable server fails calls instead of blocking them
         MongoClientSettings settings = MongoClientSettings.builder()
                 .applyConnectionString(new ConnectionString(connectionString))
                 .serverApi(serverApi)
+                .applyToClusterSettings(builder ->
+                        builder.serverSelectionTimeout(5, TimeUnit.SECONDS))
+                .applyToSocketSettings(builder -> builder
+                        .connectTimeout(5, TimeUnit.SECONDS)
+                        .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                .applyToConnectionPoolSettings(builder -> builder
+                        .minSize(warmUpMinConnections)
+                        .maxWaitTime(5, TimeUnit.SECONDS))
+                .writeConcern(readYourWrites ? WriteConcern.MAJORITY : WriteConcern.ACKNOWLEDGED)
+                .addCommandListener(new RoundTripCounter())
                 .build();
 
-        try {
-            mongoClient = MongoClients.create(settings);
-            this.database = mongoClient.getDatabase(databaseName);
-            database.runCommand(new Document("ping", 1));
-        } catch (MongoException e) {
-            throw new BooksDbException("Error connecting to MongoDB: " + e.getMessage(), e);
+        synchronized (lifecycleLock) {
+            if (state != State.DISCONNECTED) {
+                throw new BooksDbException("Error connecting to MongoDB: already " + state);
+            }
+            state = State.CONNECTING;
+            MongoClient client = null;
+            Connection c = null;
+            boolean connected = false;
+            try {
+                client = MongoClients.create(settings);
+                c = new Connection(client, databaseName, readPreference, readYourWrites);
+                c.database.runCommand(new Document("ping", 1));
+                long schemaReadAt = System.currentTimeMillis();
+                c.schemaPhase = readSchemaPhase(c, compactSchema);
+                c.schemaCheckedAt = schemaReadAt;
+                c.schemaConfirmedAt = schemaReadAt;
+                createIndexes(c.authors, c.books, c.schemaPhase);
+                backfillFoldedFieldsInBackground(c);
+                if (embedAuthorSummaries) {
+                    backfillAuthorSummariesInBackground(c);
+                }
+                if (duplicateFilters) {
+                    c.knownBooks = loadKnownBooks(c);
+                }
+                c.bookIds = createIdAllocator(c.database, "books", "bookId");
+                c.authorIds = createIdAllocator(c.database, "authors", "authorID");
+                if (writeBehindBatchSize > 0) {
+                    Connection opened = c;
+                    c.booksQueue = new WriteBehindQueue(c.books, "bookId",
+                            writeBehindBatchSize, writeBehindDelayMillis, () -> catalogueChanged(opened, null));
+                    c.authorsQueue = new WriteBehindQueue(c.authors, "authorID",
+                            writeBehindBatchSize, writeBehindDelayMillis, () -> catalogueChanged(opened, null));
+                }
+                connection = c;
+                if (snapshotDirectory != null) {
+                    loadSnapshot(c, snapshotDirectory.resolve(databaseName + ".snapshot"));
+                }
+                state = State.CONNECTED;
+                connected = true;
+            } catch (MongoException e) {
+                throw new BooksDbException("Error connecting to MongoDB: " + e.getMessage(), e);
+            } finally {
+                if (!connected) {
+                    connection = null;
+                    if (c != null) {
+                        c.drain();
+                        closeWriteQueues(c);
+                    }
+                    if (client != null) {
+                        client.close();
+                    }
+                    state = State.DISCONNECTED;
+                }
+            }
         }
     }
 
     /**
-     * Closes the connection to the MongoDB database.
+     * Closes the connection to the MongoDB database, after flushing any writes still
+     * pending in the write-behind queues.
      * @throws BooksDbException if error do disconnect to database.
      */
     @Override
     public void disconnect() throws BooksDbException {
-        if (mongoClient != null) {
-            mongoClient.close();
-        }
-        else{
-            throw new BooksDbException("Error disconnecting to MongoDB. ");
+        synchronized (lifecycleLock) {
+            if (state != State.CONNECTED) {
+                throw new BooksDbException("Error disconnecting to MongoDB. ");
+            }
+            state = State.DISCONNECTING;
+            Connection c = connection;
+            connection = null;
+            try {
+                // calls already running finish on c before its client is closed
+                c.drain();
+                closeWriteQueues(c);
+            } finally {
+                saveSnapshotOnDisconnect();
+                snapshot = null;
+                savedSnapshotToken = -1;
+                latestChangeToken.set(-1);
+                fuzzyIndex.clear();
+                facetIndex.clear();
+                readCache.invalidate();
+                c.client.close();
+                state = State.DISCONNECTED;
+            }
         }
     }
 
     /**
-     * Searches for books in the MongoDB database by their title. This method utilizes
-     * a case-insensitive regular expression to match the given title with book titles
-     * stored in the database. It then converts each matching MongoDB document into a
-     * {@link Book} object and fetches associated authors for each book.
+     * @return where the connection is in its lifecycle
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Searches for books in the MongoDB database by their title. The title is parsed as a
+     * {@link TextQuery}: plain text matches titles ignoring case and accents through an
+     * index on the folded title, anything else is a case-insensitive regular expression.
+     * The books' authors are joined in the same aggregation, see
+     * {@link #bookSearchPipeline}, and each document becomes a {@link Book}. At most {@link #MAX_SEARCH_RESULTS} books
+     * are returned, like the author search, so a short query cannot read the whole
+     * collection.
      * @param title of Book
      * @return list of books matching the searched title
      * @throws BooksDbException if an error to find matching string
@@ -81,25 +605,26 @@ public class BooksDbImpl implements BooksDbInterface {
     public ArrayList<Book> searchBooksByTitle(String title) throws BooksDbException {
         ArrayList<Book> matchingBooks = new ArrayList<>();
 
+        Connection c = acquire();
         try {
-            Pattern titlePattern = Pattern.compile(title, Pattern.CASE_INSENSITIVE);
-            FindIterable<Document> foundBooks = database.getCollection("books")
-                    .find(Filters.regex("title", titlePattern));
+            TextQuery titleQuery = TextQuery.parse(title);
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return snapshot.searchBooksByTitle(titleQuery, MAX_SEARCH_RESULTS);
+            }
+            BookSchema s = c.schemaPhase.readSchema();
+            try (ClientSession session = c.startReadSession()) {
+                AggregateIterable<Document> foundBooks = c.aggregateBooks(session, bookSearchPipeline(s,
+                                textFilter(c, titleQuery, s.key("title"), s.key(TITLE_FOLDED)),
+                                null, MAX_SEARCH_RESULTS, embedAuthorSummaries))
+                        .collation(usesCollationFallback(c, titleQuery) ? PRIMARY_COLLATION : null);
 
-            for (Document bookDoc : foundBooks) {
-                Book book = documentToBook(bookDoc);
-                List<Integer> authorIds = bookDoc.getList("authors", Integer.class);
-                for (int authorId : authorIds) {
-                    Document authorDoc = database.getCollection("authors").find(Filters.eq("authorID", authorId)).first();
-                    if (authorDoc != null) {
-                        Author author = documentToAuthor(authorDoc);
-                        book.addAuthors(author);
-                    }
-                }
-                matchingBooks.add(book);
+                addJoinedBooks(c, session, foundBooks, matchingBooks);
             }
         } catch (MongoException e) {
             throw new BooksDbException("Error searching for books by title in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
 
         return matchingBooks;
@@ -107,10 +632,13 @@ public class BooksDbImpl implements BooksDbInterface {
 
     /**
      * Searches for books in the MongoDB database by a specified author's name. This method
-     * uses a case-insensitive regular expression to match the given author's name (either
-     * first or last name) with author names stored in the database. It retrieves books
-     * associated with any matching author and constructs a list of {@link Book} objects,
-     * including details about their authors.
+     * parses the name as a {@link TextQuery} and matches it with the first or last name of
+     * the authors stored in the database, in the same way as {@link #searchBooksByTitle}.
+     * The matching authors are joined with their books and the books' authors in a single
+     * aggregation pipeline on the server, so the size of the query no longer grows with
+     * the number of matching authors.
+     * Books written by several matching authors are only returned once, and the cursor is
+     * closed as soon as {@link #MAX_SEARCH_RESULTS} distinct books have been collected.
      * @param authorName name of the author
      * @return list of books matching the searched author.
      * @throws BooksDbException if an error to find matching string
@@ -119,36 +647,35 @@ public class BooksDbImpl implements BooksDbInterface {
     public ArrayList<Book> searchBooksByAuthor(String authorName) throws BooksDbException {
         ArrayList<Book> matchingBooks = new ArrayList<>();
 
+        Connection c = acquire();
         try {
-            Pattern namePattern = Pattern.compile(authorName, Pattern.CASE_INSENSITIVE);
-            FindIterable<Document> foundAuthors = database.getCollection("authors")
-                    .find(Filters.or(Filters.regex("firstName", namePattern),
-                            Filters.regex("lastName", namePattern)));
-
-            List<Integer> authorIds = new ArrayList<>();
-            for (Document author : foundAuthors) {
-                authorIds.add(author.getInteger("authorID"));
+            TextQuery nameQuery = TextQuery.parse(authorName);
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return snapshot.searchBooksByAuthor(nameQuery, MAX_SEARCH_RESULTS);
             }
+            List<Bson> pipeline = authorSearchPipeline(c.schemaPhase.readSchema(),
+                    Filters.or(textFilter(c, nameQuery, "firstName", FIRST_NAME_FOLDED),
+                            textFilter(c, nameQuery, "lastName", LAST_NAME_FOLDED)),
+                    embedAuthorSummaries);
 
-            if (!authorIds.isEmpty()) {
-                FindIterable<Document> foundBooks = database.getCollection("books")
-                        .find(Filters.in("authors", authorIds));
-
-                for (Document bookDoc : foundBooks) {
-                    Book book = documentToBook(bookDoc);
-                    List<Integer> bookAuthorIds = bookDoc.getList("authors", Integer.class);
-                    for (int authorId : bookAuthorIds) {
-                        Document authorDoc = database.getCollection("authors").find(Filters.eq("authorID", authorId)).first();
-                        if (authorDoc != null) {
-                            Author author = documentToAuthor(authorDoc);
-                            book.addAuthors(author);
-                        }
+            Set<Integer> seenBookIds = new HashSet<>();
+            try (ClientSession session = c.startReadSession();
+                 MongoCursor<Document> cursor = c.aggregateAuthors(session, pipeline)
+                         .collation(usesCollationFallback(c, nameQuery) ? PRIMARY_COLLATION : null)
+                         .batchSize(SEARCH_BATCH_SIZE)
+                         .iterator()) {
+                while (matchingBooks.size() < MAX_SEARCH_RESULTS && cursor.hasNext()) {
+                    Document bookDoc = cursor.next();
+                    if (seenBookIds.add(bookDoc.getInteger("bookId"))) {
+                        addJoinedBooks(c, session, Collections.singletonList(bookDoc), matchingBooks);
                     }
-                    matchingBooks.add(book);
                 }
             }
         } catch (MongoException e) {
             throw new BooksDbException("Error searching for books by author in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
 
         return matchingBooks;
@@ -168,25 +695,33 @@ public class BooksDbImpl implements BooksDbInterface {
     public ArrayList<Book> searchBooksByGenre(String genre) throws BooksDbException {
         ArrayList<Book> matchingBooks = new ArrayList<>();
 
+        Connection c = acquire();
         try {
             String uppercaseGenre = genre.toUpperCase();
-            FindIterable<Document> foundBooks = database.getCollection("books")
-                    .find(Filters.eq("genre", uppercaseGenre));
-
-            for (Document bookDoc : foundBooks) {
-                Book book = documentToBook(bookDoc);
-                List<Integer> authorIds = bookDoc.getList("authors", Integer.class);
-                for (int authorId : authorIds) {
-                    Document authorDoc = database.getCollection("authors").find(Filters.eq("authorID", authorId)).first();
-                    if (authorDoc != null) {
-                        Author author = documentToAuthor(authorDoc);
-                        book.addAuthors(author);
-                    }
-                }
-                matchingBooks.add(book);
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return snapshot.searchBooksByGenre(uppercaseGenre);
+            }
+            long generation = readCache.validate(() -> readChangeToken(c));
+            ArrayList<Book> cached = readCache.getBooksByGenre(uppercaseGenre);
+            if (cached != null) {
+                return cached;
+            }
+            BookSchema s = c.schemaPhase.readSchema();
+            try (ClientSession session = c.startReadSession()) {
+                AggregateIterable<Document> foundBooks = c.aggregateBooks(session,
+                        bookSearchPipeline(s, genreFilter(s, uppercaseGenre), null, 0, embedAuthorSummaries));
+
+                addJoinedBooks(c, session, foundBooks, matchingBooks);
+            }
+            // results from a lagging member must not be cached under the primary's change token
+            if (c.readsFromPrimary && matchingBooks.size() <= GENRE_CACHE_MAX_BOOKS) {
+                readCache.putBooksByGenre(generation, uppercaseGenre, matchingBooks);
             }
         } catch (MongoException e) {
             throw new BooksDbException("Error searching for books by genre in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
 
         return matchingBooks;
@@ -206,27 +741,115 @@ public class BooksDbImpl implements BooksDbInterface {
     public ArrayList<Book> searchBooksByRating(int rating) throws BooksDbException {
         ArrayList<Book> matchingBooks = new ArrayList<>();
 
+        Connection c = acquire();
         try {
-            FindIterable<Document> foundBooks = database.getCollection("books")
-                    .find(Filters.eq("rating", rating));
-
-            for (Document bookDoc : foundBooks) {
-                Book book = documentToBook(bookDoc);
-                List<Integer> authorIds = bookDoc.getList("authors", Integer.class);
-                for (int authorId : authorIds) {
-                    Document authorDoc = database.getCollection("authors").find(Filters.eq("authorID", authorId)).first();
-                    if (authorDoc != null) {
-                        Author author = documentToAuthor(authorDoc);
-                        book.addAuthors(author);
-                    }
-                }
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return snapshot.searchBooksByRating(rating);
+            }
+            BookSchema s = c.schemaPhase.readSchema();
+            try (ClientSession session = c.startReadSession()) {
+                AggregateIterable<Document> foundBooks = c.aggregateBooks(session,
+                        bookSearchPipeline(s, Filters.eq(s.key("rating"), rating), null, 0, embedAuthorSummaries));
 
-                matchingBooks.add(book);
+                addJoinedBooks(c, session, foundBooks, matchingBooks);
             }
         } catch (MongoException e) {
             throw new BooksDbException("Error searching for books by rating in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+
+        return matchingBooks;
+    }
+
+    /**
+     * Searches for books with a rating in the given range, optionally in one genre, and
+     * returns the first books in the given order. Each combination of genre, sort field and
+     * rating range is served by a compound index with the fields in equality, sort, range
+     * order, so the database reads only the returned documents instead of sorting all
+     * matches.
+     * @param minRating lowest rating, inclusive
+     * @param maxRating highest rating, inclusive
+     * @param genre genre name, or null for all genres
+     * @param sort order of the result
+     * @param limit maximum number of books, capped at {@link #MAX_SEARCH_RESULTS}
+     * @return the first matching books in the given order
+     * @throws BooksDbException if an error occurs while searching
+     */
+    @Override
+    public List<Book> searchBooksByRating(int minRating, int maxRating, String genre, BookSort sort, int limit)
+            throws BooksDbException {
+        ArrayList<Book> matchingBooks = new ArrayList<>();
+        int maxBooks = Math.min(limit, MAX_SEARCH_RESULTS);
+        if (maxBooks <= 0) {
+            return matchingBooks;
         }
+        String uppercaseGenre = genre == null ? null : genre.toUpperCase();
 
+        Connection c = acquire();
+        try {
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return snapshot.searchBooksByRating(minRating, maxRating, uppercaseGenre, sort.comparator(), maxBooks);
+            }
+            BookSchema s = c.schemaPhase.readSchema();
+            List<Bson> filters = new ArrayList<>();
+            if (uppercaseGenre != null) {
+                filters.add(genreFilter(s, uppercaseGenre));
+            }
+            filters.add(Filters.gte(s.key("rating"), minRating));
+            filters.add(Filters.lte(s.key("rating"), maxRating));
+            Bson order = ratingRangeOrder(s, sort);
+
+            try (ClientSession session = c.startReadSession()) {
+                AggregateIterable<Document> foundBooks = c.aggregateBooks(session,
+                                bookSearchPipeline(s, Filters.and(filters), order, maxBooks, embedAuthorSummaries))
+                        .batchSize(maxBooks);
+                addJoinedBooks(c, session, foundBooks, matchingBooks);
+            }
+        } catch (MongoException e) {
+            throw new BooksDbException("Error searching for books by rating range in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+        return matchingBooks;
+    }
+
+    /**
+     * Searches for books published in the given period, oldest first. The range and the
+     * sort are served by the index on 'published', so the database reads only the
+     * returned books; at most {@link #MAX_SEARCH_RESULTS} books are returned.
+     * @param from start of the period, inclusive
+     * @param to end of the period, exclusive
+     * @return books published in the period, oldest first
+     * @throws BooksDbException if an error occurs while searching
+     */
+    @Override
+    public List<Book> searchBooksByPublished(Date from, Date to) throws BooksDbException {
+        ArrayList<Book> matchingBooks = new ArrayList<>();
+
+        Connection c = acquire();
+        try {
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return snapshot.searchBooksByPublished(from, to, MAX_SEARCH_RESULTS);
+            }
+            BookSchema s = c.schemaPhase.readSchema();
+            String published = s.key("published");
+            try (ClientSession session = c.startReadSession()) {
+                AggregateIterable<Document> foundBooks = c.aggregateBooks(session, bookSearchPipeline(s,
+                                Filters.and(Filters.gte(published, s.publishedBound(from)),
+                                        Filters.lt(published, s.publishedBound(to))),
+                                Sorts.ascending(published, "bookId"), MAX_SEARCH_RESULTS, embedAuthorSummaries))
+                        .batchSize(SEARCH_BATCH_SIZE);
+                addJoinedBooks(c, session, foundBooks, matchingBooks);
+            }
+        } catch (MongoException e) {
+            throw new BooksDbException("Error searching for books by publication date in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
         return matchingBooks;
     }
 
@@ -243,28 +866,71 @@ public class BooksDbImpl implements BooksDbInterface {
     public ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException {
         ArrayList<Book> matchingBooks = new ArrayList<>();
 
+        Connection c = acquire();
         try {
-            FindIterable<Document> foundBooks = database.getCollection("books")
-                    .find(Filters.eq("isbn", ISBN));
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return snapshot.searchBooksByISBN(ISBN);
+            }
+            BookSchema s = c.schemaPhase.readSchema();
+            try (ClientSession session = c.startReadSession()) {
+                AggregateIterable<Document> foundBooks = c.aggregateBooks(session,
+                        bookSearchPipeline(s, Filters.eq(s.key("isbn"), ISBN), null, 0, embedAuthorSummaries));
 
-            for (Document bookDoc : foundBooks) {
-                Book book = documentToBook(bookDoc);
-                List<Integer> authorIds = bookDoc.getList("authors", Integer.class);
-                for (int authorId : authorIds) {
-                    Document authorDoc = database.getCollection("authors").find(Filters.eq("authorID", authorId)).first();
-                    if (authorDoc != null) {
-                        Author author = documentToAuthor(authorDoc);
-                        book.addAuthors(author);
-                    }
-                }
-                matchingBooks.add(book);
+                addJoinedBooks(c, session, foundBooks, matchingBooks);
             }
         } catch (MongoException e) {
             throw new BooksDbException("Error searching for books by ISBN in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
         return matchingBooks;
     }
 
+    /**
+     * Searches titles and author names while tolerating typos, using a {@link FuzzyIndex}
+     * held in memory. The index is built from the catalogue snapshot when there is one, and
+     * otherwise from one pass over the collections. Once the catalogue has changed the
+     * index is rebuilt in the background and searches use the previous one meanwhile; only
+     * the first search after connecting, unless the warm-up ran, waits for a build.
+     * @param query one or more words, possibly misspelled
+     * @return at most {@link #MAX_FUZZY_RESULTS} books, best match first
+     * @throws BooksDbException if the catalogue could not be read
+     */
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        Connection c = acquire();
+        try {
+            return fuzzyIndex.get(c).search(query, MAX_FUZZY_RESULTS);
+        } catch (MongoException e) {
+            throw new BooksDbException("Error fuzzy searching for books in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Filters books by genre, rating and publication year with a {@link FacetIndex} held in
+     * memory, which also counts the books for every facet value. Like the fuzzy index, it
+     * is built from the catalogue snapshot or one pass over the collections, and rebuilt
+     * in the background once the catalogue has changed.
+     * @param selection the selected genres, ratings and years
+     * @param limit maximum number of books to return
+     * @return the first matching books, oldest first, with the total and the facet counts
+     * @throws BooksDbException if the catalogue could not be read
+     */
+    @Override
+    public FacetResult searchBooksByFacets(FacetSelection selection, int limit) throws BooksDbException {
+        Connection c = acquire();
+        try {
+            return facetIndex.get(c).query(selection, limit);
+        } catch (MongoException e) {
+            throw new BooksDbException("Error facet searching for books in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
     /**
      * Deletes a book from the MongoDB database based on the provided book ID. This method
      * attempts to remove a single book document from the 'books' collection that matches
@@ -274,36 +940,61 @@ public class BooksDbImpl implements BooksDbInterface {
      */
     @Override
     public void deleteBook(int bookId) throws BooksDbException {
+        Connection c = acquire();
         try {
-            DeleteResult deleteResult = database.getCollection("books").deleteOne(new Document("bookId", bookId));
-            if (deleteResult.getDeletedCount() == 0) {
-                throw new BooksDbException("No book found with bookId: " + bookId);
+            WriteBehindQueue queue = c.booksQueue;
+            if (queue != null) {
+                awaitWrite(queue.delete(bookId), "Error deleting book from MongoDB: ");
+                return;
             }
-        } catch (MongoException e) {
-            throw new BooksDbException("Error deleting book from MongoDB: " + e.getMessage(), e);
+            try {
+                DeleteResult deleteResult = c.books.deleteOne(new Document("bookId", bookId));
+                if (deleteResult.getDeletedCount() == 0) {
+                    throw new BooksDbException("No book found with bookId: " + bookId);
+                }
+                catalogueChanged(c, (snapshot, changeToken) -> snapshot.withBooks(changeToken,
+                        Collections.<Book>emptyList(), Collections.singletonList(bookId)));
+            } catch (MongoException e) {
+                throw new BooksDbException("Error deleting book from MongoDB: " + e.getMessage(), e);
+            }
+        } finally {
+            c.release();
         }
     }
 
     /**
      * Adds a new book to the MongoDB database. This method converts a {@link Book} object
      * into a MongoDB document and inserts it into the 'books' collection. The book information
-     * includes book ID, ISBN, title, publication date, rating, and genre.
+     * includes book ID, ISBN, title, publication date, rating, and genre, in each
+     * {@link BookSchema} layout the current migration phase writes.
      * @param book object
      * @throws BooksDbException if error adding book to database.
      */
     @Override
     public void addBook(Book book) throws BooksDbException {
+        Connection c = acquire();
         try {
-            Document bookDocument = new Document("bookId", book.getBookId())
-                    .append("isbn", book.getIsbn())
-                    .append("title", book.getTitle())
-                    .append("published", book.getPublished())
-                    .append("rating", book.getRating())
-                    .append("genre", book.getGenre().toString());
-
-            database.getCollection("books").insertOne(bookDocument);
-        } catch (MongoException e) {
-            throw new BooksDbException("Error adding book to MongoDB: " + e.getMessage(), e);
+            Document bookDocument = newBookDocument(writePhase(c), book, Collections.<Author>emptyList());
+            // before the insert, so a concurrent duplicate check cannot miss the book
+            KnownBooks known = c.knownBooks;
+            if (known != null) {
+                known.add(book);
+            }
+            WriteBehindQueue queue = c.booksQueue;
+            if (queue != null) {
+                awaitWrite(queue.insert(bookDocument), "Error adding book to MongoDB: ");
+                return;
+            }
+            try {
+                c.books.insertOne(bookDocument);
+                Book stored = BookSchema.toBook(bookDocument);
+                catalogueChanged(c, (snapshot, changeToken) -> snapshot.withBooks(changeToken,
+                        Collections.singletonList(stored), Collections.<Integer>emptyList()));
+            } catch (MongoException e) {
+                throw new BooksDbException("Error adding book to MongoDB: " + e.getMessage(), e);
+            }
+        } finally {
+            c.release();
         }
     }
 
@@ -316,14 +1007,27 @@ public class BooksDbImpl implements BooksDbInterface {
      */
     @Override
     public void addAuthor(Author author) throws BooksDbException {
+        Document authorDocument = new Document("authorID", author.getAuthorID())
+                .append("firstName", author.getFirstName())
+                .append("lastName", author.getLastName())
+                .append(FIRST_NAME_FOLDED, TextQuery.fold(author.getFirstName()))
+                .append(LAST_NAME_FOLDED, TextQuery.fold(author.getLastName()))
+                .append("birthDate", author.getBirthDate());
+        Connection c = acquire();
         try {
-            Document authorDocument = new Document("authorID", author.getAuthorID())
-                    .append("firstName", author.getFirstName())
-                    .append("lastName", author.getLastName())
-                    .append("birthDate", author.getBirthDate());
-            database.getCollection("authors").insertOne(authorDocument);
-        } catch (MongoException e) {
-            throw new BooksDbException("Error adding author to MongoDB: " + e.getMessage(), e);
+            WriteBehindQueue queue = c.authorsQueue;
+            if (queue != null) {
+                awaitWrite(queue.insert(authorDocument), "Error adding author to MongoDB: ");
+                return;
+            }
+            try {
+                c.authors.insertOne(authorDocument);
+                catalogueChanged(c, (snapshot, changeToken) -> snapshot.withAuthor(changeToken, author));
+            } catch (MongoException e) {
+                throw new BooksDbException("Error adding author to MongoDB: " + e.getMessage(), e);
+            }
+        } finally {
+            c.release();
         }
     }
 
@@ -342,16 +1046,162 @@ public class BooksDbImpl implements BooksDbInterface {
             throw new IllegalArgumentException("Book and Author cannot be null");
         }
 
+        Connection c = acquire();
         try {
+            if (embedAuthorSummaries) {
+                addAuthorWithSummary(c, author, book.getBookId());
+                catalogueChanged(c, (snapshot, changeToken) ->
+                        snapshot.withBookAuthor(changeToken, book.getBookId(), author));
+                return;
+            }
             Document bookFilter = new Document("bookId", book.getBookId());
-            Document updateOperation = new Document("$addToSet", new Document("authors", author.getAuthorID()));
-            UpdateResult updateResult = database.getCollection("books").updateOne(bookFilter, updateOperation);
+            List<Bson> additions = new ArrayList<>();
+            for (BookSchema s : writePhase(c).writeSchemas()) {
+                additions.add(Updates.addToSet(s.key("authors"), author.getAuthorID()));
+            }
+            UpdateResult updateResult = c.books.updateOne(bookFilter, Updates.combine(additions));
 
             if (updateResult.getMatchedCount() == 0) {
                 throw new BooksDbException("No book found with bookId: " + book.getBookId());
             }
+            catalogueChanged(c, (snapshot, changeToken) ->
+                    snapshot.withBookAuthor(changeToken, book.getBookId(), author));
         } catch (MongoException e) {
             throw new BooksDbException("Error adding author to book in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Updates the changed fields of a book with a single $set, guarded by the book's
+     * version: the filter only matches while the stored version equals the version the
+     * book was read with, and the update sets the next one. Books stored before versions
+     * were introduced have no version field, which counts as version 0.
+     * @param book the book as last read
+     * @param changes the fields to change
+     * @return the updated book
+     * @throws BooksDbException if the book was deleted or changed since it was read, or if
+     * the update failed.
+     */
+    @Override
+    public Book updateBook(Book book, BookChanges changes) throws BooksDbException {
+        if (changes.isEmpty()) {
+            return book;
+        }
+        Connection c = acquire();
+        try {
+            BookSchema.Phase phase = writePhase(c);
+            UpdateResult updateResult = c.books.updateOne(bookVersionFilter(phase, book), bookUpdate(phase, book, changes));
+            if (updateResult.getMatchedCount() == 0) {
+                if (c.books.countDocuments(Filters.eq("bookId", book.getBookId())) == 0) {
+                    throw new BooksDbException("No book found with bookId: " + book.getBookId());
+                }
+                throw new BooksDbException("Book " + book.getBookId() + " was changed by someone else, "
+                        + "reload it and try again");
+            }
+            Book updated = changes.applyTo(book);
+            catalogueChanged(c, (snapshot, changeToken) -> snapshot.withBooks(changeToken,
+                    Collections.singletonList(updated), Collections.<Integer>emptyList()));
+            return updated;
+        } catch (MongoException e) {
+            throw new BooksDbException("Error updating book in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Updates the changed fields of many books with one unordered bulkWrite of
+     * version-guarded updates, which the driver sends in as few batches as the server
+     * allows. A book whose version no longer matches is simply not matched.
+     * @param books the books as last read
+     * @param changes the fields to change in every book
+     * @return the number of books updated
+     * @throws BooksDbException if the batch could not be written.
+     */
+    @Override
+    public int updateBooks(List<Book> books, BookChanges changes) throws BooksDbException {
+        if (changes.isEmpty() || books.isEmpty()) {
+            return 0;
+        }
+        Connection c = acquire();
+        try {
+            BookSchema.Phase phase = writePhase(c);
+            List<WriteModel<Document>> updates = new ArrayList<>(books.size());
+            for (Book book : books) {
+                updates.add(new UpdateOneModel<>(bookVersionFilter(phase, book), bookUpdate(phase, book, changes)));
+            }
+            BulkWriteResult result = c.books.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+            if (result.getMatchedCount() == books.size()) {
+                List<Book> updated = new ArrayList<>(books.size());
+                for (Book book : books) {
+                    updated.add(changes.applyTo(book));
+                }
+                catalogueChanged(c, (snapshot, changeToken) ->
+                        snapshot.withBooks(changeToken, updated, Collections.<Integer>emptyList()));
+            } else if (result.getMatchedCount() > 0) {
+                // which books were skipped is not reported, so the snapshot is rebuilt
+                catalogueChanged(c, null);
+            }
+            return result.getMatchedCount();
+        } catch (MongoException e) {
+            throw new BooksDbException("Error updating books in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Updates the changed fields of an author with a single version-guarded $set, like
+     * {@link #updateBook}. A changed name is also written into the summaries embedded in
+     * the author's books when those are enabled.
+     * @param author the author as last read
+     * @param changes the fields to change
+     * @return the updated author
+     * @throws BooksDbException if the author was deleted or changed since it was read, or
+     * if the update failed.
+     */
+    @Override
+    public Author updateAuthor(Author author, AuthorChanges changes) throws BooksDbException {
+        if (changes.isEmpty()) {
+            return author;
+        }
+        List<Bson> sets = new ArrayList<>();
+        if (changes.getFirstName() != null) {
+            sets.add(Updates.set("firstName", changes.getFirstName()));
+            sets.add(Updates.set(FIRST_NAME_FOLDED, TextQuery.fold(changes.getFirstName())));
+        }
+        if (changes.getLastName() != null) {
+            sets.add(Updates.set("lastName", changes.getLastName()));
+            sets.add(Updates.set(LAST_NAME_FOLDED, TextQuery.fold(changes.getLastName())));
+        }
+        if (changes.getBirthDate() != null) {
+            sets.add(Updates.set("birthDate", changes.getBirthDate()));
+        }
+        sets.add(Updates.inc("version", 1L));
+        Connection c = acquire();
+        try {
+            UpdateResult updateResult = c.authors.updateOne(
+                    versionFilter("authorID", author.getAuthorID(), "version", author.getVersion()),
+                    Updates.combine(sets));
+            if (updateResult.getMatchedCount() == 0) {
+                if (c.authors.countDocuments(Filters.eq("authorID", author.getAuthorID())) == 0) {
+                    throw new BooksDbException("No author found with authorID: " + author.getAuthorID());
+                }
+                throw new BooksDbException("Author " + author.getAuthorID() + " was changed by someone else, "
+                        + "reload it and try again");
+            }
+            Author updated = changes.applyTo(author);
+            if (embedAuthorSummaries && (changes.changesName() || changes.getBirthDate() != null)) {
+                refreshAuthorSummaries(c, updated);
+            }
+            catalogueChanged(c, (snapshot, changeToken) -> snapshot.withAuthor(changeToken, updated));
+            return updated;
+        } catch (MongoException e) {
+            throw new BooksDbException("Error updating author in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
     }
 
@@ -369,28 +1219,35 @@ public class BooksDbImpl implements BooksDbInterface {
     public List<Author> getAuthorsForBook(int bookID) throws BooksDbException {
         List<Author> authors = new ArrayList<>();
 
+        Connection c = acquire();
         try {
-            Document book = database.getCollection("books").find(new Document("bookId", bookID)).first();
-            if (book == null) {
-                throw new BooksDbException("No book found with bookId: " + bookID);
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                Book book = snapshot.getBook(bookID);
+                if (book == null) {
+                    throw new BooksDbException("No book found with bookId: " + bookID);
+                }
+                return book.getAuthors();
             }
+            try (ClientSession session = c.startReadSession()) {
+                Document book = c.findBooks(session, new Document("bookId", bookID)).first();
+                if (book == null) {
+                    throw new BooksDbException("No book found with bookId: " + bookID);
+                }
 
-            List<Integer> authorIds = book.getList("authors", Integer.class);
-
-            for (Integer authorId : authorIds) {
-                Document authorDoc = database.getCollection("authors").find(new Document("authorID", authorId)).first();
-                if (authorDoc != null) {
-                    int authorID = authorDoc.getInteger("authorID");
-                    String firstName = authorDoc.getString("firstName");
-                    String lastName = authorDoc.getString("lastName");
-                    Date birthDate = authorDoc.getDate("birthDate");
-
-                    Author author = new Author(authorID, firstName, lastName, birthDate);
-                    authors.add(author);
+                List<Integer> authorIds = BookSchema.authorIds(book);
+                Map<Integer, Author> authorsById = findAuthorsById(c, session, authorIds);
+                for (Integer authorId : authorIds) {
+                    Author author = authorsById.get(authorId);
+                    if (author != null) {
+                        authors.add(author);
+                    }
                 }
             }
         } catch (MongoException e) {
             throw new BooksDbException("Error retrieving authors for book from MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
         return authors;
     }
@@ -407,63 +1264,1701 @@ public class BooksDbImpl implements BooksDbInterface {
     public List<Author> getAllAuthors() throws BooksDbException {
         List<Author> authors = new ArrayList<>();
 
+        Connection c = acquire();
         try {
-            FindIterable<Document> authorDocuments = database.getCollection("authors").find();
-
-            for (Document doc : authorDocuments) {
-                int authorID = doc.getInteger("authorID");
-                String firstName = doc.getString("firstName");
-                String lastName = doc.getString("lastName");
-                Date birthDate = doc.getDate("birthDate");
+            CatalogueSnapshot snapshot = currentSnapshot(c);
+            if (snapshot != null) {
+                return new ArrayList<>(snapshot.getAuthors());
+            }
+            long generation = readCache.validate(() -> readChangeToken(c));
+            List<Author> cached = readCache.getAuthors();
+            if (cached != null) {
+                return cached;
+            }
+            try (ClientSession session = c.startReadSession()) {
+                FindIterable<Document> authorDocuments = c.findAuthors(session, new Document());
 
-                Author author = new Author(authorID, firstName, lastName, birthDate);
-                authors.add(author);
+                for (Document doc : authorDocuments) {
+                    authors.add(documentToAuthor(doc));
+                }
+            }
+            if (c.readsFromPrimary) {
+                readCache.putAuthors(generation, authors);
             }
         } catch (MongoException e) {
             throw new BooksDbException("Error retrieving authors from MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
 
         return authors;
     }
 
-    private Book documentToBook(Document doc) {
-        int bookId = doc.getInteger("bookId");
-        String isbn = doc.getString("isbn");
-        String bookTitle = doc.getString("title");
-        Date published = doc.getDate("published");
-        int rating = doc.getInteger("rating");
-        Genre genre = Genre.valueOf(doc.getString("genre").toUpperCase());
-
-        Book book = new Book(bookId, isbn, bookTitle, published, rating, genre);
+    /**
+     * Allocates a book id from a block of ids leased from the 'counters' collection.
+     * Most calls are answered locally; one call per block makes a round trip.
+     * @return a book id no other client receives
+     * @throws BooksDbException if a new block of ids could not be leased
+     */
+    @Override
+    public int nextBookId() throws BooksDbException {
+        Connection c = acquire();
+        try {
+            return c.bookIds.nextId();
+        } finally {
+            c.release();
+        }
+    }
 
-        List<Integer> authorIDs = doc.getList("authorIDs", Integer.class);
-        if (authorIDs != null) {
-            for (int authorID : authorIDs) {
-                Author author = getAuthorById(authorID);
-                if (author != null) {
-                    book.addAuthors(author);
+    /**
+     * Allocates an author id from a block of ids leased from the 'counters' collection.
+     * Most calls are answered locally; one call per block makes a round trip.
+     * @return an author id no other client receives
+     * @throws BooksDbException if a new block of ids could not be leased
+     */
+    @Override
+    public int nextAuthorId() throws BooksDbException {
+        Connection c = acquire();
+        try {
+            return c.authorIds.nextId();
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Adds the books of an import batch with their authors, skipping the books whose ISBN
+     * or book id is already in the catalogue or repeats an earlier book of the batch. The
+     * new books are inserted with one unordered insertMany, past the write-behind queue.
+     * With {@link #enableDuplicateFilters} most new books are confirmed new by the Bloom
+     * filters alone, and only the probable duplicates are verified, with a single query;
+     * without the filters, or while another client's writes may be missing from them, the
+     * whole batch is verified with that query.
+     * @param batch the books to add; their authors must already be in the catalogue
+     * @return the books that were skipped, in batch order
+     * @throws BooksDbException if the duplicates could not be verified or the books could
+     * not be added
+     */
+    @Override
+    public List<Book> importBooks(List<Book> batch) throws BooksDbException {
+        if (batch.isEmpty()) {
+            return new ArrayList<>();
+        }
+        Connection c = acquire();
+        try {
+            List<Book> skipped = findExistingBooks(c, batch);
+            Set<Book> skippedBooks = Collections.newSetFromMap(new IdentityHashMap<>());
+            skippedBooks.addAll(skipped);
+            BookSchema.Phase phase = writePhase(c);
+            KnownBooks known = c.knownBooks;
+            List<Document> bookDocuments = new ArrayList<>();
+            List<Book> added = new ArrayList<>();
+            for (Book book : batch) {
+                if (skippedBooks.contains(book)) {
+                    continue;
+                }
+                Document bookDocument = newBookDocument(phase, book, book.getAuthors());
+                bookDocuments.add(bookDocument);
+                Book stored = BookSchema.toBook(bookDocument);
+                for (Author author : book.getAuthors()) {
+                    stored.addAuthors(author);
+                }
+                added.add(stored);
+                if (known != null) {
+                    known.add(book);
+                }
+            }
+            if (!bookDocuments.isEmpty()) {
+                c.books.insertMany(bookDocuments, new InsertManyOptions().ordered(false));
+                catalogueChanged(c, (snapshot, changeToken) ->
+                        snapshot.withBooks(changeToken, added, Collections.<Integer>emptyList()));
+            }
+            return skipped;
+        } catch (MongoException e) {
+            throw new BooksDbException("Error importing books into MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Finds the books of an import batch that are already in the catalogue, by ISBN or by
+     * book id, or that repeat the ISBN or id of an earlier book in the batch.
+     * @return the books of the batch that would be duplicates, in batch order
+     */
+    private List<Book> findExistingBooks(Connection c, List<Book> batch) {
+        KnownBooks known = c.knownBooks;
+        if (known != null && !known.isCompleteAt(readChangeToken(c))) {
+            reloadKnownBooksInBackground(c);
+            known = null;
+        }
+        Set<String> batchIsbns = new HashSet<>();
+        Set<Integer> batchIds = new HashSet<>();
+        Set<Book> repeated = Collections.newSetFromMap(new IdentityHashMap<>());
+        List<Book> candidates = new ArrayList<>();
+        for (Book book : batch) {
+            boolean newIsbn = batchIsbns.add(book.getIsbn());
+            boolean newId = batchIds.add(book.getBookId());
+            if (!newIsbn || !newId) {
+                repeated.add(book);
+            } else if (known == null || known.mightContain(book)) {
+                candidates.add(book);
+            }
+        }
+
+        Set<String> existingIsbns = new HashSet<>();
+        Set<Integer> existingIds = new HashSet<>();
+        if (!candidates.isEmpty()) {
+            List<String> isbns = new ArrayList<>();
+            List<Integer> ids = new ArrayList<>();
+            for (Book book : candidates) {
+                isbns.add(book.getIsbn());
+                ids.add(book.getBookId());
+            }
+            String isbnKey = c.schemaPhase.readSchema().key("isbn");
+            for (Document doc : c.books.find(Filters.or(Filters.in(isbnKey, isbns), Filters.in("bookId", ids)))
+                    .projection(Projections.fields(Projections.include(isbnKey, "bookId"), Projections.excludeId()))) {
+                existingIsbns.add(doc.getString(isbnKey));
+                existingIds.add(doc.getInteger("bookId"));
+            }
+        }
+        LOGGER.log(System.Logger.Level.DEBUG, "Duplicate check: {0} books, {1} verified on the server",
+                batch.size(), candidates.size());
+
+        List<Book> existing = new ArrayList<>();
+        for (Book book : batch) {
+            if (repeated.contains(book) || existingIsbns.contains(book.getIsbn())
+                    || existingIds.contains(book.getBookId())) {
+                existing.add(book);
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Streams books straight from the database cursor to a CSV or JSON Lines file, in
+     * bookId order, without collecting them in memory: the client holds one cursor batch
+     * and one output buffer whatever the size of the catalogue. Each book's authors are
+     * joined on the server, from both the 'authors' field and the legacy 'authorIDs' field
+     * of books {@link #migrateAuthorIds} has not moved yet, or read from the embedded
+     * summaries when those are enabled. The file only appears, complete, once the export has succeeded.
+     * @param file the file to write
+     * @param format CSV or JSONL
+     * @param gzip whether to gzip the file
+     * @param genre export only this genre, or null for the whole catalogue
+     * @param progress receives the number of books written so far, or null
+     * @return the number of books written
+     * @throws BooksDbException if the books could not be read or the file could not be written
+     */
+    public long exportBooks(Path file, BookExporter.Format format, boolean gzip, String genre,
+                            BookExporter.Progress progress) throws BooksDbException {
+        Connection c = acquire();
+        try {
+            BookSchema s = c.schemaPhase.readSchema();
+            // books not yet moved by migrateAuthorIds keep some author ids in the legacy field
+            boolean legacyAuthorIds = s == BookSchema.V1;
+            List<Bson> pipeline = new ArrayList<>();
+            if (genre != null) {
+                pipeline.add(Aggregates.match(genreFilter(s, genre.toUpperCase())));
+            }
+            pipeline.add(Aggregates.sort(Sorts.ascending("bookId")));
+            if (!embedAuthorSummaries) {
+                pipeline.add(Aggregates.lookup("authors", s.key("authors"), "authorID", "authorDocs"));
+                if (legacyAuthorIds) {
+                    pipeline.add(Aggregates.lookup("authors", AuthorFieldMigration.LEGACY_FIELD, "authorID",
+                            "legacyAuthorDocs"));
+                }
+            }
+            try (BookExporter exporter = new BookExporter(file, format, gzip, progress);
+                 MongoCursor<Document> cursor = c.books.aggregate(pipeline)
+                         .allowDiskUse(true)
+                         .batchSize(EXPORT_BATCH_SIZE)
+                         .iterator()) {
+                while (cursor.hasNext()) {
+                    Document bookDoc = cursor.next();
+                    if (embedAuthorSummaries) {
+                        List<Book> books = new ArrayList<>(1);
+                        addBooks(c, null, Collections.singletonList(bookDoc), books);
+                        exporter.write(books.get(0));
+                        continue;
+                    }
+                    Book book = BookSchema.toBook(bookDoc);
+                    Set<Integer> authorIds = new HashSet<>();
+                    for (Document authorDoc : bookDoc.getList("authorDocs", Document.class)) {
+                        authorIds.add(authorDoc.getInteger("authorID"));
+                        book.addAuthors(documentToAuthor(authorDoc));
+                    }
+                    if (legacyAuthorIds) {
+                        for (Document authorDoc : bookDoc.getList("legacyAuthorDocs", Document.class)) {
+                            if (authorIds.add(authorDoc.getInteger("authorID"))) {
+                                book.addAuthors(documentToAuthor(authorDoc));
+                            }
+                        }
+                    }
+                    exporter.write(book);
+                }
+                return exporter.finish();
+            }
+        } catch (MongoException e) {
+            throw new BooksDbException("Error exporting books from MongoDB: " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new BooksDbException("Error writing export file " + file + ": " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Moves the author ids of books still stored with the legacy 'authorIDs' field into
+     * 'authors', in parallel over _id ranges with bulk writes, see
+     * {@link AuthorFieldMigration}. Searches read both fields, so clients can keep working
+     * during the migration, and an interrupted migration continues from the checkpoint
+     * file. Embedded author summaries are rebuilt afterwards when enabled. The legacy field
+     * only exists in the original book layout, so this must run before
+     * {@link #migrateToCompactSchema}.
+     * @param checkpointFile where progress is saved, deleted when the migration completes
+     * @param workers number of ranges migrated in parallel
+     * @param batchSize books per bulk write
+     * @param maxBooksPerSecond maximum books rewritten per second, or 0 for no limit
+     * @param progress receives the number of books migrated so far, or null
+     * @return the number of books migrated
+     * @throws BooksDbException if the migration failed, running it again continues it, or
+     *         the compact schema migration has started
+     */
+    public long migrateAuthorIds(Path checkpointFile, int workers, int batchSize, int maxBooksPerSecond,
+                                 BookMigration.Progress progress) throws BooksDbException {
+        Connection c = acquire();
+        try {
+            if (c.schemaPhase != BookSchema.Phase.V1) {
+                throw new BooksDbException("The book schema migration merges the author ids itself; it is in phase "
+                        + c.schemaPhase);
+            }
+            long migrated = new AuthorFieldMigration(c.books, checkpointFile, workers, batchSize, maxBooksPerSecond)
+                    .run(progress);
+            // the books read the same as before, so only the summaries need a change
+            if (migrated > 0 && embedAuthorSummaries) {
+                backfillAuthorSummaries(c);
+            }
+            return migrated;
+        } catch (MongoException e) {
+            throw new BooksDbException("Error migrating author ids in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * @return the phase of the book schema migration this client currently follows
+     * @throws BooksDbException if not connected
+     */
+    public BookSchema.Phase getSchemaPhase() throws BooksDbException {
+        Connection c = acquire();
+        try {
+            return c.schemaPhase;
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Migrates the books to the compact {@link BookSchema#V2} layout while clients keep
+     * working, through the {@link BookSchema.Phase phases} expand, switch and contract.
+     * After each change of phase the migration waits until every client has re-read it,
+     * so no two clients are more than one phase apart. The expansion adds the compact
+     * fields to all books and is repeated while books changed by clients still lack them;
+     * the contraction removes the old fields and their indexes. Both passes run in
+     * parallel over _id ranges with bulk writes, see {@link BookMigration}, and continue
+     * from the checkpoint file after an interruption; running the method again resumes
+     * from the phase reached.
+     * @param checkpointFile where progress is saved, deleted when a pass completes
+     * @param workers number of ranges migrated in parallel
+     * @param batchSize books per bulk write
+     * @param maxBooksPerSecond maximum books rewritten per second, or 0 for no limit
+     * @param progress receives the number of books rewritten so far, or null
+     * @return the number of books rewritten by this run, counting both passes
+     * @throws BooksDbException if the migration failed or another one changed the phase
+     */
+    public long migrateToCompactSchema(Path checkpointFile, int workers, int batchSize, int maxBooksPerSecond,
+                                       BookMigration.Progress progress) throws BooksDbException {
+        Connection c = acquire();
+        try {
+            long[] rewritten = new long[1];
+            BookMigration.Progress total = progress == null ? null : books -> progress.migrated(rewritten[0] + books);
+            BookSchema.Phase phase = readSchemaPhase(c, false);
+            if (phase == BookSchema.Phase.V1) {
+                createBookIndexes(c.books, BookSchema.V2);
+                changeSchemaPhase(c, phase, BookSchema.Phase.EXPANDING);
+                phase = BookSchema.Phase.EXPANDING;
+            }
+            if (phase == BookSchema.Phase.EXPANDING) {
+                long remaining = 0;
+                for (int pass = 0; pass < MAX_EXPANSION_PASSES; pass++) {
+                    BookMigration expansion = CompactSchemaMigration.expansion(c.books, checkpointFile, workers,
+                            batchSize, maxBooksPerSecond);
+                    rewritten[0] += expansion.run(total);
+                    remaining = expansion.remaining();
+                    if (remaining == 0) {
+                        break;
+                    }
                 }
+                if (remaining > 0) {
+                    throw new BooksDbException(remaining + " books still lack the compact fields after "
+                            + MAX_EXPANSION_PASSES + " passes; run the migration again");
+                }
+                changeSchemaPhase(c, phase, BookSchema.Phase.SWITCHING);
+                phase = BookSchema.Phase.SWITCHING;
+            }
+            if (phase == BookSchema.Phase.SWITCHING) {
+                changeSchemaPhase(c, phase, BookSchema.Phase.CONTRACTING);
+                phase = BookSchema.Phase.CONTRACTING;
             }
+            if (phase == BookSchema.Phase.CONTRACTING) {
+                dropV1BookIndexes(c.books);
+                rewritten[0] += CompactSchemaMigration.contraction(c.books, checkpointFile, workers, batchSize,
+                        maxBooksPerSecond).run(total);
+                changeSchemaPhase(c, phase, BookSchema.Phase.V2);
+            }
+            return rewritten[0];
+        } catch (MongoException e) {
+            throw new BooksDbException("Error migrating the book schema in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
         }
+    }
 
+    /**
+     * Measures what the compact book schema saves on this catalogue, from the storage
+     * statistics of the 'books' collection and a random sample of books, see
+     * {@link SchemaSizeReport}.
+     * @param sampleSize number of books to measure
+     * @throws BooksDbException if the statistics or the sample could not be read
+     */
+    public SchemaSizeReport reportSchemaSizes(int sampleSize) throws BooksDbException {
+        Connection c = acquire();
+        try {
+            Document collStats = c.database.runCommand(new Document("collStats", "books"));
+            List<Document> sample = c.books.aggregate(Collections.singletonList(Aggregates.sample(sampleSize)))
+                    .into(new ArrayList<>());
+            return new SchemaSizeReport(c.schemaPhase, collStats, sample);
+        } catch (MongoException e) {
+            throw new BooksDbException("Error measuring the book schema in MongoDB: " + e.getMessage(), e);
+        } finally {
+            c.release();
+        }
+    }
+
+    /**
+     * Warms up the connection pool, the caches and the query paths, so that the first
+     * searches after connecting are as fast as later ones. The steps are: opening the
+     * configured minimum number of pool connections, prefetching the author directory,
+     * prefetching the most-used genres, running each search shape once and building the
+     * fuzzy index. Each step's time is logged.
+     * @throws BooksDbException if a step fails
+     */
+    @Override
+    public void warmUp() throws BooksDbException {
+        Connection c = acquire();
+        try {
+            long started = System.nanoTime();
+            timeWarmUpStep("connection pool", () -> openMinimumConnections(c));
+            timeWarmUpStep("author directory", this::getAllAuthors);
+            timeWarmUpStep("hot genres", () -> {
+                for (String genre : mostUsedGenres(c, warmUpHotGenres)) {
+                    searchBooksByGenre(genre);
+                }
+            });
+            timeWarmUpStep("query shapes", () -> {
+                searchBooksByTitle("warm-up");
+                searchBooksByAuthor("warm-up");
+                searchBooksByISBN("0000000000");
+            });
+            timeWarmUpStep("fuzzy index", () -> searchBooksFuzzy("warm-up"));
+            timeWarmUpStep("facet index", () -> searchBooksByFacets(
+                    new FacetSelection(Set.of(), Set.of(), null, null), 0));
+            LOGGER.log(System.Logger.Level.INFO, "Warm-up finished in {0} ms", (System.nanoTime() - started) / 1_000_000);
+        } finally {
+            c.release();
+        }
+    }
+
+    private interface WarmUpStep {
+        void run() throws BooksDbException;
+    }
+
+    private static void timeWarmUpStep(String name, WarmUpStep step) throws BooksDbException {
+        long started = System.nanoTime();
+        step.run();
+        LOGGER.log(System.Logger.Level.INFO, "Warm-up step ''{0}'' took {1} ms", name,
+                (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Pings the server from as many threads as the pool's minimum size, so that those
+     * connections are established now rather than by the first searches.
+     */
+    private void openMinimumConnections(Connection c) throws BooksDbException {
+        if (warmUpMinConnections == 0) {
+            return;
+        }
+        ExecutorService pingers = Executors.newFixedThreadPool(warmUpMinConnections);
+        try {
+            List<Future<Document>> pings = new ArrayList<>();
+            for (int i = 0; i < warmUpMinConnections; i++) {
+                pings.add(pingers.submit(RoundTripCounter.countedAsCaller(
+                        () -> c.database.runCommand(new Document("ping", 1)))));
+            }
+            for (Future<Document> ping : pings) {
+                ping.get();
+            }
+        } catch (ExecutionException e) {
+            throw new BooksDbException("Error opening connections to MongoDB: " + e.getCause().getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BooksDbException("Interrupted while opening connections to MongoDB", e);
+        } finally {
+            pingers.shutdown();
+        }
+    }
+
+    private List<String> mostUsedGenres(Connection c, int count) throws BooksDbException {
+        List<String> genres = new ArrayList<>();
+        if (count == 0) {
+            return genres;
+        }
+        try {
+            for (Document doc : c.books.aggregate(Arrays.asList(
+                    Aggregates.group("$" + c.schemaPhase.readSchema().key("genre"), Accumulators.sum("count", 1)),
+                    Aggregates.sort(Sorts.descending("count")),
+                    Aggregates.limit(count)))) {
+                genres.add(BookSchema.genreOf(doc.get("_id")).toString());
+            }
+        } catch (MongoException e) {
+            throw new BooksDbException("Error finding the most used genres in MongoDB: " + e.getMessage(), e);
+        }
+        return genres;
+    }
+
+    /**
+     * Bloom filters of the ISBNs and ids of the books in the catalogue. They hold every
+     * book present at the change token they were loaded at, and stay complete while only
+     * this client writes: each book it adds goes into them before it is inserted, and the
+     * token follows its writes.
+     */
+    private static final class KnownBooks {
+        private final ScalableBloomFilter isbns;
+        private final ScalableBloomFilter bookIds;
+        private long changeToken;
+
+        KnownBooks(long capacity, long changeToken) {
+            this.isbns = new ScalableBloomFilter(capacity, DUPLICATE_FILTER_FALSE_POSITIVE_RATE);
+            this.bookIds = new ScalableBloomFilter(capacity, DUPLICATE_FILTER_FALSE_POSITIVE_RATE);
+            this.changeToken = changeToken;
+        }
+
+        void add(Book book) {
+            isbns.add(book.getIsbn());
+            bookIds.add(book.getBookId());
+        }
+
+        boolean mightContain(Book book) {
+            return isbns.mightContain(book.getIsbn()) || bookIds.mightContain(book.getBookId());
+        }
+
+        /** Follows a write of this client that moved the change token to the given value. */
+        synchronized void advance(long newChangeToken) {
+            if (newChangeToken == changeToken + 1) {
+                changeToken = newChangeToken;
+            }
+        }
+
+        synchronized boolean isCompleteAt(long currentChangeToken) {
+            return currentChangeToken == changeToken;
+        }
+    }
+
+    /**
+     * Builds the duplicate filters from one pass over the ISBNs and ids of all books,
+     * sized for the current number of books. The change token is read before the pass,
+     * so a book added during it makes the filters incomplete rather than missing.
+     */
+    private KnownBooks loadKnownBooks(Connection c) {
+        long changeToken = readChangeToken(c);
+        KnownBooks known = new KnownBooks(Math.max(DUPLICATE_FILTER_MIN_CAPACITY,
+                c.books.estimatedDocumentCount()), changeToken);
+        String isbnKey = c.schemaPhase.readSchema().key("isbn");
+        for (Document doc : c.books.find()
+                .projection(Projections.fields(Projections.include(isbnKey, "bookId"), Projections.excludeId()))
+                .batchSize(EXPORT_BATCH_SIZE)) {
+            String isbn = doc.getString(isbnKey);
+            if (isbn != null) {
+                known.isbns.add(isbn);
+            }
+            Integer bookId = doc.getInteger("bookId");
+            if (bookId != null) {
+                known.bookIds.add(bookId);
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Rebuilds the duplicate filters after another client wrote. Until they are replaced,
+     * import batches are verified on the server as a whole.
+     */
+    private void reloadKnownBooksInBackground(Connection c) {
+        if (!c.knownBooksLoading.compareAndSet(false, true)) {
+            return;
+        }
+        Thread loader = new Thread(() -> {
+            if (!c.tryAcquire()) {
+                c.knownBooksLoading.set(false);
+                return;
+            }
+            try {
+                c.knownBooks = loadKnownBooks(c);
+            } catch (RuntimeException e) {
+                LOGGER.log(System.Logger.Level.WARNING, "Could not reload the duplicate filters", e);
+            } finally {
+                c.release();
+                c.knownBooksLoading.set(false);
+            }
+        }, "duplicate-filter-reload");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    private static IdAllocator createIdAllocator(MongoDatabase database, String collectionName, String idField) {
+        IdAllocator allocator = new IdAllocator(database.getCollection("counters"), collectionName, ID_BLOCK_SIZE);
+        allocator.seedFrom(database.getCollection(collectionName), idField);
+        return allocator;
+    }
+
+    /**
+     * Writes the author's current name and birth date into the summary embedded in every
+     * book by the author. The books are found through the multikey index on 'authors' and
+     * updated with a single updateMany per layout, using an array filter to touch only
+     * this author's summary.
+     * @return true if the summary of at least one book was changed
+     */
+    private boolean refreshAuthorSummaries(Connection c, Author author) throws BooksDbException {
+        boolean modified = false;
+        // one update per layout: an array filter fails on books without the array
+        for (BookSchema s : writePhase(c).writeSchemas()) {
+            String summaries = s.key("authorSummaries");
+            UpdateResult result = c.books.updateMany(
+                    Filters.and(Filters.eq(s.key("authors"), author.getAuthorID()), Filters.exists(summaries)),
+                    Updates.combine(
+                            Updates.set(summaries + ".$[summary].firstName", author.getFirstName()),
+                            Updates.set(summaries + ".$[summary].lastName", author.getLastName()),
+                            Updates.set(summaries + ".$[summary].birthDate", author.getBirthDate())),
+                    new UpdateOptions().arrayFilters(
+                            Collections.singletonList(Filters.eq("summary.authorID", author.getAuthorID()))));
+            modified |= result.getModifiedCount() > 0;
+        }
+        return modified;
+    }
+
+    /**
+     * Matches the document with the given id while its version is the expected one. A
+     * document without a version field has never been updated, which is version 0.
+     */
+    private static Bson versionFilter(String idField, int id, String versionField, long expectedVersion) {
+        return Filters.and(Filters.eq(idField, id), expectedVersion == 0
+                ? Filters.in(versionField, 0L, null)
+                : Filters.eq(versionField, expectedVersion));
+    }
+
+    static Bson bookVersionFilter(BookSchema.Phase phase, Book book) {
+        return versionFilter("bookId", book.getBookId(), phase.readSchema().key("version"), book.getVersion());
+    }
+
+    /**
+     * Sets the changed fields and the next version in every layout the phase writes. The
+     * version is set rather than incremented, so a layout a book does not have yet gets the
+     * same version as the others; the version filter makes the two equivalent.
+     */
+    static Bson bookUpdate(BookSchema.Phase phase, Book book, BookChanges changes) {
+        List<Bson> sets = new ArrayList<>();
+        for (BookSchema s : phase.writeSchemas()) {
+            if (changes.getTitle() != null) {
+                sets.add(Updates.set(s.key("title"), changes.getTitle()));
+                sets.add(Updates.set(s.key(TITLE_FOLDED), TextQuery.fold(changes.getTitle())));
+            }
+            if (changes.getPublished() != null) {
+                sets.add(Updates.set(s.key("published"), s.published(changes.getPublished())));
+            }
+            if (changes.getRating() != null) {
+                sets.add(Updates.set(s.key("rating"), changes.getRating()));
+            }
+            if (changes.getGenre() != null) {
+                sets.add(Updates.set(s.key("genre"), s.genre(changes.getGenre())));
+            }
+            sets.add(Updates.set(s.key("version"), book.getVersion() + 1));
+        }
+        return Updates.combine(sets);
+    }
+
+    /**
+     * The aggregation on 'authors' that finds the books of the authors matching the filter,
+     * with the author documents of each book in 'authorDocs' unless the summaries are
+     * embedded. In V1, books not yet moved by {@link #migrateAuthorIds} keep some author
+     * ids in the legacy field, so the books are joined through the union of the two fields.
+     */
+    static List<Bson> authorSearchPipeline(BookSchema s, Bson authorFilter, boolean embedAuthorSummaries) {
+        List<Bson> pipeline = new ArrayList<>(Arrays.asList(
+                Aggregates.match(authorFilter),
+                Aggregates.project(Projections.fields(Projections.include("authorID"), Projections.excludeId())),
+                Aggregates.lookup("books", "authorID", s.key("authors"), "book")));
+        if (s == BookSchema.V1) {
+            pipeline.add(Aggregates.lookup("books", "authorID", AuthorFieldMigration.LEGACY_FIELD, "legacyBook"));
+            pipeline.add(Aggregates.project(Projections.computed("book",
+                    new Document("$setUnion", Arrays.asList("$book", "$legacyBook")))));
+        }
+        pipeline.add(Aggregates.unwind("$book"));
+        pipeline.add(Aggregates.replaceRoot("$book"));
+        if (!embedAuthorSummaries) {
+            pipeline.addAll(authorLookup(s));
+        }
+        return pipeline;
+    }
+
+    /**
+     * The aggregation on 'books' that returns the books matching the filter in the given
+     * order, at most limit of them, with their author documents joined in 'authorDocs'
+     * unless the summaries are embedded. The match, sort and limit come first, so the
+     * same indexes serve the search as a find would.
+     * @param sort order of the books, or null for any order
+     * @param limit maximum number of books, or 0 for no limit
+     */
+    static List<Bson> bookSearchPipeline(BookSchema s, Bson bookFilter, Bson sort, int limit,
+                                         boolean embedAuthorSummaries) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(Aggregates.match(bookFilter));
+        if (sort != null) {
+            pipeline.add(Aggregates.sort(sort));
+        }
+        if (limit > 0) {
+            pipeline.add(Aggregates.limit(limit));
+        }
+        if (!embedAuthorSummaries) {
+            pipeline.addAll(authorLookup(s));
+        }
+        return pipeline;
+    }
+
+    /**
+     * The stages joining the author documents of each book into 'authorDocs'. In V1 the
+     * authors are looked up by the union of 'authors' and the legacy 'authorIDs' field.
+     */
+    private static List<Bson> authorLookup(BookSchema s) {
+        if (s != BookSchema.V1) {
+            return Collections.singletonList(Aggregates.lookup("authors", s.key("authors"), "authorID", "authorDocs"));
+        }
+        return Arrays.asList(
+                Aggregates.addFields(new Field<>("allAuthorIds", new Document("$setUnion", Arrays.asList(
+                        new Document("$ifNull", Arrays.asList("$" + s.key("authors"), Collections.emptyList())),
+                        new Document("$ifNull", Arrays.asList("$" + AuthorFieldMigration.LEGACY_FIELD,
+                                Collections.emptyList())))))),
+                Aggregates.lookup("authors", "allAuthorIds", "authorID", "authorDocs"));
+    }
+
+    /**
+     * The order of a rating range search, on the sort field alone so that the equality,
+     * sort, range indexes of {@link #createBookIndexes} can serve it.
+     */
+    static Bson ratingRangeOrder(BookSchema s, BookSort sort) {
+        String sortKey = s.key(sort.getField());
+        return sort.getDirection() > 0 ? Sorts.ascending(sortKey) : Sorts.descending(sortKey);
+    }
+
+    /**
+     * Matches the books of the named genre; a name that is no genre matches no book.
+     */
+    private static Bson genreFilter(BookSchema s, String uppercaseGenre) {
+        Genre genre;
+        try {
+            genre = Genre.valueOf(uppercaseGenre);
+        } catch (IllegalArgumentException e) {
+            return Filters.in(s.key("genre"));
+        }
+        return Filters.eq(s.key("genre"), s.genre(genre));
+    }
+
+    private static long versionOf(Document doc) {
+        Number version = doc.get("version", Number.class);
+        return version == null ? 0 : version.longValue();
+    }
+
+    /**
+     * Builds the document of a new book in every layout the phase writes, with the given
+     * authors and, when they are enabled, the authors' summaries.
+     */
+    private Document newBookDocument(BookSchema.Phase phase, Book book, List<Author> authors) {
+        List<Integer> authorIds = new ArrayList<>(authors.size());
+        List<Document> summaries = new ArrayList<>(authors.size());
+        for (Author author : authors) {
+            authorIds.add(author.getAuthorID());
+            summaries.add(authorSummary(author));
+        }
+        Document bookDocument = new Document("bookId", book.getBookId());
+        for (BookSchema s : phase.writeSchemas()) {
+            bookDocument.putAll(s.fields(book));
+            if (embedAuthorSummaries || !authors.isEmpty()) {
+                bookDocument.append(s.key("authors"), authorIds);
+            }
+            if (embedAuthorSummaries) {
+                bookDocument.append(s.key("authorSummaries"), summaries);
+            }
+        }
+        return bookDocument;
+    }
+
+    private static Document authorSummary(Author author) {
+        return new Document("authorID", author.getAuthorID())
+                .append("firstName", author.getFirstName())
+                .append("lastName", author.getLastName())
+                .append("birthDate", author.getBirthDate());
+    }
+
+    /**
+     * Adds the author's ID and summary to the book in one update. The filter skips books
+     * that already list the author, so the two arrays cannot get out of step.
+     */
+    private void addAuthorWithSummary(Connection c, Author author, int bookId) throws BooksDbException {
+        Document summary = authorSummary(author);
+        BookSchema.Phase phase = writePhase(c);
+        List<Bson> pushes = new ArrayList<>();
+        for (BookSchema s : phase.writeSchemas()) {
+            pushes.add(Updates.push(s.key("authors"), author.getAuthorID()));
+            pushes.add(Updates.push(s.key("authorSummaries"), summary));
+        }
+        UpdateResult updateResult = c.books.updateOne(
+                Filters.and(Filters.eq("bookId", bookId),
+                        Filters.ne(phase.readSchema().key("authors"), author.getAuthorID())),
+                Updates.combine(pushes));
+        if (updateResult.getMatchedCount() == 0
+                && c.books.countDocuments(Filters.eq("bookId", bookId)) == 0) {
+            throw new BooksDbException("No book found with bookId: " + bookId);
+        }
+    }
+
+    /**
+     * Embeds author summaries in the books that do not have complete ones yet, on a
+     * background thread; until then those books are read with the join.
+     */
+    private void backfillAuthorSummariesInBackground(Connection c) {
+        if (c.books.find(missingAuthorSummaries(c.schemaPhase.readSchema())).first() == null) {
+            return;
+        }
+        Thread backfill = new Thread(() -> {
+            if (!c.tryAcquire()) {
+                return;
+            }
+            try {
+                backfillAuthorSummaries(c);
+                LOGGER.log(System.Logger.Level.INFO, "Embedded author summaries in the books without them");
+            } catch (RuntimeException e) {
+                // the books without summaries keep joining their authors
+                LOGGER.log(System.Logger.Level.WARNING, "Could not embed author summaries", e);
+            } finally {
+                c.release();
+            }
+        }, "author-summary-backfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+
+    /**
+     * Matches the books whose summaries are missing, fewer than their authors, or written
+     * before summaries had a birth date.
+     */
+    private static Bson missingAuthorSummaries(BookSchema read) {
+        String summaries = read.key("authorSummaries");
+        return Filters.or(
+                Filters.exists(summaries, false),
+                Filters.elemMatch(summaries, Filters.exists("birthDate", false)),
+                Filters.expr(new Document("$ne", Arrays.asList(arraySize(summaries), arraySize(read.key("authors"))))));
+    }
+
+    /**
+     * @return an aggregation expression for the length of the array field, 0 if it is missing
+     */
+    private static Document arraySize(String field) {
+        return new Document("$size", new Document("$ifNull", Arrays.asList("$" + field, Collections.emptyList())));
+    }
+
+    /**
+     * Embeds author summaries in the books that do not have complete ones. The join runs
+     * on the server and its output is merged back into 'books', so no book crosses the
+     * network.
+     */
+    private void backfillAuthorSummaries(Connection c) {
+        MongoCollection<Document> books = c.books;
+        BookSchema.Phase phase = c.schemaPhase;
+        BookSchema read = phase.readSchema();
+        Document summary = new Document("authorID", "$$author.authorID")
+                .append("firstName", "$$author.firstName")
+                .append("lastName", "$$author.lastName")
+                .append("birthDate", new Document("$ifNull", Arrays.asList("$$author.birthDate", null)));
+        Document summaries = new Document("$map",
+                new Document("input", "$authorDocs").append("as", "author").append("in", summary));
+        Document projection = new Document();
+        for (BookSchema s : phase.writeSchemas()) {
+            projection.append(s.key("authorSummaries"), summaries);
+        }
+        books.aggregate(Arrays.asList(
+                Aggregates.match(missingAuthorSummaries(read)),
+                Aggregates.lookup("authors", read.key("authors"), "authorID", "authorDocs"),
+                Aggregates.project(projection),
+                Aggregates.merge("books", new MergeOptions()
+                        .whenMatched(MergeOptions.WhenMatched.MERGE)
+                        .whenNotMatched(MergeOptions.WhenNotMatched.DISCARD))))
+                .toCollection();
+        catalogueChanged(c, null);
+    }
+
+    /**
+     * Converts the book documents of a search pipeline to books. Without embedded
+     * summaries the pipeline has joined the authors into 'authorDocs', and they are added
+     * in the order the book lists them; otherwise see {@link #addBooks}.
+     */
+    private void addJoinedBooks(Connection c, ClientSession session, Iterable<Document> bookDocs, List<Book> books) {
+        if (embedAuthorSummaries) {
+            addBooks(c, session, bookDocs, books);
+            return;
+        }
+        for (Document bookDoc : bookDocs) {
+            books.add(joinedBook(bookDoc));
+        }
+    }
+
+    static Book joinedBook(Document bookDoc) {
+        Map<Integer, Author> authorsById = new HashMap<>();
+        for (Document authorDoc : bookDoc.getList("authorDocs", Document.class, Collections.emptyList())) {
+            Author author = documentToAuthor(authorDoc);
+            authorsById.put(author.getAuthorID(), author);
+        }
+        Book book = BookSchema.toBook(bookDoc);
+        for (int authorId : BookSchema.authorIds(bookDoc)) {
+            Author author = authorsById.get(authorId);
+            if (author != null) {
+                book.addAuthors(author);
+            }
+        }
         return book;
     }
 
-    private Author documentToAuthor(Document doc) {
+    /**
+     * Converts book documents to books with their authors, taken from the embedded
+     * summaries when the documents have them. The other authors are read with one $in
+     * query per {@link #SEARCH_BATCH_SIZE} books rather than one query per author.
+     */
+    private void addBooks(Connection c, ClientSession session, Iterable<Document> bookDocs, List<Book> books) {
+        List<Document> batch = new ArrayList<>(SEARCH_BATCH_SIZE);
+        for (Document bookDoc : bookDocs) {
+            batch.add(bookDoc);
+            if (batch.size() == SEARCH_BATCH_SIZE) {
+                addBatch(c, session, batch, books);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty()) {
+            addBatch(c, session, batch, books);
+        }
+    }
+
+    private void addBatch(Connection c, ClientSession session, List<Document> bookDocs, List<Book> books) {
+        Set<Integer> authorIds = new HashSet<>();
+        for (Document bookDoc : bookDocs) {
+            if (authorSummaries(bookDoc) == null) {
+                authorIds.addAll(BookSchema.authorIds(bookDoc));
+            }
+        }
+        Map<Integer, Author> authorsById = findAuthorsById(c, session, authorIds);
+        for (Document bookDoc : bookDocs) {
+            Book book = BookSchema.toBook(bookDoc);
+            List<Document> summaries = authorSummaries(bookDoc);
+            if (summaries != null) {
+                for (Document summary : summaries) {
+                    book.addAuthors(new Author(summary.getInteger("authorID"), summary.getString("firstName"),
+                            summary.getString("lastName"), summary.getDate("birthDate")));
+                }
+            } else {
+                for (int authorId : BookSchema.authorIds(bookDoc)) {
+                    Author author = authorsById.get(authorId);
+                    if (author != null) {
+                        book.addAuthors(author);
+                    }
+                }
+            }
+            books.add(book);
+        }
+    }
+
+    /**
+     * @return the book's embedded author summaries, or null if they are disabled or
+     *         incomplete, in which case the authors are joined
+     */
+    private List<Document> authorSummaries(Document bookDoc) {
+        return embedAuthorSummaries ? completeAuthorSummaries(bookDoc) : null;
+    }
+
+    /**
+     * @return the book's embedded author summaries, or null unless they cover every
+     *         author, including the legacy ids of a V1 book, each with a birth date
+     */
+    static List<Document> completeAuthorSummaries(Document bookDoc) {
+        List<Document> summaries = BookSchema.authorSummaries(bookDoc);
+        if (summaries == null || summaries.size() != BookSchema.authorIds(bookDoc).size()) {
+            return null;
+        }
+        for (Document summary : summaries) {
+            if (!summary.containsKey("birthDate")) {
+                return null;
+            }
+        }
+        return summaries;
+    }
+
+    /**
+     * Reads the given authors with a single query.
+     */
+    private Map<Integer, Author> findAuthorsById(Connection c, ClientSession session, Collection<Integer> authorIds) {
+        Map<Integer, Author> authorsById = new HashMap<>();
+        if (authorIds.isEmpty()) {
+            return authorsById;
+        }
+        for (Document authorDoc : c.findAuthors(session, Filters.in("authorID", authorIds))) {
+            Author author = documentToAuthor(authorDoc);
+            authorsById.put(author.getAuthorID(), author);
+        }
+        return authorsById;
+    }
+
+    /**
+     * Creates the indexes the queries in this class rely on, on the book fields of every
+     * layout the phase reads or writes. Creating an index that already exists is a no-op
+     * on the server.
+     */
+    private static void createIndexes(MongoCollection<Document> authors, MongoCollection<Document> books,
+                                      BookSchema.Phase phase) {
+        authors.createIndex(Indexes.ascending("authorID"));
+        books.createIndex(Indexes.ascending("bookId"));
+        Set<BookSchema> schemas = EnumSet.of(phase.readSchema());
+        schemas.addAll(phase.writeSchemas());
+        for (BookSchema s : schemas) {
+            createBookIndexes(books, s);
+        }
+        authors.createIndex(Indexes.ascending(FIRST_NAME_FOLDED));
+        authors.createIndex(Indexes.ascending(LAST_NAME_FOLDED));
+        authors.createIndex(Indexes.ascending("firstName"),
+                new IndexOptions().collation(PRIMARY_COLLATION).name("firstName_primary"));
+        authors.createIndex(Indexes.ascending("lastName"),
+                new IndexOptions().collation(PRIMARY_COLLATION).name("lastName_primary"));
+    }
+
+    static void createBookIndexes(MongoCollection<Document> books, BookSchema s) {
+        books.createIndex(Indexes.ascending(s.key("authors")));
+        books.createIndex(Indexes.ascending(s.key("isbn")));
+        // equality, sort, range: top-k rating range searches read only the returned books
+        books.createIndex(Indexes.descending(s.key("rating")));
+        books.createIndex(Indexes.compoundIndex(Indexes.ascending(s.key("genre")),
+                Indexes.descending(s.key("rating"))));
+        books.createIndex(Indexes.compoundIndex(Indexes.descending(s.key("published")),
+                Indexes.ascending(s.key("rating"))));
+        books.createIndex(Indexes.compoundIndex(Indexes.ascending(s.key("genre")),
+                Indexes.descending(s.key("published")), Indexes.ascending(s.key("rating"))));
+        books.createIndex(Indexes.ascending(s.key("title"), s.key("rating")));
+        books.createIndex(Indexes.ascending(s.key("genre"), s.key("title"), s.key("rating")));
+        books.createIndex(Indexes.ascending(s.key("published"), "bookId"));
+        // case- and accent-insensitive text searches, see textFilter
+        books.createIndex(Indexes.ascending(s.key(TITLE_FOLDED)));
+        books.createIndex(Indexes.ascending(s.key("title")),
+                new IndexOptions().collation(PRIMARY_COLLATION).name(s.key("title") + "_primary"));
+    }
+
+    /**
+     * Drops the book indexes on fields of the original layout, once no client reads it.
+     */
+    private static void dropV1BookIndexes(MongoCollection<Document> books) {
+        Set<String> v1Only = new HashSet<>(BookSchema.V1.keys());
+        v1Only.removeAll(BookSchema.V2.keys());
+        for (Document index : books.listIndexes()) {
+            for (String field : index.get("key", Document.class).keySet()) {
+                if (v1Only.contains(field)) {
+                    books.dropIndex(index.getString("name"));
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Builds the filter for a title or name query. Literal queries compare the folded text
+     * with the indexed shadow field: a prefix is a range of the index, other text a regular
+     * expression without flags, which the server checks against the index keys alone.
+     * Until the shadow fields are filled, a literal prefix is a range of the source field
+     * under {@link #PRIMARY_COLLATION} instead, see {@link #usesCollationFallback}, and
+     * other queries are case-insensitive regular expressions on the source field.
+     */
+    private static Bson textFilter(Connection c, TextQuery query, String field, String foldedField) {
+        if (query.isLiteral() && c.foldedFieldsReady) {
+            if (query.isPrefix()) {
+                return Filters.and(Filters.gte(foldedField, query.getLiteral()),
+                        Filters.lt(foldedField, query.prefixEnd()));
+            }
+            return Filters.regex(foldedField, Pattern.quote(query.getLiteral()));
+        }
+        if (query.isPrefix()) {
+            // U+FFFF has the highest primary weight, so this ends the range of the prefix
+            return Filters.and(Filters.gte(field, query.getLiteral()),
+                    Filters.lt(field, query.getLiteral() + "\uffff"));
+        }
+        return Filters.regex(field, query.getPattern());
+    }
+
+    /**
+     * @return true if the filter from {@link #textFilter} must run with {@link #PRIMARY_COLLATION}
+     */
+    private static boolean usesCollationFallback(Connection c, TextQuery query) {
+        return query.isPrefix() && !c.foldedFieldsReady;
+    }
+
+    /**
+     * Fills the folded shadow fields of books and authors stored before they existed. The
+     * check is an index seek; if anything is missing, the fields are filled in batches on a
+     * background thread while searches use the collation indexes. Each update only applies
+     * if the source field is unchanged, since a concurrent edit writes both fields itself.
+     */
+    private void backfillFoldedFieldsInBackground(Connection c) {
+        if (!hasMissingFoldedFields(c)) {
+            c.foldedFieldsReady = true;
+            return;
+        }
+        Thread backfill = new Thread(() -> {
+            try {
+                long books = 0;
+                long authors = 0;
+                int filled;
+                do {
+                    if (!c.tryAcquire()) {
+                        return;
+                    }
+                    try {
+                        BookSchema s = c.schemaPhase.readSchema();
+                        filled = backfillFoldedBatch(c.books, s.key(TITLE_FOLDED), s.key("title"));
+                        books += filled;
+                        int authorsFilled = backfillFoldedBatch(c.authors, FIRST_NAME_FOLDED, "firstName",
+                                LAST_NAME_FOLDED, "lastName");
+                        authors += authorsFilled;
+                        filled += authorsFilled;
+                    } finally {
+                        c.release();
+                    }
+                } while (filled > 0);
+                c.foldedFieldsReady = true;
+                LOGGER.log(System.Logger.Level.INFO, "Filled folded search fields of " + books + " books and "
+                        + authors + " authors");
+            } catch (RuntimeException e) {
+                // searches keep using the collation indexes
+                LOGGER.log(System.Logger.Level.WARNING, "Could not fill folded search fields", e);
+            }
+        }, "folded-field-backfill");
+        backfill.setDaemon(true);
+        backfill.start();
+    }
+
+    private static boolean hasMissingFoldedFields(Connection c) {
+        return c.books.find(Filters.exists(c.schemaPhase.readSchema().key(TITLE_FOLDED), false)).first() != null
+                || c.authors.find(Filters.or(Filters.exists(FIRST_NAME_FOLDED, false),
+                        Filters.exists(LAST_NAME_FOLDED, false))).first() != null;
+    }
+
+    /**
+     * Fills the shadow fields of up to {@link #FOLDED_BACKFILL_BATCH_SIZE} documents that miss
+     * them, given as pairs of folded and source field names.
+     * @return the number of documents looked at, 0 when none are missing the fields
+     */
+    private static int backfillFoldedBatch(MongoCollection<Document> collection, String... fields) {
+        List<Bson> missing = new ArrayList<>();
+        List<String> sources = new ArrayList<>();
+        for (int i = 0; i < fields.length; i += 2) {
+            missing.add(Filters.exists(fields[i], false));
+            sources.add(fields[i + 1]);
+        }
+        List<WriteModel<Document>> updates = new ArrayList<>();
+        for (Document doc : collection.find(Filters.or(missing))
+                .projection(Projections.include(sources))
+                .limit(FOLDED_BACKFILL_BATCH_SIZE)) {
+            List<Bson> unchanged = new ArrayList<>();
+            List<Bson> sets = new ArrayList<>();
+            unchanged.add(Filters.eq("_id", doc.get("_id")));
+            for (int i = 0; i < fields.length; i += 2) {
+                String value = doc.getString(fields[i + 1]);
+                unchanged.add(Filters.eq(fields[i + 1], value));
+                sets.add(Updates.set(fields[i], TextQuery.fold(value)));
+            }
+            updates.add(new UpdateOneModel<>(Filters.and(unchanged), Updates.combine(sets)));
+        }
+        if (!updates.isEmpty()) {
+            collection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+        }
+        return updates.size();
+    }
+
+    /**
+     * Returns the open connection, counted as in use until {@link Connection#release}.
+     * The connection is read once, so the caller keeps using the same one even if another
+     * thread starts disconnecting meanwhile, and the disconnect waits for it.
+     */
+    private Connection acquire() throws BooksDbException {
+        Connection c = connection;
+        if (c == null || !c.tryAcquire()) {
+            throw new BooksDbException("Not connected to a database");
+        }
+        boolean acquired = false;
+        try {
+            if (System.currentTimeMillis() - c.schemaCheckedAt >= SCHEMA_CHECK_INTERVAL_MILLIS) {
+                refreshSchemaPhaseInBackground(c);
+            }
+            acquired = true;
+            return c;
+        } finally {
+            // the caller only releases a connection it got
+            if (!acquired) {
+                c.release();
+            }
+        }
+    }
+
+    /**
+     * Re-reads the phase of the book schema migration on a background thread, so no
+     * request waits for the read; writes that need a confirmed phase read it themselves,
+     * see {@link #writePhase}.
+     */
+    private void refreshSchemaPhaseInBackground(Connection c) {
+        if (!c.schemaRefreshing.compareAndSet(false, true)) {
+            return;
+        }
+        c.schemaCheckedAt = System.currentTimeMillis();
+        Thread refresher = new Thread(() -> {
+            if (!c.tryAcquire()) {
+                c.schemaRefreshing.set(false);
+                return;
+            }
+            try {
+                refreshSchemaPhase(c);
+            } finally {
+                c.release();
+                c.schemaRefreshing.set(false);
+            }
+        }, "schema-phase-refresh");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Re-reads the phase of the book schema migration. Only one caller per interval does
+     * the read; if it fails, the known phase stays in use for reads, and for writes until
+     * it is older than {@link #SCHEMA_PHASE_MAX_AGE_MILLIS}.
+     */
+    private void refreshSchemaPhase(Connection c) {
+        long started = System.currentTimeMillis();
+        c.schemaCheckedAt = started;
+        BookSchema.Phase known = c.schemaPhase;
+        try {
+            BookSchema.Phase phase = readSchemaPhase(c, false);
+            if (c.confirmSchemaPhase(known, phase, started) && phase != known) {
+                LOGGER.log(System.Logger.Level.INFO, "Book schema phase changed from " + known + " to " + phase);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(System.Logger.Level.WARNING, "Could not read the book schema phase", e);
+        }
+    }
+
+    /**
+     * Returns the phase whose layouts a write must use. If the phase was last confirmed
+     * longer than {@link #SCHEMA_PHASE_MAX_AGE_MILLIS} ago, it is re-read first.
+     * @throws BooksDbException if the phase could not be confirmed
+     */
+    private BookSchema.Phase writePhase(Connection c) throws BooksDbException {
+        if (System.currentTimeMillis() - c.schemaConfirmedAt >= SCHEMA_PHASE_MAX_AGE_MILLIS) {
+            refreshSchemaPhase(c);
+            long age = System.currentTimeMillis() - c.schemaConfirmedAt;
+            if (age >= SCHEMA_PHASE_MAX_AGE_MILLIS) {
+                throw new BooksDbException("Not writing: the book schema phase was last confirmed "
+                        + age / 1000 + " s ago and could not be read");
+            }
+        }
+        return c.schemaPhase;
+    }
+
+    /**
+     * Reads the phase of the book schema migration from 'catalogue_meta'. A catalogue
+     * without the entry uses the original layout, unless it is empty and the compact
+     * layout was asked for, in which case it starts out in it.
+     */
+    private static BookSchema.Phase readSchemaPhase(Connection c, boolean startCompact) {
+        Document meta = c.catalogueMeta.find(Filters.eq("_id", SCHEMA_META_ID)).first();
+        if (meta == null) {
+            if (!startCompact || c.books.find().first() != null) {
+                return BookSchema.Phase.V1;
+            }
+            // another client may create the entry at the same time; whoever is first wins
+            c.catalogueMeta.updateOne(Filters.eq("_id", SCHEMA_META_ID),
+                    Updates.setOnInsert("phase", BookSchema.Phase.V2.name()), new UpdateOptions().upsert(true));
+            meta = c.catalogueMeta.find(Filters.eq("_id", SCHEMA_META_ID)).first();
+        }
+        return BookSchema.Phase.valueOf(meta.getString("phase"));
+    }
+
+    /**
+     * Moves the book schema migration from one phase to the next with a compare-and-set
+     * on the expected phase, so that of two migrations only one can move it, and waits
+     * {@link #SCHEMA_PHASE_GRACE_MILLIS}. Clients write only while their phase was
+     * confirmed within {@link #SCHEMA_PHASE_MAX_AGE_MILLIS}, so after the wait none writes
+     * the previous phase any more.
+     * @throws BooksDbException if the phase was not the expected one
+     */
+    private static void changeSchemaPhase(Connection c, BookSchema.Phase from, BookSchema.Phase to)
+            throws BooksDbException {
+        if (from == BookSchema.Phase.V1) {
+            c.catalogueMeta.updateOne(Filters.eq("_id", SCHEMA_META_ID),
+                    Updates.setOnInsert("phase", from.name()), new UpdateOptions().upsert(true));
+        }
+        BookSchema.Phase known = c.schemaPhase;
+        long started = System.currentTimeMillis();
+        UpdateResult result = c.catalogueMeta.updateOne(
+                Filters.and(Filters.eq("_id", SCHEMA_META_ID), Filters.eq("phase", from.name())),
+                Updates.set("phase", to.name()));
+        if (result.getModifiedCount() == 0) {
+            throw new BooksDbException("The book schema is no longer in phase " + from
+                    + "; is another migration running?");
+        }
+        c.confirmSchemaPhase(known, to, started);
+        LOGGER.log(System.Logger.Level.INFO, "Book schema phase changed from " + from + " to " + to);
+        if (to == BookSchema.Phase.V2) {
+            return;
+        }
+        try {
+            Thread.sleep(SCHEMA_PHASE_GRACE_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BooksDbException("Interrupted while waiting for clients to see book schema phase " + to, e);
+        }
+    }
+
+    private static void closeWriteQueues(Connection c) {
+        if (c.booksQueue != null) {
+            c.booksQueue.close();
+        }
+        if (c.authorsQueue != null) {
+            c.authorsQueue.close();
+        }
+    }
+
+    /**
+     * Waits until a queued write has been committed, re-throwing its failure. The wait is
+     * bounded by the delay of the queue plus the read timeout of the two round trips of a
+     * batch, so a flusher that stopped cannot hang the caller.
+     */
+    private void awaitWrite(CompletableFuture<Void> write, String errorPrefix) throws BooksDbException {
+        long timeoutMillis = writeBehindDelayMillis + 2 * TimeUnit.SECONDS.toMillis(READ_TIMEOUT_SECONDS);
+        try {
+            write.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new BooksDbException(errorPrefix + "the write was not committed within "
+                    + timeoutMillis + " ms and may still be applied", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BooksDbException(errorPrefix + "interrupted while waiting for the write", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw new BooksDbException(errorPrefix + cause.getMessage(), (Exception) cause);
+            }
+            throw new BooksDbException(errorPrefix + cause);
+        }
+    }
+
+    /**
+     * Loads the snapshot from the given file if it matches the change token in the database.
+     * Otherwise a fresh snapshot is built in the background and reads go to the database
+     * until it is ready.
+     */
+    private void loadSnapshot(Connection c, Path file) {
+        snapshotFile = file;
+        long changeToken = readChangeToken(c);
+        if (Files.exists(file)) {
+            try {
+                CatalogueSnapshot loaded = CatalogueSnapshot.read(file);
+                if (loaded.getChangeToken() == changeToken) {
+                    snapshotCheckedAt = System.currentTimeMillis();
+                    savedSnapshotToken = changeToken;
+                    snapshot = loaded;
+                    return;
+                }
+            } catch (IOException e) {
+                LOGGER.log(System.Logger.Level.WARNING, "Ignoring unreadable snapshot " + file, e);
+            }
+        }
+        refreshSnapshotInBackground(c);
+    }
+
+    /**
+     * Returns the snapshot to read from, or null if reads must go to the database. The
+     * change token is re-checked at most every {@link #SNAPSHOT_CHECK_INTERVAL_MILLIS}, so
+     * changes made by other clients are picked up without a round trip per read. Once a
+     * check or a write of this client shows that another client wrote since the snapshot
+     * was built, reads go to the database until the replacement built in the background
+     * is installed.
+     */
+    private CatalogueSnapshot currentSnapshot(Connection c) {
+        CatalogueSnapshot current = snapshot;
+        if (current == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (now - snapshotCheckedAt >= SNAPSHOT_CHECK_INTERVAL_MILLIS) {
+            snapshotCheckedAt = now;
+            if (readChangeToken(c) != current.getChangeToken()) {
+                refreshSnapshotInBackground(c);
+            }
+        }
+        return current.getChangeToken() >= latestChangeToken.get() ? current : null;
+    }
+
+    /**
+     * Saves the snapshot, with the writes made since it was last saved, once
+     * {@link #SNAPSHOT_SAVE_DELAY_MILLIS} have passed, so a burst of writes rewrites the
+     * file once and no write waits for it.
+     */
+    private void saveSnapshotLater(Connection c) {
+        if (snapshotFile == null || !snapshotSaveScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        Thread saver = new Thread(() -> {
+            try {
+                Thread.sleep(SNAPSHOT_SAVE_DELAY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                snapshotSaveScheduled.set(false);
+            }
+            if (connection == c) {
+                refreshSnapshotInBackground(c);
+            }
+        }, "snapshot-save");
+        saver.setDaemon(true);
+        saver.start();
+    }
+
+    /**
+     * Saves the writes this client made since the snapshot was last saved, so the next
+     * start can use the file; a stale snapshot is left for that start to rebuild.
+     */
+    private void saveSnapshotOnDisconnect() {
+        CatalogueSnapshot current = snapshot;
+        if (current == null || current.getChangeToken() < latestChangeToken.get()) {
+            return;
+        }
+        try {
+            saveSnapshot(current);
+        } catch (IOException e) {
+            LOGGER.log(System.Logger.Level.WARNING, "Could not save snapshot " + snapshotFile, e);
+        }
+    }
+
+    /**
+     * Brings the snapshot and its file up to date on a background thread. Requests made
+     * while a refresh runs are served by one more pass of the same thread.
+     */
+    private void refreshSnapshotInBackground(Connection c) {
+        if (snapshotFile == null) {
+            return;
+        }
+        snapshotRefreshRequested.set(true);
+        if (!snapshotRebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        Thread rebuilder = new Thread(() -> {
+            try {
+                while (snapshotRefreshRequested.getAndSet(false) && connection == c) {
+                    if (!c.tryAcquire()) {
+                        return;
+                    }
+                    try {
+                        refreshSnapshot(c);
+                    } catch (IOException | MongoException e) {
+                        LOGGER.log(System.Logger.Level.WARNING, "Could not rebuild snapshot " + snapshotFile, e);
+                    } finally {
+                        c.release();
+                    }
+                }
+            } finally {
+                snapshotRebuilding.set(false);
+                // a request made after the last pass started must not be lost
+                if (snapshotRefreshRequested.get() && connection == c) {
+                    refreshSnapshotInBackground(c);
+                }
+            }
+        }, "snapshot-rebuild");
+        rebuilder.setDaemon(true);
+        rebuilder.start();
+    }
+
+    /**
+     * Rebuilds the snapshot from the database unless it already matches the change token,
+     * and writes it to the snapshot file. A snapshot that matches has the writes of this
+     * client folded into its base first, see {@link CatalogueSnapshot#compacted}. A rebuild is only installed if no write happened
+     * while it was read; otherwise it is retried, up to
+     * {@link #SNAPSHOT_REBUILD_ATTEMPTS} times, after which the newest rebuild is installed
+     * anyway and the next check of the change token starts another refresh.
+     */
+    private void refreshSnapshot(Connection c) throws IOException {
+        CatalogueSnapshot rebuilt = null;
+        for (int attempt = 0; attempt < SNAPSHOT_REBUILD_ATTEMPTS; attempt++) {
+            long changeToken = readChangeToken(c);
+            CatalogueSnapshot current = snapshot;
+            if (current != null && current.getChangeToken() == changeToken) {
+                CatalogueSnapshot compacted = current.compacted();
+                synchronized (snapshotLock) {
+                    // a write made while compacting is in the newer snapshot, saved by the next pass
+                    if (connection == c && snapshot == current) {
+                        snapshot = compacted;
+                    }
+                }
+                saveSnapshot(compacted);
+                return;
+            }
+            rebuilt = readCatalogue(c, changeToken);
+            synchronized (snapshotLock) {
+                // a rebuild that outlives its connection must not replace the next one's snapshot
+                if (connection != c) {
+                    return;
+                }
+                if (readChangeToken(c) == changeToken) {
+                    snapshotCheckedAt = System.currentTimeMillis();
+                    snapshot = rebuilt;
+                    rebuilt = null;
+                }
+            }
+            if (rebuilt == null) {
+                saveSnapshot(snapshot);
+                return;
+            }
+        }
+        LOGGER.log(System.Logger.Level.WARNING, "Catalogue kept changing during "
+                + SNAPSHOT_REBUILD_ATTEMPTS + " snapshot rebuilds; installing the last one");
+        synchronized (snapshotLock) {
+            CatalogueSnapshot current = snapshot;
+            if (connection == c && (current == null || current.getChangeToken() < rebuilt.getChangeToken())) {
+                snapshot = rebuilt;
+            }
+        }
+    }
+
+    private void saveSnapshot(CatalogueSnapshot current) throws IOException {
+        Path file = snapshotFile;
+        if (file == null || current == null || current.getChangeToken() == savedSnapshotToken) {
+            return;
+        }
+        CatalogueSnapshot.write(file, current.getChangeToken(), current.getAuthors(), current.getBooks());
+        savedSnapshotToken = current.getChangeToken();
+    }
+
+    /**
+     * An index of the whole catalogue, held in memory and rebuilt on a background thread
+     * when the catalogue changes. Until the new index is ready, queries are served by the
+     * previous one; only a query that finds no index at all builds one on its own thread.
+     * An index built from the snapshot is current while the snapshot is; one built from
+     * the collections is current while the change token is.
+     */
+    private final class CatalogueIndex<T> {
+        private final String name;
+        private final BiFunction<Long, List<Book>, T> builder;
+        private final Object lock = new Object();
+        private final AtomicBoolean rebuilding = new AtomicBoolean();
+        private volatile T index;
+        private volatile Object builtFrom;
+
+        CatalogueIndex(String name, BiFunction<Long, List<Book>, T> builder) {
+            this.name = name;
+            this.builder = builder;
+        }
+
+        T get(Connection c) {
+            T current = index;
+            if (current != null) {
+                if (!source(c, currentSnapshot(c)).equals(builtFrom)) {
+                    rebuildInBackground(c);
+                }
+                return current;
+            }
+            synchronized (lock) {
+                current = index;
+                return current != null ? current : build(c, currentSnapshot(c));
+            }
+        }
+
+        void clear() {
+            synchronized (lock) {
+                index = null;
+                builtFrom = null;
+            }
+        }
+
+        /** The snapshot the index is built from, or the change token if there is none. */
+        private Object source(Connection c, CatalogueSnapshot current) {
+            return current != null ? current : (Object) readChangeToken(c);
+        }
+
+        private T build(Connection c, CatalogueSnapshot current) {
+            Object source = source(c, current);
+            long changeToken = current != null ? current.getChangeToken() : (Long) source;
+            List<Book> books = current != null ? current.getBooks() : readCatalogue(c, changeToken).getBooks();
+            T built = builder.apply(changeToken, books);
+            synchronized (lock) {
+                // a build that outlives its connection must not replace the next one's index
+                if (connection == c) {
+                    index = built;
+                    builtFrom = source;
+                }
+            }
+            return built;
+        }
+
+        private void rebuildInBackground(Connection c) {
+            if (!rebuilding.compareAndSet(false, true)) {
+                return;
+            }
+            Thread rebuilder = new Thread(() -> {
+                if (!c.tryAcquire()) {
+                    rebuilding.set(false);
+                    return;
+                }
+                try {
+                    build(c, currentSnapshot(c));
+                } catch (RuntimeException e) {
+                    LOGGER.log(System.Logger.Level.WARNING, "Could not rebuild the " + name, e);
+                } finally {
+                    c.release();
+                    rebuilding.set(false);
+                }
+            }, name + "-rebuild");
+            rebuilder.setDaemon(true);
+            rebuilder.start();
+        }
+    }
+
+    /**
+     * Reads the whole catalogue with one pass over each collection.
+     */
+    private CatalogueSnapshot readCatalogue(Connection c, long changeToken) {
+        List<Author> authors = new ArrayList<>();
+        Map<Integer, Author> authorsById = new HashMap<>();
+        for (Document authorDoc : c.authors.find()) {
+            Author author = documentToAuthor(authorDoc);
+            authors.add(author);
+            authorsById.put(author.getAuthorID(), author);
+        }
+
+        List<Book> books = new ArrayList<>();
+        for (Document bookDoc : c.books.find().batchSize(1000)) {
+            Book book = BookSchema.toBook(bookDoc);
+            for (Integer authorId : BookSchema.authorIds(bookDoc)) {
+                Author author = authorsById.get(authorId);
+                if (author != null) {
+                    book.addAuthors(author);
+                }
+            }
+            books.add(book);
+        }
+        return new CatalogueSnapshot(changeToken, authors, books);
+    }
+
+    /**
+     * Reads the change token, a counter in the 'catalogue_meta' collection that every
+     * write through this class increments.
+     */
+    private long readChangeToken(Connection c) {
+        Document meta = c.catalogueMeta.find(Filters.eq("_id", "catalogue")).first();
+        Number changeToken = meta == null ? null : meta.get("changeToken", Number.class);
+        long token = changeToken == null ? 0 : changeToken.longValue();
+        latestChangeToken.accumulateAndGet(token, Math::max);
+        return token;
+    }
+
+    /**
+     * A write made by this client, as a change of the catalogue snapshot.
+     */
+    private interface SnapshotChange {
+        CatalogueSnapshot applyTo(CatalogueSnapshot snapshot, long changeToken);
+    }
+
+    /**
+     * Marks the catalogue as changed so that every client's snapshot becomes stale, and
+     * applies the change to this client's snapshot so that its reads see its own writes.
+     * The change goes into the snapshot's overlay, and the file is saved later, see
+     * {@link #saveSnapshotLater}. If another client wrote since the snapshot was last
+     * brought up to date, the changed snapshot keeps its old change token, so reads go to
+     * the database while a refresh runs in the background.
+     * @param change the change to apply to the snapshot, or null if it is not known, in
+     *               which case the snapshot is refreshed from the database
+     */
+    private void catalogueChanged(Connection c, SnapshotChange change) {
+        Bson filter = Filters.eq("_id", "catalogue");
+        Bson update = Updates.inc("changeToken", 1L);
+        FindOneAndUpdateOptions upsert = new FindOneAndUpdateOptions().upsert(true)
+                .returnDocument(ReturnDocument.AFTER);
+        Document meta;
+        if (c.causal) {
+            // every write ends here, after the change itself, so reads that start after
+            // the time of this update also see the change
+            try (ClientSession session = c.startCausalSession()) {
+                meta = c.catalogueMeta.findOneAndUpdate(session, filter, update, upsert);
+                c.recordWrite(session);
+            }
+        } else {
+            meta = c.catalogueMeta.findOneAndUpdate(filter, update, upsert);
+        }
+        readCache.invalidate();
+        long changeToken = meta.get("changeToken", Number.class).longValue();
+        latestChangeToken.accumulateAndGet(changeToken, Math::max);
+        KnownBooks known = c.knownBooks;
+        if (known != null) {
+            known.advance(changeToken);
+        }
+        if (snapshot == null) {
+            return;
+        }
+        boolean upToDate = false;
+        if (change != null) {
+            synchronized (snapshotLock) {
+                CatalogueSnapshot current = snapshot;
+                if (current != null) {
+                    upToDate = changeToken == current.getChangeToken() + 1;
+                    snapshot = change.applyTo(current, upToDate ? changeToken : current.getChangeToken());
+                }
+            }
+        }
+        if (upToDate) {
+            snapshotCheckedAt = System.currentTimeMillis();
+            saveSnapshotLater(c);
+        } else {
+            refreshSnapshotInBackground(c);
+        }
+    }
+
+    private static Author documentToAuthor(Document doc) {
         int authorID = doc.getInteger("authorID");
         String firstName = doc.getString("firstName");
         String lastName = doc.getString("lastName");
         Date birthDate = doc.getDate("birthDate");
 
-	    return new Author(authorID, firstName, lastName, birthDate);
-    }
-
-    private Author getAuthorById(int authorId) {
-        Document authorDoc = database.getCollection("authors").find(Filters.eq("authorID", authorId)).first();
-        if (authorDoc != null) {
-            return documentToAuthor(authorDoc);
-        }
-        return null;
+        Author author = new Author(authorID, firstName, lastName, birthDate);
+        author.setVersion(versionOf(doc));
+        return author;
     }
 }
 
@@ -1,6 +1,7 @@
 package kth.decitong.librarydb.model;
 
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
 
 /**
@@ -25,18 +26,101 @@ public interface BooksDbInterface {
      */
     public void connect(String database) throws BooksDbException;
     public void disconnect() throws BooksDbException;
+
+    /**
+     * Prepare connections, caches and query paths after connecting, so that the first
+     * requests are as fast as later ones. Optional: all methods work without it.
+     */
+    void warmUp() throws BooksDbException;
+
     public List<Book> searchBooksByTitle(String title) throws BooksDbException;
     List<Book> searchBooksByAuthor(String authorName) throws BooksDbException;
     ArrayList<Book> searchBooksByGenre(String genre) throws BooksDbException;
     ArrayList<Book> searchBooksByRating(int rating) throws BooksDbException;
+
+    /**
+     * Search books with a rating between minRating and maxRating (inclusive), optionally
+     * only in one genre, sorted and limited to the first limit books.
+     *
+     * @param genre genre name, or null for all genres
+     */
+    List<Book> searchBooksByRating(int minRating, int maxRating, String genre, BookSort sort, int limit)
+            throws BooksDbException;
     ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException;
 
+    /**
+     * Search books published from 'from' (inclusive) to 'to' (exclusive), oldest first.
+     */
+    List<Book> searchBooksByPublished(Date from, Date to) throws BooksDbException;
+
+    /**
+     * Search titles and author names, tolerating misspelled words.
+     * The best matches come first.
+     */
+    List<Book> searchBooksFuzzy(String query) throws BooksDbException;
+
+    /**
+     * Filter books by any of some genres, any of some ratings and a range of publication
+     * years, with the number of books for every genre, rating and year next to them.
+     *
+     * @param limit maximum number of books to return; the total counts all matches
+     */
+    FacetResult searchBooksByFacets(FacetSelection selection, int limit) throws BooksDbException;
+
     void deleteBook(int bookID) throws BooksDbException;
     void addBook(Book book) throws BooksDbException;
     void addAuthor(Author author) throws BooksDbException;
     void addAuthorToBook(Author author, Book book) throws BooksDbException;
 
+    /**
+     * Add a batch of imported books with their authors, which must already exist. Books
+     * whose ISBN or id is already in the catalogue, or repeats an earlier book of the
+     * batch, are skipped instead of failing the batch.
+     *
+     * @return the skipped books, in batch order
+     */
+    List<Book> importBooks(List<Book> books) throws BooksDbException;
+
+    /**
+     * Change some fields of a book and leave the rest, including its authors, as they are.
+     * The update only applies if the stored book still has the version of the given copy,
+     * so an edit based on a stale copy fails instead of overwriting a newer change.
+     *
+     * @param book the book as last read
+     * @return the updated book, with its new version
+     * @throws BooksDbException if the book was deleted or changed since it was read
+     */
+    Book updateBook(Book book, BookChanges changes) throws BooksDbException;
+
+    /**
+     * Apply the same changes to many books in one batch, for example to re-rate a whole
+     * genre. The version of each book is checked on its own: books deleted or changed
+     * since they were read are skipped and the others are updated.
+     *
+     * @return the number of books updated
+     */
+    int updateBooks(List<Book> books, BookChanges changes) throws BooksDbException;
+
+    /**
+     * Change some fields of an author, with the same version check as {@link #updateBook}.
+     *
+     * @param author the author as last read
+     * @return the updated author, with its new version
+     * @throws BooksDbException if the author was deleted or changed since it was read
+     */
+    Author updateAuthor(Author author, AuthorChanges changes) throws BooksDbException;
+
 
     List<Author> getAuthorsForBook(int bookID) throws BooksDbException;
     List<Author> getAllAuthors() throws BooksDbException;
+
+    /**
+     * Allocate an id for a new book that no other client will receive.
+     */
+    int nextBookId() throws BooksDbException;
+
+    /**
+     * Allocate an id for a new author that no other client will receive.
+     */
+    int nextAuthorId() throws BooksDbException;
 }
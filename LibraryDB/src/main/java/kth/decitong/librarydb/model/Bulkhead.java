@@ -0,0 +1,61 @@
+package kth.decitong.librarydb.model;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits how many calls of one kind may run at the same time. A caller that finds all
+ * permits taken waits in a bounded queue for at most a given time; when the queue is full
+ * the call is rejected at once instead of piling up another blocked thread.
+ */
+final class Bulkhead {
+    private final String name;
+    private final Semaphore permits;
+    private final int maxWaiting;
+    private final long maxWaitMillis;
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * @throws IllegalArgumentException if maxConcurrent is less than 1, which would reject
+     *         every call, or maxWaiting is negative
+     */
+    Bulkhead(String name, int maxConcurrent, int maxWaiting, long maxWaitMillis) {
+        if (maxConcurrent < 1 || maxWaiting < 0) {
+            throw new IllegalArgumentException("Invalid limits for " + name + " calls: " + maxConcurrent
+                    + " concurrent, " + maxWaiting + " waiting");
+        }
+        this.name = name;
+        this.permits = new Semaphore(maxConcurrent, true);
+        this.maxWaiting = maxWaiting;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * Takes a permit, waiting in the queue if necessary.
+     * @throws BooksDbException if the queue is full or no permit became free in time
+     */
+    void acquire() throws BooksDbException {
+        if (permits.tryAcquire()) {
+            return;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            throw new BooksDbException("Too many pending " + name + " requests, try again later");
+        }
+        try {
+            if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new BooksDbException("Timed out waiting to run " + name + " request");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BooksDbException("Interrupted while waiting to run " + name + " request", e);
+        } finally {
+            waiting.decrementAndGet();
+        }
+    }
+
+    void release() {
+        permits.release();
+    }
+}
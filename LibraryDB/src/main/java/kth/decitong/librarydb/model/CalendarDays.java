@@ -0,0 +1,67 @@
+package kth.decitong.librarydb.model;
+
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.Date;
+
+/**
+ * Publication and birth dates are calendar days. The application stores a day as its
+ * midnight UTC, so every client agrees on it whatever its time zone. Older clients stored
+ * the midnight of their own zone instead, {@link #LEGACY_ZONE}, and those dates are still
+ * in the catalogue, in V1 books and in authors. {@link #toLocalDate} reads both: a
+ * midnight UTC is its own day, and any other time is the day it falls on in the legacy
+ * zone.
+ */
+public final class CalendarDays {
+    /**
+     * The zone the older clients wrote their dates in, Europe/Stockholm unless the system
+     * property 'librarydb.legacyZone' names another.
+     */
+    public static final ZoneId LEGACY_ZONE = ZoneId.of(System.getProperty("librarydb.legacyZone", "Europe/Stockholm"));
+
+    private CalendarDays() {
+    }
+
+    /**
+     * @return the day as stored by the application, its midnight UTC, or null for null
+     */
+    public static Date toDate(LocalDate day) {
+        return day == null ? null : Date.from(day.atStartOfDay(ZoneOffset.UTC).toInstant());
+    }
+
+    /**
+     * @return the calendar day of a stored date, written by the application or by an older
+     *         client, or null for null
+     */
+    public static LocalDate toLocalDate(Date date) {
+        if (date == null) {
+            return null;
+        }
+        ZonedDateTime utc = date.toInstant().atZone(ZoneOffset.UTC);
+        if (utc.toLocalTime().equals(LocalTime.MIDNIGHT)) {
+            return utc.toLocalDate();
+        }
+        return date.toInstant().atZone(LEGACY_ZONE).toLocalDate();
+    }
+
+    /**
+     * @return the date as the application stores it: the midnight UTC of its calendar
+     *         day, or null for null
+     */
+    static Date normalize(Date date) {
+        return toDate(toLocalDate(date));
+    }
+
+    /**
+     * @return the earliest stored date that can belong to the day, written by the
+     *         application or by an older client; exact for a legacy zone at or east of UTC
+     */
+    static Date firstStoredOf(LocalDate day) {
+        Date utc = toDate(day);
+        Date legacy = Date.from(day.atStartOfDay(LEGACY_ZONE).toInstant());
+        return legacy.before(utc) ? legacy : utc;
+    }
+}
@@ -0,0 +1,61 @@
+package kth.decitong.librarydb.model;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the calls using a connection, so that closing it can wait for them. Every
+ * {@link #tryAcquire} that succeeds must be matched by exactly one {@link #release},
+ * also when the call fails; a permit that is never given back makes {@link #drain} wait
+ * forever.
+ */
+final class CallPermits {
+    private final AtomicInteger inUse = new AtomicInteger();
+    private volatile boolean closing;
+
+    /**
+     * Counts a call as using the connection, unless it is being closed. The count is
+     * raised before closing is checked, and closing is set before the count is read,
+     * so either the call sees closing or the closer sees the call.
+     */
+    boolean tryAcquire() {
+        inUse.incrementAndGet();
+        if (closing) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    void release() {
+        if (inUse.decrementAndGet() == 0 && closing) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of calls holding a permit
+     */
+    int inUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Rejects new calls and waits for the calls still using the connection to finish.
+     */
+    synchronized void drain() {
+        closing = true;
+        boolean interrupted = false;
+        while (inUse.get() > 0) {
+            try {
+                wait(100);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package kth.decitong.librarydb.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * An immutable, in-memory copy of the whole catalogue (books and authors) that can be
+ * persisted to and reloaded from a compact binary file.
+ * The file is written once through a buffered stream and read back through a memory-mapped
+ * buffer, which lets a client start without asking the database for anything but the
+ * current change token. The change token stored in the file tells whether the snapshot
+ * still matches the database.
+ * <p>
+ * The catalogue as loaded or rebuilt is the base of the snapshot, indexed once by id,
+ * ISBN, genre, rating, author and publication year, with the folded titles and author
+ * names that text searches match. This client's own writes do not copy the base: they
+ * make a new snapshot sharing it, with the changed books and authors in a small overlay
+ * that searches consult after the base. {@link #compacted} folds the overlay into a new
+ * base, which {@link BooksDbImpl} does on a background thread when it saves the snapshot.
+ * <p>
+ * File layout (big-endian): magic, format version, change token, the authors as
+ * (id, first name, last name, birth date, version) and the books as
+ * (id, isbn, title, published, rating, genre ordinal, version, author ids). Strings are stored as
+ * a length followed by UTF-8 bytes, a length of -1 meaning null; dates are stored as epoch
+ * milliseconds, {@link Long#MIN_VALUE} meaning null.
+ */
+public final class CatalogueSnapshot {
+    private static final int MAGIC = 0x4C494244;
+    private static final int FORMAT_VERSION = 2;
+    private static final long NO_DATE = Long.MIN_VALUE;
+    private static final Comparator<Book> BY_PUBLISHED =
+            Comparator.comparing(Book::getPublished).thenComparingInt(Book::getBookId);
+
+    /**
+     * A book with the folded forms of its title and of its authors' names.
+     */
+    private static final class Entry {
+        final Book book;
+        final String foldedTitle;
+        /** First and last name of each author in turn. */
+        final String[] names;
+        final String[] foldedNames;
+
+        Entry(Book book) {
+            this.book = book;
+            this.foldedTitle = TextQuery.fold(book.getTitle());
+            List<Author> authors = book.getAuthors();
+            this.names = new String[authors.size() * 2];
+            this.foldedNames = new String[names.length];
+            for (int i = 0; i < authors.size(); i++) {
+                names[2 * i] = authors.get(i).getFirstName();
+                names[2 * i + 1] = authors.get(i).getLastName();
+            }
+            for (int i = 0; i < names.length; i++) {
+                foldedNames[i] = TextQuery.fold(names[i]);
+            }
+        }
+
+        boolean titleMatches(TextQuery title) {
+            return title.matches(book.getTitle(), foldedTitle);
+        }
+
+        boolean authorMatches(TextQuery name) {
+            for (int i = 0; i < names.length; i++) {
+                if (name.matches(names[i], foldedNames[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * The indexed catalogue a snapshot's overlay is applied to; never changed once built.
+     */
+    private static final class Base {
+        final List<Author> authors;
+        final Map<Integer, Author> authorsById = new HashMap<>();
+        final List<Book> books;
+        final List<Entry> entries;
+        final Map<Integer, Entry> entriesById = new HashMap<>();
+        final Map<String, List<Entry>> entriesByIsbn = new HashMap<>();
+        final Map<Integer, List<Entry>> entriesByAuthor = new HashMap<>();
+        final Map<Genre, List<Entry>> entriesByGenre = new EnumMap<>(Genre.class);
+        final Map<Integer, List<Entry>> entriesByRating = new HashMap<>();
+        final YearBuckets booksByYear;
+
+        Base(List<Author> authors, List<Book> books) {
+            this.authors = Collections.unmodifiableList(new ArrayList<>(authors));
+            this.books = Collections.unmodifiableList(new ArrayList<>(books));
+            for (Author author : authors) {
+                authorsById.put(author.getAuthorID(), author);
+            }
+            List<Entry> all = new ArrayList<>(books.size());
+            for (Book book : books) {
+                Entry entry = new Entry(book);
+                all.add(entry);
+                entriesById.put(book.getBookId(), entry);
+                entriesByIsbn.computeIfAbsent(book.getIsbn(), isbn -> new ArrayList<>(1)).add(entry);
+                entriesByGenre.computeIfAbsent(book.getGenre(), genre -> new ArrayList<>()).add(entry);
+                entriesByRating.computeIfAbsent(book.getRating(), rating -> new ArrayList<>()).add(entry);
+                for (Author author : book.getAuthors()) {
+                    entriesByAuthor.computeIfAbsent(author.getAuthorID(), id -> new ArrayList<>()).add(entry);
+                }
+            }
+            this.entries = Collections.unmodifiableList(all);
+            this.booksByYear = new YearBuckets(this.books);
+        }
+    }
+
+    private final long changeToken;
+    private final Base base;
+    /** Books added or replaced since the base was built, by id, or null for a removed book. */
+    private final Map<Integer, Entry> changedBooks;
+    /** Authors added or replaced since the base was built, by id. */
+    private final Map<Integer, Author> changedAuthors;
+
+    public CatalogueSnapshot(long changeToken, List<Author> authors, List<Book> books) {
+        this(changeToken, new Base(authors, books), Collections.<Integer, Entry>emptyMap(),
+                Collections.<Integer, Author>emptyMap());
+    }
+
+    private CatalogueSnapshot(long changeToken, Base base, Map<Integer, Entry> changedBooks,
+                              Map<Integer, Author> changedAuthors) {
+        this.changeToken = changeToken;
+        this.base = base;
+        this.changedBooks = changedBooks;
+        this.changedAuthors = changedAuthors;
+    }
+
+    public long getChangeToken() {
+        return changeToken;
+    }
+
+    /**
+     * @return all authors; a list built on each call while the overlay changes authors
+     */
+    public List<Author> getAuthors() {
+        if (changedAuthors.isEmpty()) {
+            return base.authors;
+        }
+        Map<Integer, Author> added = new LinkedHashMap<>(changedAuthors);
+        List<Author> all = new ArrayList<>(base.authors.size() + added.size());
+        for (Author author : base.authors) {
+            Author changed = added.remove(author.getAuthorID());
+            all.add(changed != null ? changed : author);
+        }
+        all.addAll(added.values());
+        return Collections.unmodifiableList(all);
+    }
+
+    /**
+     * @return all books; a list built on each call while the overlay changes books
+     */
+    public List<Book> getBooks() {
+        if (changedBooks.isEmpty()) {
+            return base.books;
+        }
+        List<Book> all = new ArrayList<>(base.books.size() + changedBooks.size());
+        for (Book book : base.books) {
+            if (!changedBooks.containsKey(book.getBookId())) {
+                all.add(book);
+            }
+        }
+        for (Entry entry : changedBooks.values()) {
+            if (entry != null) {
+                all.add(entry.book);
+            }
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    public Book getBook(int bookId) {
+        Entry entry = entry(bookId);
+        return entry == null ? null : entry.book;
+    }
+
+    /**
+     * @return the number of books and authors changed since the base was built
+     */
+    int overlaySize() {
+        return changedBooks.size() + changedAuthors.size();
+    }
+
+    /**
+     * @return this snapshot with its overlay folded into a newly indexed base, or this
+     *         snapshot if it has no overlay
+     */
+    CatalogueSnapshot compacted() {
+        if (overlaySize() == 0) {
+            return this;
+        }
+        return new CatalogueSnapshot(changeToken, getAuthors(), getBooks());
+    }
+
+    /**
+     * Returns a copy of this snapshot with the given books added or replaced and the given
+     * books removed. The books are copied, so later changes to them do not show in the
+     * snapshot. Only the overlay is copied, not the catalogue.
+     * @param changeToken the change token of the new snapshot
+     * @param saved books to add, or to replace the books with the same id
+     * @param deletedIds ids of books to remove
+     * @return the changed snapshot
+     */
+    public CatalogueSnapshot withBooks(long changeToken, Collection<Book> saved, Collection<Integer> deletedIds) {
+        Map<Integer, Entry> books = new LinkedHashMap<>(changedBooks);
+        for (Book book : saved) {
+            List<Author> bookAuthors = new ArrayList<>();
+            for (Author author : book.getAuthors()) {
+                Author known = author(author.getAuthorID());
+                bookAuthors.add(known != null ? known : author);
+            }
+            books.put(book.getBookId(), new Entry(copyOf(book, bookAuthors)));
+        }
+        for (Integer bookId : deletedIds) {
+            books.put(bookId, null);
+        }
+        return new CatalogueSnapshot(changeToken, base, books, changedAuthors);
+    }
+
+    /**
+     * Returns a copy of this snapshot with the given author added, or replacing the author
+     * with the same id both in the author list and in the books written by the author.
+     * Only the overlay and the author's books are copied, not the catalogue.
+     * @param changeToken the change token of the new snapshot
+     * @param author the new or updated author
+     * @return the changed snapshot
+     */
+    public CatalogueSnapshot withAuthor(long changeToken, Author author) {
+        Author copy = copyOf(author);
+        Map<Integer, Author> authors = new HashMap<>(changedAuthors);
+        authors.put(author.getAuthorID(), copy);
+        Map<Integer, Entry> books = changedBooks;
+        List<Book> written = booksOf(author.getAuthorID());
+        if (!written.isEmpty()) {
+            books = new LinkedHashMap<>(changedBooks);
+            for (Book book : written) {
+                List<Author> bookAuthors = book.getAuthors();
+                bookAuthors.set(indexOfAuthor(bookAuthors, author.getAuthorID()), copy);
+                books.put(book.getBookId(), new Entry(copyOf(book, bookAuthors)));
+            }
+        }
+        return new CatalogueSnapshot(changeToken, base, books, authors);
+    }
+
+    /**
+     * Returns a copy of this snapshot in which the given author is one of the authors of
+     * the given book. The author is added to the author list too if it is not there yet.
+     * @param changeToken the change token of the new snapshot
+     * @param bookId the id of the book
+     * @param author the author to add to the book
+     * @return the changed snapshot
+     */
+    public CatalogueSnapshot withBookAuthor(long changeToken, int bookId, Author author) {
+        CatalogueSnapshot withAuthor = this;
+        Author known = author(author.getAuthorID());
+        if (known == null) {
+            withAuthor = withAuthor(changeToken, author);
+            known = withAuthor.author(author.getAuthorID());
+        }
+        Book book = withAuthor.getBook(bookId);
+        if (book == null || indexOfAuthor(book.getAuthors(), author.getAuthorID()) >= 0) {
+            return new CatalogueSnapshot(changeToken, withAuthor.base, withAuthor.changedBooks,
+                    withAuthor.changedAuthors);
+        }
+        List<Author> bookAuthors = book.getAuthors();
+        bookAuthors.add(known);
+        return withAuthor.withBooks(changeToken, Collections.singletonList(copyOf(book, bookAuthors)),
+                Collections.<Integer>emptyList());
+    }
+
+    private Entry entry(int bookId) {
+        if (changedBooks.containsKey(bookId)) {
+            return changedBooks.get(bookId);
+        }
+        return base.entriesById.get(bookId);
+    }
+
+    private Author author(int authorId) {
+        Author changed = changedAuthors.get(authorId);
+        return changed != null ? changed : base.authorsById.get(authorId);
+    }
+
+    /**
+     * @return the current books written by the author
+     */
+    private List<Book> booksOf(int authorId) {
+        List<Book> written = new ArrayList<>();
+        for (Entry entry : base.entriesByAuthor.getOrDefault(authorId, Collections.<Entry>emptyList())) {
+            if (!changedBooks.containsKey(entry.book.getBookId())) {
+                written.add(entry.book);
+            }
+        }
+        for (Entry entry : changedBooks.values()) {
+            if (entry != null && indexOfAuthor(entry.book.getAuthors(), authorId) >= 0) {
+                written.add(entry.book);
+            }
+        }
+        return written;
+    }
+
+    private static int indexOfAuthor(List<Author> authors, int authorId) {
+        for (int i = 0; i < authors.size(); i++) {
+            if (authors.get(i).getAuthorID() == authorId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static Book copyOf(Book book, List<Author> authors) {
+        Book copy = new Book(book.getBookId(), book.getIsbn(), book.getTitle(), book.getPublished(),
+                book.getRating(), book.getGenre());
+        copy.setVersion(book.getVersion());
+        for (Author author : authors) {
+            copy.addAuthors(author);
+        }
+        return copy;
+    }
+
+    private static Author copyOf(Author author) {
+        Author copy = new Author(author.getAuthorID(), author.getFirstName(), author.getLastName(),
+                author.getBirthDate());
+        copy.setVersion(author.getVersion());
+        return copy;
+    }
+
+    /**
+     * Collects the matching books of the given base entries that the overlay has not
+     * changed, then the matching books of the overlay, up to maxResults books.
+     */
+    private ArrayList<Book> select(Collection<Entry> baseEntries, Predicate<Entry> matches, int maxResults) {
+        ArrayList<Book> result = new ArrayList<>();
+        for (Entry entry : baseEntries) {
+            if (result.size() >= maxResults) {
+                return result;
+            }
+            if (matches.test(entry) && !changedBooks.containsKey(entry.book.getBookId())) {
+                result.add(entry.book);
+            }
+        }
+        for (Entry entry : changedBooks.values()) {
+            if (result.size() >= maxResults) {
+                break;
+            }
+            if (entry != null && matches.test(entry)) {
+                result.add(entry.book);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the genre with the given name, or null if there is none
+     */
+    private static Genre genreNamed(String name) {
+        for (Genre genre : Genre.values()) {
+            if (genre.name().equals(name)) {
+                return genre;
+            }
+        }
+        return null;
+    }
+
+    public ArrayList<Book> searchBooksByTitle(TextQuery title, int maxResults) {
+        return select(base.entries, entry -> entry.titleMatches(title), maxResults);
+    }
+
+    public ArrayList<Book> searchBooksByAuthor(TextQuery name, int maxResults) {
+        return select(base.entries, entry -> entry.authorMatches(name), maxResults);
+    }
+
+    public ArrayList<Book> searchBooksByGenre(String genreName) {
+        Genre genre = genreNamed(genreName);
+        if (genre == null) {
+            return new ArrayList<>();
+        }
+        return select(base.entriesByGenre.getOrDefault(genre, Collections.<Entry>emptyList()),
+                entry -> entry.book.getGenre() == genre, Integer.MAX_VALUE);
+    }
+
+    public ArrayList<Book> searchBooksByRating(int rating) {
+        return select(base.entriesByRating.getOrDefault(rating, Collections.<Entry>emptyList()),
+                entry -> entry.book.getRating() == rating, Integer.MAX_VALUE);
+    }
+
+    public ArrayList<Book> searchBooksByRating(int minRating, int maxRating, String genreName,
+                                               Comparator<Book> order, int limit) {
+        Genre genre = genreName == null ? null : genreNamed(genreName);
+        if (genreName != null && genre == null) {
+            return new ArrayList<>();
+        }
+        List<Entry> candidates = new ArrayList<>();
+        for (int rating = minRating; rating <= maxRating; rating++) {
+            candidates.addAll(base.entriesByRating.getOrDefault(rating, Collections.<Entry>emptyList()));
+        }
+        ArrayList<Book> result = select(candidates, entry -> entry.book.getRating() >= minRating
+                && entry.book.getRating() <= maxRating && (genre == null || entry.book.getGenre() == genre),
+                Integer.MAX_VALUE);
+        result.sort(order);
+        if (result.size() > limit) {
+            result.subList(limit, result.size()).clear();
+        }
+        return result;
+    }
+
+    public ArrayList<Book> searchBooksByPublished(Date from, Date to, int limit) {
+        ArrayList<Book> result = new ArrayList<>();
+        // books the overlay replaced are dropped below, so up to that many more are read
+        base.booksByYear.collect(from, to, limit + changedBooks.size(), result);
+        if (changedBooks.isEmpty()) {
+            return result;
+        }
+        result.removeIf(book -> changedBooks.containsKey(book.getBookId()));
+        for (Entry entry : changedBooks.values()) {
+            Date published = entry == null ? null : entry.book.getPublished();
+            if (published != null && !published.before(from) && published.before(to)) {
+                result.add(entry.book);
+            }
+        }
+        result.sort(BY_PUBLISHED);
+        if (result.size() > limit) {
+            result.subList(limit, result.size()).clear();
+        }
+        return result;
+    }
+
+    public ArrayList<Book> searchBooksByISBN(String isbn) {
+        return select(base.entriesByIsbn.getOrDefault(isbn, Collections.<Entry>emptyList()),
+                entry -> entry.book.getIsbn().equals(isbn), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Writes the catalogue to the given file. The data is first written to a temporary
+     * file next to the target, which is then moved into place, so a reader never sees a
+     * partially written snapshot.
+     * @param file the snapshot file
+     * @param changeToken the database change token the catalogue corresponds to
+     * @param authors all authors
+     * @param books all books, with their authors attached
+     * @throws IOException if the file could not be written
+     */
+    public static void write(Path file, long changeToken, List<Author> authors, List<Book> books) throws IOException {
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path tempFile = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tempFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(changeToken);
+
+            out.writeInt(authors.size());
+            for (Author author : authors) {
+                out.writeInt(author.getAuthorID());
+                writeString(out, author.getFirstName());
+                writeString(out, author.getLastName());
+                writeDate(out, author.getBirthDate());
+                out.writeLong(author.getVersion());
+            }
+
+            out.writeInt(books.size());
+            for (Book book : books) {
+                out.writeInt(book.getBookId());
+                writeString(out, book.getIsbn());
+                writeString(out, book.getTitle());
+                writeDate(out, book.getPublished());
+                out.writeByte(book.getRating());
+                out.writeByte(book.getGenre().ordinal());
+                out.writeLong(book.getVersion());
+                List<Author> bookAuthors = book.getAuthors();
+                out.writeShort(bookAuthors.size());
+                for (Author author : bookAuthors) {
+                    out.writeInt(author.getAuthorID());
+                }
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads a snapshot previously written by {@link #write}, mapping the file into memory.
+     * @param file the snapshot file
+     * @return the catalogue stored in the file
+     * @throws IOException if the file could not be read or is not a snapshot
+     */
+    public static CatalogueSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot file too large: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            try {
+                return read(buffer);
+            } catch (RuntimeException e) {
+                throw new IOException("Corrupt snapshot file: " + file, e);
+            }
+        }
+    }
+
+    private static CatalogueSnapshot read(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+            throw new IOException("Not a catalogue snapshot");
+        }
+        long changeToken = buffer.getLong();
+        Genre[] genres = Genre.values();
+
+        int authorCount = buffer.getInt();
+        List<Author> authors = new ArrayList<>(authorCount);
+        Map<Integer, Author> authorsById = new HashMap<>(authorCount * 2);
+        for (int i = 0; i < authorCount; i++) {
+            Author author = new Author(buffer.getInt(), readString(buffer), readString(buffer), readDate(buffer));
+            author.setVersion(buffer.getLong());
+            authors.add(author);
+            authorsById.put(author.getAuthorID(), author);
+        }
+
+        int bookCount = buffer.getInt();
+        List<Book> books = new ArrayList<>(bookCount);
+        for (int i = 0; i < bookCount; i++) {
+            Book book = new Book(buffer.getInt(), readString(buffer), readString(buffer), readDate(buffer),
+                    buffer.get(), genres[buffer.get()]);
+            book.setVersion(buffer.getLong());
+            int bookAuthorCount = buffer.getShort();
+            for (int j = 0; j < bookAuthorCount; j++) {
+                Author author = authorsById.get(buffer.getInt());
+                if (author != null) {
+                    book.addAuthors(author);
+                }
+            }
+            books.add(book);
+        }
+
+        return new CatalogueSnapshot(changeToken, authors, books);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date == null ? NO_DATE : date.getTime());
+    }
+
+    private static Date readDate(ByteBuffer buffer) {
+        long time = buffer.getLong();
+        return time == NO_DATE ? null : new Date(time);
+    }
+}
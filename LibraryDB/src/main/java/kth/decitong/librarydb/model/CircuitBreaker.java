@@ -0,0 +1,94 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+
+import java.net.ConnectException;
+import java.net.http.HttpTimeoutException;
+
+/**
+ * Stops calls from reaching the database after repeated timeouts.
+ * The breaker is closed while calls succeed. After a number of consecutive timeouts it
+ * opens, and every call fails immediately. Once the open period has passed, a single trial
+ * call is let through (half-open): if it succeeds the breaker closes, if it times out the
+ * breaker opens again.
+ */
+final class CircuitBreaker {
+    private enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private final int failureThreshold;
+    private final long openMillis;
+    private State state = State.CLOSED;
+    private int consecutiveTimeouts;
+    private long openedAt;
+    private boolean trialInFlight;
+
+    CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Checks whether a call may proceed.
+     * @throws BooksDbException if the breaker is open
+     */
+    synchronized void beforeCall() throws BooksDbException {
+        if (state == State.OPEN) {
+            long remaining = openedAt + openMillis - System.currentTimeMillis();
+            if (remaining > 0) {
+                throw new BooksDbException("Database unavailable, retry in " + (remaining / 1000 + 1) + " s");
+            }
+            state = State.HALF_OPEN;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialInFlight) {
+                throw new BooksDbException("Database unavailable, checking whether it has recovered");
+            }
+            trialInFlight = true;
+        }
+    }
+
+    /**
+     * Records that a call permitted by {@link #beforeCall()} reached the database, whether
+     * or not the operation itself succeeded.
+     */
+    synchronized void onSuccess() {
+        state = State.CLOSED;
+        consecutiveTimeouts = 0;
+        trialInFlight = false;
+    }
+
+    synchronized void onTimeout() {
+        consecutiveTimeouts++;
+        trialInFlight = false;
+        if (state == State.HALF_OPEN || consecutiveTimeouts >= failureThreshold) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Records that a call permitted by {@link #beforeCall()} never ran.
+     */
+    synchronized void onAbandoned() {
+        trialInFlight = false;
+    }
+
+    /**
+     * Tells whether the exception was caused by the database, or the server in front of it,
+     * not answering in time.
+     */
+    static boolean isTimeout(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoTimeoutException
+                    || cause instanceof MongoExecutionTimeoutException
+                    || cause instanceof MongoSocketException
+                    || cause instanceof HttpTimeoutException
+                    || cause instanceof ConnectException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
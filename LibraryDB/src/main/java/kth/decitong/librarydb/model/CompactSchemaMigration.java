@@ -0,0 +1,88 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The two passes over the books of the migration from {@link BookSchema#V1} to
+ * {@link BookSchema#V2}, run by {@link BooksDbImpl#migrateToCompactSchema} in their
+ * {@link BookSchema.Phase phases}.
+ * <p>
+ * The expansion adds the V2 fields to every book that lacks them, computed from its V1
+ * fields; the publication date becomes its calendar day, read in the zone that wrote it,
+ * see {@link CalendarDays}. Clients write both layouts by then, so only books that have not
+ * been written since the phase began are selected; the update is guarded by the version
+ * and the author fields, the V1 fields that change without a version increment, so a book
+ * changed in the meantime is left for the next pass. The contraction removes the V1 fields once no
+ * client reads or writes them any more, so it needs no guard.
+ */
+final class CompactSchemaMigration extends BookMigration {
+    private final boolean expand;
+
+    private CompactSchemaMigration(MongoCollection<Document> books, boolean expand, Path checkpointFile,
+                                   int workers, int batchSize, int maxBooksPerSecond) {
+        super(books, expand ? "schema-expansion" : "schema-contraction",
+                expand ? "adding the compact fields to books" : "removing the old fields from books",
+                checkpointFile, workers, batchSize, maxBooksPerSecond);
+        this.expand = expand;
+    }
+
+    static CompactSchemaMigration expansion(MongoCollection<Document> books, Path checkpointFile, int workers,
+                                            int batchSize, int maxBooksPerSecond) {
+        return new CompactSchemaMigration(books, true, checkpointFile, workers, batchSize, maxBooksPerSecond);
+    }
+
+    static CompactSchemaMigration contraction(MongoCollection<Document> books, Path checkpointFile, int workers,
+                                              int batchSize, int maxBooksPerSecond) {
+        return new CompactSchemaMigration(books, false, checkpointFile, workers, batchSize, maxBooksPerSecond);
+    }
+
+    @Override
+    Bson selection() {
+        if (expand) {
+            return Filters.exists(BookSchema.V2.key("isbn"), false);
+        }
+        List<Bson> anyOldField = new ArrayList<>();
+        for (String key : BookSchema.V1.keys()) {
+            anyOldField.add(Filters.exists(key));
+        }
+        return Filters.or(anyOldField);
+    }
+
+    @Override
+    Bson projection() {
+        return expand ? null : Projections.include("_id");
+    }
+
+    @Override
+    WriteModel<Document> rewrite(Document bookDoc) {
+        Bson id = Filters.eq("_id", bookDoc.get("_id"));
+        List<Bson> updates = new ArrayList<>();
+        if (!expand) {
+            for (String key : BookSchema.V1.keys()) {
+                updates.add(Updates.unset(key));
+            }
+            return new UpdateOneModel<>(id, Updates.combine(updates));
+        }
+        for (Map.Entry<String, Object> field : BookSchema.V2.convert(bookDoc).entrySet()) {
+            updates.add(Updates.set(field.getKey(), field.getValue()));
+        }
+        List<Bson> unchanged = new ArrayList<>();
+        unchanged.add(id);
+        for (String field : new String[] {"version", "authors", AuthorFieldMigration.LEGACY_FIELD, "authorSummaries"}) {
+            unchanged.add(Filters.eq(field, bookDoc.get(field)));
+        }
+        return new UpdateOneModel<>(Filters.and(unchanged), Updates.combine(updates));
+    }
+}
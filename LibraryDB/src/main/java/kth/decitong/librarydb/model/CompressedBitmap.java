@@ -0,0 +1,498 @@
+package kth.decitong.librarydb.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A compressed set of non-negative ints in the style of a Roaring bitmap. Values are split
+ * into chunks of 65536 by their high 16 bits; each chunk is stored as a sorted array of
+ * its low 16 bits while it holds at most 4096 values, and as a 65536-bit bitmap once it
+ * holds more. Sparse sets stay small, dense sets cost at most one bit per value, and
+ * AND/OR and their cardinalities work chunk by chunk on arrays and machine words.
+ * <p>
+ * Mutable while being built with {@link #add}; the results of {@link #and} and
+ * {@link #or} are new bitmaps. Safe for concurrent reads once no longer modified.
+ */
+public final class CompressedBitmap {
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1024;
+
+    private char[] keys = new char[0];
+    private Object[] chunks = new Object[0];
+    private int size;
+
+    /** A chunk stored as a sorted array of low bits. */
+    private static final class ArrayChunk {
+        char[] values;
+        int cardinality;
+
+        ArrayChunk(char[] values, int cardinality) {
+            this.values = values;
+            this.cardinality = cardinality;
+        }
+    }
+
+    /** A chunk stored as 65536 bits. */
+    private static final class BitmapChunk {
+        final long[] words;
+        int cardinality;
+
+        BitmapChunk(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+    }
+
+    public void add(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        char key = (char) (value >>> 16);
+        char low = (char) value;
+        int index = size > 0 && keys[size - 1] == key ? size - 1 : Arrays.binarySearch(keys, 0, size, key);
+        if (index < 0) {
+            index = -index - 1;
+            insertChunk(index, key, new ArrayChunk(new char[4], 0));
+        }
+        Object chunk = chunks[index];
+        if (chunk instanceof ArrayChunk) {
+            ArrayChunk array = (ArrayChunk) chunk;
+            int at = array.cardinality > 0 && array.values[array.cardinality - 1] < low
+                    ? -array.cardinality - 1
+                    : Arrays.binarySearch(array.values, 0, array.cardinality, low);
+            if (at >= 0) {
+                return;
+            }
+            at = -at - 1;
+            if (array.cardinality == ARRAY_MAX) {
+                BitmapChunk bitmap = toBitmap(array);
+                bitmap.words[low >>> 6] |= 1L << low;
+                bitmap.cardinality++;
+                chunks[index] = bitmap;
+                return;
+            }
+            if (array.cardinality == array.values.length) {
+                array.values = Arrays.copyOf(array.values, Math.min(ARRAY_MAX, array.cardinality * 2));
+            }
+            System.arraycopy(array.values, at, array.values, at + 1, array.cardinality - at);
+            array.values[at] = low;
+            array.cardinality++;
+        } else {
+            BitmapChunk bitmap = (BitmapChunk) chunk;
+            long before = bitmap.words[low >>> 6];
+            bitmap.words[low >>> 6] = before | (1L << low);
+            if (before != bitmap.words[low >>> 6]) {
+                bitmap.cardinality++;
+            }
+        }
+    }
+
+    public boolean contains(int value) {
+        if (value < 0) {
+            return false;
+        }
+        int index = Arrays.binarySearch(keys, 0, size, (char) (value >>> 16));
+        if (index < 0) {
+            return false;
+        }
+        char low = (char) value;
+        Object chunk = chunks[index];
+        if (chunk instanceof ArrayChunk) {
+            ArrayChunk array = (ArrayChunk) chunk;
+            return Arrays.binarySearch(array.values, 0, array.cardinality, low) >= 0;
+        }
+        return (((BitmapChunk) chunk).words[low >>> 6] & (1L << low)) != 0;
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += chunkCardinality(chunks[i]);
+        }
+        return cardinality;
+    }
+
+    /**
+     * @return the values in both bitmaps
+     */
+    public CompressedBitmap and(CompressedBitmap other) {
+        CompressedBitmap result = new CompressedBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                Object chunk = and(chunks[i], other.chunks[j]);
+                if (chunkCardinality(chunk) > 0) {
+                    result.appendChunk(keys[i], chunk);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Counts the values in both bitmaps without building their intersection.
+     */
+    public int andCardinality(CompressedBitmap other) {
+        int cardinality = 0;
+        int i = 0;
+        int j = 0;
+        while (i < size && j < other.size) {
+            if (keys[i] < other.keys[j]) {
+                i++;
+            } else if (keys[i] > other.keys[j]) {
+                j++;
+            } else {
+                cardinality += andCardinality(chunks[i], other.chunks[j]);
+                i++;
+                j++;
+            }
+        }
+        return cardinality;
+    }
+
+    /**
+     * @return the values in any of the bitmaps
+     */
+    public static CompressedBitmap or(Collection<CompressedBitmap> bitmaps) {
+        CompressedBitmap result = new CompressedBitmap();
+        if (bitmaps.size() == 1) {
+            return bitmaps.iterator().next().copy();
+        }
+        // union chunk by chunk into 65536-bit scratch words, then store each chunk compactly
+        char[] allKeys = new char[0];
+        for (CompressedBitmap bitmap : bitmaps) {
+            allKeys = mergeKeys(allKeys, bitmap.keys, bitmap.size);
+        }
+        int[] positions = new int[bitmaps.size()];
+        CompressedBitmap[] sources = bitmaps.toArray(new CompressedBitmap[0]);
+        for (char key : allKeys) {
+            long[] words = new long[BITMAP_WORDS];
+            for (int s = 0; s < sources.length; s++) {
+                CompressedBitmap source = sources[s];
+                int p = positions[s];
+                if (p < source.size && source.keys[p] == key) {
+                    orInto(words, source.chunks[p]);
+                    positions[s] = p + 1;
+                }
+            }
+            int cardinality = 0;
+            for (long word : words) {
+                cardinality += Long.bitCount(word);
+            }
+            if (cardinality > 0) {
+                result.appendChunk(key, compact(new BitmapChunk(words, cardinality)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the bitmap of the values from (inclusive) to (exclusive)
+     */
+    public static CompressedBitmap range(int from, int to) {
+        CompressedBitmap result = new CompressedBitmap();
+        if (from < 0 || from >= to) {
+            return result;
+        }
+        for (int key = from >>> 16; key <= (to - 1) >>> 16; key++) {
+            int start = Math.max(from, key << 16) & 0xFFFF;
+            int end = Math.min(to - (key << 16), 1 << 16);
+            long[] words = new long[BITMAP_WORDS];
+            setRange(words, start, end);
+            result.appendChunk((char) key, compact(new BitmapChunk(words, end - start)));
+        }
+        return result;
+    }
+
+    /**
+     * Counts the values from (inclusive) to (exclusive).
+     */
+    public int rangeCardinality(int from, int to) {
+        if (from >= to) {
+            return 0;
+        }
+        int count = 0;
+        int first = Arrays.binarySearch(keys, 0, size, (char) (from >>> 16));
+        for (int i = first >= 0 ? first : -first - 1; i < size && (keys[i] << 16) < to; i++) {
+            int base = keys[i] << 16;
+            int start = Math.max(from - base, 0);
+            int end = Math.min(to - base, 1 << 16);
+            Object chunk = chunks[i];
+            if (chunk instanceof ArrayChunk) {
+                ArrayChunk array = (ArrayChunk) chunk;
+                count += lowerBound(array, end) - lowerBound(array, start);
+            } else {
+                count += rangeCardinality(((BitmapChunk) chunk).words, start, end);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Copies the smallest values, in increasing order, into the array.
+     * @return the number of values copied
+     */
+    public int first(int[] into) {
+        int count = 0;
+        for (int i = 0; i < size && count < into.length; i++) {
+            int high = keys[i] << 16;
+            Object chunk = chunks[i];
+            if (chunk instanceof ArrayChunk) {
+                ArrayChunk array = (ArrayChunk) chunk;
+                for (int v = 0; v < array.cardinality && count < into.length; v++) {
+                    into[count++] = high | array.values[v];
+                }
+            } else {
+                long[] words = ((BitmapChunk) chunk).words;
+                for (int w = 0; w < BITMAP_WORDS && count < into.length; w++) {
+                    long word = words[w];
+                    while (word != 0 && count < into.length) {
+                        into[count++] = high | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    private CompressedBitmap copy() {
+        CompressedBitmap copy = new CompressedBitmap();
+        for (int i = 0; i < size; i++) {
+            copy.appendChunk(keys[i], copy(chunks[i]));
+        }
+        return copy;
+    }
+
+    private static Object copy(Object chunk) {
+        if (chunk instanceof ArrayChunk) {
+            ArrayChunk array = (ArrayChunk) chunk;
+            return new ArrayChunk(Arrays.copyOf(array.values, array.cardinality), array.cardinality);
+        }
+        BitmapChunk bitmap = (BitmapChunk) chunk;
+        return new BitmapChunk(bitmap.words.clone(), bitmap.cardinality);
+    }
+
+    private static boolean isFull(Object chunk) {
+        return chunk instanceof BitmapChunk && ((BitmapChunk) chunk).cardinality == 1 << 16;
+    }
+
+    private void insertChunk(int index, char key, Object chunk) {
+        if (size == keys.length) {
+            int capacity = Math.max(4, size * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            chunks = Arrays.copyOf(chunks, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(chunks, index, chunks, index + 1, size - index);
+        keys[index] = key;
+        chunks[index] = chunk;
+        size++;
+    }
+
+    private void appendChunk(char key, Object chunk) {
+        insertChunk(size, key, chunk);
+    }
+
+    private static int chunkCardinality(Object chunk) {
+        return chunk instanceof ArrayChunk ? ((ArrayChunk) chunk).cardinality : ((BitmapChunk) chunk).cardinality;
+    }
+
+    private static Object and(Object a, Object b) {
+        // full chunks come from ranges and leave the other side as it is
+        if (isFull(a) || isFull(b)) {
+            return copy(isFull(a) ? b : a);
+        }
+        if (a instanceof ArrayChunk && b instanceof ArrayChunk) {
+            ArrayChunk x = (ArrayChunk) a;
+            ArrayChunk y = (ArrayChunk) b;
+            char[] values = new char[Math.min(x.cardinality, y.cardinality)];
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < x.cardinality && j < y.cardinality) {
+                if (x.values[i] < y.values[j]) {
+                    i++;
+                } else if (x.values[i] > y.values[j]) {
+                    j++;
+                } else {
+                    values[count++] = x.values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new ArrayChunk(values, count);
+        }
+        if (a instanceof ArrayChunk || b instanceof ArrayChunk) {
+            ArrayChunk array = (ArrayChunk) (a instanceof ArrayChunk ? a : b);
+            long[] words = ((BitmapChunk) (a instanceof ArrayChunk ? b : a)).words;
+            char[] values = new char[array.cardinality];
+            int count = 0;
+            for (int i = 0; i < array.cardinality; i++) {
+                char value = array.values[i];
+                if ((words[value >>> 6] & (1L << value)) != 0) {
+                    values[count++] = value;
+                }
+            }
+            return new ArrayChunk(values, count);
+        }
+        long[] x = ((BitmapChunk) a).words;
+        long[] y = ((BitmapChunk) b).words;
+        long[] words = new long[BITMAP_WORDS];
+        int cardinality = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            words[w] = x[w] & y[w];
+            cardinality += Long.bitCount(words[w]);
+        }
+        return compact(new BitmapChunk(words, cardinality));
+    }
+
+    private static int andCardinality(Object a, Object b) {
+        if (isFull(a) || isFull(b)) {
+            return chunkCardinality(isFull(a) ? b : a);
+        }
+        if (a instanceof ArrayChunk && b instanceof ArrayChunk) {
+            ArrayChunk x = (ArrayChunk) a;
+            ArrayChunk y = (ArrayChunk) b;
+            int count = 0;
+            int i = 0;
+            int j = 0;
+            while (i < x.cardinality && j < y.cardinality) {
+                if (x.values[i] < y.values[j]) {
+                    i++;
+                } else if (x.values[i] > y.values[j]) {
+                    j++;
+                } else {
+                    count++;
+                    i++;
+                    j++;
+                }
+            }
+            return count;
+        }
+        if (a instanceof ArrayChunk || b instanceof ArrayChunk) {
+            ArrayChunk array = (ArrayChunk) (a instanceof ArrayChunk ? a : b);
+            long[] words = ((BitmapChunk) (a instanceof ArrayChunk ? b : a)).words;
+            int count = 0;
+            for (int i = 0; i < array.cardinality; i++) {
+                char value = array.values[i];
+                count += (int) (words[value >>> 6] >>> value) & 1;
+            }
+            return count;
+        }
+        long[] x = ((BitmapChunk) a).words;
+        long[] y = ((BitmapChunk) b).words;
+        int count = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            count += Long.bitCount(x[w] & y[w]);
+        }
+        return count;
+    }
+
+    private static void orInto(long[] words, Object chunk) {
+        if (chunk instanceof ArrayChunk) {
+            ArrayChunk array = (ArrayChunk) chunk;
+            for (int i = 0; i < array.cardinality; i++) {
+                char value = array.values[i];
+                words[value >>> 6] |= 1L << value;
+            }
+        } else {
+            long[] source = ((BitmapChunk) chunk).words;
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                words[w] |= source[w];
+            }
+        }
+    }
+
+    private static void setRange(long[] words, int start, int end) {
+        for (int bit = start; bit < end; ) {
+            int word = bit >>> 6;
+            int upTo = Math.min(end, (word + 1) << 6);
+            long mask = upTo - bit == 64 ? -1L : ((1L << (upTo - bit)) - 1) << bit;
+            words[word] |= mask;
+            bit = upTo;
+        }
+    }
+
+    private static int rangeCardinality(long[] words, int start, int end) {
+        int count = 0;
+        for (int bit = start; bit < end; ) {
+            int word = bit >>> 6;
+            int upTo = Math.min(end, (word + 1) << 6);
+            long mask = upTo - bit == 64 ? -1L : ((1L << (upTo - bit)) - 1) << bit;
+            count += Long.bitCount(words[word] & mask);
+            bit = upTo;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of values in the chunk below the low bits
+     */
+    private static int lowerBound(ArrayChunk array, int low) {
+        int from = 0;
+        int to = array.cardinality;
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (array.values[middle] < low) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    private static BitmapChunk toBitmap(ArrayChunk array) {
+        long[] words = new long[BITMAP_WORDS];
+        for (int i = 0; i < array.cardinality; i++) {
+            char value = array.values[i];
+            words[value >>> 6] |= 1L << value;
+        }
+        return new BitmapChunk(words, array.cardinality);
+    }
+
+    /**
+     * Stores a bitmap chunk that has become sparse as an array.
+     */
+    private static Object compact(BitmapChunk bitmap) {
+        if (bitmap.cardinality > ARRAY_MAX) {
+            return bitmap;
+        }
+        char[] values = new char[bitmap.cardinality];
+        int count = 0;
+        for (int w = 0; w < BITMAP_WORDS; w++) {
+            long word = bitmap.words[w];
+            while (word != 0) {
+                values[count++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                word &= word - 1;
+            }
+        }
+        return new ArrayChunk(values, count);
+    }
+
+    private static char[] mergeKeys(char[] a, char[] b, int bSize) {
+        char[] merged = new char[a.length + bSize];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < bSize) {
+            if (j == bSize || (i < a.length && a[i] < b[j])) {
+                merged[count++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                merged[count++] = b[j++];
+            } else {
+                merged[count++] = a[i++];
+                j++;
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+}
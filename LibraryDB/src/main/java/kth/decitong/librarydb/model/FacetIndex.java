@@ -0,0 +1,163 @@
+package kth.decitong.librarydb.model;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable bitmap index for faceted filtering by genre, rating and publication year.
+ * <p>
+ * The books are numbered by publication year, then title, with the undated books last.
+ * Each genre and each rating has a {@link CompressedBitmap} of the numbers of its books,
+ * and each year is the range of numbers between its first and its last book. A selection
+ * is answered by OR-ing the bitmaps of the selected values within each facet and AND-ing
+ * the facets. The genre and rating counts are AND-cardinalities of each value's bitmap with
+ * the other two facets, and the year counts are range counts over the genre and rating
+ * selection, so they take one pass over it for all years together. No book is visited
+ * except the ones returned. Years are calendar years in UTC, like the stored dates.
+ */
+public final class FacetIndex {
+    /** Like {@link Book#compareTo}, but with the books without a title last. */
+    private static final Comparator<Book> TITLE_ORDER = Comparator.comparing(Book::getTitle,
+            Comparator.nullsLast(Comparator.<String>naturalOrder())).thenComparingInt(Book::getBookId);
+
+    private final long changeToken;
+    private final Book[] books;
+    private final CompressedBitmap all = new CompressedBitmap();
+    private final Map<Genre, CompressedBitmap> byGenre = new EnumMap<>(Genre.class);
+    private final SortedMap<Integer, CompressedBitmap> byRating = new TreeMap<>();
+    /** For each year, the first and one past the last number of its books. */
+    private final NavigableMap<Integer, int[]> yearRanges = new TreeMap<>();
+
+    /**
+     * @param changeToken the catalogue version the books were read at
+     * @param books the books to index
+     */
+    public FacetIndex(long changeToken, Collection<Book> books) {
+        this.changeToken = changeToken;
+        this.books = books.toArray(new Book[0]);
+        Map<Book, Integer> years = new IdentityHashMap<>();
+        for (Book book : this.books) {
+            years.put(book, book.getPublished() == null ? Integer.MAX_VALUE
+                    : book.getPublished().toInstant().atZone(ZoneOffset.UTC).getYear());
+        }
+        Arrays.sort(this.books, Comparator.<Book>comparingInt(years::get).thenComparing(TITLE_ORDER));
+        for (int ordinal = 0; ordinal < this.books.length; ordinal++) {
+            Book book = this.books[ordinal];
+            all.add(ordinal);
+            byGenre.computeIfAbsent(book.getGenre(), g -> new CompressedBitmap()).add(ordinal);
+            byRating.computeIfAbsent(book.getRating(), r -> new CompressedBitmap()).add(ordinal);
+            int year = years.get(book);
+            if (year != Integer.MAX_VALUE) {
+                int first = ordinal;
+                yearRanges.computeIfAbsent(year, y -> new int[] {first, first})[1] = ordinal + 1;
+            }
+        }
+    }
+
+    /**
+     * @return the order of the books returned by {@link #query}, for merging the pages of
+     *         several indexes
+     */
+    static Comparator<Book> pageOrder() {
+        return Comparator.<Book>comparingInt(book -> book.getPublished() == null ? Integer.MAX_VALUE
+                : book.getPublished().toInstant().atZone(ZoneOffset.UTC).getYear()).thenComparing(TITLE_ORDER);
+    }
+
+    public long getChangeToken() {
+        return changeToken;
+    }
+
+    /**
+     * @param selection the selected facet values
+     * @param limit maximum number of books to return
+     * @return the matching books, oldest first and then by title, with the count of every
+     *         facet value
+     */
+    public FacetResult query(FacetSelection selection, int limit) {
+        CompressedBitmap genres = selection.getGenres().isEmpty() ? null
+                : CompressedBitmap.or(select(byGenre, selection.getGenres()));
+        CompressedBitmap ratings = selection.getRatings().isEmpty() ? null
+                : CompressedBitmap.or(select(byRating, selection.getRatings()));
+        CompressedBitmap years = !selection.hasYearRange() ? null
+                : yearRange(selection.getFromYear(), selection.getToYear());
+
+        CompressedBitmap ratingsAndYears = and(ratings, years);
+        CompressedBitmap genresAndYears = and(genres, years);
+        CompressedBitmap genresAndRatings = and(genres, ratings);
+        CompressedBitmap matching = and(genres, ratingsAndYears);
+        if (matching == null) {
+            matching = all;
+        }
+
+        Map<Genre, Integer> genreCounts = new EnumMap<>(Genre.class);
+        for (Map.Entry<Genre, CompressedBitmap> entry : byGenre.entrySet()) {
+            genreCounts.put(entry.getKey(), count(entry.getValue(), ratingsAndYears));
+        }
+        SortedMap<Integer, Integer> ratingCounts = new TreeMap<>();
+        for (Map.Entry<Integer, CompressedBitmap> entry : byRating.entrySet()) {
+            ratingCounts.put(entry.getKey(), count(entry.getValue(), genresAndYears));
+        }
+        SortedMap<Integer, Integer> yearCounts = new TreeMap<>();
+        for (Map.Entry<Integer, int[]> entry : yearRanges.entrySet()) {
+            int[] range = entry.getValue();
+            yearCounts.put(entry.getKey(), genresAndRatings == null ? range[1] - range[0]
+                    : genresAndRatings.rangeCardinality(range[0], range[1]));
+        }
+
+        int[] ordinals = new int[Math.max(0, Math.min(limit, books.length))];
+        int found = matching.first(ordinals);
+        List<Book> page = new ArrayList<>(found);
+        for (int i = 0; i < found; i++) {
+            page.add(books[ordinals[i]]);
+        }
+        return new FacetResult(matching.cardinality(), page, genreCounts, ratingCounts, yearCounts);
+    }
+
+    private static <K> List<CompressedBitmap> select(Map<K, CompressedBitmap> bitmaps, Collection<K> values) {
+        List<CompressedBitmap> selected = new ArrayList<>();
+        for (K value : values) {
+            CompressedBitmap bitmap = bitmaps.get(value);
+            if (bitmap != null) {
+                selected.add(bitmap);
+            }
+        }
+        return selected;
+    }
+
+    private CompressedBitmap yearRange(Integer fromYear, Integer toYear) {
+        if (yearRanges.isEmpty()) {
+            return new CompressedBitmap();
+        }
+        int from = fromYear != null ? fromYear : yearRanges.firstKey();
+        int to = toYear != null ? toYear : yearRanges.lastKey();
+        NavigableMap<Integer, int[]> selected = from > to ? null : yearRanges.subMap(from, true, to, true);
+        if (selected == null || selected.isEmpty()) {
+            return new CompressedBitmap();
+        }
+        return CompressedBitmap.range(selected.firstEntry().getValue()[0], selected.lastEntry().getValue()[1]);
+    }
+
+    /**
+     * Intersects two facet selections, where null selects every book.
+     */
+    private static CompressedBitmap and(CompressedBitmap a, CompressedBitmap b) {
+        if (a == null) {
+            return b;
+        }
+        return b == null ? a : a.and(b);
+    }
+
+    private static int count(CompressedBitmap value, CompressedBitmap others) {
+        return others == null ? value.cardinality() : value.andCardinality(others);
+    }
+}
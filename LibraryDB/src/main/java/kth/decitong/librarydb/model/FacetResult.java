@@ -0,0 +1,59 @@
+package kth.decitong.librarydb.model;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The books matching a {@link FacetSelection} and the live facet counts next to it. The
+ * count of a facet value is the number of books that would match if that value were
+ * selected in its facet in place of the current selection there, with the other facets
+ * as selected; so the counts of a facet do not drop to zero for values the user has not
+ * ticked.
+ */
+public final class FacetResult {
+    private final int total;
+    private final List<Book> books;
+    private final Map<Genre, Integer> genreCounts;
+    private final SortedMap<Integer, Integer> ratingCounts;
+    private final SortedMap<Integer, Integer> yearCounts;
+
+    public FacetResult(int total, List<Book> books, Map<Genre, Integer> genreCounts,
+                       SortedMap<Integer, Integer> ratingCounts, SortedMap<Integer, Integer> yearCounts) {
+        this.total = total;
+        this.books = Collections.unmodifiableList(books);
+        this.genreCounts = Collections.unmodifiableMap(genreCounts.isEmpty()
+                ? new EnumMap<>(Genre.class) : new EnumMap<>(genreCounts));
+        this.ratingCounts = Collections.unmodifiableSortedMap(new TreeMap<>(ratingCounts));
+        this.yearCounts = Collections.unmodifiableSortedMap(new TreeMap<>(yearCounts));
+    }
+
+    /**
+     * @return the number of matching books, which may exceed the books returned
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the first matching books, oldest first and then by title
+     */
+    public List<Book> getBooks() {
+        return books;
+    }
+
+    public Map<Genre, Integer> getGenreCounts() {
+        return genreCounts;
+    }
+
+    public SortedMap<Integer, Integer> getRatingCounts() {
+        return ratingCounts;
+    }
+
+    public SortedMap<Integer, Integer> getYearCounts() {
+        return yearCounts;
+    }
+}
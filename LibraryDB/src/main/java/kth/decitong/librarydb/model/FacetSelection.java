@@ -0,0 +1,55 @@
+package kth.decitong.librarydb.model;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The facet values a user has selected: any of some genres, any of some ratings and a
+ * range of publication years. An empty facet selects every book, so the empty selection
+ * selects the whole catalogue. Books without a publication date only match while no
+ * year range is selected.
+ */
+public final class FacetSelection {
+    private final Set<Genre> genres;
+    private final Set<Integer> ratings;
+    private final Integer fromYear;
+    private final Integer toYear;
+
+    /**
+     * @param genres the selected genres, empty for any genre
+     * @param ratings the selected ratings 1-5, empty for any rating
+     * @param fromYear first selected year, or null for no lower bound
+     * @param toYear last selected year (inclusive), or null for no upper bound
+     */
+    public FacetSelection(Set<Genre> genres, Set<Integer> ratings, Integer fromYear, Integer toYear) {
+        this.genres = genres.isEmpty() ? Collections.emptySet() : Collections.unmodifiableSet(EnumSet.copyOf(genres));
+        this.ratings = Collections.unmodifiableSet(new TreeSet<>(ratings));
+        this.fromYear = fromYear;
+        this.toYear = toYear;
+    }
+
+    public Set<Genre> getGenres() {
+        return genres;
+    }
+
+    public Set<Integer> getRatings() {
+        return ratings;
+    }
+
+    public Integer getFromYear() {
+        return fromYear;
+    }
+
+    public Integer getToYear() {
+        return toYear;
+    }
+
+    /**
+     * @return true if a year range is selected
+     */
+    public boolean hasYearRange() {
+        return fromYear != null || toYear != null;
+    }
+}
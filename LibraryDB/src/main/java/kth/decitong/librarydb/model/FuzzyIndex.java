@@ -0,0 +1,243 @@
+package kth.decitong.librarydb.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * An immutable, typo-tolerant index over title words and author names.
+ * <p>
+ * Every distinct lower-case word from titles, author first names and author last names is
+ * a term. Terms are indexed by their trigrams (with a '$' marking the start and end of the
+ * word). A query word first collects the terms that share enough trigrams with it to
+ * possibly be within the allowed edit distance, and only those candidates are checked with
+ * a bounded Levenshtein distance: no distance for words of up to 2 letters, 1 for up to 5
+ * letters and 2 for longer words. A book scores the best similarity of its terms for each
+ * query word, summed over the query words, and results are ranked by that score.
+ */
+public final class FuzzyIndex {
+    private final long changeToken;
+    private final List<Book> books;
+    private final String[] terms;
+    private final int[][] booksByTerm;
+    private final Map<Long, int[]> termsByTrigram;
+
+    /**
+     * @param changeToken the catalogue version the books were read at
+     * @param books the books to index, with their authors
+     */
+    public FuzzyIndex(long changeToken, Collection<Book> books) {
+        this.changeToken = changeToken;
+        this.books = new ArrayList<>(books);
+
+        Map<String, Integer> termIds = new HashMap<>();
+        List<IntList> termBooks = new ArrayList<>();
+        for (int i = 0; i < this.books.size(); i++) {
+            Book book = this.books.get(i);
+            List<String> words = words(book.getTitle());
+            for (Author author : book.getAuthors()) {
+                words.addAll(words(author.getFirstName()));
+                words.addAll(words(author.getLastName()));
+            }
+            for (String word : words) {
+                int termId = termIds.computeIfAbsent(word, w -> {
+                    termBooks.add(new IntList());
+                    return termBooks.size() - 1;
+                });
+                IntList postings = termBooks.get(termId);
+                if (postings.size == 0 || postings.values[postings.size - 1] != i) {
+                    postings.add(i);
+                }
+            }
+        }
+
+        terms = new String[termIds.size()];
+        booksByTerm = new int[terms.length][];
+        Map<Long, IntList> trigramTerms = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : termIds.entrySet()) {
+            int termId = entry.getValue();
+            terms[termId] = entry.getKey();
+            booksByTerm[termId] = termBooks.get(termId).toArray();
+            for (long trigram : trigrams(entry.getKey())) {
+                IntList postings = trigramTerms.computeIfAbsent(trigram, t -> new IntList());
+                if (postings.size == 0 || postings.values[postings.size - 1] != termId) {
+                    postings.add(termId);
+                }
+            }
+        }
+        termsByTrigram = new HashMap<>(trigramTerms.size() * 2);
+        for (Map.Entry<Long, IntList> entry : trigramTerms.entrySet()) {
+            termsByTrigram.put(entry.getKey(), entry.getValue().toArray());
+        }
+    }
+
+    public long getChangeToken() {
+        return changeToken;
+    }
+
+    /**
+     * Finds the books whose title words or author names are close to the words of the query.
+     * @param query one or more words, possibly misspelled
+     * @param limit maximum number of books to return
+     * @return the matching books, best match first
+     */
+    public List<Book> search(String query, int limit) {
+        List<String> queryWords = words(query);
+        double[] scores = new double[books.size()];
+        double[] bestForWord = new double[books.size()];
+        IntList scoredBooks = new IntList();
+        int[] overlap = new int[terms.length];
+
+        for (String queryWord : queryWords) {
+            int maxDistance = maxDistance(queryWord);
+            long[] queryTrigrams = trigrams(queryWord);
+            IntList touchedTerms = new IntList();
+            for (long trigram : queryTrigrams) {
+                int[] postings = termsByTrigram.get(trigram);
+                if (postings == null) {
+                    continue;
+                }
+                for (int termId : postings) {
+                    if (overlap[termId]++ == 0) {
+                        touchedTerms.add(termId);
+                    }
+                }
+            }
+
+            // Each edit destroys at most three trigrams.
+            int minOverlap = Math.max(1, queryTrigrams.length - 3 * maxDistance);
+            IntList matchedBooks = new IntList();
+            for (int i = 0; i < touchedTerms.size; i++) {
+                int termId = touchedTerms.values[i];
+                int shared = overlap[termId];
+                overlap[termId] = 0;
+                String term = terms[termId];
+                if (shared < minOverlap || Math.abs(term.length() - queryWord.length()) > maxDistance) {
+                    continue;
+                }
+                int distance = boundedDistance(queryWord, term, maxDistance);
+                if (distance > maxDistance) {
+                    continue;
+                }
+                double similarity = 1.0 - (double) distance / Math.max(term.length(), queryWord.length());
+                for (int bookIndex : booksByTerm[termId]) {
+                    if (bestForWord[bookIndex] == 0) {
+                        matchedBooks.add(bookIndex);
+                    }
+                    bestForWord[bookIndex] = Math.max(bestForWord[bookIndex], similarity);
+                }
+            }
+
+            for (int i = 0; i < matchedBooks.size; i++) {
+                int bookIndex = matchedBooks.values[i];
+                if (scores[bookIndex] == 0) {
+                    scoredBooks.add(bookIndex);
+                }
+                scores[bookIndex] += bestForWord[bookIndex];
+                bestForWord[bookIndex] = 0;
+            }
+        }
+
+        // Keep the best 'limit' books in a heap whose head is the worst of them.
+        Comparator<Integer> ranking = (a, b) -> {
+            int byScore = Double.compare(scores[b], scores[a]);
+            return byScore != 0 ? byScore : books.get(a).compareTo(books.get(b));
+        };
+        PriorityQueue<Integer> best = new PriorityQueue<>(ranking.reversed());
+        for (int i = 0; i < scoredBooks.size && limit > 0; i++) {
+            int bookIndex = scoredBooks.values[i];
+            if (best.size() < limit) {
+                best.add(bookIndex);
+            } else if (ranking.compare(bookIndex, best.peek()) < 0) {
+                best.poll();
+                best.add(bookIndex);
+            }
+        }
+        List<Integer> ranked = new ArrayList<>(best);
+        ranked.sort(ranking);
+        List<Book> result = new ArrayList<>(ranked.size());
+        for (int bookIndex : ranked) {
+            result.add(books.get(bookIndex));
+        }
+        return result;
+    }
+
+    private static int maxDistance(String word) {
+        if (word.length() <= 2) {
+            return 0;
+        }
+        return word.length() <= 5 ? 1 : 2;
+    }
+
+    private static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        for (String word : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    private static long[] trigrams(String word) {
+        String padded = "$" + word + "$";
+        long[] trigrams = new long[padded.length() - 2];
+        for (int i = 0; i < trigrams.length; i++) {
+            trigrams[i] = ((long) padded.charAt(i) << 32) | ((long) padded.charAt(i + 1) << 16) | padded.charAt(i + 2);
+        }
+        return trigrams;
+    }
+
+    /**
+     * Levenshtein distance between a and b, or maxDistance + 1 as soon as it is known to
+     * be larger than maxDistance.
+     */
+    private static int boundedDistance(String a, String b, int maxDistance) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMinimum = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int substitution = previous[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+                rowMinimum = Math.min(rowMinimum, current[j]);
+            }
+            if (rowMinimum > maxDistance) {
+                return maxDistance + 1;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return Math.min(previous[b.length()], maxDistance + 1);
+    }
+
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
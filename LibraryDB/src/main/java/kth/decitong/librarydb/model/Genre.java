@@ -1,5 +1,37 @@
 package kth.decitong.librarydb.model;
 
 public enum Genre {
-    THRILLER, ROMANCE, COMEDY, CRIME, SCI_FI, SCIENCE, DRAMA, ACTION;
+    THRILLER(1), ROMANCE(2), COMEDY(3), CRIME(4), SCI_FI(5), SCIENCE(6), DRAMA(7), ACTION(8);
+
+    private static final Genre[] BY_CODE = new Genre[9];
+
+    static {
+        for (Genre genre : values()) {
+            BY_CODE[genre.code] = genre;
+        }
+    }
+
+    private final int code;
+
+    Genre(int code) {
+        this.code = code;
+    }
+
+    /**
+     * @return the number that stands for the genre in compact book documents; it never
+     *         changes, unlike the ordinal, so new genres must get new codes
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * @throws IllegalArgumentException if no genre has the code
+     */
+    public static Genre fromCode(int code) {
+        if (code < 0 || code >= BY_CODE.length || BY_CODE[code] == null) {
+            throw new IllegalArgumentException("No genre with code " + code);
+        }
+        return BY_CODE[code];
+    }
 }
@@ -0,0 +1,220 @@
+package kth.decitong.librarydb.model;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Admission control around another {@link BooksDbInterface}.
+ * Searches, author listings and writes each have their own limit on concurrent calls and
+ * their own bounded wait queue, so a slow database cannot make callers pile up without
+ * bound: excess calls are rejected with a {@link BooksDbException} straight away. A circuit
+ * breaker shared by all operations opens after repeated MongoDB timeouts, after which
+ * calls fail immediately until a trial call shows that the database answers again.
+ * Connecting, disconnecting and warming up bypass the limits and the breaker.
+ */
+public class GuardedBooksDb implements BooksDbInterface {
+    private final BooksDbInterface delegate;
+    private final Bulkhead searches;
+    private final Bulkhead reads;
+    private final Bulkhead writes;
+    private final CircuitBreaker breaker;
+
+    private interface DbCall<T> {
+        T call() throws BooksDbException;
+    }
+
+    /**
+     * Guards the given data layer with default limits: 4 concurrent searches, 2 concurrent
+     * author reads and 2 concurrent writes, each with room for 8 waiting calls that wait at
+     * most 2 s, and a breaker that opens for 10 s after 3 consecutive timeouts.
+     * @param delegate the data layer doing the actual work
+     */
+    public GuardedBooksDb(BooksDbInterface delegate) {
+        this(delegate, 4, 2, 2, 8, 2_000, 3, 10_000);
+    }
+
+    /**
+     * @param delegate the data layer doing the actual work
+     * @param maxSearches maximum number of concurrent searches
+     * @param maxReads maximum number of concurrent author reads
+     * @param maxWrites maximum number of concurrent writes
+     * @param maxWaiting maximum number of calls of each kind waiting for a permit
+     * @param maxWaitMillis maximum time a call waits for a permit
+     * @param failureThreshold consecutive timeouts that open the breaker
+     * @param openMillis how long the breaker stays open before a trial call
+     * @throws IllegalArgumentException if a maximum number of concurrent calls is less than 1
+     */
+    public GuardedBooksDb(BooksDbInterface delegate, int maxSearches, int maxReads, int maxWrites,
+                          int maxWaiting, long maxWaitMillis, int failureThreshold, long openMillis) {
+        this.delegate = delegate;
+        this.searches = new Bulkhead("search", maxSearches, maxWaiting, maxWaitMillis);
+        this.reads = new Bulkhead("read", maxReads, maxWaiting, maxWaitMillis);
+        this.writes = new Bulkhead("write", maxWrites, maxWaiting, maxWaitMillis);
+        this.breaker = new CircuitBreaker(failureThreshold, openMillis);
+    }
+
+    @Override
+    public void connect(String database) throws BooksDbException {
+        delegate.connect(database);
+        breaker.onSuccess();
+    }
+
+    @Override
+    public void disconnect() throws BooksDbException {
+        delegate.disconnect();
+    }
+
+    /**
+     * Bypasses the limits, like {@link #connect}: warm-up runs once, before any other calls.
+     */
+    @Override
+    public void warmUp() throws BooksDbException {
+        delegate.warmUp();
+    }
+
+    @Override
+    public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByTitle(title));
+    }
+
+    @Override
+    public List<Book> searchBooksByAuthor(String authorName) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByAuthor(authorName));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByGenre(String genre) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByGenre(genre));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByRating(int rating) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByRating(rating));
+    }
+
+    @Override
+    public List<Book> searchBooksByRating(int minRating, int maxRating, String genre, BookSort sort, int limit)
+            throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByRating(minRating, maxRating, genre, sort, limit));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByISBN(ISBN));
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(Date from, Date to) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByPublished(from, to));
+    }
+
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksFuzzy(query));
+    }
+
+    @Override
+    public FacetResult searchBooksByFacets(FacetSelection selection, int limit) throws BooksDbException {
+        return guard(searches, () -> delegate.searchBooksByFacets(selection, limit));
+    }
+
+    @Override
+    public void deleteBook(int bookID) throws BooksDbException {
+        guard(writes, () -> {
+            delegate.deleteBook(bookID);
+            return null;
+        });
+    }
+
+    @Override
+    public void addBook(Book book) throws BooksDbException {
+        guard(writes, () -> {
+            delegate.addBook(book);
+            return null;
+        });
+    }
+
+    @Override
+    public List<Book> importBooks(List<Book> books) throws BooksDbException {
+        return guard(writes, () -> delegate.importBooks(books));
+    }
+
+    @Override
+    public void addAuthor(Author author) throws BooksDbException {
+        guard(writes, () -> {
+            delegate.addAuthor(author);
+            return null;
+        });
+    }
+
+    @Override
+    public void addAuthorToBook(Author author, Book book) throws BooksDbException {
+        guard(writes, () -> {
+            delegate.addAuthorToBook(author, book);
+            return null;
+        });
+    }
+
+    @Override
+    public Book updateBook(Book book, BookChanges changes) throws BooksDbException {
+        return guard(writes, () -> delegate.updateBook(book, changes));
+    }
+
+    @Override
+    public int updateBooks(List<Book> books, BookChanges changes) throws BooksDbException {
+        return guard(writes, () -> delegate.updateBooks(books, changes));
+    }
+
+    @Override
+    public Author updateAuthor(Author author, AuthorChanges changes) throws BooksDbException {
+        return guard(writes, () -> delegate.updateAuthor(author, changes));
+    }
+
+    @Override
+    public List<Author> getAuthorsForBook(int bookID) throws BooksDbException {
+        return guard(reads, () -> delegate.getAuthorsForBook(bookID));
+    }
+
+    @Override
+    public List<Author> getAllAuthors() throws BooksDbException {
+        return guard(reads, delegate::getAllAuthors);
+    }
+
+    @Override
+    public int nextBookId() throws BooksDbException {
+        return guard(reads, delegate::nextBookId);
+    }
+
+    @Override
+    public int nextAuthorId() throws BooksDbException {
+        return guard(reads, delegate::nextAuthorId);
+    }
+
+    private <T> T guard(Bulkhead bulkhead, DbCall<T> call) throws BooksDbException {
+        breaker.beforeCall();
+        try {
+            bulkhead.acquire();
+        } catch (BooksDbException e) {
+            breaker.onAbandoned();
+            throw e;
+        }
+        try {
+            T result = call.call();
+            breaker.onSuccess();
+            return result;
+        } catch (BooksDbException e) {
+            if (CircuitBreaker.isTimeout(e)) {
+                breaker.onTimeout();
+            } else {
+                breaker.onSuccess();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            breaker.onAbandoned();
+            throw e;
+        } finally {
+            bulkhead.release();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+
+/**
+ * Hands out unique integer ids for one kind of document using hi/lo block leasing.
+ * A counter document in the 'counters' collection holds the next id that has not been
+ * leased to any client. A client leases a whole block of ids with one atomic
+ * findOneAndUpdate that increments the counter by the block size, and then hands out ids
+ * from the block by a local increment. Concurrent clients and workers therefore never
+ * receive the same id, and the counter document is only touched once per block.
+ * <p>
+ * Ids left in a block when a client disconnects are never reused, so ids are unique but
+ * not gap-free.
+ */
+public class IdAllocator {
+    private final MongoCollection<Document> counters;
+    private final String sequenceName;
+    private final int blockSize;
+    private int next;
+    private int limit;
+
+    /**
+     * @param counters the collection holding the counter documents
+     * @param sequenceName the id of the counter document, for example "books"
+     * @param blockSize number of ids leased per round trip
+     */
+    public IdAllocator(MongoCollection<Document> counters, String sequenceName, int blockSize) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Block size must be positive");
+        }
+        this.counters = counters;
+        this.sequenceName = sequenceName;
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Makes sure the counter starts above every id already used in the given collection,
+     * so ids typed by hand before the allocator existed are never handed out again.
+     * @param collection the collection whose ids the counter allocates
+     * @param idField the id field in that collection
+     */
+    public void seedFrom(MongoCollection<Document> collection, String idField) {
+        Document highest = collection.find()
+                .sort(Sorts.descending(idField))
+                .projection(Projections.include(idField))
+                .limit(1)
+                .first();
+        int firstFree = highest == null || highest.getInteger(idField) == null ? 1 : highest.getInteger(idField) + 1;
+        counters.updateOne(Filters.eq("_id", sequenceName), Updates.max("next", firstFree),
+                new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * Returns the next id, leasing a new block from the database if the current one is
+     * used up.
+     * @return a unique id
+     * @throws BooksDbException if a new block could not be leased
+     */
+    public synchronized int nextId() throws BooksDbException {
+        if (next >= limit) {
+            leaseBlock();
+        }
+        return next++;
+    }
+
+    private void leaseBlock() throws BooksDbException {
+        try {
+            Document counter = counters.findOneAndUpdate(Filters.eq("_id", sequenceName),
+                    Updates.inc("next", blockSize),
+                    new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+            limit = counter.getInteger("next");
+            next = Math.max(1, limit - blockSize);
+        } catch (MongoException e) {
+            throw new BooksDbException("Error allocating " + sequenceName + " ids: " + e.getMessage(), e);
+        }
+    }
+}
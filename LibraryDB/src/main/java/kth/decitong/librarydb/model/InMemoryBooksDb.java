@@ -0,0 +1,529 @@
+package kth.decitong.librarydb.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-process implementation of {@link BooksDbInterface} that keeps the catalogue in
+ * memory. It follows the same search semantics as {@link BooksDbImpl} ({@link TextQuery}
+ * for titles and author names, exact matches for genre, rating and ISBN) and is meant
+ * for benchmarks and for running without a MongoDB server.
+ * <p>
+ * All methods are thread-safe: reads share a read lock and writes take the write lock.
+ * Books are copied on the way in and on the way out, so callers never share mutable
+ * {@link Book} instances with the store. Every instance is its own database; the name
+ * passed to {@link #connect} is ignored.
+ */
+public class InMemoryBooksDb implements BooksDbInterface {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, Book> books = new HashMap<>();
+    private final Map<Integer, Set<Integer>> authorIdsByBook = new HashMap<>();
+    private final Map<String, Set<Integer>> bookIdsByIsbn = new HashMap<>();
+    private final Map<Integer, Author> authors = new HashMap<>();
+    private final YearBuckets booksByYear = new YearBuckets();
+    private int highestBookId;
+    private int highestAuthorId;
+    private volatile boolean connected;
+    private long version;
+    private volatile FuzzyIndex fuzzyIndex;
+    private volatile FacetIndex facetIndex;
+
+    @Override
+    public void connect(String database) throws BooksDbException {
+        connected = true;
+    }
+
+    @Override
+    public void disconnect() throws BooksDbException {
+        if (!connected) {
+            throw new BooksDbException("Error disconnecting: not connected");
+        }
+        connected = false;
+    }
+
+    /**
+     * Nothing to warm up: everything is already in memory.
+     */
+    @Override
+    public void warmUp() throws BooksDbException {
+        checkConnected();
+    }
+
+    @Override
+    public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+        TextQuery titleQuery = TextQuery.parse(title);
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            ArrayList<Book> result = new ArrayList<>();
+            for (Book book : books.values()) {
+                if (result.size() >= BooksDbImpl.MAX_SEARCH_RESULTS) {
+                    break;
+                }
+                if (titleQuery.matches(book.getTitle())) {
+                    result.add(copyWithAuthors(book));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Book> searchBooksByAuthor(String authorName) throws BooksDbException {
+        TextQuery nameQuery = TextQuery.parse(authorName);
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            Set<Integer> matchingAuthorIds = new LinkedHashSet<>();
+            for (Author author : authors.values()) {
+                if (nameQuery.matches(author.getFirstName()) || nameQuery.matches(author.getLastName())) {
+                    matchingAuthorIds.add(author.getAuthorID());
+                }
+            }
+            ArrayList<Book> result = new ArrayList<>();
+            if (matchingAuthorIds.isEmpty()) {
+                return result;
+            }
+            for (Map.Entry<Integer, Set<Integer>> entry : authorIdsByBook.entrySet()) {
+                if (result.size() >= BooksDbImpl.MAX_SEARCH_RESULTS) {
+                    break;
+                }
+                if (!Collections.disjoint(entry.getValue(), matchingAuthorIds)) {
+                    result.add(copyWithAuthors(books.get(entry.getKey())));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByGenre(String genre) throws BooksDbException {
+        String uppercaseGenre = genre.toUpperCase();
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            ArrayList<Book> result = new ArrayList<>();
+            for (Book book : books.values()) {
+                if (book.getGenre().name().equals(uppercaseGenre)) {
+                    result.add(copyWithAuthors(book));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByRating(int rating) throws BooksDbException {
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            ArrayList<Book> result = new ArrayList<>();
+            for (Book book : books.values()) {
+                if (book.getRating() == rating) {
+                    result.add(copyWithAuthors(book));
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Book> searchBooksByRating(int minRating, int maxRating, String genre, BookSort sort, int limit)
+            throws BooksDbException {
+        String uppercaseGenre = genre == null ? null : genre.toUpperCase();
+        int maxBooks = Math.min(limit, BooksDbImpl.MAX_SEARCH_RESULTS);
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            ArrayList<Book> matching = new ArrayList<>();
+            for (Book book : books.values()) {
+                if (book.getRating() >= minRating && book.getRating() <= maxRating
+                        && (uppercaseGenre == null || book.getGenre().name().equals(uppercaseGenre))) {
+                    matching.add(book);
+                }
+            }
+            matching.sort(sort.comparator());
+            ArrayList<Book> result = new ArrayList<>();
+            for (int i = 0; i < matching.size() && i < maxBooks; i++) {
+                result.add(copyWithAuthors(matching.get(i)));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException {
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            ArrayList<Book> result = new ArrayList<>();
+            for (int bookId : bookIdsByIsbn.getOrDefault(ISBN, Collections.emptySet())) {
+                result.add(copyWithAuthors(books.get(bookId)));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(Date from, Date to) throws BooksDbException {
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            List<Book> matching = new ArrayList<>();
+            booksByYear.collect(from, to, BooksDbImpl.MAX_SEARCH_RESULTS, matching);
+            ArrayList<Book> result = new ArrayList<>();
+            for (Book book : matching) {
+                result.add(copyWithAuthors(book));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            FuzzyIndex index = fuzzyIndex;
+            if (index == null || index.getChangeToken() != version) {
+                List<Book> indexed = new ArrayList<>(books.size());
+                for (Book book : books.values()) {
+                    indexed.add(copyWithAuthors(book));
+                }
+                index = new FuzzyIndex(version, indexed);
+                fuzzyIndex = index;
+            }
+            ArrayList<Book> result = new ArrayList<>();
+            for (Book book : index.search(query, BooksDbImpl.MAX_FUZZY_RESULTS)) {
+                result.add(copyWithAuthors(books.get(book.getBookId())));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public FacetResult searchBooksByFacets(FacetSelection selection, int limit) throws BooksDbException {
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            FacetIndex index = facetIndex;
+            if (index == null || index.getChangeToken() != version) {
+                List<Book> indexed = new ArrayList<>(books.size());
+                for (Book book : books.values()) {
+                    indexed.add(copyWithAuthors(book));
+                }
+                index = new FacetIndex(version, indexed);
+                facetIndex = index;
+            }
+            FacetResult found = index.query(selection, limit);
+            List<Book> result = new ArrayList<>();
+            for (Book book : found.getBooks()) {
+                result.add(copyWithAuthors(books.get(book.getBookId())));
+            }
+            return new FacetResult(found.getTotal(), result, found.getGenreCounts(), found.getRatingCounts(),
+                    found.getYearCounts());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteBook(int bookID) throws BooksDbException {
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            version++;
+            Book removed = books.remove(bookID);
+            if (removed == null) {
+                throw new BooksDbException("No book found with bookId: " + bookID);
+            }
+            authorIdsByBook.remove(bookID);
+            booksByYear.remove(removed);
+            Set<Integer> sameIsbn = bookIdsByIsbn.get(removed.getIsbn());
+            sameIsbn.remove(bookID);
+            if (sameIsbn.isEmpty()) {
+                bookIdsByIsbn.remove(removed.getIsbn());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addBook(Book book) throws BooksDbException {
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            version++;
+            if (books.containsKey(book.getBookId())) {
+                throw new BooksDbException("A book with bookId " + book.getBookId() + " already exists");
+            }
+            Book stored = copyOf(book);
+            stored.setVersion(0);
+            books.put(book.getBookId(), stored);
+            booksByYear.add(stored);
+            highestBookId = Math.max(highestBookId, book.getBookId());
+            authorIdsByBook.put(book.getBookId(), new LinkedHashSet<>());
+            bookIdsByIsbn.computeIfAbsent(book.getIsbn(), isbn -> new LinkedHashSet<>()).add(book.getBookId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds the new books of the batch under one write lock, with the same duplicate
+     * rules as {@link BooksDbImpl#importBooks}.
+     */
+    @Override
+    public List<Book> importBooks(List<Book> batch) throws BooksDbException {
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            version++;
+            List<Book> skipped = new ArrayList<>();
+            for (Book book : batch) {
+                if (books.containsKey(book.getBookId()) || bookIdsByIsbn.containsKey(book.getIsbn())) {
+                    skipped.add(book);
+                    continue;
+                }
+                Book stored = copyOf(book);
+                stored.setVersion(0);
+                books.put(book.getBookId(), stored);
+                booksByYear.add(stored);
+                highestBookId = Math.max(highestBookId, book.getBookId());
+                Set<Integer> authorIds = new LinkedHashSet<>();
+                for (Author author : book.getAuthors()) {
+                    authorIds.add(author.getAuthorID());
+                }
+                authorIdsByBook.put(book.getBookId(), authorIds);
+                bookIdsByIsbn.computeIfAbsent(book.getIsbn(), isbn -> new LinkedHashSet<>()).add(book.getBookId());
+            }
+            return skipped;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addAuthor(Author author) throws BooksDbException {
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            if (authors.containsKey(author.getAuthorID())) {
+                throw new BooksDbException("An author with authorID " + author.getAuthorID() + " already exists");
+            }
+            highestAuthorId = Math.max(highestAuthorId, author.getAuthorID());
+            authors.put(author.getAuthorID(),
+                    new Author(author.getAuthorID(), author.getFirstName(), author.getLastName(), author.getBirthDate()));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void addAuthorToBook(Author author, Book book) throws BooksDbException {
+        if (book == null || author == null) {
+            throw new IllegalArgumentException("Book and Author cannot be null");
+        }
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            version++;
+            Set<Integer> authorIds = authorIdsByBook.get(book.getBookId());
+            if (authorIds == null) {
+                throw new BooksDbException("No book found with bookId: " + book.getBookId());
+            }
+            authorIds.add(author.getAuthorID());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Book updateBook(Book book, BookChanges changes) throws BooksDbException {
+        if (changes.isEmpty()) {
+            return book;
+        }
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            Book stored = books.get(book.getBookId());
+            if (stored == null) {
+                throw new BooksDbException("No book found with bookId: " + book.getBookId());
+            }
+            if (stored.getVersion() != book.getVersion()) {
+                throw new BooksDbException("Book " + book.getBookId() + " was changed by someone else, "
+                        + "reload it and try again");
+            }
+            version++;
+            return copyWithAuthors(replace(stored, changes));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int updateBooks(List<Book> books, BookChanges changes) throws BooksDbException {
+        if (changes.isEmpty()) {
+            return 0;
+        }
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            int updated = 0;
+            for (Book book : books) {
+                Book stored = this.books.get(book.getBookId());
+                if (stored != null && stored.getVersion() == book.getVersion()) {
+                    replace(stored, changes);
+                    updated++;
+                }
+            }
+            if (updated > 0) {
+                version++;
+            }
+            return updated;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Author updateAuthor(Author author, AuthorChanges changes) throws BooksDbException {
+        if (changes.isEmpty()) {
+            return author;
+        }
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            Author stored = authors.get(author.getAuthorID());
+            if (stored == null) {
+                throw new BooksDbException("No author found with authorID: " + author.getAuthorID());
+            }
+            if (stored.getVersion() != author.getVersion()) {
+                throw new BooksDbException("Author " + author.getAuthorID() + " was changed by someone else, "
+                        + "reload it and try again");
+            }
+            version++;
+            Author updated = changes.applyTo(stored);
+            authors.put(updated.getAuthorID(), updated);
+            return updated;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Author> getAuthorsForBook(int bookID) throws BooksDbException {
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            Set<Integer> authorIds = authorIdsByBook.get(bookID);
+            if (authorIds == null) {
+                throw new BooksDbException("No book found with bookId: " + bookID);
+            }
+            List<Author> result = new ArrayList<>();
+            for (int authorId : authorIds) {
+                Author author = authors.get(authorId);
+                if (author != null) {
+                    result.add(author);
+                }
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Author> getAllAuthors() throws BooksDbException {
+        lock.readLock().lock();
+        try {
+            checkConnected();
+            return new ArrayList<>(authors.values());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int nextBookId() throws BooksDbException {
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            return ++highestBookId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int nextAuthorId() throws BooksDbException {
+        lock.writeLock().lock();
+        try {
+            checkConnected();
+            return ++highestAuthorId;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkConnected() throws BooksDbException {
+        if (!connected) {
+            throw new BooksDbException("Not connected to a database");
+        }
+    }
+
+    private Book copyWithAuthors(Book stored) {
+        Book copy = copyOf(stored);
+        for (int authorId : authorIdsByBook.get(stored.getBookId())) {
+            Author author = authors.get(authorId);
+            if (author != null) {
+                copy.addAuthors(author);
+            }
+        }
+        return copy;
+    }
+
+    private static Book copyOf(Book book) {
+        Book copy = new Book(book.getBookId(), book.getIsbn(), book.getTitle(), book.getPublished(),
+                book.getRating(), book.getGenre());
+        copy.setVersion(book.getVersion());
+        return copy;
+    }
+
+    /**
+     * Replaces a stored book with a changed copy. The ISBN never changes, so only the
+     * year index needs to follow.
+     */
+    private Book replace(Book stored, BookChanges changes) {
+        Book updated = changes.applyTo(stored);
+        books.put(updated.getBookId(), updated);
+        booksByYear.remove(stored);
+        booksByYear.add(updated);
+        return updated;
+    }
+}
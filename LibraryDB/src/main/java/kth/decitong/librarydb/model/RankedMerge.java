@@ -0,0 +1,128 @@
+package kth.decitong.librarydb.model;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Merges the results of the title, author and ISBN searches for one query into a single
+ * list without duplicates, best match first. The results of each search can be added as
+ * soon as it completes, so the merged list can be shown while the slower searches are
+ * still running.
+ * <p>
+ * A book scores how well the query matches the field it was found by: an exact ISBN match
+ * scores highest, then an exact title, an author's full name, a title or name that starts
+ * with the query, one that has the query as a whole word, and last one that only contains
+ * it. A book found by more than one search keeps its best score plus a small bonus for
+ * each other search that found it. Ties are broken by title.
+ * <p>
+ * Not thread-safe; the controller adds results on the FX thread only.
+ */
+public final class RankedMerge {
+    private static final int ALSO_FOUND_BONUS = 5;
+
+    private final String query;
+    private final Map<Integer, Entry> entries = new HashMap<>();
+
+    private static final class Entry {
+        Book book;
+        int bestScore;
+        int sources;
+    }
+
+    /**
+     * @param query the text every search was run with
+     */
+    public RankedMerge(String query) {
+        this.query = query.trim().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Adds the books one search found.
+     * @param source Title, Author or ISBN
+     * @param books the books the search returned
+     * @return all books found so far, best match first
+     */
+    public List<Book> add(SearchMode source, List<Book> books) {
+        for (Book book : books) {
+            Entry entry = entries.computeIfAbsent(book.getBookId(), id -> new Entry());
+            // the author search returns its books with their authors; keep the most complete copy
+            if (entry.book == null || book.getAuthors().size() > entry.book.getAuthors().size()) {
+                entry.book = book;
+            }
+            entry.bestScore = Math.max(entry.bestScore, score(source, book));
+            entry.sources++;
+        }
+        return ranked();
+    }
+
+    /**
+     * @return the number of distinct books found so far
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private List<Book> ranked() {
+        List<Entry> sorted = new ArrayList<>(entries.values());
+        sorted.sort(Comparator.comparingInt(RankedMerge::total).reversed()
+                .thenComparing(entry -> entry.book));
+        List<Book> books = new ArrayList<>(sorted.size());
+        for (Entry entry : sorted) {
+            books.add(entry.book);
+        }
+        return books;
+    }
+
+    private static int total(Entry entry) {
+        return entry.bestScore + ALSO_FOUND_BONUS * (entry.sources - 1);
+    }
+
+    private int score(SearchMode source, Book book) {
+        switch (source) {
+            case ISBN:
+                return 100;
+            case Title:
+                return textScore(book.getTitle(), 90);
+            case Author:
+                int best = 0;
+                for (Author author : book.getAuthors()) {
+                    String fullName = author.getFirstName() + " " + author.getLastName();
+                    best = Math.max(best, Math.max(textScore(fullName, 80),
+                            Math.max(textScore(author.getFirstName(), 65), textScore(author.getLastName(), 65))));
+                }
+                // the author matched the query, even if the returned book lacks its name
+                return Math.max(best, 40);
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Scores how well the query matches the text: exactScore for the whole text, and
+     * less for a prefix, a whole word or a substring.
+     */
+    private int textScore(String text, int exactScore) {
+        if (text == null) {
+            return 0;
+        }
+        String lower = text.toLowerCase(Locale.ROOT);
+        if (lower.equals(query)) {
+            return exactScore;
+        }
+        if (lower.startsWith(query)) {
+            return exactScore - 20;
+        }
+        int at = lower.indexOf(query);
+        if (at < 0) {
+            return 0;
+        }
+        int end = at + query.length();
+        boolean wholeWord = !Character.isLetterOrDigit(lower.charAt(at - 1))
+                && (end == lower.length() || !Character.isLetterOrDigit(lower.charAt(end)));
+        return wholeWord ? exactScore - 30 : exactScore - 40;
+    }
+}
@@ -0,0 +1,77 @@
+package kth.decitong.librarydb.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches the author directory and the results of genre searches for as long as the
+ * catalogue's change token stays the same. The token is re-read at most once per check
+ * interval; writes through this client invalidate the cache straight away.
+ * <p>
+ * Values are stored with the generation they were read in, so a result read before an
+ * invalidation is never stored after it.
+ */
+final class ReadCache {
+    private final long checkIntervalMillis;
+    private long changeToken = -1;
+    private long checkedAt;
+    private long generation;
+    private List<Author> authors;
+    private final Map<String, List<Book>> booksByGenre = new HashMap<>();
+
+    ReadCache(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Drops the cached values if the change token has moved since the last check.
+     * @return the generation to pass to the put methods for values read now
+     */
+    synchronized long validate(LongSupplier readChangeToken) {
+        long now = System.currentTimeMillis();
+        if (now - checkedAt >= checkIntervalMillis) {
+            long current = readChangeToken.getAsLong();
+            if (current != changeToken) {
+                clear();
+                changeToken = current;
+            }
+            checkedAt = now;
+        }
+        return generation;
+    }
+
+    synchronized void invalidate() {
+        clear();
+        checkedAt = 0;
+    }
+
+    synchronized List<Author> getAuthors() {
+        return authors == null ? null : new ArrayList<>(authors);
+    }
+
+    synchronized void putAuthors(long readGeneration, List<Author> authors) {
+        if (readGeneration == generation) {
+            this.authors = new ArrayList<>(authors);
+        }
+    }
+
+    synchronized ArrayList<Book> getBooksByGenre(String genre) {
+        List<Book> books = booksByGenre.get(genre);
+        return books == null ? null : new ArrayList<>(books);
+    }
+
+    synchronized void putBooksByGenre(long readGeneration, String genre, List<Book> books) {
+        if (readGeneration == generation) {
+            booksByGenre.put(genre, new ArrayList<>(books));
+        }
+    }
+
+    private void clear() {
+        generation++;
+        authors = null;
+        booksByGenre.clear();
+    }
+}
@@ -0,0 +1,202 @@
+package kth.decitong.librarydb.model;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Emits a {@link BooksDbCallEvent} to Java Flight Recorder for every call to another
+ * {@link BooksDbInterface}, with the operation, the rows returned, the round trips made and
+ * whether it failed. When no recording has the event enabled, a call costs one check on
+ * top of the call itself.
+ */
+public class RecordingBooksDb implements BooksDbInterface {
+    private final BooksDbInterface delegate;
+
+    private interface DbCall<T> {
+        T call() throws BooksDbException;
+    }
+
+    /**
+     * @param delegate the data layer doing the actual work
+     */
+    public RecordingBooksDb(BooksDbInterface delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void connect(String database) throws BooksDbException {
+        record("connect", () -> {
+            delegate.connect(database);
+            return null;
+        });
+    }
+
+    @Override
+    public void disconnect() throws BooksDbException {
+        record("disconnect", () -> {
+            delegate.disconnect();
+            return null;
+        });
+    }
+
+    @Override
+    public void warmUp() throws BooksDbException {
+        record("warmUp", () -> {
+            delegate.warmUp();
+            return null;
+        });
+    }
+
+    @Override
+    public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+        return record("searchBooksByTitle", () -> delegate.searchBooksByTitle(title));
+    }
+
+    @Override
+    public List<Book> searchBooksByAuthor(String authorName) throws BooksDbException {
+        return record("searchBooksByAuthor", () -> delegate.searchBooksByAuthor(authorName));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByGenre(String genre) throws BooksDbException {
+        return record("searchBooksByGenre", () -> delegate.searchBooksByGenre(genre));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByRating(int rating) throws BooksDbException {
+        return record("searchBooksByRating", () -> delegate.searchBooksByRating(rating));
+    }
+
+    @Override
+    public List<Book> searchBooksByRating(int minRating, int maxRating, String genre, BookSort sort, int limit)
+            throws BooksDbException {
+        return record("searchBooksByRatingRange",
+                () -> delegate.searchBooksByRating(minRating, maxRating, genre, sort, limit));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException {
+        return record("searchBooksByISBN", () -> delegate.searchBooksByISBN(ISBN));
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(Date from, Date to) throws BooksDbException {
+        return record("searchBooksByPublished", () -> delegate.searchBooksByPublished(from, to));
+    }
+
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        return record("searchBooksFuzzy", () -> delegate.searchBooksFuzzy(query));
+    }
+
+    @Override
+    public FacetResult searchBooksByFacets(FacetSelection selection, int limit) throws BooksDbException {
+        return record("searchBooksByFacets", () -> delegate.searchBooksByFacets(selection, limit));
+    }
+
+    @Override
+    public void deleteBook(int bookID) throws BooksDbException {
+        record("deleteBook", () -> {
+            delegate.deleteBook(bookID);
+            return null;
+        });
+    }
+
+    @Override
+    public void addBook(Book book) throws BooksDbException {
+        record("addBook", () -> {
+            delegate.addBook(book);
+            return null;
+        });
+    }
+
+    @Override
+    public List<Book> importBooks(List<Book> books) throws BooksDbException {
+        return record("importBooks", () -> delegate.importBooks(books));
+    }
+
+    @Override
+    public void addAuthor(Author author) throws BooksDbException {
+        record("addAuthor", () -> {
+            delegate.addAuthor(author);
+            return null;
+        });
+    }
+
+    @Override
+    public void addAuthorToBook(Author author, Book book) throws BooksDbException {
+        record("addAuthorToBook", () -> {
+            delegate.addAuthorToBook(author, book);
+            return null;
+        });
+    }
+
+    @Override
+    public Book updateBook(Book book, BookChanges changes) throws BooksDbException {
+        return record("updateBook", () -> delegate.updateBook(book, changes));
+    }
+
+    @Override
+    public int updateBooks(List<Book> books, BookChanges changes) throws BooksDbException {
+        return record("updateBooks", () -> delegate.updateBooks(books, changes));
+    }
+
+    @Override
+    public Author updateAuthor(Author author, AuthorChanges changes) throws BooksDbException {
+        return record("updateAuthor", () -> delegate.updateAuthor(author, changes));
+    }
+
+    @Override
+    public List<Author> getAuthorsForBook(int bookID) throws BooksDbException {
+        return record("getAuthorsForBook", () -> delegate.getAuthorsForBook(bookID));
+    }
+
+    @Override
+    public List<Author> getAllAuthors() throws BooksDbException {
+        return record("getAllAuthors", delegate::getAllAuthors);
+    }
+
+    @Override
+    public int nextBookId() throws BooksDbException {
+        return record("nextBookId", delegate::nextBookId);
+    }
+
+    @Override
+    public int nextAuthorId() throws BooksDbException {
+        return record("nextAuthorId", delegate::nextAuthorId);
+    }
+
+    private static <T> T record(String operation, DbCall<T> call) throws BooksDbException {
+        BooksDbCallEvent event = new BooksDbCallEvent();
+        if (!event.isEnabled()) {
+            return call.call();
+        }
+        long roundTrips = RoundTripCounter.current();
+        T result = null;
+        boolean failed = true;
+        event.begin();
+        try {
+            result = call.call();
+            failed = false;
+            return result;
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation;
+                event.rows = rows(result);
+                event.roundTrips = RoundTripCounter.current() - roundTrips;
+                event.failed = failed;
+                event.commit();
+            }
+        }
+    }
+
+    private static int rows(Object result) {
+        if (result instanceof Collection) {
+            return ((Collection<?>) result).size();
+        }
+        return result instanceof FacetResult ? ((FacetResult) result).getBooks().size() : 0;
+    }
+}
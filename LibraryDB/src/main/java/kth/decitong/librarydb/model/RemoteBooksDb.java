@@ -0,0 +1,245 @@
+package kth.decitong.librarydb.model;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A {@link BooksDbInterface} that forwards every call as JSON over HTTP to a headless
+ * server (see {@code kth.decitong.librarydb.server.BooksDbServer}), which owns the
+ * database connection pool. Errors reported by the server are thrown as
+ * {@link BooksDbException}s with the server's message. A list the server cut off at its
+ * item limit is returned as far as it was sent, and logged.
+ */
+public class RemoteBooksDb implements BooksDbInterface {
+    private static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final System.Logger LOGGER = System.getLogger(RemoteBooksDb.class.getName());
+
+    private final String baseUrl;
+    private final HttpClient client;
+
+    /**
+     * @param baseUrl the server address, for example "http://localhost:8080"
+     */
+    public RemoteBooksDb(String baseUrl) {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.client = HttpClient.newBuilder()
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+    }
+
+    /**
+     * Checks that the server is reachable and serves the given database.
+     * @param database name of the database the server must serve
+     */
+    @Override
+    public void connect(String database) throws BooksDbException {
+        Document response = call("ping", new Document());
+        String served = response.getString("database");
+        if (!database.equals(served)) {
+            throw new BooksDbException("Server serves database " + served + ", not " + database);
+        }
+    }
+
+    /**
+     * Nothing to release: the connection pool belongs to the server.
+     */
+    @Override
+    public void disconnect() throws BooksDbException {
+    }
+
+    /**
+     * The server warms itself up when it starts; this only opens the HTTP connection.
+     */
+    @Override
+    public void warmUp() throws BooksDbException {
+        call("ping", new Document());
+    }
+
+    @Override
+    public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+        return books(call("searchBooksByTitle", new Document("query", title)));
+    }
+
+    @Override
+    public List<Book> searchBooksByAuthor(String authorName) throws BooksDbException {
+        return books(call("searchBooksByAuthor", new Document("query", authorName)));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByGenre(String genre) throws BooksDbException {
+        return books(call("searchBooksByGenre", new Document("query", genre)));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByRating(int rating) throws BooksDbException {
+        return books(call("searchBooksByRating", new Document("rating", rating)));
+    }
+
+    @Override
+    public List<Book> searchBooksByRating(int minRating, int maxRating, String genre, BookSort sort, int limit)
+            throws BooksDbException {
+        return books(call("searchBooksByRatingRange", new Document("minRating", minRating)
+                .append("maxRating", maxRating)
+                .append("genre", genre)
+                .append("sort", sort.name())
+                .append("limit", limit)));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException {
+        return books(call("searchBooksByISBN", new Document("query", ISBN)));
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(Date from, Date to) throws BooksDbException {
+        return books(call("searchBooksByPublished", new Document("from", from).append("to", to)));
+    }
+
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        return books(call("searchBooksFuzzy", new Document("query", query)));
+    }
+
+    @Override
+    public FacetResult searchBooksByFacets(FacetSelection selection, int limit) throws BooksDbException {
+        return BookDocuments.toFacetResult(call("searchBooksByFacets",
+                new Document("selection", BookDocuments.fromFacetSelection(selection)).append("limit", limit)));
+    }
+
+    @Override
+    public void deleteBook(int bookID) throws BooksDbException {
+        call("deleteBook", new Document("bookId", bookID));
+    }
+
+    @Override
+    public void addBook(Book book) throws BooksDbException {
+        call("addBook", new Document("book", BookDocuments.fromBook(book)));
+    }
+
+    @Override
+    public List<Book> importBooks(List<Book> books) throws BooksDbException {
+        List<Document> docs = new ArrayList<>(books.size());
+        for (Book book : books) {
+            docs.add(BookDocuments.fromBook(book));
+        }
+        return books(call("importBooks", new Document("books", docs)));
+    }
+
+    @Override
+    public void addAuthor(Author author) throws BooksDbException {
+        call("addAuthor", new Document("author", BookDocuments.fromAuthor(author)));
+    }
+
+    @Override
+    public void addAuthorToBook(Author author, Book book) throws BooksDbException {
+        if (book == null || author == null) {
+            throw new IllegalArgumentException("Book and Author cannot be null");
+        }
+        call("addAuthorToBook", new Document("author", BookDocuments.fromAuthor(author))
+                .append("book", BookDocuments.fromBook(book)));
+    }
+
+    @Override
+    public Book updateBook(Book book, BookChanges changes) throws BooksDbException {
+        return BookDocuments.toBook(call("updateBook", new Document("book", BookDocuments.fromBook(book))
+                .append("changes", BookDocuments.fromBookChanges(changes))));
+    }
+
+    @Override
+    public int updateBooks(List<Book> books, BookChanges changes) throws BooksDbException {
+        List<Document> docs = new ArrayList<>(books.size());
+        for (Book book : books) {
+            docs.add(BookDocuments.fromBook(book));
+        }
+        return call("updateBooks", new Document("books", docs)
+                .append("changes", BookDocuments.fromBookChanges(changes))).getInteger("value");
+    }
+
+    @Override
+    public Author updateAuthor(Author author, AuthorChanges changes) throws BooksDbException {
+        return BookDocuments.toAuthor(call("updateAuthor", new Document("author", BookDocuments.fromAuthor(author))
+                .append("changes", BookDocuments.fromAuthorChanges(changes))));
+    }
+
+    @Override
+    public List<Author> getAuthorsForBook(int bookID) throws BooksDbException {
+        return authors(call("getAuthorsForBook", new Document("bookId", bookID)));
+    }
+
+    @Override
+    public List<Author> getAllAuthors() throws BooksDbException {
+        return authors(call("getAllAuthors", new Document()));
+    }
+
+    @Override
+    public int nextBookId() throws BooksDbException {
+        return call("nextBookId", new Document()).getInteger("value");
+    }
+
+    @Override
+    public int nextAuthorId() throws BooksDbException {
+        return call("nextAuthorId", new Document()).getInteger("value");
+    }
+
+    private Document call(String operation, Document params) throws BooksDbException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/" + operation))
+                .timeout(REQUEST_TIMEOUT)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(params.toJson(JSON)))
+                .build();
+        RoundTripCounter.increment();
+        try {
+            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            Document body = Document.parse(response.body());
+            if (response.statusCode() != 200) {
+                throw new BooksDbException(body.getString("error"));
+            }
+            return body;
+        } catch (JsonParseException e) {
+            throw new BooksDbException("Invalid response from server " + baseUrl + ": " + e.getMessage(), e);
+        } catch (IOException e) {
+            throw new BooksDbException("Error calling server " + baseUrl + ": " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BooksDbException("Interrupted while calling server " + baseUrl, e);
+        }
+    }
+
+    private static ArrayList<Book> books(Document response) {
+        warnIfTruncated(response);
+        ArrayList<Book> books = new ArrayList<>();
+        for (Document doc : response.getList("items", Document.class)) {
+            books.add(BookDocuments.toBook(doc));
+        }
+        return books;
+    }
+
+    private static List<Author> authors(Document response) {
+        warnIfTruncated(response);
+        List<Author> authors = new ArrayList<>();
+        for (Document doc : response.getList("items", Document.class)) {
+            authors.add(BookDocuments.toAuthor(doc));
+        }
+        return authors;
+    }
+
+    private static void warnIfTruncated(Document response) {
+        if (response.getBoolean("truncated", false)) {
+            LOGGER.log(System.Logger.Level.WARNING, "The server cut a list response off at "
+                    + response.getList("items", Document.class).size() + " items");
+        }
+    }
+}
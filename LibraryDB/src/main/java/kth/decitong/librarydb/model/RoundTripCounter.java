@@ -0,0 +1,53 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the database round trips made by each thread. Registered as a MongoDB command
+ * listener, which the driver calls on the thread that sends the command; the remote data
+ * layer counts its HTTP calls the same way. Reading the count before and after a call
+ * gives the round trips the call made on its own thread and in the tasks it handed to a
+ * pool through {@link #countedAsCaller} and waited for. Round trips of background work
+ * that no call waits for, such as snapshot and index rebuilds, backfills and write-behind
+ * flushes, are counted on their own threads only.
+ */
+public final class RoundTripCounter implements CommandListener {
+    private static final ThreadLocal<AtomicLong> COUNT = ThreadLocal.withInitial(AtomicLong::new);
+
+    @Override
+    public void commandStarted(CommandStartedEvent event) {
+        increment();
+    }
+
+    static void increment() {
+        COUNT.get().incrementAndGet();
+    }
+
+    /**
+     * @return the round trips made by the current thread so far
+     */
+    public static long current() {
+        return COUNT.get().get();
+    }
+
+    /**
+     * @return the task, counting the round trips it makes, on whatever thread runs it, as
+     *         round trips of the current thread
+     */
+    static <T> Callable<T> countedAsCaller(Callable<T> task) {
+        AtomicLong caller = COUNT.get();
+        return () -> {
+            AtomicLong own = COUNT.get();
+            COUNT.set(caller);
+            try {
+                return task.call();
+            } finally {
+                COUNT.set(own);
+            }
+        };
+    }
+}
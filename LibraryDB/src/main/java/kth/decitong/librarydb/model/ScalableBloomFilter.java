@@ -0,0 +1,152 @@
+package kth.decitong.librarydb.model;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter that grows with the number of keys while keeping the overall false
+ * positive rate bounded. It is a series of plain Bloom filters: when the newest one holds
+ * its capacity, another one with twice the capacity and a tighter false positive rate is
+ * added, so the sum of the rates stays below the rate asked for. A key might be present if
+ * any filter in the series says so.
+ * <p>
+ * Queries never block; adds are serialized. Keys cannot be removed, so a removed key
+ * still reads as possibly present.
+ */
+public final class ScalableBloomFilter {
+    private static final int GROWTH = 2;
+    private static final double TIGHTENING = 0.85;
+
+    private volatile Stage[] stages;
+
+    private static final class Stage {
+        final long capacity;
+        final double falsePositiveRate;
+        final int hashes;
+        final long bitCount;
+        final AtomicLongArray bits;
+        long count;
+
+        Stage(long capacity, double falsePositiveRate) {
+            this.capacity = capacity;
+            this.falsePositiveRate = falsePositiveRate;
+            double optimalBits = -capacity * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+            this.bitCount = Math.max(64, (long) Math.ceil(optimalBits));
+            this.hashes = Math.max(1, (int) Math.round(optimalBits / capacity * Math.log(2)));
+            this.bits = new AtomicLongArray((int) ((bitCount + 63) / 64));
+        }
+
+        void add(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+                long mask = 1L << bit;
+                int word = (int) (bit >>> 6);
+                long current = bits.get(word);
+                while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                    current = bits.get(word);
+                }
+            }
+            count++;
+        }
+
+        boolean mightContain(long hash) {
+            int h1 = (int) hash;
+            int h2 = (int) (hash >>> 32);
+            for (int i = 0; i < hashes; i++) {
+                long bit = Integer.toUnsignedLong(h1 + i * h2) % bitCount;
+                if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * @param initialCapacity keys the first filter holds before another one is added
+     * @param falsePositiveRate the highest false positive rate of the whole series
+     */
+    public ScalableBloomFilter(long initialCapacity, double falsePositiveRate) {
+        if (initialCapacity < 1 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid capacity or false positive rate");
+        }
+        // the rates form a geometric series that sums to falsePositiveRate
+        stages = new Stage[] {new Stage(initialCapacity, falsePositiveRate * (1 - TIGHTENING))};
+    }
+
+    public void add(String key) {
+        add(hash(key));
+    }
+
+    public void add(int key) {
+        add(mix(key));
+    }
+
+    public boolean mightContain(String key) {
+        return mightContain(hash(key));
+    }
+
+    public boolean mightContain(int key) {
+        return mightContain(mix(key));
+    }
+
+    /**
+     * @return the approximate memory used by the bits, in bytes
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (Stage stage : stages) {
+            bytes += stage.bits.length() * 8L;
+        }
+        return bytes;
+    }
+
+    private synchronized void add(long hash) {
+        Stage[] current = stages;
+        Stage last = current[current.length - 1];
+        if (last.mightContain(hash)) {
+            return;
+        }
+        if (last.count >= last.capacity) {
+            Stage next = new Stage(last.capacity * GROWTH, last.falsePositiveRate * TIGHTENING);
+            Stage[] grown = new Stage[current.length + 1];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[current.length] = next;
+            last = next;
+            // the new stage is published before its first bit is set; a query that misses
+            // the key until add returns is no different from one that ran before add
+            stages = grown;
+        }
+        last.add(hash);
+    }
+
+    private boolean mightContain(long hash) {
+        Stage[] current = stages;
+        for (int i = current.length - 1; i >= 0; i--) {
+            if (current[i].mightContain(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long hash(String key) {
+        // FNV-1a, then a finalizer so that both halves of the hash are well mixed
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb3a3ca7d9a6bL;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,156 @@
+package kth.decitong.librarydb.model;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * What the compact book schema saves on a catalogue: a random sample of the books encoded
+ * in both layouts, field by field, next to the storage statistics of the collection. The
+ * data size and the working set, the documents plus the indexes, are projected from the
+ * sample to the whole collection.
+ * <p>
+ * The projection counts BSON bytes as the server holds them in its cache; on disk the
+ * documents are compressed, which already removes part of the repeated field names.
+ * Index sizes are taken as measured: index keys hold values, not field names, so only the
+ * indexes on genre and publication date shrink, a little, which shows when the report is
+ * made again after the migration.
+ */
+public final class SchemaSizeReport {
+    /** The length and the terminating byte of a BSON document. */
+    private static final int EMPTY_DOCUMENT_BYTES = 5;
+    private static final DocumentCodec CODEC = new DocumentCodec();
+
+    private final BookSchema.Phase phase;
+    private final long books;
+    private final long dataBytes;
+    private final long storageBytes;
+    private final long indexBytes;
+    private final Map<String, Long> indexSizes = new LinkedHashMap<>();
+    private final int sampledBooks;
+    private final long[] sampleBytes = new long[BookSchema.values().length];
+    private final Map<String, long[]> fieldBytes = new LinkedHashMap<>();
+
+    /**
+     * @param phase the phase of the migration
+     * @param collStats the output of the collStats command for 'books'
+     * @param sample the books to measure, in either layout
+     */
+    SchemaSizeReport(BookSchema.Phase phase, Document collStats, List<Document> sample) {
+        this.phase = phase;
+        this.books = number(collStats, "count");
+        this.dataBytes = number(collStats, "size");
+        this.storageBytes = number(collStats, "storageSize");
+        this.indexBytes = number(collStats, "totalIndexSize");
+        Document sizes = collStats.get("indexSizes", Document.class);
+        if (sizes != null) {
+            for (String index : sizes.keySet()) {
+                indexSizes.put(index, number(sizes, index));
+            }
+        }
+        this.sampledBooks = sample.size();
+        for (String field : BookSchema.fieldNames()) {
+            fieldBytes.put(field, new long[BookSchema.values().length]);
+        }
+        for (Document bookDoc : sample) {
+            for (BookSchema schema : BookSchema.values()) {
+                Document converted = schema.convert(bookDoc);
+                Document whole = new Document("_id", bookDoc.get("_id")).append("bookId", bookDoc.get("bookId"));
+                whole.putAll(converted);
+                sampleBytes[schema.ordinal()] += bsonBytes(whole);
+                for (Map.Entry<String, long[]> field : fieldBytes.entrySet()) {
+                    String key = schema.key(field.getKey());
+                    if (converted.containsKey(key)) {
+                        field.getValue()[schema.ordinal()] +=
+                                bsonBytes(new Document(key, converted.get(key))) - EMPTY_DOCUMENT_BYTES;
+                    }
+                }
+            }
+        }
+    }
+
+    public BookSchema.Phase getPhase() {
+        return phase;
+    }
+
+    public long getBooks() {
+        return books;
+    }
+
+    public int getSampledBooks() {
+        return sampledBooks;
+    }
+
+    /**
+     * @return the average size of a sampled book in the layout, in bytes
+     */
+    public double getAverageBytes(BookSchema schema) {
+        return average(sampleBytes[schema.ordinal()]);
+    }
+
+    /**
+     * @return the size all books would have in the layout, projected from the sample
+     */
+    public long getProjectedDataBytes(BookSchema schema) {
+        return Math.round(getAverageBytes(schema) * books);
+    }
+
+    /**
+     * @return the projected data size in the layout plus the current size of the indexes
+     */
+    public long getProjectedWorkingSetBytes(BookSchema schema) {
+        return getProjectedDataBytes(schema) + indexBytes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "Book schema phase: %s%n", phase));
+        report.append(String.format(Locale.ROOT, "Books: %d; data %s, on disk %s, indexes %s%n",
+                books, mib(dataBytes), mib(storageBytes), mib(indexBytes)));
+        report.append(String.format(Locale.ROOT, "Average BSON bytes per book in a sample of %d:%n", sampledBooks));
+        report.append(String.format(Locale.ROOT, "  %-18s %8s %8s%n", "field", "V1", "V2"));
+        for (Map.Entry<String, long[]> field : fieldBytes.entrySet()) {
+            report.append(String.format(Locale.ROOT, "  %-18s %8.1f %8.1f%n", field.getKey(),
+                    average(field.getValue()[BookSchema.V1.ordinal()]),
+                    average(field.getValue()[BookSchema.V2.ordinal()])));
+        }
+        double v1 = getAverageBytes(BookSchema.V1);
+        double v2 = getAverageBytes(BookSchema.V2);
+        report.append(String.format(Locale.ROOT, "  %-18s %8.1f %8.1f  (%+.1f%%)%n", "whole book", v1, v2,
+                v1 == 0 ? 0 : 100 * (v2 - v1) / v1));
+        long dataV1 = getProjectedDataBytes(BookSchema.V1);
+        long dataV2 = getProjectedDataBytes(BookSchema.V2);
+        report.append(String.format(Locale.ROOT, "Projected data: V1 %s, V2 %s, saving %s%n",
+                mib(dataV1), mib(dataV2), mib(dataV1 - dataV2)));
+        report.append(String.format(Locale.ROOT, "Projected working set (data + indexes): V1 %s, V2 %s%n",
+                mib(getProjectedWorkingSetBytes(BookSchema.V1)), mib(getProjectedWorkingSetBytes(BookSchema.V2))));
+        report.append(String.format(Locale.ROOT, "Indexes:%n"));
+        for (Map.Entry<String, Long> index : indexSizes.entrySet()) {
+            report.append(String.format(Locale.ROOT, "  %-40s %s%n", index.getKey(), mib(index.getValue())));
+        }
+        return report.toString();
+    }
+
+    private double average(long totalBytes) {
+        return sampledBooks == 0 ? 0 : (double) totalBytes / sampledBooks;
+    }
+
+    private static int bsonBytes(Document doc) {
+        return new RawBsonDocument(doc, CODEC).getByteBuffer().remaining();
+    }
+
+    private static long number(Document doc, String key) {
+        Number value = doc.get(key, Number.class);
+        return value == null ? 0 : value.longValue();
+    }
+
+    private static String mib(long bytes) {
+        return String.format(Locale.ROOT, "%.1f MiB", bytes / (1024.0 * 1024.0));
+    }
+}
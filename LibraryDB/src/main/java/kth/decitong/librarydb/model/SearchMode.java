@@ -1,5 +1,5 @@
 package kth.decitong.librarydb.model;
 
 public enum SearchMode {
-    Title, ISBN, Author, Genre, Rating;
+    Title, ISBN, Author, Genre, Rating, Published, Fuzzy, All;
 }
@@ -0,0 +1,380 @@
+package kth.decitong.librarydb.model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Spreads the catalogue over several backends, the shards, which can be
+ * {@link BooksDbImpl} instances on different MongoDB servers or in-process
+ * {@link InMemoryBooksDb} instances.
+ * <p>
+ * Each book lives on the one shard picked by a hash of its bookId, so adding, deleting
+ * and reading the authors of a book go to that shard alone. Authors are replicated: every
+ * shard gets every author, so a book's shard can resolve its authors without asking the
+ * others, and author listings are read from the first shard. Searches by title, author,
+ * genre, rating, ISBN, date and facets run on all shards in parallel and their results
+ * are merged in the order a single backend would return them. Ids are allocated by the
+ * first shard only, so they are unique across shards.
+ * <p>
+ * A search fails if any shard fails, rather than returning part of the catalogue. A
+ * write to a replicated author that fails on some shards leaves it on the others; adding
+ * it again with the same id repairs them.
+ */
+public class ShardedBooksDb implements BooksDbInterface {
+    private final List<BooksDbInterface> shards;
+    private final ThreadPoolExecutor executor;
+
+    private interface ShardCall<T> {
+        T call(BooksDbInterface shard) throws BooksDbException;
+    }
+
+    /**
+     * @param shards the backends; the routing depends on their number and order, so a
+     *               catalogue must always be opened with the same shards in the same order
+     */
+    public ShardedBooksDb(List<? extends BooksDbInterface> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = List.copyOf(shards);
+        // enough threads for a few concurrent scatter-gathers; idle threads time out
+        int threads = 4 * this.shards.size();
+        this.executor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), task -> {
+                    Thread thread = new Thread(task, "shard-scatter");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Connects every shard to a database of the given name. If any shard fails, the shards
+     * already connected are disconnected again.
+     */
+    @Override
+    public void connect(String database) throws BooksDbException {
+        List<BooksDbException> failures = scatter(shard -> {
+            try {
+                shard.connect(database);
+                return null;
+            } catch (BooksDbException e) {
+                return e;
+            }
+        });
+        for (int i = 0; i < failures.size(); i++) {
+            if (failures.get(i) != null) {
+                for (int j = 0; j < shards.size(); j++) {
+                    if (failures.get(j) == null) {
+                        try {
+                            shards.get(j).disconnect();
+                        } catch (BooksDbException e) {
+                            // the connect failure is the one to report
+                        }
+                    }
+                }
+                throw new BooksDbException("Error connecting to shard " + i + ": " + failures.get(i).getMessage(),
+                        failures.get(i));
+            }
+        }
+    }
+
+    /**
+     * Disconnects every shard, even if some of them fail.
+     */
+    @Override
+    public void disconnect() throws BooksDbException {
+        BooksDbException failure = null;
+        for (BooksDbInterface shard : shards) {
+            try {
+                shard.disconnect();
+            } catch (BooksDbException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public void warmUp() throws BooksDbException {
+        scatter(shard -> {
+            shard.warmUp();
+            return null;
+        });
+    }
+
+    @Override
+    public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+        return concat(scatter(shard -> shard.searchBooksByTitle(title)), BooksDbImpl.MAX_SEARCH_RESULTS);
+    }
+
+    @Override
+    public List<Book> searchBooksByAuthor(String authorName) throws BooksDbException {
+        return concat(scatter(shard -> shard.searchBooksByAuthor(authorName)), BooksDbImpl.MAX_SEARCH_RESULTS);
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByGenre(String genre) throws BooksDbException {
+        return concat(scatter(shard -> shard.searchBooksByGenre(genre)), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByRating(int rating) throws BooksDbException {
+        return concat(scatter(shard -> shard.searchBooksByRating(rating)), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Each shard returns its own first books in the requested order, so the first books of
+     * all shards are among them.
+     */
+    @Override
+    public List<Book> searchBooksByRating(int minRating, int maxRating, String genre, BookSort sort, int limit)
+            throws BooksDbException {
+        return merge(scatter(shard -> shard.searchBooksByRating(minRating, maxRating, genre, sort, limit)),
+                sort.comparator(), Math.min(limit, BooksDbImpl.MAX_SEARCH_RESULTS));
+    }
+
+    @Override
+    public ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException {
+        return concat(scatter(shard -> shard.searchBooksByISBN(ISBN)), Integer.MAX_VALUE);
+    }
+
+    @Override
+    public List<Book> searchBooksByPublished(Date from, Date to) throws BooksDbException {
+        return merge(scatter(shard -> shard.searchBooksByPublished(from, to)),
+                Comparator.comparing(Book::getPublished).thenComparingInt(Book::getBookId),
+                BooksDbImpl.MAX_SEARCH_RESULTS);
+    }
+
+    /**
+     * The candidates of all shards are ranked again together, since the scores of
+     * different shards are not comparable.
+     */
+    @Override
+    public List<Book> searchBooksFuzzy(String query) throws BooksDbException {
+        List<Book> candidates = concat(scatter(shard -> shard.searchBooksFuzzy(query)), Integer.MAX_VALUE);
+        return new FuzzyIndex(0, candidates).search(query, BooksDbImpl.MAX_FUZZY_RESULTS);
+    }
+
+    /**
+     * Sums the totals and facet counts of the shards, which hold disjoint books, and merges
+     * their first pages.
+     */
+    @Override
+    public FacetResult searchBooksByFacets(FacetSelection selection, int limit) throws BooksDbException {
+        List<FacetResult> results = scatter(shard -> shard.searchBooksByFacets(selection, limit));
+        int total = 0;
+        List<List<Book>> pages = new ArrayList<>();
+        Map<Genre, Integer> genreCounts = new EnumMap<>(Genre.class);
+        SortedMap<Integer, Integer> ratingCounts = new TreeMap<>();
+        SortedMap<Integer, Integer> yearCounts = new TreeMap<>();
+        for (FacetResult result : results) {
+            total += result.getTotal();
+            pages.add(result.getBooks());
+            result.getGenreCounts().forEach((genre, count) -> genreCounts.merge(genre, count, Integer::sum));
+            result.getRatingCounts().forEach((rating, count) -> ratingCounts.merge(rating, count, Integer::sum));
+            result.getYearCounts().forEach((year, count) -> yearCounts.merge(year, count, Integer::sum));
+        }
+        return new FacetResult(total, merge(pages, FacetIndex.pageOrder(), limit),
+                genreCounts, ratingCounts, yearCounts);
+    }
+
+    @Override
+    public void deleteBook(int bookID) throws BooksDbException {
+        shardFor(bookID).deleteBook(bookID);
+    }
+
+    @Override
+    public void addBook(Book book) throws BooksDbException {
+        shardFor(book.getBookId()).addBook(book);
+    }
+
+    /**
+     * Skips the books that repeat an earlier book of the batch, then splits the others by
+     * shard and imports each shard's books in one batch, in parallel. A book is checked
+     * against the books of its own shard only, so an ISBN already stored on another
+     * shard is not found.
+     */
+    @Override
+    public List<Book> importBooks(List<Book> books) throws BooksDbException {
+        Set<String> isbns = new HashSet<>();
+        Set<Integer> bookIds = new HashSet<>();
+        Set<Book> skipped = Collections.newSetFromMap(new IdentityHashMap<>());
+        Map<BooksDbInterface, List<Book>> booksByShard = new IdentityHashMap<>();
+        for (Book book : books) {
+            boolean newIsbn = isbns.add(book.getIsbn());
+            boolean newId = bookIds.add(book.getBookId());
+            if (newIsbn && newId) {
+                booksByShard.computeIfAbsent(shardFor(book.getBookId()), shard -> new ArrayList<>()).add(book);
+            } else {
+                skipped.add(book);
+            }
+        }
+        for (List<Book> shardSkipped : scatter(shard -> shard.importBooks(
+                booksByShard.getOrDefault(shard, Collections.emptyList())))) {
+            skipped.addAll(shardSkipped);
+        }
+        List<Book> result = new ArrayList<>();
+        for (Book book : books) {
+            if (skipped.contains(book)) {
+                result.add(book);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the author to every shard.
+     */
+    @Override
+    public void addAuthor(Author author) throws BooksDbException {
+        scatter(shard -> {
+            shard.addAuthor(author);
+            return null;
+        });
+    }
+
+    @Override
+    public void addAuthorToBook(Author author, Book book) throws BooksDbException {
+        shardFor(book.getBookId()).addAuthorToBook(author, book);
+    }
+
+    @Override
+    public Book updateBook(Book book, BookChanges changes) throws BooksDbException {
+        return shardFor(book.getBookId()).updateBook(book, changes);
+    }
+
+    /**
+     * Splits the books by shard and updates each shard's books in one batch, in parallel.
+     */
+    @Override
+    public int updateBooks(List<Book> books, BookChanges changes) throws BooksDbException {
+        Map<BooksDbInterface, List<Book>> booksByShard = new IdentityHashMap<>();
+        for (Book book : books) {
+            booksByShard.computeIfAbsent(shardFor(book.getBookId()), shard -> new ArrayList<>()).add(book);
+        }
+        int updated = 0;
+        for (int count : scatter(shard -> shard.updateBooks(
+                booksByShard.getOrDefault(shard, Collections.emptyList()), changes))) {
+            updated += count;
+        }
+        return updated;
+    }
+
+    /**
+     * Updates the author on every shard. The copies of an author receive the same
+     * updates, so their versions stay equal and the first shard's copy is returned.
+     */
+    @Override
+    public Author updateAuthor(Author author, AuthorChanges changes) throws BooksDbException {
+        return scatter(shard -> shard.updateAuthor(author, changes)).get(0);
+    }
+
+    @Override
+    public List<Author> getAuthorsForBook(int bookID) throws BooksDbException {
+        return shardFor(bookID).getAuthorsForBook(bookID);
+    }
+
+    @Override
+    public List<Author> getAllAuthors() throws BooksDbException {
+        return shards.get(0).getAllAuthors();
+    }
+
+    @Override
+    public int nextBookId() throws BooksDbException {
+        return shards.get(0).nextBookId();
+    }
+
+    @Override
+    public int nextAuthorId() throws BooksDbException {
+        return shards.get(0).nextAuthorId();
+    }
+
+    /**
+     * @return the shard that holds the book
+     */
+    public BooksDbInterface shardFor(int bookId) {
+        // spread consecutive ids, then map to a shard without modulo bias on the sign
+        int hash = bookId * 0x9E3779B9;
+        return shards.get(Math.floorMod(hash ^ (hash >>> 16), shards.size()));
+    }
+
+    /**
+     * Runs the call on every shard in parallel and waits for all of them.
+     * @return the results in shard order
+     * @throws BooksDbException the first failure, in shard order
+     */
+    private <T> List<T> scatter(ShardCall<T> call) throws BooksDbException {
+        if (shards.size() == 1) {
+            return Collections.singletonList(call.call(shards.get(0)));
+        }
+        List<Future<T>> futures = new ArrayList<>(shards.size());
+        for (BooksDbInterface shard : shards) {
+            futures.add(executor.submit(RoundTripCounter.countedAsCaller(() -> call.call(shard))));
+        }
+        List<T> results = new ArrayList<>(shards.size());
+        Throwable failure = null;
+        int failedShard = -1;
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results.add(futures.get(i).get());
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                    failedShard = i;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(future -> future.cancel(true));
+                throw new BooksDbException("Interrupted while waiting for the shards", e);
+            }
+        }
+        if (failure instanceof BooksDbException) {
+            throw new BooksDbException("Shard " + failedShard + ": " + failure.getMessage(), (BooksDbException) failure);
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        return results;
+    }
+
+    private static ArrayList<Book> concat(List<? extends List<Book>> results, int limit) {
+        ArrayList<Book> books = new ArrayList<>();
+        for (List<Book> result : results) {
+            for (Book book : result) {
+                if (books.size() == limit) {
+                    return books;
+                }
+                books.add(book);
+            }
+        }
+        return books;
+    }
+
+    /**
+     * Merges results that are each sorted in the given order into the first limit books.
+     */
+    private static List<Book> merge(List<? extends List<Book>> results, Comparator<Book> order, int limit) {
+        List<Book> books = concat(results, Integer.MAX_VALUE);
+        books.sort(order);
+        return books.size() > limit ? new ArrayList<>(books.subList(0, Math.max(0, limit))) : books;
+    }
+}
@@ -0,0 +1,124 @@
+package kth.decitong.librarydb.model;
+
+import java.text.Normalizer;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A title or author name query as typed by the user. A query is a regular expression that
+ * matches case-insensitively anywhere in the value, except for the common case of plain
+ * text, or text quoted as by {@link Pattern#quote}, optionally anchored with a leading
+ * '^', which is a literal: it matches the values whose folded form (see {@link #fold})
+ * contains, or with '^' starts with, the folded text.
+ * <p>
+ * The folded form is what {@link BooksDbImpl} stores in indexed shadow fields next to the
+ * title and the author names, so a literal prefix is answered with a range scan of an
+ * index and other literal text with a scan of the index keys, where a case-insensitive
+ * regular expression has to read every document.
+ */
+public final class TextQuery {
+    /** Text without regular expression metacharacters, optionally anchored. */
+    private static final Pattern LITERAL = Pattern.compile("\\^?[^\\\\.*+?()\\[\\]{}|^$]+");
+    /** Any text in a single {@code \Q..\E} quote, optionally anchored. */
+    private static final Pattern QUOTED = Pattern.compile("(\\^?)\\\\Q((?:(?!\\\\E).)+)\\\\E", Pattern.DOTALL);
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    /** Sorts after every string that starts with the same prefix, in binary order. */
+    private static final String MAX_CODE_POINT = new String(Character.toChars(Character.MAX_CODE_POINT));
+
+    private final Pattern pattern;
+    private final String literal;
+    private final boolean prefix;
+
+    private TextQuery(Pattern pattern, String literal, boolean prefix) {
+        this.pattern = pattern;
+        this.literal = literal;
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param query the text typed by the user
+     * @throws java.util.regex.PatternSyntaxException if the query is neither plain text nor
+     *         a valid regular expression
+     */
+    public static TextQuery parse(String query) {
+        Pattern pattern = Pattern.compile(query, Pattern.CASE_INSENSITIVE);
+        Matcher quoted = QUOTED.matcher(query);
+        if (quoted.matches()) {
+            return new TextQuery(pattern, fold(quoted.group(2)), !quoted.group(1).isEmpty());
+        }
+        if (!LITERAL.matcher(query).matches()) {
+            return new TextQuery(pattern, null, false);
+        }
+        boolean prefix = query.startsWith("^");
+        return new TextQuery(pattern, fold(prefix ? query.substring(1) : query), prefix);
+    }
+
+    /**
+     * @return the value in lower case with accents and other combining marks removed, or
+     *         null for null
+     */
+    public static String fold(String value) {
+        if (value == null) {
+            return null;
+        }
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * @return true if the query is plain text, matched against folded values
+     */
+    public boolean isLiteral() {
+        return literal != null;
+    }
+
+    /**
+     * @return true if the query is plain text that values must start with
+     */
+    public boolean isPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return the folded text of a literal query, or null for a regular expression
+     */
+    public String getLiteral() {
+        return literal;
+    }
+
+    /**
+     * @return the query as a case-insensitive regular expression on the unfolded value
+     */
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return the least string greater than every string that starts with the literal, in
+     *         binary (code point) order
+     */
+    String prefixEnd() {
+        return literal + MAX_CODE_POINT;
+    }
+
+    public boolean matches(String value) {
+        return matches(value, literal == null || value == null ? null : fold(value));
+    }
+
+    /**
+     * Matches a value whose folded form is already known, so that values matched by many
+     * queries are folded only once.
+     * @param value the value
+     * @param folded the folded value, see {@link #fold}
+     */
+    boolean matches(String value, String folded) {
+        if (value == null) {
+            return false;
+        }
+        if (literal == null) {
+            return pattern.matcher(value).find();
+        }
+        return prefix ? folded.startsWith(literal) : folded.contains(literal);
+    }
+}
@@ -0,0 +1,279 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalesces single-document inserts and deletes on one collection into unordered
+ * bulkWrite batches (group commit). A batch is flushed when it reaches the maximum size or
+ * when its oldest write has waited for the maximum delay, whichever comes first.
+ * <p>
+ * Every write is identified by an integer key field (for example "bookId"). Each submitted
+ * write gets its own future, which completes when its batch has been committed, or
+ * completes exceptionally with a {@link BooksDbException} describing why that particular
+ * write failed, also when the batch failed with an unexpected exception, which leaves the
+ * flusher running for the next batch. Two writes with the same key are never put in the same batch, so they are
+ * applied in submission order.
+ * <p>
+ * {@link #close()} stops accepting writes and returns only after everything already
+ * submitted has been flushed.
+ */
+public class WriteBehindQueue implements AutoCloseable {
+    private static final long IDLE_POLL_MILLIS = 100;
+    private static final System.Logger LOGGER = System.getLogger(WriteBehindQueue.class.getName());
+
+    private final MongoCollection<Document> collection;
+    private final String keyField;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final Runnable onCommit;
+    private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<>();
+    private final Thread flusher;
+    private volatile boolean closed;
+
+    private static final class PendingWrite {
+        private final int key;
+        private final Document document;
+        private final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private PendingWrite(int key, Document document) {
+            this.key = key;
+            this.document = document;
+        }
+
+        private boolean isDelete() {
+            return document == null;
+        }
+    }
+
+    /**
+     * Creates the queue and starts its flusher thread.
+     * @param collection the collection to write to
+     * @param keyField the integer field identifying a document
+     * @param maxBatchSize flush when this many writes are pending
+     * @param maxDelayMillis flush when the oldest pending write has waited this long
+     * @param onCommit called on the flusher thread after each batch that wrote something
+     */
+    public WriteBehindQueue(MongoCollection<Document> collection, String keyField,
+                            int maxBatchSize, long maxDelayMillis, Runnable onCommit) {
+        if (maxBatchSize < 1 || maxDelayMillis < 0) {
+            throw new IllegalArgumentException("Invalid batch size or delay");
+        }
+        this.collection = collection;
+        this.keyField = keyField;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.onCommit = onCommit;
+        this.flusher = new Thread(this::flushLoop, "write-behind-" + keyField);
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues an insert of the given document.
+     * @param document the document, which must contain the key field
+     * @return a future completed when the insert has been committed
+     */
+    public CompletableFuture<Void> insert(Document document) {
+        return submit(new PendingWrite(document.getInteger(keyField), document));
+    }
+
+    /**
+     * Queues a delete of the document with the given key. The delete fails if no such
+     * document exists when its batch is flushed.
+     * @param key the key of the document
+     * @return a future completed when the delete has been committed
+     */
+    public CompletableFuture<Void> delete(int key) {
+        return submit(new PendingWrite(key, null));
+    }
+
+    private synchronized CompletableFuture<Void> submit(PendingWrite write) {
+        if (closed) {
+            write.result.completeExceptionally(new BooksDbException("Write queue is closed"));
+        } else {
+            pending.add(write);
+        }
+        return write.result;
+    }
+
+    /**
+     * Stops accepting writes and waits until all pending writes have been flushed.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        boolean interrupted = false;
+        while (flusher.isAlive()) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void flushLoop() {
+        PendingWrite carried = null;
+        while (true) {
+            PendingWrite first = carried != null ? carried : poll(IDLE_POLL_MILLIS);
+            carried = null;
+            if (first == null) {
+                if (closed && pending.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+
+            List<PendingWrite> batch = new ArrayList<>();
+            Set<Integer> keys = new HashSet<>();
+            batch.add(first);
+            keys.add(first.key);
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+            while (batch.size() < maxBatchSize) {
+                long remaining = closed ? 0 : TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                PendingWrite next = remaining > 0 ? poll(remaining) : pending.poll();
+                if (next == null) {
+                    break;
+                }
+                if (!keys.add(next.key)) {
+                    carried = next;
+                    break;
+                }
+                batch.add(next);
+            }
+            try {
+                flush(batch);
+            } catch (RuntimeException e) {
+                // a bug or a driver failure that is not a MongoException fails this batch only
+                LOGGER.log(System.Logger.Level.WARNING, "Write-behind batch failed", e);
+                for (PendingWrite write : batch) {
+                    write.result.completeExceptionally(new BooksDbException(e.toString(), e));
+                }
+            }
+        }
+    }
+
+    private PendingWrite poll(long timeoutMillis) {
+        try {
+            return pending.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // only close() stops the flusher, after the queue has been drained
+            return null;
+        }
+    }
+
+    private void flush(List<PendingWrite> batch) {
+        Set<Integer> existingKeys = findExistingKeysForDeletes(batch);
+        if (existingKeys == null) {
+            return;
+        }
+
+        List<PendingWrite> submitted = new ArrayList<>();
+        List<WriteModel<Document>> models = new ArrayList<>();
+        for (PendingWrite write : batch) {
+            if (write.isDelete()) {
+                if (!existingKeys.contains(write.key)) {
+                    write.result.completeExceptionally(
+                            new BooksDbException("No document found with " + keyField + ": " + write.key));
+                    continue;
+                }
+                models.add(new DeleteOneModel<>(Filters.eq(keyField, write.key)));
+            } else {
+                models.add(new InsertOneModel<>(write.document));
+            }
+            submitted.add(write);
+        }
+        if (models.isEmpty()) {
+            return;
+        }
+
+        Map<Integer, BulkWriteError> errorsByIndex = new HashMap<>();
+        try {
+            collection.bulkWrite(models, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            for (BulkWriteError error : e.getWriteErrors()) {
+                errorsByIndex.put(error.getIndex(), error);
+            }
+        } catch (MongoException e) {
+            for (PendingWrite write : submitted) {
+                write.result.completeExceptionally(new BooksDbException(e.getMessage(), e));
+            }
+            return;
+        }
+
+        if (errorsByIndex.size() < submitted.size()) {
+            notifyCommit();
+        }
+        for (int i = 0; i < submitted.size(); i++) {
+            BulkWriteError error = errorsByIndex.get(i);
+            if (error == null) {
+                submitted.get(i).result.complete(null);
+            } else {
+                submitted.get(i).result.completeExceptionally(new BooksDbException(error.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Looks up, in one query, which of the keys deleted in the batch exist. Returns null
+     * (after failing the whole batch) if the lookup itself failed.
+     */
+    private Set<Integer> findExistingKeysForDeletes(List<PendingWrite> batch) {
+        List<Integer> deleteKeys = new ArrayList<>();
+        for (PendingWrite write : batch) {
+            if (write.isDelete()) {
+                deleteKeys.add(write.key);
+            }
+        }
+        Set<Integer> existingKeys = new HashSet<>();
+        if (deleteKeys.isEmpty()) {
+            return existingKeys;
+        }
+        try {
+            for (Document doc : collection.find(Filters.in(keyField, deleteKeys))
+                    .projection(Projections.include(keyField))) {
+                existingKeys.add(doc.getInteger(keyField));
+            }
+            return existingKeys;
+        } catch (MongoException e) {
+            for (PendingWrite write : batch) {
+                write.result.completeExceptionally(new BooksDbException(e.getMessage(), e));
+            }
+            return null;
+        }
+    }
+
+    private void notifyCommit() {
+        try {
+            onCommit.run();
+        } catch (RuntimeException e) {
+            LOGGER.log(System.Logger.Level.WARNING, "Commit callback failed", e);
+        }
+    }
+}
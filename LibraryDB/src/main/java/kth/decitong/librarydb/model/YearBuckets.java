@@ -0,0 +1,135 @@
+package kth.decitong.librarydb.model;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Books bucketed by publication year, each bucket sorted by publication date.
+ * A date range scan visits only the buckets of the years in the range, and binary
+ * searches the first and the last of them, so its cost is proportional to the number of
+ * matching books rather than the size of the catalogue. Books without a publication date
+ * are not kept.
+ * <p>
+ * Not thread-safe: callers synchronize adds and removes with scans. Concurrent scans
+ * of buckets that no longer change are safe.
+ */
+public final class YearBuckets {
+    private static final Comparator<Book> BY_PUBLISHED =
+            Comparator.comparing(Book::getPublished).thenComparingInt(Book::getBookId);
+
+    private final Map<Integer, List<Book>> buckets = new HashMap<>();
+    private int firstYear = Integer.MAX_VALUE;
+    private int lastYear = Integer.MIN_VALUE;
+
+    public YearBuckets() {
+    }
+
+    /**
+     * Buckets many books at once, sorting each bucket once instead of inserting one by one.
+     */
+    public YearBuckets(Collection<Book> books) {
+        for (Book book : books) {
+            if (book.getPublished() != null) {
+                int year = yearOf(book.getPublished());
+                buckets.computeIfAbsent(year, y -> new ArrayList<>()).add(book);
+                firstYear = Math.min(firstYear, year);
+                lastYear = Math.max(lastYear, year);
+            }
+        }
+        for (List<Book> bucket : buckets.values()) {
+            bucket.sort(BY_PUBLISHED);
+        }
+    }
+
+    public void add(Book book) {
+        if (book.getPublished() == null) {
+            return;
+        }
+        int year = yearOf(book.getPublished());
+        List<Book> bucket = buckets.computeIfAbsent(year, y -> new ArrayList<>());
+        int position = -(insertionPoint(bucket, book) + 1);
+        if (position >= 0) {
+            bucket.add(position, book);
+        }
+        firstYear = Math.min(firstYear, year);
+        lastYear = Math.max(lastYear, year);
+    }
+
+    public void remove(Book book) {
+        if (book.getPublished() == null) {
+            return;
+        }
+        List<Book> bucket = buckets.get(yearOf(book.getPublished()));
+        if (bucket == null) {
+            return;
+        }
+        int position = insertionPoint(bucket, book);
+        if (position >= 0) {
+            bucket.remove(position);
+        }
+    }
+
+    /**
+     * Adds the books published in [from, to) to the result, oldest first, until it holds
+     * limit books.
+     */
+    public void collect(Date from, Date to, int limit, List<Book> result) {
+        if (!from.before(to)) {
+            return;
+        }
+        int fromYear = Math.max(yearOf(from), firstYear);
+        int toYear = Math.min(yearOf(to), lastYear);
+        for (int year = fromYear; year <= toYear && result.size() < limit; year++) {
+            List<Book> bucket = buckets.get(year);
+            if (bucket == null) {
+                continue;
+            }
+            int start = year == yearOf(from) ? firstAtOrAfter(bucket, from) : 0;
+            int end = year == yearOf(to) ? firstAtOrAfter(bucket, to) : bucket.size();
+            for (int i = start; i < end && result.size() < limit; i++) {
+                result.add(bucket.get(i));
+            }
+        }
+    }
+
+    private static int insertionPoint(List<Book> bucket, Book book) {
+        int low = 0;
+        int high = bucket.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int order = BY_PUBLISHED.compare(bucket.get(middle), book);
+            if (order < 0) {
+                low = middle + 1;
+            } else if (order > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private static int firstAtOrAfter(List<Book> bucket, Date date) {
+        int low = 0;
+        int high = bucket.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bucket.get(middle).getPublished().before(date)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int yearOf(Date date) {
+        return date.toInstant().atZone(ZoneOffset.UTC).getYear();
+    }
+}
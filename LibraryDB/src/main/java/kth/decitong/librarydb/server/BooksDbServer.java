@@ -0,0 +1,451 @@
+package kth.decitong.librarydb.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import kth.decitong.librarydb.model.Author;
+import kth.decitong.librarydb.model.AuthorChanges;
+import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.BookChanges;
+import kth.decitong.librarydb.model.BookDocuments;
+import kth.decitong.librarydb.model.BookSort;
+import kth.decitong.librarydb.model.BooksDbException;
+import kth.decitong.librarydb.model.BooksDbImpl;
+import kth.decitong.librarydb.model.BooksDbInterface;
+import kth.decitong.librarydb.model.FacetSelection;
+import kth.decitong.librarydb.model.Genre;
+import kth.decitong.librarydb.model.GuardedBooksDb;
+import kth.decitong.librarydb.model.RecordingBooksDb;
+import kth.decitong.librarydb.model.TextQuery;
+import org.bson.BsonInvalidOperationException;
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonParseException;
+import org.bson.json.JsonWriterSettings;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Headless server that exposes {@link BooksDbInterface} as a JSON API, so that many
+ * desktop clients share one MongoDB connection pool, one catalogue snapshot and one set
+ * of indexes instead of each opening their own connection.
+ * <p>
+ * Every operation is a POST to {@code /api/<method name>} with the parameters as a JSON
+ * object, for example {@code POST /api/searchBooksByTitle {"query": "hobbit"}}. Results are
+ * returned as {@code {"items": [...]}} for lists, {@code {"value": n}} for ids and
+ * {@code {}} otherwise. A list result is built in full by the data layer and then written
+ * element by element with chunked transfer encoding, up to {@code --max-items} elements,
+ * so the limit bounds the response but not the memory a request uses. Errors are returned as
+ * {@code {"error": "..."}} with status 400 for missing or invalid parameters and 500 for
+ * database errors and unexpected failures, which are logged. Clients use
+ * {@link kth.decitong.librarydb.model.RemoteBooksDb}.
+ * <p>
+ * The server has no authentication, so it listens on the loopback interface unless
+ * {@code --host} names another address; only do that on a trusted network or behind a
+ * proxy that authenticates the clients.
+ * <p>
+ * Usage: {@code BooksDbServer --host=127.0.0.1 --port=8080 --database=db_library --threads=64
+ * --max-items=100000 --embed-authors=false --uri=mongodb://localhost:27017
+ * --read-preference=primary --max-staleness=0 --read-your-writes=false}.
+ * See {@link BooksDbImpl#enableReadRouting} for the read preferences.
+ */
+public class BooksDbServer {
+    private static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+    private static final System.Logger LOGGER = System.getLogger(BooksDbServer.class.getName());
+
+    /** Default upper bound on the number of items in a list response. */
+    public static final int DEFAULT_MAX_ITEMS = 100_000;
+
+    private interface Operation {
+        Object call(Document params) throws BooksDbException, BadRequestException;
+    }
+
+    /** A request that names a known operation but whose parameters are missing or invalid. */
+    private static final class BadRequestException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        BadRequestException(String message) {
+            super(message);
+        }
+    }
+
+    private final Map<String, Operation> operations = new HashMap<>();
+    private final int maxItems;
+
+    /**
+     * @param booksDb the data layer that serves all requests
+     * @param databaseName name of the database, reported to clients when they connect
+     * @param maxItems upper bound on the number of items in a list response
+     */
+    public BooksDbServer(BooksDbInterface booksDb, String databaseName, int maxItems) {
+        this.maxItems = maxItems;
+        operations.put("ping", params -> new Document("database", databaseName));
+        operations.put("searchBooksByTitle", params -> booksDb.searchBooksByTitle(textQuery(params)));
+        operations.put("searchBooksByAuthor", params -> booksDb.searchBooksByAuthor(textQuery(params)));
+        operations.put("searchBooksByGenre", params -> booksDb.searchBooksByGenre(required(params, "query", String.class)));
+        operations.put("searchBooksByRating", params -> booksDb.searchBooksByRating(
+                required(params, "rating", Integer.class)));
+        operations.put("searchBooksByRatingRange", params -> booksDb.searchBooksByRating(
+                required(params, "minRating", Integer.class), required(params, "maxRating", Integer.class),
+                optional(params, "genre", String.class),
+                enumValue(BookSort.class, "sort", required(params, "sort", String.class)),
+                required(params, "limit", Integer.class)));
+        operations.put("searchBooksByISBN", params -> booksDb.searchBooksByISBN(required(params, "query", String.class)));
+        operations.put("searchBooksByPublished", params -> booksDb.searchBooksByPublished(
+                optional(params, "from", Date.class), optional(params, "to", Date.class)));
+        operations.put("searchBooksFuzzy", params -> booksDb.searchBooksFuzzy(required(params, "query", String.class)));
+        operations.put("searchBooksByFacets", params -> BookDocuments.fromFacetResult(booksDb.searchBooksByFacets(
+                facetSelection(required(params, "selection", Document.class)),
+                required(params, "limit", Integer.class))));
+        operations.put("deleteBook", params -> {
+            booksDb.deleteBook(required(params, "bookId", Integer.class));
+            return null;
+        });
+        operations.put("addBook", params -> {
+            booksDb.addBook(book(required(params, "book", Document.class)));
+            return null;
+        });
+        operations.put("importBooks", params -> booksDb.importBooks(books(params)));
+        operations.put("addAuthor", params -> {
+            booksDb.addAuthor(author(required(params, "author", Document.class)));
+            return null;
+        });
+        operations.put("addAuthorToBook", params -> {
+            booksDb.addAuthorToBook(author(required(params, "author", Document.class)),
+                    book(required(params, "book", Document.class)));
+            return null;
+        });
+        operations.put("updateBook", params -> BookDocuments.fromBook(booksDb.updateBook(
+                book(required(params, "book", Document.class)),
+                bookChanges(required(params, "changes", Document.class)))));
+        operations.put("updateBooks", params -> booksDb.updateBooks(books(params),
+                bookChanges(required(params, "changes", Document.class))));
+        operations.put("updateAuthor", params -> BookDocuments.fromAuthor(booksDb.updateAuthor(
+                author(required(params, "author", Document.class)),
+                authorChanges(required(params, "changes", Document.class)))));
+        operations.put("getAuthorsForBook", params -> booksDb.getAuthorsForBook(
+                required(params, "bookId", Integer.class)));
+        operations.put("getAllAuthors", params -> booksDb.getAllAuthors());
+        operations.put("nextBookId", params -> booksDb.nextBookId());
+        operations.put("nextAuthorId", params -> booksDb.nextAuthorId());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        String host = options.getOrDefault("host", InetAddress.getLoopbackAddress().getHostAddress());
+        int port = Integer.parseInt(options.getOrDefault("port", "8080"));
+        int maxItems = Integer.parseInt(options.getOrDefault("max-items", String.valueOf(DEFAULT_MAX_ITEMS)));
+        String database = options.getOrDefault("database", "db_library");
+        int threads = Integer.parseInt(options.getOrDefault("threads", "64"));
+        if (threads < 1) {
+            throw new IllegalArgumentException("--threads must be at least 1 but was " + threads);
+        }
+        boolean embedAuthors = Boolean.parseBoolean(options.getOrDefault("embed-authors", "false"));
+        String uri = options.getOrDefault("uri", BooksDbImpl.DEFAULT_CONNECTION_STRING);
+        String readPreference = options.getOrDefault("read-preference", "primary");
+        long maxStaleness = Long.parseLong(options.getOrDefault("max-staleness", "0"));
+        boolean readYourWrites = Boolean.parseBoolean(options.getOrDefault("read-your-writes", "false"));
+
+        BooksDbImpl mongoDb = new BooksDbImpl(Paths.get(System.getProperty("user.home"), ".librarydb", "server"), uri);
+        mongoDb.enableWriteBehind(100, 5);
+        if (embedAuthors) {
+            mongoDb.enableEmbeddedAuthorSummaries();
+        }
+        mongoDb.enableReadRouting(readPreference, maxStaleness);
+        if (readYourWrites) {
+            mongoDb.enableReadYourWrites();
+        }
+        BooksDbInterface booksDb = new RecordingBooksDb(guard(mongoDb, threads));
+        booksDb.connect(database);
+        booksDb.warmUp();
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(host, port), 0);
+        httpServer.createContext("/api/", new BooksDbServer(booksDb, database, maxItems)::handle);
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        LOGGER.log(System.Logger.Level.INFO, "Serving " + database + " on " + host + ":" + port);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            httpServer.stop(1);
+            executor.shutdown();
+            try {
+                booksDb.disconnect();
+            } catch (BooksDbException e) {
+                LOGGER.log(System.Logger.Level.WARNING, "Error disconnecting from database", e);
+            }
+        }));
+    }
+
+    /**
+     * Guards the data layer of a server with the given number of request threads: half of
+     * them may search at once and a quarter each may read authors or write, but at least
+     * one of each kind, and as many calls as there are threads may wait for a permit.
+     */
+    static GuardedBooksDb guard(BooksDbInterface booksDb, int threads) {
+        return new GuardedBooksDb(booksDb, Math.max(1, threads / 2), Math.max(1, threads / 4),
+                Math.max(1, threads / 4), threads, 2_000, 3, 10_000);
+    }
+
+    void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("POST")) {
+                sendError(exchange, 405, "Use POST");
+                return;
+            }
+            String name = exchange.getRequestURI().getPath().substring("/api/".length());
+            Operation operation = operations.get(name);
+            if (operation == null) {
+                sendError(exchange, 404, "Unknown operation: " + name);
+                return;
+            }
+
+            Document params;
+            try {
+                params = readParams(exchange.getRequestBody());
+            } catch (JsonParseException | BsonInvalidOperationException e) {
+                sendError(exchange, 400, "Malformed request: " + e.getMessage());
+                return;
+            }
+            Object result;
+            try {
+                result = operation.call(params);
+            } catch (BadRequestException e) {
+                sendError(exchange, 400, "Malformed request: " + e.getMessage());
+                return;
+            } catch (BooksDbException e) {
+                sendError(exchange, 500, e.getMessage());
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.log(System.Logger.Level.ERROR, "Operation " + name + " failed", e);
+                sendError(exchange, 500, "Internal server error");
+                return;
+            }
+            sendResult(exchange, result);
+        }
+    }
+
+    private static Document readParams(InputStream body) throws IOException {
+        String json = new String(body.readAllBytes(), StandardCharsets.UTF_8);
+        return json.isBlank() ? new Document() : Document.parse(json);
+    }
+
+    /**
+     * @return the parameter, or null if it is absent or null
+     * @throws BadRequestException if the parameter has another type
+     */
+    private static <T> T optional(Document params, String name, Class<T> type) throws BadRequestException {
+        Object value = params.get(name);
+        if (value == null) {
+            return null;
+        }
+        if (!type.isInstance(value)) {
+            throw new BadRequestException("Parameter " + name + " must be of type " + type.getSimpleName());
+        }
+        return type.cast(value);
+    }
+
+    /**
+     * @throws BadRequestException if the parameter is absent, null or has another type
+     */
+    private static <T> T required(Document params, String name, Class<T> type) throws BadRequestException {
+        T value = optional(params, name, type);
+        if (value == null) {
+            throw new BadRequestException("Missing parameter: " + name);
+        }
+        return value;
+    }
+
+    /**
+     * @throws BadRequestException if the parameter is absent, is not a list or has an
+     *         element of another type
+     */
+    private static <T> List<T> requiredList(Document params, String name, Class<T> type) throws BadRequestException {
+        List<?> values = required(params, name, List.class);
+        List<T> list = new ArrayList<>(values.size());
+        for (Object value : values) {
+            if (!type.isInstance(value)) {
+                throw new BadRequestException("The elements of " + name + " must be of type " + type.getSimpleName());
+            }
+            list.add(type.cast(value));
+        }
+        return list;
+    }
+
+    private static <E extends Enum<E>> E enumValue(Class<E> type, String name, String value)
+            throws BadRequestException {
+        for (E constant : type.getEnumConstants()) {
+            if (constant.name().equals(value)) {
+                return constant;
+            }
+        }
+        throw new BadRequestException("Unknown " + name + ": " + value);
+    }
+
+    /**
+     * @return the 'query' parameter of a title or author search, which must parse as a
+     *         {@link TextQuery}
+     */
+    private static String textQuery(Document params) throws BadRequestException {
+        String query = required(params, "query", String.class);
+        try {
+            TextQuery.parse(query);
+        } catch (PatternSyntaxException e) {
+            throw new BadRequestException("Invalid query: " + e.getDescription());
+        }
+        return query;
+    }
+
+    private static List<Book> books(Document params) throws BadRequestException {
+        List<Book> books = new ArrayList<>();
+        for (Document book : requiredList(params, "books", Document.class)) {
+            books.add(book(book));
+        }
+        return books;
+    }
+
+    /**
+     * Checks the fields of a book document before converting it; the ISBN and rating are
+     * checked by the {@link Book} constructor.
+     */
+    private static Book book(Document doc) throws BadRequestException {
+        required(doc, "bookId", Integer.class);
+        required(doc, "isbn", String.class);
+        optional(doc, "title", String.class);
+        optional(doc, "published", Date.class);
+        required(doc, "rating", Integer.class);
+        enumValue(Genre.class, "genre", required(doc, "genre", String.class));
+        optional(doc, "version", Number.class);
+        if (doc.containsKey("authors")) {
+            for (Document author : requiredList(doc, "authors", Document.class)) {
+                author(author);
+            }
+        }
+        try {
+            return BookDocuments.toBook(doc);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid book: " + e.getMessage());
+        }
+    }
+
+    private static Author author(Document doc) throws BadRequestException {
+        required(doc, "authorID", Integer.class);
+        optional(doc, "firstName", String.class);
+        optional(doc, "lastName", String.class);
+        optional(doc, "birthDate", Date.class);
+        optional(doc, "version", Number.class);
+        return BookDocuments.toAuthor(doc);
+    }
+
+    private static BookChanges bookChanges(Document doc) throws BadRequestException {
+        optional(doc, "title", String.class);
+        optional(doc, "published", Date.class);
+        optional(doc, "rating", Integer.class);
+        String genre = optional(doc, "genre", String.class);
+        if (genre != null) {
+            enumValue(Genre.class, "genre", genre);
+        }
+        try {
+            return BookDocuments.toBookChanges(doc);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid changes: " + e.getMessage());
+        }
+    }
+
+    private static AuthorChanges authorChanges(Document doc) throws BadRequestException {
+        optional(doc, "firstName", String.class);
+        optional(doc, "lastName", String.class);
+        optional(doc, "birthDate", Date.class);
+        return BookDocuments.toAuthorChanges(doc);
+    }
+
+    private static FacetSelection facetSelection(Document doc) throws BadRequestException {
+        for (String genre : requiredList(doc, "genres", String.class)) {
+            enumValue(Genre.class, "genre", genre);
+        }
+        requiredList(doc, "ratings", Integer.class);
+        optional(doc, "fromYear", Integer.class);
+        optional(doc, "toYear", Integer.class);
+        return BookDocuments.toFacetSelection(doc);
+    }
+
+    /**
+     * Writes the result. Lists are serialized one element at a time, so only the list
+     * the data layer returned is held in memory, not its JSON, and at most maxItems
+     * elements are written; a longer list is cut off and marked {@code "truncated": true}.
+     */
+    private void sendResult(HttpExchange exchange, Object result) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        if (result instanceof List) {
+            List<?> items = (List<?>) result;
+            exchange.sendResponseHeaders(200, 0);
+            try (Writer out = new BufferedWriter(
+                    new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8))) {
+                out.write("{\"items\": [");
+                int written = 0;
+                for (Object item : items) {
+                    if (written == maxItems) {
+                        break;
+                    }
+                    if (written > 0) {
+                        out.write(", ");
+                    }
+                    written++;
+                    Document doc = item instanceof Book
+                            ? BookDocuments.fromBook((Book) item)
+                            : BookDocuments.fromAuthor((Author) item);
+                    out.write(doc.toJson(JSON));
+                }
+                out.write(items.size() > maxItems ? "], \"truncated\": true}" : "]}");
+            }
+            if (items.size() > maxItems) {
+                LOGGER.log(System.Logger.Level.WARNING, "Cut a response of " + items.size() + " items off at "
+                        + maxItems);
+            }
+            return;
+        }
+
+        Document doc;
+        if (result instanceof Document) {
+            doc = (Document) result;
+        } else if (result == null) {
+            doc = new Document();
+        } else {
+            doc = new Document("value", result);
+        }
+        send(exchange, 200, doc);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, status, new Document("error", message));
+    }
+
+    private static void send(HttpExchange exchange, int status, Document doc) throws IOException {
+        byte[] body = doc.toJson(JSON).getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+}
@@ -0,0 +1,69 @@
+package kth.decitong.librarydb.tools;
+
+import kth.decitong.librarydb.model.BooksDbImpl;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the author ids of books stored with the legacy 'authorIDs' field into the
+ * 'authors' field, see {@link BooksDbImpl#migrateAuthorIds}. Safe to run while clients are
+ * using the catalogue; if it is stopped, running it again with the same checkpoint file
+ * continues where it left off.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * AuthorIdMigration --database=db_library --uri=mongodb://localhost:27017
+ *                   --checkpoint=~/.librarydb/author-migration.json --workers=8
+ *                   --batch-size=1000 --max-books-per-second=20000 --embed-authors=false
+ * </pre>
+ * A rate of 0 removes the limit.
+ */
+public class AuthorIdMigration {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String database = options.getOrDefault("database", "db_library");
+        String uri = options.getOrDefault("uri", BooksDbImpl.DEFAULT_CONNECTION_STRING);
+        Path checkpoint = options.containsKey("checkpoint") ? Paths.get(options.get("checkpoint"))
+                : Paths.get(System.getProperty("user.home"), ".librarydb", "author-migration.json");
+        int workers = Integer.parseInt(options.getOrDefault("workers", "8"));
+        int batchSize = Integer.parseInt(options.getOrDefault("batch-size", "1000"));
+        int maxBooksPerSecond = Integer.parseInt(options.getOrDefault("max-books-per-second", "20000"));
+
+        BooksDbImpl booksDb = new BooksDbImpl(Paths.get(System.getProperty("user.home"), ".librarydb"), uri);
+        if (Boolean.parseBoolean(options.getOrDefault("embed-authors", "false"))) {
+            booksDb.enableEmbeddedAuthorSummaries();
+        }
+        booksDb.connect(database);
+        try {
+            long start = System.nanoTime();
+            AtomicLong reportedAt = new AtomicLong(start);
+            long migrated = booksDb.migrateAuthorIds(checkpoint, workers, batchSize, maxBooksPerSecond, books -> {
+                long now = System.nanoTime();
+                long last = reportedAt.get();
+                if (now - last >= 1_000_000_000L && reportedAt.compareAndSet(last, now)) {
+                    System.out.printf("  %d books, %.0f books/s%n", books, books / ((now - start) / 1e9));
+                }
+            });
+            System.out.printf("migrated %d books in %.1f s%n", migrated, (System.nanoTime() - start) / 1e9);
+        } finally {
+            booksDb.disconnect();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,80 @@
+package kth.decitong.librarydb.tools;
+
+import kth.decitong.librarydb.model.BooksDbImpl;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Migrates the books to the compact field layout, see
+ * {@link BooksDbImpl#migrateToCompactSchema}, and prints what it saves before and after.
+ * Safe to run while clients are using the catalogue; if it is stopped, running it again
+ * with the same checkpoint file continues where it left off. Publication dates are stored
+ * as their day in UTC; a time of day in a stored date is truncated.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * BookSchemaMigration --database=db_library --uri=mongodb://localhost:27017
+ *                     --checkpoint=~/.librarydb/schema-migration.json --workers=8
+ *                     --batch-size=1000 --max-books-per-second=20000 --sample=1000
+ *                     --embed-authors=false --report-only=false
+ * </pre>
+ * A rate of 0 removes the limit. With --report-only the size report is printed and
+ * nothing is migrated.
+ */
+public class BookSchemaMigration {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String database = options.getOrDefault("database", "db_library");
+        String uri = options.getOrDefault("uri", BooksDbImpl.DEFAULT_CONNECTION_STRING);
+        Path checkpoint = options.containsKey("checkpoint") ? Paths.get(options.get("checkpoint"))
+                : Paths.get(System.getProperty("user.home"), ".librarydb", "schema-migration.json");
+        int workers = Integer.parseInt(options.getOrDefault("workers", "8"));
+        int batchSize = Integer.parseInt(options.getOrDefault("batch-size", "1000"));
+        int maxBooksPerSecond = Integer.parseInt(options.getOrDefault("max-books-per-second", "20000"));
+        int sample = Integer.parseInt(options.getOrDefault("sample", "1000"));
+        boolean reportOnly = Boolean.parseBoolean(options.getOrDefault("report-only", "false"));
+
+        BooksDbImpl booksDb = new BooksDbImpl(Paths.get(System.getProperty("user.home"), ".librarydb"), uri);
+        if (Boolean.parseBoolean(options.getOrDefault("embed-authors", "false"))) {
+            booksDb.enableEmbeddedAuthorSummaries();
+        }
+        booksDb.connect(database);
+        try {
+            System.out.print(booksDb.reportSchemaSizes(sample));
+            if (reportOnly) {
+                return;
+            }
+            long start = System.nanoTime();
+            AtomicLong reportedAt = new AtomicLong(start);
+            long migrated = booksDb.migrateToCompactSchema(checkpoint, workers, batchSize, maxBooksPerSecond,
+                    books -> {
+                        long now = System.nanoTime();
+                        long last = reportedAt.get();
+                        if (now - last >= 1_000_000_000L && reportedAt.compareAndSet(last, now)) {
+                            System.out.printf("  %d books, %.0f books/s%n", books, books / ((now - start) / 1e9));
+                        }
+                    });
+            System.out.printf("rewrote %d books in %.1f s%n", migrated, (System.nanoTime() - start) / 1e9);
+            System.out.print(booksDb.reportSchemaSizes(sample));
+        } finally {
+            booksDb.disconnect();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return options;
+    }
+}
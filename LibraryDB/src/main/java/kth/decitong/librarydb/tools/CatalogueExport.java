@@ -0,0 +1,70 @@
+package kth.decitong.librarydb.tools;
+
+import kth.decitong.librarydb.model.BookExporter;
+import kth.decitong.librarydb.model.BooksDbImpl;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dumps the catalogue, or one genre of it, to a CSV or JSON Lines file, e.g. for the
+ * nightly dumps handed to partners. Books are streamed from the database to the file, so
+ * memory use does not grow with the catalogue.
+ * <p>
+ * Usage (all options but --out are optional):
+ * <pre>
+ * CatalogueExport --out=books.csv.gz --database=db_library --format=csv|jsonl
+ *                 --gzip=true|false --genre=FANTASY --embed-authors=false
+ * </pre>
+ * The format and compression default to what the file name ends with: ".jsonl" or
+ * ".csv", optionally followed by ".gz".
+ */
+public class CatalogueExport {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String out = options.get("out");
+        if (out == null) {
+            throw new IllegalArgumentException("Missing --out=<file>");
+        }
+        Path file = Paths.get(out);
+        String name = file.getFileName().toString().toLowerCase();
+        boolean gzip = Boolean.parseBoolean(options.getOrDefault("gzip", String.valueOf(name.endsWith(".gz"))));
+        String defaultFormat = name.endsWith(".jsonl") || name.endsWith(".jsonl.gz") ? "jsonl" : "csv";
+        BookExporter.Format format = BookExporter.Format.valueOf(options.getOrDefault("format", defaultFormat).toUpperCase());
+        String database = options.getOrDefault("database", "db_library");
+        String genre = options.get("genre");
+
+        BooksDbImpl booksDb = new BooksDbImpl();
+        if (Boolean.parseBoolean(options.getOrDefault("embed-authors", "false"))) {
+            booksDb.enableEmbeddedAuthorSummaries();
+        }
+        booksDb.connect(database);
+        try {
+            long start = System.nanoTime();
+            long books = booksDb.exportBooks(file, format, gzip, genre, exported ->
+                    System.out.printf("  %d books, %.0f books/s%n", exported,
+                            exported / Math.max(1e-9, (System.nanoTime() - start) / 1e9)));
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("exported %d books to %s in %.1f s (%.1f MB)%n", books, file, seconds,
+                    Files.size(file) / 1e6);
+        } finally {
+            booksDb.disconnect();
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return options;
+    }
+}
@@ -0,0 +1,119 @@
+package kth.decitong.librarydb.tools;
+
+import kth.decitong.librarydb.model.Author;
+import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.Genre;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates a synthetic catalogue for benchmarks.
+ * Names and title words are drawn from fixed vocabularies with Zipfian frequencies, so
+ * some names and words are common and most are rare, as in a real catalogue. Every book
+ * gets a genre (all {@link Genre} values occur), one to three authors drawn by Zipfian
+ * author popularity, a publication date between 1900 and 2023 and a rating skewed
+ * towards the middle. Generation is deterministic for a given seed.
+ */
+public class CatalogueGenerator {
+    private static final String[] FIRST_NAMES = {
+            "Anna", "Johan", "Maria", "Erik", "Karin", "Lars", "Sofia", "Anders", "Emma", "Per",
+            "Elin", "Nils", "Sara", "Olof", "Ida", "Karl", "Linnea", "Gustav", "Maja", "Axel",
+            "John", "Mary", "James", "Patricia", "Robert", "Jennifer", "Michael", "Linda", "David", "Susan",
+            "Ahmed", "Fatima", "Wei", "Yuki", "Carlos", "Lucia", "Ivan", "Olga", "Kwame", "Amara"};
+    private static final String[] LAST_NAMES = {
+            "Andersson", "Johansson", "Karlsson", "Nilsson", "Eriksson", "Larsson", "Olsson", "Persson",
+            "Svensson", "Gustafsson", "Pettersson", "Jonsson", "Smith", "Johnson", "Williams", "Brown",
+            "Jones", "Garcia", "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Wilson",
+            "Anderson", "Taylor", "Thomas", "Moore", "Jackson", "Tolkien", "Lindgren", "Mankell", "Larsen",
+            "Nguyen", "Kim", "Singh", "Chen", "Okafor", "Novak"};
+    private static final String[] ADJECTIVES = {
+            "Dark", "Silent", "Lost", "Hidden", "Last", "Red", "Golden", "Broken", "Secret", "Cold",
+            "Burning", "Endless", "Forgotten", "Wild", "Quiet", "Bright", "Crimson", "Final", "Iron", "Distant"};
+    private static final String[] NOUNS = {
+            "Night", "River", "Star", "House", "Kingdom", "Garden", "Storm", "Shadow", "Heart", "City",
+            "Road", "Island", "Winter", "Empire", "Mirror", "Forest", "Ocean", "Machine", "Letter", "Crown",
+            "Summer", "Door", "Voyage", "Theory", "Mountain", "Signal", "Promise", "Detective", "Planet", "Stranger"};
+
+    private final Random random;
+    private final int authorCount;
+    private final ZipfSampler firstNames = new ZipfSampler(FIRST_NAMES.length, 1.0);
+    private final ZipfSampler lastNames = new ZipfSampler(LAST_NAMES.length, 1.0);
+    private final ZipfSampler adjectives = new ZipfSampler(ADJECTIVES.length, 0.8);
+    private final ZipfSampler nouns = new ZipfSampler(NOUNS.length, 0.8);
+    private final ZipfSampler authorPopularity;
+
+    public CatalogueGenerator(long seed, int authorCount) {
+        this.random = new Random(seed);
+        this.authorCount = authorCount;
+        this.authorPopularity = new ZipfSampler(authorCount, 1.1);
+    }
+
+    public Author generateAuthor(int authorId) {
+        return new Author(authorId, FIRST_NAMES[firstNames.next(random)], LAST_NAMES[lastNames.next(random)],
+                randomDate(1850, 2000));
+    }
+
+    /**
+     * Generates one book with its authors attached. The authors are drawn from the given
+     * list with Zipfian popularity, the first authors in the list being the most popular.
+     * @param bookId the id of the book
+     * @param authors the authors to choose from, as many as given to the constructor
+     * @return the book
+     */
+    public Book generateBook(int bookId, List<Author> authors) {
+        Genre[] genres = Genre.values();
+        Book book = new Book(bookId, isbnFor(bookId), randomTitle(), randomDate(1900, 2023),
+                randomRating(), genres[random.nextInt(genres.length)]);
+        int bookAuthorCount = 1 + (random.nextInt(10) == 0 ? 1 + random.nextInt(2) : 0);
+        for (int i = 0; i < bookAuthorCount; i++) {
+            book.addAuthors(authors.get(authorPopularity.next(random)));
+        }
+        return book;
+    }
+
+    /**
+     * Returns a title word or a last name that searches can use as a query, drawn with
+     * the same skew as the generated data.
+     */
+    public String randomTitleWord() {
+        return random.nextBoolean() ? ADJECTIVES[adjectives.next(random)] : NOUNS[nouns.next(random)];
+    }
+
+    public String randomLastName() {
+        return LAST_NAMES[lastNames.next(random)];
+    }
+
+    public static String isbnFor(int bookId) {
+        return String.format("978%010d", bookId);
+    }
+
+    private String randomTitle() {
+        switch (random.nextInt(4)) {
+            case 0:
+                return "The " + ADJECTIVES[adjectives.next(random)] + " " + NOUNS[nouns.next(random)];
+            case 1:
+                return NOUNS[nouns.next(random)] + " of the " + NOUNS[nouns.next(random)];
+            case 2:
+                return ADJECTIVES[adjectives.next(random)] + " " + NOUNS[nouns.next(random)];
+            default:
+                return "A " + NOUNS[nouns.next(random)] + " in " + NOUNS[nouns.next(random)];
+        }
+    }
+
+    private int randomRating() {
+        double r = random.nextGaussian() + 3;
+        return (int) Math.max(1, Math.min(5, Math.round(r)));
+    }
+
+    private Date randomDate(int fromYear, int toYear) {
+        Calendar calendar = new GregorianCalendar(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(fromYear + random.nextInt(toYear - fromYear + 1), random.nextInt(12), 1 + random.nextInt(28));
+        return calendar.getTime();
+    }
+}
@@ -0,0 +1,329 @@
+package kth.decitong.librarydb.tools;
+
+import kth.decitong.librarydb.model.Author;
+import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.BooksDbException;
+import kth.decitong.librarydb.model.BooksDbImpl;
+import kth.decitong.librarydb.model.BooksDbInterface;
+import kth.decitong.librarydb.model.Genre;
+import kth.decitong.librarydb.model.InMemoryBooksDb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives concurrent searches and writes against one shared data layer instance to check
+ * that it scales and that it has no races.
+ * <p>
+ * The scaling phase runs the mix for a fixed time at 1, 2, 4 ... up to {@code --threads}
+ * worker threads and reports the throughput of each level, with its speedup over one
+ * thread and the efficiency (speedup divided by threads). With the mongo backend the
+ * threads should not exceed the driver's connection pool size (100 by default); up to
+ * there the speedup should be close to the number of threads.
+ * <p>
+ * The churn phase keeps the workers running while two lifecycle threads call connect and
+ * disconnect at random. Calls made while disconnected, and connects or disconnects in the
+ * wrong state, must fail with a {@link BooksDbException}; any other exception from any
+ * thread is a race and makes the harness exit with status 1. The phase ends connected,
+ * and a last search checks the instance still works.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * ConcurrencyStressHarness --backend=memory|mongo --database=stress_library
+ *                          --books=20000 --authors=2000 --threads=16 --seconds=5
+ *                          --churn-seconds=10 --write-percent=10 --seed=42
+ * </pre>
+ */
+public class ConcurrencyStressHarness {
+    private static final int LOAD_THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String backend = options.getOrDefault("backend", "memory");
+        String database = options.getOrDefault("database", "stress_library");
+        int bookCount = Integer.parseInt(options.getOrDefault("books", "20000"));
+        int authorCount = Integer.parseInt(options.getOrDefault("authors", "2000"));
+        int maxThreads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        int seconds = Integer.parseInt(options.getOrDefault("seconds", "5"));
+        int churnSeconds = Integer.parseInt(options.getOrDefault("churn-seconds", "10"));
+        int writePercent = Integer.parseInt(options.getOrDefault("write-percent", "10"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+        BooksDbInterface booksDb;
+        if (backend.equals("mongo")) {
+            booksDb = new BooksDbImpl();
+        } else if (backend.equals("memory")) {
+            booksDb = new InMemoryBooksDb();
+        } else {
+            throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+
+        System.out.printf("backend=%s books=%d authors=%d threads=%d seconds=%d churn-seconds=%d write-percent=%d%n",
+                backend, bookCount, authorCount, maxThreads, seconds, churnSeconds, writePercent);
+        booksDb.connect(database);
+        Workload workload = new Workload(booksDb, seed, writePercent);
+        try {
+            workload.load(authorCount, bookCount);
+
+            double baseline = 0;
+            for (int threads = 1; threads <= maxThreads; threads = nextLevel(threads, maxThreads)) {
+                Result result = workload.run(threads, seconds * 1000L, null);
+                double throughput = result.operations / (seconds * 1.0);
+                if (threads == 1) {
+                    baseline = throughput;
+                }
+                double speedup = baseline > 0 ? throughput / baseline : 0;
+                System.out.printf("threads=%3d %10.0f ops/s  speedup %5.2f  efficiency %4.0f%%  errors %d%n",
+                        threads, throughput, speedup, 100 * speedup / threads, result.errors);
+                workload.failOnRaces();
+            }
+
+            if (churnSeconds > 0) {
+                Result result = workload.run(maxThreads, churnSeconds * 1000L, database);
+                System.out.printf("churn: %d operations, %d rejected, %d connects, %d disconnects%n",
+                        result.operations, result.errors, result.connects, result.disconnects);
+                workload.failOnRaces();
+                booksDb.searchBooksByRating(5);
+                System.out.println("no races");
+            }
+        } finally {
+            booksDb.disconnect();
+        }
+    }
+
+    private static int nextLevel(int threads, int maxThreads) {
+        return threads < maxThreads && threads * 2 > maxThreads ? maxThreads : threads * 2;
+    }
+
+    private static final class Result {
+        long operations;
+        long errors;
+        long connects;
+        long disconnects;
+    }
+
+    private static final class Workload {
+        private final BooksDbInterface booksDb;
+        private final long seed;
+        private final int writePercent;
+        /** Unexpected exceptions from all threads. */
+        private final Queue<RuntimeException> races = new ConcurrentLinkedQueue<>();
+        private List<Author> authors;
+        private final AtomicInteger firstBookId = new AtomicInteger(Integer.MAX_VALUE);
+        private final AtomicInteger highestBookId = new AtomicInteger();
+
+        Workload(BooksDbInterface booksDb, long seed, int writePercent) {
+            this.booksDb = booksDb;
+            this.seed = seed;
+            this.writePercent = writePercent;
+        }
+
+        void load(int authorCount, int bookCount) throws Exception {
+            long start = System.nanoTime();
+            List<Author> loaded = Collections.synchronizedList(new ArrayList<>());
+            ExecutorService pool = Executors.newFixedThreadPool(LOAD_THREADS);
+            try {
+                List<Future<?>> tasks = new ArrayList<>();
+                for (int w = 0; w < LOAD_THREADS; w++) {
+                    int worker = w;
+                    tasks.add(pool.submit(() -> {
+                        CatalogueGenerator generator = new CatalogueGenerator(seed + worker, authorCount);
+                        for (int i = worker; i < authorCount; i += LOAD_THREADS) {
+                            Author author = generator.generateAuthor(booksDb.nextAuthorId());
+                            booksDb.addAuthor(author);
+                            loaded.add(author);
+                        }
+                        return null;
+                    }));
+                }
+                waitFor(tasks);
+                authors = new ArrayList<>(loaded);
+
+                tasks.clear();
+                for (int w = 0; w < LOAD_THREADS; w++) {
+                    int worker = w;
+                    tasks.add(pool.submit(() -> {
+                        CatalogueGenerator generator = new CatalogueGenerator(seed + 1 + worker, authors.size());
+                        for (int i = worker; i < bookCount; i += LOAD_THREADS) {
+                            addBook(generator);
+                        }
+                        return null;
+                    }));
+                }
+                waitFor(tasks);
+            } finally {
+                pool.shutdown();
+            }
+            System.out.printf("loaded %d authors and %d books in %.1f s%n",
+                    authorCount, bookCount, (System.nanoTime() - start) / 1e9);
+        }
+
+        /**
+         * Runs the mix on the given number of threads for the given time. If databaseName
+         * is not null, two more threads connect and disconnect at random meanwhile.
+         */
+        Result run(int threads, long millis, String databaseName) throws Exception {
+            int lifecycleThreads = databaseName == null ? 0 : 2;
+            ExecutorService pool = Executors.newFixedThreadPool(threads + lifecycleThreads);
+            CountDownLatch startSignal = new CountDownLatch(1);
+            AtomicLong operations = new AtomicLong();
+            AtomicLong errors = new AtomicLong();
+            AtomicLong connects = new AtomicLong();
+            AtomicLong disconnects = new AtomicLong();
+            List<Future<?>> tasks = new ArrayList<>();
+            try {
+                for (int w = 0; w < threads; w++) {
+                    int worker = w;
+                    tasks.add(pool.submit(() -> {
+                        Random random = new Random(seed * 31 + worker);
+                        CatalogueGenerator generator = new CatalogueGenerator(seed * 17 + worker, authors.size());
+                        long done = 0;
+                        long failed = 0;
+                        startSignal.await();
+                        long deadline = System.nanoTime() + millis * 1_000_000;
+                        while (System.nanoTime() < deadline) {
+                            try {
+                                execute(random, generator);
+                            } catch (BooksDbException e) {
+                                failed++;
+                            } catch (RuntimeException e) {
+                                races.add(e);
+                            }
+                            done++;
+                        }
+                        operations.addAndGet(done);
+                        errors.addAndGet(failed);
+                        return null;
+                    }));
+                }
+                for (int l = 0; l < lifecycleThreads; l++) {
+                    int lifecycle = l;
+                    tasks.add(pool.submit(() -> {
+                        Random random = new Random(seed * 13 + lifecycle);
+                        startSignal.await();
+                        long deadline = System.nanoTime() + millis * 1_000_000;
+                        while (System.nanoTime() < deadline) {
+                            try {
+                                if (random.nextBoolean()) {
+                                    booksDb.disconnect();
+                                    disconnects.incrementAndGet();
+                                } else {
+                                    booksDb.connect(databaseName);
+                                    connects.incrementAndGet();
+                                }
+                            } catch (BooksDbException e) {
+                                // wrong state for this transition: expected
+                            } catch (RuntimeException e) {
+                                races.add(e);
+                            }
+                            Thread.sleep(random.nextInt(50));
+                        }
+                        return null;
+                    }));
+                }
+                startSignal.countDown();
+                waitFor(tasks);
+            } finally {
+                pool.shutdown();
+            }
+            if (databaseName != null) {
+                try {
+                    booksDb.connect(databaseName);
+                } catch (BooksDbException e) {
+                    // already connected
+                }
+            }
+
+            Result result = new Result();
+            result.operations = operations.get();
+            result.errors = errors.get();
+            result.connects = connects.get();
+            result.disconnects = disconnects.get();
+            return result;
+        }
+
+        void failOnRaces() {
+            if (races.isEmpty()) {
+                return;
+            }
+            System.out.printf("%d unexpected exceptions, first:%n", races.size());
+            races.peek().printStackTrace(System.out);
+            System.exit(1);
+        }
+
+        private void execute(Random random, CatalogueGenerator generator) throws BooksDbException {
+            if (random.nextInt(100) < writePercent) {
+                if (random.nextBoolean()) {
+                    addBook(generator);
+                } else {
+                    booksDb.deleteBook(randomBookId(random));
+                }
+                return;
+            }
+            switch (random.nextInt(5)) {
+                case 0:
+                    booksDb.searchBooksByTitle(generator.randomTitleWord());
+                    break;
+                case 1:
+                    booksDb.searchBooksByAuthor(generator.randomLastName());
+                    break;
+                case 2:
+                    Genre[] genres = Genre.values();
+                    booksDb.searchBooksByGenre(genres[random.nextInt(genres.length)].name());
+                    break;
+                case 3:
+                    booksDb.searchBooksByRating(1 + random.nextInt(5));
+                    break;
+                default:
+                    booksDb.searchBooksByISBN(CatalogueGenerator.isbnFor(randomBookId(random)));
+                    break;
+            }
+        }
+
+        private void addBook(CatalogueGenerator generator) throws BooksDbException {
+            int bookId = booksDb.nextBookId();
+            firstBookId.accumulateAndGet(bookId, Math::min);
+            highestBookId.accumulateAndGet(bookId, Math::max);
+            Book book = generator.generateBook(bookId, authors);
+            booksDb.addBook(book);
+            for (Author author : book.getAuthors()) {
+                booksDb.addAuthorToBook(author, book);
+            }
+        }
+
+        private int randomBookId(Random random) {
+            int first = firstBookId.get() == Integer.MAX_VALUE ? 1 : firstBookId.get();
+            return first + random.nextInt(Math.max(1, highestBookId.get() - first + 1));
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return options;
+    }
+
+    private static void waitFor(List<? extends Future<?>> tasks) throws Exception {
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+    }
+}
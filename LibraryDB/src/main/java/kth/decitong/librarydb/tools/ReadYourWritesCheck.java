@@ -0,0 +1,96 @@
+package kth.decitong.librarydb.tools;
+
+import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.BooksDbException;
+import kth.decitong.librarydb.model.BooksDbImpl;
+import kth.decitong.librarydb.model.Genre;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Checks read/write splitting against a replica set. Each round adds a book and reads it
+ * back at once with a search and with getAuthorsForBook, both routed by the read
+ * preference, and counts the rounds where the new book was not found. With
+ * {@code --read-your-writes=true} there must be no misses and the check exits with status
+ * 1 if there are any. Without it, misses show how far the secondaries lag.
+ * <p>
+ * A local three-member replica set for the check:
+ * <pre>
+ * mongod --replSet rs0 --port 27017 --dbpath /tmp/rs0-0
+ * mongod --replSet rs0 --port 27018 --dbpath /tmp/rs0-1
+ * mongod --replSet rs0 --port 27019 --dbpath /tmp/rs0-2
+ * mongosh --port 27017 --eval 'rs.initiate({_id: "rs0", members: [{_id: 0, host: "localhost:27017"},
+ *     {_id: 1, host: "localhost:27018"}, {_id: 2, host: "localhost:27019"}]})'
+ * </pre>
+ * Usage (all options are optional):
+ * <pre>
+ * ReadYourWritesCheck --uri=mongodb://localhost:27017,localhost:27018,localhost:27019/?replicaSet=rs0
+ *                     --database=ryw_check --read-preference=secondary --max-staleness=0
+ *                     --read-your-writes=true --rounds=1000
+ * </pre>
+ * The books added are deleted again at the end.
+ */
+public class ReadYourWritesCheck {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        String uri = options.getOrDefault("uri",
+                "mongodb://localhost:27017,localhost:27018,localhost:27019/?replicaSet=rs0");
+        String database = options.getOrDefault("database", "ryw_check");
+        String readPreference = options.getOrDefault("read-preference", "secondary");
+        long maxStaleness = Long.parseLong(options.getOrDefault("max-staleness", "0"));
+        boolean readYourWrites = Boolean.parseBoolean(options.getOrDefault("read-your-writes", "true"));
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "1000"));
+
+        BooksDbImpl booksDb = new BooksDbImpl(null, uri);
+        booksDb.enableReadRouting(readPreference, maxStaleness);
+        if (readYourWrites) {
+            booksDb.enableReadYourWrites();
+        }
+        booksDb.connect(database);
+        List<Integer> added = new ArrayList<>();
+        int searchMisses = 0;
+        int lookupMisses = 0;
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < rounds; i++) {
+                int bookId = booksDb.nextBookId();
+                String isbn = CatalogueGenerator.isbnFor(bookId);
+                booksDb.addBook(new Book(bookId, isbn, "Read your writes " + bookId, new Date(), 3, Genre.DRAMA));
+                added.add(bookId);
+                if (booksDb.searchBooksByISBN(isbn).isEmpty()) {
+                    searchMisses++;
+                }
+                try {
+                    booksDb.getAuthorsForBook(bookId);
+                } catch (BooksDbException e) {
+                    lookupMisses++;
+                }
+            }
+        } finally {
+            for (int bookId : added) {
+                booksDb.deleteBook(bookId);
+            }
+            booksDb.disconnect();
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        System.out.printf("readPreference=%s maxStaleness=%d readYourWrites=%b rounds=%d%n",
+                readPreference, maxStaleness, readYourWrites, rounds);
+        System.out.printf("search misses=%d lookup misses=%d, %.2f ms per round%n",
+                searchMisses, lookupMisses, millis / rounds);
+        if (readYourWrites && searchMisses + lookupMisses > 0) {
+            System.exit(1);
+        }
+    }
+}
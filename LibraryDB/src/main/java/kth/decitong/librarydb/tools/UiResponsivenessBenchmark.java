@@ -0,0 +1,227 @@
+package kth.decitong.librarydb.tools;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.TableView;
+import javafx.stage.Stage;
+import kth.decitong.librarydb.model.Author;
+import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.InMemoryBooksDb;
+import kth.decitong.librarydb.view.BooksPane;
+import kth.decitong.librarydb.view.FxStallWatchdog;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Measures how responsive the books table stays with large results. The benchmark shows
+ * the application's {@link BooksPane} in an 800x600 window, puts a generated result of
+ * 100k books into the table, scrolls through it one step per frame and replaces the
+ * result with a reordered copy, the way a second search does. The time between frames is
+ * recorded in each phase, and an {@link FxStallWatchdog} reports the stalls of the FX
+ * thread; the frame that spans a load includes the displayBooks call and the layout and
+ * rendering that follow it.
+ * <p>
+ * The run fails, with exit status 1, if a frame of the load or replace phase takes longer
+ * than the load budget or if the 99th percentile frame of the scroll phase exceeds the
+ * frame budget. The default frame budget is two frames at 60 Hz.
+ * <p>
+ * With {@code --headless=true} the benchmark runs without a display on the Monocle
+ * platform with software rendering, e.g. on a build server. Monocle is not part of
+ * JavaFX; the 'headless' Maven profile adds it to the class path and runs the benchmark
+ * headless in the verify phase ({@code mvn -Pheadless verify}), failing the build when it
+ * fails. Monocle is built against one JavaFX release, so that profile also switches
+ * JavaFX to 17.0.10, the release openjfx-monocle 17.0.10 belongs to.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * UiResponsivenessBenchmark --books=100000 --authors=10000 --frames=300 --seed=42
+ *                           --load-budget-ms=250 --frame-budget-ms=34 --stall-ms=50
+ *                           --headless=true
+ * </pre>
+ */
+public class UiResponsivenessBenchmark {
+    private static final int WARMUP_FRAMES = 60;
+
+    /**
+     * Records the time between frames into the recorder of the current phase and runs the
+     * phase's action once per frame.
+     */
+    private static final class FrameRecorder extends AnimationTimer {
+        private long lastFrame;
+        private int frame;
+        private LatencyRecorder recorder;
+        private IntConsumer action;
+        private CountDownLatch done;
+
+        @Override
+        public void handle(long now) {
+            long previous = lastFrame;
+            lastFrame = now;
+            // between phases the frames are not recorded
+            if (done == null || done.getCount() == 0) {
+                return;
+            }
+            if (recorder != null && previous != 0) {
+                recorder.record(now - previous);
+            }
+            if (action != null) {
+                action.accept(frame);
+            }
+            frame++;
+            done.countDown();
+        }
+
+        /** Starts a phase; call on the FX thread. */
+        private void phase(LatencyRecorder recorder, IntConsumer action, CountDownLatch done) {
+            this.recorder = recorder;
+            this.action = action;
+            this.done = done;
+            this.frame = 0;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        int bookCount = Integer.parseInt(options.getOrDefault("books", "100000"));
+        int authorCount = Integer.parseInt(options.getOrDefault("authors", "10000"));
+        int frames = Integer.parseInt(options.getOrDefault("frames", "300"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        long loadBudgetMillis = Long.parseLong(options.getOrDefault("load-budget-ms", "250"));
+        long frameBudgetMillis = Long.parseLong(options.getOrDefault("frame-budget-ms", "34"));
+        long stallMillis = Long.parseLong(options.getOrDefault("stall-ms", "50"));
+        if (Boolean.parseBoolean(options.getOrDefault("headless", "false"))) {
+            System.setProperty("glass.platform", "Monocle");
+            System.setProperty("monocle.platform", "Headless");
+            System.setProperty("prism.order", "sw");
+        }
+
+        CatalogueGenerator generator = new CatalogueGenerator(seed, authorCount);
+        List<Author> authors = new ArrayList<>(authorCount);
+        for (int i = 1; i <= authorCount; i++) {
+            authors.add(generator.generateAuthor(i));
+        }
+        List<Book> books = new ArrayList<>(bookCount);
+        for (int i = 1; i <= bookCount; i++) {
+            books.add(generator.generateBook(i, authors));
+        }
+        List<Book> reordered = new ArrayList<>(books);
+        Collections.shuffle(reordered, new Random(seed));
+
+        CountDownLatch started = new CountDownLatch(1);
+        Platform.startup(started::countDown);
+        started.await();
+        Platform.setImplicitExit(false);
+
+        FrameRecorder frameRecorder = new FrameRecorder();
+        BooksPane[] pane = new BooksPane[1];
+        Stage[] stage = new Stage[1];
+        onFxThread(() -> {
+            pane[0] = new BooksPane(new InMemoryBooksDb());
+            stage[0] = new Stage();
+            stage[0].setScene(new Scene(pane[0], 800, 600));
+            stage[0].show();
+            frameRecorder.start();
+        });
+        FxStallWatchdog watchdog = FxStallWatchdog.start(stallMillis);
+
+        LatencyRecorder load = new LatencyRecorder();
+        LatencyRecorder scroll = new LatencyRecorder();
+        LatencyRecorder replace = new LatencyRecorder();
+        long[] displayNanos = new long[2];
+        try {
+            runPhase(frameRecorder, null, WARMUP_FRAMES, null);
+            runPhase(frameRecorder, load, frames, frame -> {
+                if (frame == 0) {
+                    displayNanos[0] = timeDisplay(pane[0], books);
+                }
+            });
+            @SuppressWarnings("unchecked")
+            TableView<Book> table = (TableView<Book>) pane[0].lookup(".table-view");
+            int step = Math.max(1, bookCount / frames);
+            runPhase(frameRecorder, scroll, frames, frame -> table.scrollTo(frame * step % bookCount));
+            runPhase(frameRecorder, replace, frames, frame -> {
+                if (frame == 0) {
+                    displayNanos[1] = timeDisplay(pane[0], reordered);
+                }
+            });
+        } finally {
+            onFxThread(() -> {
+                frameRecorder.stop();
+                stage[0].close();
+            });
+            watchdog.close();
+            Platform.exit();
+        }
+
+        System.out.printf("books=%d frames per phase=%d headless=%s%n", bookCount, frames,
+                options.getOrDefault("headless", "false"));
+        System.out.printf("displayBooks: load %.1f ms, replace %.1f ms%n", displayNanos[0] / 1e6, displayNanos[1] / 1e6);
+        System.out.println("frame time, load:    " + load.summary());
+        System.out.println("frame time, scroll:  " + scroll.summary());
+        System.out.println("frame time, replace: " + replace.summary());
+        System.out.print(watchdog.report());
+
+        List<String> failures = new ArrayList<>();
+        long loadBudget = TimeUnit.MILLISECONDS.toNanos(loadBudgetMillis);
+        if (load.percentileNanos(100) > loadBudget) {
+            failures.add("a frame of the load took longer than " + loadBudgetMillis + " ms");
+        }
+        if (replace.percentileNanos(100) > loadBudget) {
+            failures.add("a frame of the replace took longer than " + loadBudgetMillis + " ms");
+        }
+        if (scroll.percentileNanos(99) > TimeUnit.MILLISECONDS.toNanos(frameBudgetMillis)) {
+            failures.add("the 99th percentile scroll frame took longer than " + frameBudgetMillis + " ms");
+        }
+        for (String failure : failures) {
+            System.out.println("FAILED: " + failure);
+        }
+        if (!failures.isEmpty()) {
+            System.exit(1);
+        }
+    }
+
+    private static long timeDisplay(BooksPane pane, List<Book> books) {
+        long start = System.nanoTime();
+        pane.displayBooks(books);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs the action once per frame for the given number of frames, recording the time
+     * between frames, and waits until they have passed.
+     */
+    private static void runPhase(FrameRecorder frameRecorder, LatencyRecorder recorder, int frames,
+                                 IntConsumer action) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(frames);
+        onFxThread(() -> frameRecorder.phase(recorder, action, done));
+        done.await();
+    }
+
+    private static void onFxThread(Runnable task) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        Platform.runLater(() -> {
+            try {
+                task.run();
+            } finally {
+                done.countDown();
+            }
+        });
+        done.await();
+    }
+}
@@ -0,0 +1,336 @@
+package kth.decitong.librarydb.tools;
+
+import kth.decitong.librarydb.model.Author;
+import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.BooksDbException;
+import kth.decitong.librarydb.model.BooksDbImpl;
+import kth.decitong.librarydb.model.BooksDbInterface;
+import kth.decitong.librarydb.model.Genre;
+import kth.decitong.librarydb.model.InMemoryBooksDb;
+import kth.decitong.librarydb.model.ShardedBooksDb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads a synthetic catalogue through the data layer and then replays a mix of searches
+ * and writes from concurrent workers, reporting throughput and latency percentiles per
+ * operation. Runs against a local mongod or against the in-process {@link InMemoryBooksDb}.
+ * <p>
+ * Usage (all options are optional):
+ * <pre>
+ * WorkloadHarness --backend=memory|mongo --database=bench_library --shards=1
+ *                 --uris="mongodb://localhost:27017 mongodb://localhost:27018"
+ *                 --read-preference=primary --max-staleness=0 --read-your-writes=false
+ *                 --books=100000 --authors=10000 --workers=8 --operations=100000
+ *                 --mix=title=25,author=20,genre=10,rating=10,isbn=25,add=5,delete=5
+ *                 --seed=42 --skip-load=false --write-behind=0 --embed-authors=false
+ *                 --duplicate-filters=false
+ * </pre>
+ * {@code --write-behind=N} enables the write-behind queue of {@link BooksDbImpl} with
+ * batches of N writes, and {@code --embed-authors=true} embeds author summaries in book
+ * documents and {@code --duplicate-filters=true} checks imported books against the Bloom
+ * filters of {@link BooksDbImpl#enableDuplicateFilters} (mongo backend only). Books are
+ * loaded in import batches. {@code --skip-load=true} reuses the catalogue
+ * already in the database. {@code --shards=N} spreads the catalogue over N in-process
+ * backends (memory backend) and {@code --uris} over one mongod per connection string,
+ * separated by whitespace or commas (mongo backend), both through a {@link ShardedBooksDb}. The read options route the
+ * searches of the mongo backend to replica set members, see
+ * {@link BooksDbImpl#enableReadRouting}. Ids for loaded and added books and authors come from the data
+ * layer's id allocator, so concurrent workers never collide.
+ */
+public class WorkloadHarness {
+    private enum Operation { TITLE, AUTHOR, GENRE, RATING, ISBN, ADD, DELETE }
+
+    private static final int IMPORT_BATCH_SIZE = 500;
+    private static final String DEFAULT_MIX = "title=25,author=20,genre=10,rating=10,isbn=25,add=5,delete=5";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String backend = options.getOrDefault("backend", "memory");
+        String database = options.getOrDefault("database", "bench_library");
+        int bookCount = Integer.parseInt(options.getOrDefault("books", "100000"));
+        int authorCount = Integer.parseInt(options.getOrDefault("authors", "10000"));
+        int workers = Integer.parseInt(options.getOrDefault("workers", "8"));
+        int operations = Integer.parseInt(options.getOrDefault("operations", "100000"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "42"));
+        boolean skipLoad = Boolean.parseBoolean(options.getOrDefault("skip-load", "false"));
+        int writeBehind = Integer.parseInt(options.getOrDefault("write-behind", "0"));
+        boolean embedAuthors = Boolean.parseBoolean(options.getOrDefault("embed-authors", "false"));
+        boolean duplicateFilters = Boolean.parseBoolean(options.getOrDefault("duplicate-filters", "false"));
+        Map<Operation, Integer> mix = parseMix(options.getOrDefault("mix", DEFAULT_MIX));
+        int shardCount = Integer.parseInt(options.getOrDefault("shards", "1"));
+        List<String> uris = BooksDbImpl.splitConnectionStrings(
+                options.getOrDefault("uris", BooksDbImpl.DEFAULT_CONNECTION_STRING));
+        String readPreference = options.getOrDefault("read-preference", "primary");
+        long maxStaleness = Long.parseLong(options.getOrDefault("max-staleness", "0"));
+        boolean readYourWrites = Boolean.parseBoolean(options.getOrDefault("read-your-writes", "false"));
+
+        List<BooksDbInterface> shards = new ArrayList<>();
+        if (backend.equals("mongo")) {
+            for (String uri : uris) {
+                BooksDbImpl mongoDb = new BooksDbImpl(null, uri);
+                mongoDb.enableReadRouting(readPreference, maxStaleness);
+                if (readYourWrites) {
+                    mongoDb.enableReadYourWrites();
+                }
+                if (writeBehind > 0) {
+                    mongoDb.enableWriteBehind(writeBehind, 5);
+                }
+                if (embedAuthors) {
+                    mongoDb.enableEmbeddedAuthorSummaries();
+                }
+                if (duplicateFilters) {
+                    mongoDb.enableDuplicateFilters();
+                }
+                shards.add(mongoDb);
+            }
+        } else if (backend.equals("memory")) {
+            for (int i = 0; i < shardCount; i++) {
+                shards.add(new InMemoryBooksDb());
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown backend: " + backend);
+        }
+        BooksDbInterface booksDb = shards.size() == 1 ? shards.get(0) : new ShardedBooksDb(shards);
+
+        System.out.printf("backend=%s shards=%d books=%d authors=%d workers=%d operations=%d mix=%s%n",
+                backend, shards.size(), bookCount, authorCount, workers, operations, mix);
+        booksDb.connect(database);
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            List<Author> authors;
+            int firstBookId;
+            if (skipLoad) {
+                authors = booksDb.getAllAuthors();
+                firstBookId = 1;
+            } else {
+                authors = loadAuthors(booksDb, pool, workers, seed, authorCount);
+                firstBookId = loadBooks(booksDb, pool, workers, seed, authors, bookCount);
+            }
+            run(booksDb, pool, workers, seed, authors, firstBookId, operations, mix);
+        } finally {
+            pool.shutdown();
+            booksDb.disconnect();
+        }
+    }
+
+    private static List<Author> loadAuthors(BooksDbInterface booksDb, ExecutorService pool, int workers,
+                                            long seed, int authorCount) throws Exception {
+        long start = System.nanoTime();
+        List<Author> authors = Collections.synchronizedList(new ArrayList<>());
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            tasks.add(pool.submit(() -> {
+                CatalogueGenerator generator = new CatalogueGenerator(seed + worker, authorCount);
+                for (int i = worker; i < authorCount; i += workers) {
+                    Author author = generator.generateAuthor(booksDb.nextAuthorId());
+                    booksDb.addAuthor(author);
+                    authors.add(author);
+                }
+                return null;
+            }));
+        }
+        waitFor(tasks);
+        System.out.printf("loaded %d authors in %.1f s%n", authors.size(), (System.nanoTime() - start) / 1e9);
+        return new ArrayList<>(authors);
+    }
+
+    /**
+     * Loads the books with ids from the data layer's allocator, in import batches of
+     * {@link #IMPORT_BATCH_SIZE} books with their authors, and returns the lowest id that
+     * was handed out.
+     */
+    private static int loadBooks(BooksDbInterface booksDb, ExecutorService pool, int workers, long seed,
+                                 List<Author> authors, int bookCount) throws Exception {
+        long start = System.nanoTime();
+        AtomicLong loaded = new AtomicLong();
+        AtomicInteger lowestBookId = new AtomicInteger(Integer.MAX_VALUE);
+        long reportEvery = Math.max(1, bookCount / 10);
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            tasks.add(pool.submit(() -> {
+                CatalogueGenerator generator = new CatalogueGenerator(seed + 1 + worker, authors.size());
+                List<Book> batch = new ArrayList<>(IMPORT_BATCH_SIZE);
+                for (int i = worker; i < bookCount; i += workers) {
+                    int bookId = booksDb.nextBookId();
+                    lowestBookId.accumulateAndGet(bookId, Math::min);
+                    batch.add(generator.generateBook(bookId, authors));
+                    if (batch.size() == IMPORT_BATCH_SIZE || i + workers >= bookCount) {
+                        List<Book> skipped = booksDb.importBooks(batch);
+                        if (!skipped.isEmpty()) {
+                            System.out.printf("  skipped %d books already in the catalogue%n", skipped.size());
+                        }
+                        long before = loaded.getAndAdd(batch.size());
+                        if ((before + batch.size()) / reportEvery > before / reportEvery) {
+                            System.out.printf("  %d books%n", before + batch.size());
+                        }
+                        batch.clear();
+                    }
+                }
+                return null;
+            }));
+        }
+        waitFor(tasks);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("loaded %d books in %.1f s (%.0f books/s)%n", bookCount, seconds, bookCount / seconds);
+        return lowestBookId.get() == Integer.MAX_VALUE ? 1 : lowestBookId.get();
+    }
+
+    /**
+     * Replays the operation mix. Searches by ISBN and deletes pick ids between the lowest
+     * loaded id and the highest id allocated so far, so some of them miss.
+     */
+    private static void run(BooksDbInterface booksDb, ExecutorService pool, int workers, long seed,
+                            List<Author> authors, int firstBookId, int operations,
+                            Map<Operation, Integer> mix) throws Exception {
+        AtomicInteger highestBookId = new AtomicInteger(booksDb.nextBookId());
+        CountDownLatch startSignal = new CountDownLatch(1);
+        List<Future<Map<Operation, LatencyRecorder>>> tasks = new ArrayList<>();
+        for (int w = 0; w < workers; w++) {
+            int worker = w;
+            int workerOperations = operations / workers + (worker < operations % workers ? 1 : 0);
+            tasks.add(pool.submit(() -> {
+                Random random = new Random(seed * 31 + worker);
+                CatalogueGenerator generator = new CatalogueGenerator(seed * 17 + worker, authors.size());
+                Map<Operation, LatencyRecorder> recorders = new EnumMap<>(Operation.class);
+                for (Operation operation : Operation.values()) {
+                    recorders.put(operation, new LatencyRecorder());
+                }
+                startSignal.await();
+                for (int i = 0; i < workerOperations; i++) {
+                    Operation operation = pick(mix, random);
+                    long start = System.nanoTime();
+                    try {
+                        execute(booksDb, operation, random, generator, authors, firstBookId, highestBookId);
+                        recorders.get(operation).record(System.nanoTime() - start);
+                    } catch (BooksDbException e) {
+                        recorders.get(operation).record(System.nanoTime() - start);
+                        recorders.get(operation).recordError();
+                    }
+                }
+                return recorders;
+            }));
+        }
+
+        long start = System.nanoTime();
+        startSignal.countDown();
+        Map<Operation, LatencyRecorder> total = new EnumMap<>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            total.put(operation, new LatencyRecorder());
+        }
+        for (Future<Map<Operation, LatencyRecorder>> task : tasks) {
+            for (Map.Entry<Operation, LatencyRecorder> entry : task.get().entrySet()) {
+                total.get(entry.getKey()).merge(entry.getValue());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("ran %d operations in %.2f s: %.0f ops/s%n", operations, seconds, operations / seconds);
+        for (Map.Entry<Operation, LatencyRecorder> entry : total.entrySet()) {
+            if (entry.getValue().getCount() > 0) {
+                System.out.printf("  %-7s %s%n", entry.getKey(), entry.getValue().summary());
+            }
+        }
+    }
+
+    private static void execute(BooksDbInterface booksDb, Operation operation, Random random,
+                                CatalogueGenerator generator, List<Author> authors,
+                                int firstBookId, AtomicInteger highestBookId) throws BooksDbException {
+        switch (operation) {
+            case TITLE:
+                booksDb.searchBooksByTitle(generator.randomTitleWord());
+                break;
+            case AUTHOR:
+                booksDb.searchBooksByAuthor(generator.randomLastName());
+                break;
+            case GENRE:
+                Genre[] genres = Genre.values();
+                booksDb.searchBooksByGenre(genres[random.nextInt(genres.length)].name());
+                break;
+            case RATING:
+                booksDb.searchBooksByRating(1 + random.nextInt(5));
+                break;
+            case ISBN:
+                booksDb.searchBooksByISBN(CatalogueGenerator.isbnFor(randomBookId(random, firstBookId, highestBookId)));
+                break;
+            case ADD:
+                int bookId = booksDb.nextBookId();
+                highestBookId.accumulateAndGet(bookId, Math::max);
+                Book book = generator.generateBook(bookId, authors);
+                booksDb.addBook(book);
+                for (Author author : book.getAuthors()) {
+                    booksDb.addAuthorToBook(author, book);
+                }
+                break;
+            case DELETE:
+                booksDb.deleteBook(randomBookId(random, firstBookId, highestBookId));
+                break;
+        }
+    }
+
+    private static int randomBookId(Random random, int firstBookId, AtomicInteger highestBookId) {
+        return firstBookId + random.nextInt(Math.max(1, highestBookId.get() - firstBookId + 1));
+    }
+
+    private static Operation pick(Map<Operation, Integer> mix, Random random) {
+        int total = 0;
+        for (int weight : mix.values()) {
+            total += weight;
+        }
+        int r = random.nextInt(total);
+        for (Map.Entry<Operation, Integer> entry : mix.entrySet()) {
+            r -= entry.getValue();
+            if (r < 0) {
+                return entry.getKey();
+            }
+        }
+        throw new IllegalStateException("Empty operation mix");
+    }
+
+    private static Map<Operation, Integer> parseMix(String mix) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : mix.split(",")) {
+            String[] keyValue = part.split("=");
+            int weight = Integer.parseInt(keyValue[1].trim());
+            if (weight > 0) {
+                weights.put(Operation.valueOf(keyValue[0].trim().toUpperCase()), weight);
+            }
+        }
+        if (weights.isEmpty()) {
+            throw new IllegalArgumentException("Operation mix has no positive weights: " + mix);
+        }
+        return weights;
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            int split = arg.indexOf('=');
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        return options;
+    }
+
+    private static void waitFor(List<? extends Future<?>> tasks) throws Exception {
+        for (Future<?> task : tasks) {
+            task.get();
+        }
+    }
+}
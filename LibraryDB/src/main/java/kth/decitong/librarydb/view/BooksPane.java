@@ -12,7 +12,6 @@ import javafx.stage.Stage;
 import kth.decitong.librarydb.model.*;
 
 import java.time.LocalDate;
-import java.time.ZoneId;
 import java.util.Date;
 import java.util.ArrayList;
 import java.util.List;
@@ -28,13 +27,17 @@ import java.util.stream.Collectors;
 public class BooksPane extends VBox {
     private TableView<Book> booksTable;
     private ObservableList<Book> booksInTable;
+    private Runnable lastSearch;
     private ComboBox<SearchMode> searchModeBox;
+    private ComboBox<BookSort> sortBox;
+    private Spinner<Integer> limitSpinner;
     private TextField searchField;
     private Button searchButton;
     private MenuBar menuBar;
+    private final Controller controller;
 
-    public BooksPane(BooksDbImpl booksDb) {
-        final Controller controller = new Controller(booksDb, this);
+    public BooksPane(BooksDbInterface booksDb) {
+        controller = new Controller(booksDb, this);
         this.init(controller);
     }
 
@@ -45,8 +48,31 @@ public class BooksPane extends VBox {
      * @param books the books to display
      */
     public void displayBooks(List<Book> books) {
-        booksInTable.clear();
-        booksInTable.addAll(books);
+        DisplayBooksEvent event = new DisplayBooksEvent();
+        event.begin();
+        // one change event, so the table lays out its rows once instead of twice
+        booksInTable.setAll(books);
+        event.end();
+        if (event.shouldCommit()) {
+            event.rows = books.size();
+            event.commit();
+        }
+    }
+
+    /**
+     * Show an updated book in place of its old copy in the booksTable table view.
+     */
+    void replaceBook(Book updated) {
+        booksInTable.replaceAll(book -> book.getBookId() == updated.getBookId() ? updated : book);
+    }
+
+    /**
+     * Run the last search again, e.g. after updating the books it listed.
+     */
+    void repeatLastSearch() {
+        if (lastSearch != null) {
+            lastSearch.run();
+        }
     }
 
     /**
@@ -71,7 +97,7 @@ public class BooksPane extends VBox {
         FlowPane bottomPane = new FlowPane();
         bottomPane.setHgap(10);
         bottomPane.setPadding(new Insets(10, 10, 10, 10));
-        bottomPane.getChildren().addAll(searchModeBox, searchField, searchButton);
+        bottomPane.getChildren().addAll(searchModeBox, searchField, sortBox, limitSpinner, searchButton);
 
         BorderPane mainPane = new BorderPane();
         mainPane.setCenter(booksTable);
@@ -90,7 +116,7 @@ public class BooksPane extends VBox {
         TableColumn<Book, String> titleCol = new TableColumn<>("Title");
         TableColumn<Book, Integer> bookIDCol = new TableColumn<>("Book ID");
         TableColumn<Book, String> isbnCol = new TableColumn<>("ISBN");
-        TableColumn<Book, Date> publishedCol = new TableColumn<>("Published");
+        TableColumn<Book, LocalDate> publishedCol = new TableColumn<>("Published");
         TableColumn<Book, String> authorCol = new TableColumn<>("Author");
         TableColumn<Book, Integer> ratingCol = new TableColumn<>("Rating");
         TableColumn<Book, Genre> genreCol = new TableColumn<>("Genre");
@@ -98,7 +124,7 @@ public class BooksPane extends VBox {
         titleCol.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getTitle()));
         bookIDCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue().getBookId()));
         isbnCol.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getIsbn()));
-        publishedCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue().getPublished()));
+        publishedCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(toLocalDate(cellData.getValue().getPublished())));
         ratingCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue().getRating()));
         genreCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue().getGenre()));
 
@@ -126,12 +152,23 @@ public class BooksPane extends VBox {
         searchModeBox = new ComboBox<>();
         searchModeBox.getItems().addAll(SearchMode.values());
         searchModeBox.setValue(SearchMode.Title);
+        // sorting and the result limit apply to rating and genre searches
+        sortBox = new ComboBox<>();
+        sortBox.getItems().add(null);
+        sortBox.getItems().addAll(BookSort.values());
+        sortBox.setPromptText("Sort by");
+        limitSpinner = new Spinner<>(1, BooksDbImpl.MAX_SEARCH_RESULTS, 50, 10);
+        limitSpinner.setEditable(true);
+        limitSpinner.setPrefWidth(90);
         searchButton = new Button("Search");
 
         searchButton.setOnAction(event -> {
             String searchFor = searchField.getText();
             SearchMode mode = searchModeBox.getValue();
-            controller.onSearchSelected(searchFor, mode);
+            BookSort sort = sortBox.getValue();
+            int limit = limitSpinner.getValue();
+            lastSearch = () -> controller.onSearchSelected(searchFor, mode, sort, limit);
+            lastSearch.run();
         });
     }
 
@@ -139,12 +176,12 @@ public class BooksPane extends VBox {
 
         Menu fileMenu = new Menu("File");
         MenuItem exitItem = new MenuItem("Exit");
-        exitItem.setOnAction(e -> {Controller.disconnect();
+        exitItem.setOnAction(e -> {controller.disconnect();
         Platform.exit();});
         MenuItem connectItem = new MenuItem("Connect to Db");
-        connectItem.setOnAction(e -> Controller.connect());
+        connectItem.setOnAction(e -> controller.connect());
         MenuItem disconnectItem = new MenuItem("Disconnect");
-        disconnectItem.setOnAction(e -> Controller.disconnect());
+        disconnectItem.setOnAction(e -> controller.disconnect());
         fileMenu.getItems().addAll(exitItem, connectItem, disconnectItem);
 
         Menu manageMenu = new Menu("Manage");
@@ -153,7 +190,10 @@ public class BooksPane extends VBox {
         MenuItem removeItem = new MenuItem("Remove");
         removeItem.setOnAction(e -> showRemoveBookDialog());
         MenuItem updateItem = new MenuItem("Update");
-        manageMenu.getItems().addAll(addItem, removeItem, updateItem);
+        updateItem.setOnAction(e -> showUpdateBookDialog());
+        MenuItem rerateItem = new MenuItem("Re-rate Listed Books");
+        rerateItem.setOnAction(e -> showRerateBooksDialog());
+        manageMenu.getItems().addAll(addItem, removeItem, updateItem, rerateItem);
 
         menuBar = new MenuBar();
         menuBar.getMenus().addAll(fileMenu, manageMenu);
@@ -161,7 +201,7 @@ public class BooksPane extends VBox {
 
     public void setupCloseRequestHandler(Stage primaryStage) {
         primaryStage.setOnCloseRequest(event -> {
-            Controller.disconnect();
+            controller.disconnect();
             Platform.exit();
         });
     }
@@ -176,7 +216,7 @@ public class BooksPane extends VBox {
         result.ifPresent(bookIdString -> {
             try {
                 int bookId = Integer.parseInt(bookIdString);
-                Controller.deleteBook(bookId);
+                controller.deleteBook(bookId);
                 booksInTable.removeIf(book -> book.getBookId() == bookId);
             } catch (NumberFormatException e) {
                 showAlertAndWait("Invalid Book ID: " + bookIdString, Alert.AlertType.ERROR);
@@ -212,7 +252,9 @@ public class BooksPane extends VBox {
         grid.setPadding(new Insets(20, 150, 10, 10));
 
         TextField bookIDField = new TextField();
-        bookIDField.setPromptText("Book ID");
+        bookIDField.setPromptText("Allocating...");
+        bookIDField.setEditable(false);
+        controller.allocateBookId(bookIDField);
         TextField isbnField = new TextField();
         isbnField.setPromptText("ISBN");
         TextField titleField = new TextField();
@@ -239,6 +281,8 @@ public class BooksPane extends VBox {
         grid.add(addNewAuthorButton, 0, 7);
 
         dialog.getDialogPane().setContent(grid);
+        // the id is allocated in the background; the book cannot be added without one
+        dialog.getDialogPane().lookupButton(addButton).disableProperty().bind(bookIDField.textProperty().isEmpty());
 
         dialog.setResultConverter(dialogButton -> {
             if (dialogButton == addButton) {
@@ -246,11 +290,7 @@ public class BooksPane extends VBox {
                     int bookId = Integer.parseInt(bookIDField.getText());
                     String isbn = isbnField.getText();
                     String title = titleField.getText();
-                    LocalDate localPublishedDate = publishedDateField.getValue();
-                    Date publishedDate = null;
-                    if (localPublishedDate != null) {
-                        publishedDate = Date.from(localPublishedDate.atStartOfDay(ZoneId.systemDefault()).toInstant());
-                    }
+                    Date publishedDate = toDate(publishedDateField.getValue());
                     int rating = Integer.parseInt(ratingField.getText());
                     Genre genre = Genre.valueOf(genreField.getText().toUpperCase());
 
@@ -259,7 +299,7 @@ public class BooksPane extends VBox {
                     selectedAuthors.addAll(authorTable.getSelectionModel().getSelectedItems());
                     selectedAuthors.forEach(book::addAuthors);
 
-                    Controller.addBook(book);
+                    controller.addBook(book);
                     booksInTable.add(book);
 
                     return book;
@@ -274,6 +314,99 @@ public class BooksPane extends VBox {
         dialog.showAndWait();
     }
 
+    /**
+     * Edits the book selected in the table. Only the fields that were changed are sent,
+     * and the update fails if someone else changed the book since it was listed.
+     */
+    private void showUpdateBookDialog() {
+        Book book = booksTable.getSelectionModel().getSelectedItem();
+        if (book == null) {
+            showAlertAndWait("Select the book to update in the table.", Alert.AlertType.INFORMATION);
+            return;
+        }
+        Dialog<BookChanges> dialog = new Dialog<>();
+        dialog.setTitle("Update Book");
+        dialog.setHeaderText("Edit Book " + book.getBookId() + " (ISBN " + book.getIsbn() + ")");
+
+        ButtonType updateButton = new ButtonType("Update", ButtonBar.ButtonData.OK_DONE);
+        dialog.getDialogPane().getButtonTypes().addAll(updateButton, ButtonType.CANCEL);
+
+        GridPane grid = new GridPane();
+        grid.setHgap(10);
+        grid.setVgap(10);
+        grid.setPadding(new Insets(20, 150, 10, 10));
+
+        TextField titleField = new TextField(book.getTitle());
+        DatePicker publishedDateField = new DatePicker(toLocalDate(book.getPublished()));
+        TextField ratingField = new TextField(String.valueOf(book.getRating()));
+        ComboBox<Genre> genreBox = new ComboBox<>();
+        genreBox.getItems().addAll(Genre.values());
+        genreBox.setValue(book.getGenre());
+
+        grid.add(new Label("Title:"), 0, 0);
+        grid.add(titleField, 1, 0);
+        grid.add(new Label("Published Date:"), 0, 1);
+        grid.add(publishedDateField, 1, 1);
+        grid.add(new Label("Rating:"), 0, 2);
+        grid.add(ratingField, 1, 2);
+        grid.add(new Label("Genre:"), 0, 3);
+        grid.add(genreBox, 1, 3);
+
+        dialog.getDialogPane().setContent(grid);
+
+        dialog.setResultConverter(dialogButton -> {
+            if (dialogButton == updateButton) {
+                try {
+                    LocalDate localPublishedDate = publishedDateField.getValue();
+                    Date publishedDate = toDate(localPublishedDate);
+                    // an unchanged date keeps the stored time of day
+                    if (publishedDate == null || localPublishedDate.equals(toLocalDate(book.getPublished()))) {
+                        publishedDate = book.getPublished();
+                    }
+                    int rating = Integer.parseInt(ratingField.getText());
+                    return BookChanges.between(book, titleField.getText(), publishedDate, rating, genreBox.getValue());
+                } catch (Exception e) {
+                    showAlertAndWait("Invalid input: " + e.getMessage(), Alert.AlertType.ERROR);
+                    return null;
+                }
+            }
+            return null;
+        });
+
+        Optional<BookChanges> result = dialog.showAndWait();
+        result.ifPresent(changes -> {
+            if (changes.isEmpty()) {
+                showAlertAndWait("Nothing was changed.", Alert.AlertType.INFORMATION);
+            } else {
+                controller.updateBook(book, changes);
+            }
+        });
+    }
+
+    /**
+     * Sets the rating of all books listed in the table in one batched update, e.g. after
+     * searching a genre.
+     */
+    private void showRerateBooksDialog() {
+        if (booksInTable.isEmpty()) {
+            showAlertAndWait("Search for the books to re-rate first.", Alert.AlertType.INFORMATION);
+            return;
+        }
+        TextInputDialog dialog = new TextInputDialog();
+        dialog.setTitle("Re-rate Books");
+        dialog.setHeaderText("Set the rating of all " + booksInTable.size() + " listed books");
+        dialog.setContentText("Rating (1-5):");
+
+        Optional<String> result = dialog.showAndWait();
+        result.ifPresent(ratingString -> {
+            try {
+                controller.updateBooks(new ArrayList<>(booksInTable), BookChanges.rating(Integer.parseInt(ratingString)));
+            } catch (IllegalArgumentException e) {
+                showAlertAndWait("Invalid rating: " + ratingString, Alert.AlertType.ERROR);
+            }
+        });
+    }
+
     private Author showAddAuthorDialog() {
         Dialog<Author> dialog = new Dialog<>();
         dialog.setTitle("Add New Author");
@@ -288,7 +421,9 @@ public class BooksPane extends VBox {
         grid.setPadding(new Insets(20, 150, 10, 10));
 
         TextField authorIDField = new TextField();
-        authorIDField.setPromptText("Author ID");
+        authorIDField.setPromptText("Allocating...");
+        authorIDField.setEditable(false);
+        controller.allocateAuthorId(authorIDField);
         TextField firstNameField = new TextField();
         firstNameField.setPromptText("First Name");
         TextField lastNameField = new TextField();
@@ -305,6 +440,7 @@ public class BooksPane extends VBox {
         grid.add(birthDateField, 1, 3);
 
         dialog.getDialogPane().setContent(grid);
+        dialog.getDialogPane().lookupButton(addButton).disableProperty().bind(authorIDField.textProperty().isEmpty());
 
         dialog.setResultConverter(dialogButton -> {
             if (dialogButton == addButton) {
@@ -312,11 +448,7 @@ public class BooksPane extends VBox {
                     int authorId = Integer.parseInt(authorIDField.getText());
                     String firstName = firstNameField.getText();
                     String lastName = lastNameField.getText();
-                    LocalDate localBirthDate = birthDateField.getValue();
-                    Date birthDate = null;
-                    if (localBirthDate != null) {
-                        birthDate = Date.from(localBirthDate.atStartOfDay(ZoneId.systemDefault()).toInstant());
-                    }
+                    Date birthDate = toDate(birthDateField.getValue());
                     return new Author(authorId, firstName, lastName, birthDate);
                 } catch (Exception e) {
                     showAlertAndWait("Invalid input: " + e.getMessage(), Alert.AlertType.ERROR);
@@ -328,7 +460,7 @@ public class BooksPane extends VBox {
 
         Optional<Author> result = dialog.showAndWait();
         result.ifPresent(author -> {
-            Controller.addAuthor(author);
+            controller.addAuthor(author);
         });
         return result.orElse(null);
     }
@@ -341,17 +473,28 @@ public class BooksPane extends VBox {
         TableColumn<Author, Integer> idCol = new TableColumn<>("Author ID");
         TableColumn<Author, String> firstNameCol = new TableColumn<>("First Name");
         TableColumn<Author, String> lastNameCol = new TableColumn<>("Last Name");
-        TableColumn<Author, Date> birthDateCol = new TableColumn<>("Birth Date");
+        TableColumn<Author, LocalDate> birthDateCol = new TableColumn<>("Birth Date");
 
         idCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue().getAuthorID()));
         firstNameCol.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getFirstName()));
         lastNameCol.setCellValueFactory(cellData -> new ReadOnlyStringWrapper(cellData.getValue().getLastName()));
-        birthDateCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(cellData.getValue().getBirthDate()));
+        birthDateCol.setCellValueFactory(cellData -> new ReadOnlyObjectWrapper<>(toLocalDate(cellData.getValue().getBirthDate())));
 
 
         authorTable.getColumns().addAll(idCol, firstNameCol, lastNameCol, birthDateCol);
-        Controller.getAllAuthors(authorTable);
+        controller.getAllAuthors(authorTable);
 
         return authorTable;
     }
-}
\ No newline at end of file
+
+    /**
+     * Dates are calendar days, see {@link CalendarDays}.
+     */
+    private static Date toDate(LocalDate day) {
+        return CalendarDays.toDate(day);
+    }
+
+    private static LocalDate toLocalDate(Date date) {
+        return CalendarDays.toLocalDate(date);
+    }
+}
@@ -1,15 +1,33 @@
 package kth.decitong.librarydb.view;
 
-import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.scene.control.Alert;
 import javafx.scene.control.TableView;
+import javafx.scene.control.TextField;
 import kth.decitong.librarydb.model.Author;
 import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.BookChanges;
+import kth.decitong.librarydb.model.BookSort;
+import kth.decitong.librarydb.model.BooksDbException;
 import kth.decitong.librarydb.model.BooksDbInterface;
+import kth.decitong.librarydb.model.RankedMerge;
 import kth.decitong.librarydb.model.SearchMode;
 
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import static javafx.scene.control.Alert.AlertType.*;
 
@@ -21,116 +39,250 @@ import static javafx.scene.control.Alert.AlertType.*;
  */
 public class Controller {
 
-    private static BooksPane booksView;
-    private static BooksDbInterface booksDb;
+    private static final int BACKGROUND_THREADS = 4;
+    private static final int MAX_QUEUED_TASKS = 32;
+
+    // final instance fields: safely published to the background threads that read them
+    private final BooksPane booksView;
+    private final BooksDbInterface booksDb;
+    /** Incremented by every search, so late results of a replaced search are dropped. */
+    private final AtomicLong searchGeneration = new AtomicLong();
+
+    /*
+     * Database calls run on a small fixed pool with a bounded queue; when the queue is
+     * full the request is rejected instead of starting yet another blocked thread.
+     * Idle threads time out so they do not keep the JVM alive after the window closes.
+     */
+    private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            BACKGROUND_THREADS, BACKGROUND_THREADS, 1, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(MAX_QUEUED_TASKS));
+    /** The name of the task running on a background thread, for the updates it posts. */
+    private static final ThreadLocal<String> currentTask = new ThreadLocal<>();
+
+    static {
+        executor.allowCoreThreadTimeOut(true);
+    }
 
     public Controller(BooksDbInterface booksDb, BooksPane booksView) {
-        Controller.booksDb = booksDb;
-        Controller.booksView = booksView;
+        this.booksDb = booksDb;
+        this.booksView = booksView;
+    }
+
+    /**
+     * Runs the task on the background pool, recording a {@link ControllerTaskEvent} with
+     * its queue wait and run time when Flight Recorder has the event enabled.
+     */
+    private void runInBackground(String name, Runnable task) {
+        long submitted = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long queueWait = System.nanoTime() - submitted;
+                ControllerTaskEvent event = new ControllerTaskEvent();
+                event.begin();
+                currentTask.set(name);
+                try {
+                    task.run();
+                } finally {
+                    currentTask.remove();
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.task = name;
+                        event.queueWait = queueWait;
+                        event.commit();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            runLater(() ->
+                    booksView.showAlertAndWait("Too many pending requests, please try again later.", WARNING));
+        }
     }
 
-    public static void connect() {
-        new Thread(() -> {
+    /**
+     * Posts an update of the view to the FX application thread, listed under the name of
+     * the posting task if the {@link FxStallWatchdog} reports a stall while it is queued.
+     */
+    private static void runLater(Runnable update) {
+        FxStallWatchdog.runLater(currentTask.get(), update);
+    }
+
+    public void connect() {
+        runInBackground("connect", () -> {
             try {
                 booksDb.connect("db_library");
-                Platform.runLater(() ->
-                        booksView.showAlertAndWait("Connected to database successfully", Alert.AlertType.INFORMATION));
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Failed to connect to database: " + e.getMessage(), Alert.AlertType.ERROR));
+                return;
             }
-        }).start();
+            // only report ready once the first searches will be as fast as later ones
+            try {
+                booksDb.warmUp();
+                runLater(() ->
+                        booksView.showAlertAndWait("Connected to database successfully", Alert.AlertType.INFORMATION));
+            } catch (Exception e) {
+                runLater(() ->
+                        booksView.showAlertAndWait("Connected to database, but warm-up failed: " + e.getMessage(), WARNING));
+            }
+        });
     }
 
 
-    public static void disconnect() {
-        new Thread(() -> {
+    public void disconnect() {
+        runInBackground("disconnect", () -> {
             try {
                 booksDb.disconnect();
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Disconnected from database.", INFORMATION));
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error disconnecting from database: " + e.getMessage(), ERROR));
             }
-        }).start();
+        });
     }
 
 
-    public static void addBook(Book book) {
-        new Thread(() -> {
+    public void addBook(Book book) {
+        runInBackground("addBook", () -> {
             try {
                 booksDb.addBook(book);
                 for (Author author : book.getAuthors()) {
                     booksDb.addAuthorToBook(author, book);
                 }
-                List<Author> fetchedAuthors = booksDb.getAuthorsForBook(book.getBookId());
-                book.getAuthors().clear();
-                book.getAuthors().addAll(fetchedAuthors);
 
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Book and authors added successfully", INFORMATION));
             } catch (Exception e){
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error adding book and authors to database", ERROR));
             }
-        }).start();
+        });
     }
 
-    public static void addAuthor(Author author){
-        new Thread(() -> {
+    public void addAuthor(Author author){
+        runInBackground("addAuthor", () -> {
             try {
                 booksDb.addAuthor(author);
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Author added successfully.", INFORMATION));
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error adding author to database", ERROR));
             }
-        }).start();
+        });
     }
 
 
-    public static void deleteBook(int bookId) {
-        new Thread(() -> {
+    public void deleteBook(int bookId) {
+        runInBackground("deleteBook", () -> {
             try {
                 booksDb.deleteBook(bookId);
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Book removed successfully.", Alert.AlertType.INFORMATION));
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error removing book from database", Alert.AlertType.ERROR));
             }
-        }).start();
+        });
     }
 
 
-    public static void getAllAuthors(TableView<Author> authorTable) {
-        new Thread(() -> {
+    public void updateBook(Book book, BookChanges changes) {
+        runInBackground("updateBook", () -> {
+            try {
+                Book updated = booksDb.updateBook(book, changes);
+                runLater(() -> {
+                    booksView.replaceBook(updated);
+                    booksView.showAlertAndWait("Book updated successfully.", INFORMATION);
+                });
+            } catch (Exception e) {
+                runLater(() ->
+                        booksView.showAlertAndWait("Error updating book: " + e.getMessage(), ERROR));
+            }
+        });
+    }
+
+    /**
+     * Applies the changes to all the books in one batch, then repeats the search that
+     * listed them, since books changed by someone else in the meantime are skipped.
+     */
+    public void updateBooks(List<Book> books, BookChanges changes) {
+        runInBackground("updateBooks", () -> {
+            try {
+                int updated = booksDb.updateBooks(books, changes);
+                runLater(() -> {
+                    booksView.showAlertAndWait("Updated " + updated + " of " + books.size() + " books.",
+                            updated == books.size() ? INFORMATION : WARNING);
+                    booksView.repeatLastSearch();
+                });
+            } catch (Exception e) {
+                runLater(() ->
+                        booksView.showAlertAndWait("Error updating books: " + e.getMessage(), ERROR));
+            }
+        });
+    }
+
+
+    public void getAllAuthors(TableView<Author> authorTable) {
+        runInBackground("getAllAuthors", () -> {
             try {
                 System.out.print("fetching");
                 List<Author> authors = booksDb.getAllAuthors();
-                Platform.runLater(() ->
+                runLater(() ->
                         authorTable.setItems(FXCollections.observableArrayList(authors)));
                 System.out.print("fetched");
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error fetching authors from database", ERROR));
             }
-        }).start();
+        });
+    }
+
+
+    /**
+     * Fills the field with a new book id on a background thread. The field stays empty,
+     * with "No id" as its prompt, if the allocation fails, which is reported.
+     */
+    public void allocateBookId(TextField idField) {
+        runInBackground("allocateBookId", () -> {
+            try {
+                int bookId = booksDb.nextBookId();
+                runLater(() -> idField.setText(String.valueOf(bookId)));
+            } catch (Exception e) {
+                runLater(() -> {
+                    idField.setPromptText("No id");
+                    booksView.showAlertAndWait("Could not allocate a book id, so the book "
+                            + "cannot be added; close the dialog and try again. " + e.getMessage(), ERROR);
+                });
+            }
+        });
+    }
+
+    /**
+     * Fills the field with a new author id, see {@link #allocateBookId}.
+     */
+    public void allocateAuthorId(TextField idField) {
+        runInBackground("allocateAuthorId", () -> {
+            try {
+                int authorId = booksDb.nextAuthorId();
+                runLater(() -> idField.setText(String.valueOf(authorId)));
+            } catch (Exception e) {
+                runLater(() -> {
+                    idField.setPromptText("No id");
+                    booksView.showAlertAndWait("Could not allocate an author id, so the author "
+                            + "cannot be added; close the dialog and try again. " + e.getMessage(), ERROR);
+                });
+            }
+        });
     }
 
 
     protected void searchBooksByISBN(String isbn) {
-        new Thread(() -> {
+        runInBackground("searchBooksByISBN", () -> {
             try {
+                // the books already carry their authors from the search pipeline
                 List<Book> result = booksDb.searchBooksByISBN(isbn);
-                for (Book book : result) {
-                    List<Author> authors = booksDb.getAuthorsForBook(book.getBookId());
-                    book.getAuthors().clear();
-                    book.getAuthors().addAll(authors);
-                }
-                Platform.runLater(() -> {
+                runLater(() -> {
                     if (result.isEmpty()) {
                         booksView.showAlertAndWait("No books found with the given ISBN.", INFORMATION);
                     } else {
@@ -138,23 +290,19 @@ public class Controller {
                     }
                 });
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error searching books by ISBN: " + e.getMessage(), ERROR));
             }
-        }).start();
+        });
     }
 
 
     protected void searchBooksByAuthor(String authorName) {
-        new Thread(() -> {
+        runInBackground("searchBooksByAuthor", () -> {
             try {
+                // the books already carry their authors from the search pipeline
                 List<Book> result = booksDb.searchBooksByAuthor(authorName);
-                for (Book book : result) {
-                    List<Author> authors = booksDb.getAuthorsForBook(book.getBookId());
-                    book.getAuthors().clear();
-                    book.getAuthors().addAll(authors);
-                }
-                Platform.runLater(() -> {
+                runLater(() -> {
                     if (result.isEmpty()) {
                         booksView.showAlertAndWait("No books found for the author: " + authorName, INFORMATION);
                     } else {
@@ -162,23 +310,19 @@ public class Controller {
                     }
                 });
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error searching books by author: " + e.getMessage(), ERROR));
             }
-        }).start();
+        });
     }
 
 
     protected void searchBooksByTitle(String title) {
-        new Thread(() -> {
+        runInBackground("searchBooksByTitle", () -> {
             try {
+                // the books already carry their authors from the search pipeline
                 List<Book> result = booksDb.searchBooksByTitle(title);
-                for (Book book : result) {
-                    List<Author> authors = booksDb.getAuthorsForBook(book.getBookId());
-                    book.getAuthors().clear();
-                    book.getAuthors().addAll(authors);
-                }
-                Platform.runLater(() -> {
+                runLater(() -> {
                     if (result.isEmpty()) {
                         booksView.showAlertAndWait("No books found for the title: " + title, INFORMATION);
                     } else {
@@ -186,23 +330,38 @@ public class Controller {
                     }
                 });
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error searching books by title: " + e.getMessage(), ERROR));
             }
-        }).start();
+        });
+    }
+
+
+    protected void searchBooksFuzzy(String query) {
+        runInBackground("searchBooksFuzzy", () -> {
+            try {
+                List<Book> result = booksDb.searchBooksFuzzy(query);
+                runLater(() -> {
+                    if (result.isEmpty()) {
+                        booksView.showAlertAndWait("No books found close to: " + query, INFORMATION);
+                    } else {
+                        booksView.displayBooks(result);
+                    }
+                });
+            } catch (Exception e) {
+                runLater(() ->
+                        booksView.showAlertAndWait("Error in fuzzy search: " + e.getMessage(), ERROR));
+            }
+        });
     }
 
 
     protected void searchBooksByRating(int rating) {
-        new Thread(() -> {
+        runInBackground("searchBooksByRating", () -> {
             try {
+                // the books already carry their authors from the search pipeline
                 List<Book> result = booksDb.searchBooksByRating(rating);
-                for (Book book : result) {
-                    List<Author> authors = booksDb.getAuthorsForBook(book.getBookId());
-                    book.getAuthors().clear();
-                    book.getAuthors().addAll(authors);
-                }
-                Platform.runLater(() -> {
+                runLater(() -> {
                     if (result.isEmpty()) {
                         booksView.showAlertAndWait("No books found for the rating: " + rating, INFORMATION);
                     } else {
@@ -210,22 +369,18 @@ public class Controller {
                     }
                 });
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error searching books by rating: " + e.getMessage(), ERROR));
             }
-        }).start();
+        });
     }
 
     protected void searchBooksByGenre(String genre) {
-        new Thread(() -> {
+        runInBackground("searchBooksByGenre", () -> {
             try {
+                // the books already carry their authors from the search pipeline
                 List<Book> result = booksDb.searchBooksByGenre(String.valueOf(genre));
-                for (Book book : result) {
-                    List<Author> authors = booksDb.getAuthorsForBook(book.getBookId());
-                    book.getAuthors().clear();
-                    book.getAuthors().addAll(authors);
-                }
-                Platform.runLater(() -> {
+                runLater(() -> {
                     if (result.isEmpty()) {
                         booksView.showAlertAndWait("No books found for the genre: " + genre, INFORMATION);
                     } else {
@@ -233,15 +388,158 @@ public class Controller {
                     }
                 });
             } catch (Exception e) {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Error searching books by genre: " + e.getMessage(), ERROR));
             }
-        }).start();
+        });
+    }
+
+    protected void searchBooksByRatingRange(int minRating, int maxRating, String genre, BookSort sort, int limit) {
+        runInBackground("searchBooksByRatingRange", () -> {
+            try {
+                List<Book> result = booksDb.searchBooksByRating(minRating, maxRating, genre, sort, limit);
+                runLater(() -> {
+                    if (result.isEmpty()) {
+                        booksView.showAlertAndWait("No books found for the rating: " + minRating + "-" + maxRating, INFORMATION);
+                    } else {
+                        booksView.displayBooks(result);
+                    }
+                });
+            } catch (Exception e) {
+                runLater(() ->
+                        booksView.showAlertAndWait("Error searching books by rating: " + e.getMessage(), ERROR));
+            }
+        });
+    }
+
+    protected void searchBooksByPublished(String period, Date from, Date to) {
+        runInBackground("searchBooksByPublished", () -> {
+            try {
+                List<Book> result = booksDb.searchBooksByPublished(from, to);
+                runLater(() -> {
+                    if (result.isEmpty()) {
+                        booksView.showAlertAndWait("No books found published in: " + period, INFORMATION);
+                    } else {
+                        booksView.displayBooks(result);
+                    }
+                });
+            } catch (Exception e) {
+                runLater(() ->
+                        booksView.showAlertAndWait("Error searching books by publication date: " + e.getMessage(), ERROR));
+            }
+        });
+    }
+
+    private interface Search {
+        List<Book> run() throws BooksDbException;
+    }
+
+    /**
+     * Runs the title, author and ISBN searches at the same time, for when the user does
+     * not know which of them the text is. The table shows the merged, ranked result of the
+     * searches completed so far, so the first books appear after the fastest search and
+     * the full result after the slowest. The text is matched literally.
+     */
+    protected void searchAll(String query) {
+        long search = searchGeneration.get();
+        RankedMerge merge = new RankedMerge(query);
+        AtomicInteger remaining = new AtomicInteger(3);
+        List<String> failures = Collections.synchronizedList(new ArrayList<>());
+        String literal = Pattern.quote(query.trim());
+        searchBranch(query, search, merge, remaining, failures, SearchMode.Title,
+                () -> booksDb.searchBooksByTitle(literal));
+        searchBranch(query, search, merge, remaining, failures, SearchMode.Author,
+                () -> booksDb.searchBooksByAuthor(literal));
+        searchBranch(query, search, merge, remaining, failures, SearchMode.ISBN,
+                () -> booksDb.searchBooksByISBN(query.trim()));
+    }
+
+    private void searchBranch(String query, long search, RankedMerge merge, AtomicInteger remaining,
+                              List<String> failures, SearchMode source, Search branch) {
+        runInBackground("searchAll " + source, () -> {
+            List<Book> found;
+            try {
+                found = branch.run();
+            } catch (Exception e) {
+                failures.add(source + ": " + e.getMessage());
+                found = Collections.emptyList();
+            }
+            List<Book> result = found;
+            runLater(() -> {
+                if (searchGeneration.get() != search) {
+                    return;
+                }
+                booksView.displayBooks(merge.add(source, result));
+                if (remaining.decrementAndGet() > 0) {
+                    return;
+                }
+                if (failures.size() == 3) {
+                    booksView.showAlertAndWait("Error searching books: " + String.join("; ", failures), ERROR);
+                } else if (!failures.isEmpty()) {
+                    booksView.showAlertAndWait("Some searches failed: " + String.join("; ", failures), WARNING);
+                } else if (merge.size() == 0) {
+                    booksView.showAlertAndWait("No books found for: " + query, INFORMATION);
+                }
+            });
+        });
     }
 
-    protected void onSearchSelected(String searchFor, SearchMode mode) {
+    /**
+     * Parses a publication period: a year ("1984"), a decade ("1980s"), an inclusive range
+     * of years ("1980-1989") or an inclusive range of dates ("2001-05-01..2001-06-30").
+     * @return the start of the period (inclusive) and its end (exclusive)
+     * @throws DateTimeParseException if the text is none of these
+     */
+    static Date[] parsePublishedPeriod(String text) {
+        String period = text.trim();
+        LocalDate from;
+        LocalDate to;
+        if (period.contains("..")) {
+            String[] dates = period.split("\\.\\.", 2);
+            from = LocalDate.parse(dates[0].trim());
+            to = LocalDate.parse(dates[1].trim()).plusDays(1);
+        } else if (period.matches("\\d{3}0s")) {
+            from = LocalDate.of(Integer.parseInt(period.substring(0, 4)), 1, 1);
+            to = from.plusYears(10);
+        } else if (period.matches("\\d{1,4}\\s*-\\s*\\d{1,4}")) {
+            String[] years = period.split("\\s*-\\s*");
+            from = LocalDate.of(Integer.parseInt(years[0]), 1, 1);
+            to = LocalDate.of(Integer.parseInt(years[1]) + 1, 1, 1);
+        } else if (period.matches("\\d{1,4}")) {
+            from = LocalDate.of(Integer.parseInt(period), 1, 1);
+            to = from.plusYears(1);
+        } else {
+            throw new DateTimeParseException("Not a year, decade or date range", period, 0);
+        }
+        return new Date[] {Date.from(from.atStartOfDay(ZoneOffset.UTC).toInstant()),
+                Date.from(to.atStartOfDay(ZoneOffset.UTC).toInstant())};
+    }
+
+    /**
+     * Parses a rating ("4") or an inclusive rating range ("3-5").
+     * @return the lowest and the highest rating
+     * @throws NumberFormatException if the text is neither
+     */
+    static int[] parseRatingRange(String text) {
+        String[] bounds = text.trim().split("\\s*-\\s*");
+        if (bounds.length == 1) {
+            int rating = Integer.parseInt(bounds[0]);
+            return new int[] {rating, rating};
+        }
+        if (bounds.length == 2) {
+            return new int[] {Integer.parseInt(bounds[0]), Integer.parseInt(bounds[1])};
+        }
+        throw new NumberFormatException("Not a rating or a rating range: " + text);
+    }
+
+    /**
+     * @param sort order of the result, or null for the unsorted, unlimited searches
+     * @param limit maximum number of books for sorted searches
+     */
+    protected void onSearchSelected(String searchFor, SearchMode mode, BookSort sort, int limit) {
         try {
             if (searchFor != null && !searchFor.trim().isEmpty()) {
+                searchGeneration.incrementAndGet();
                 switch (mode) {
                     case Title:
                         searchBooksByTitle(searchFor);
@@ -254,23 +552,47 @@ public class Controller {
                         break;
                     case Rating:
                         try {
-                            int rating = Integer.parseInt(searchFor);
-                            searchBooksByRating(rating);
+                            int[] range = parseRatingRange(searchFor);
+                            if (sort == null && range[0] == range[1]) {
+                                searchBooksByRating(range[0]);
+                            } else {
+                                searchBooksByRatingRange(range[0], range[1], null,
+                                        sort == null ? BookSort.Rating : sort, limit);
+                            }
                         } catch (NumberFormatException e) {
-                            Platform.runLater(() ->
-                                    booksView.showAlertAndWait("Invalid rating format. Please enter a numeric value.", Alert.AlertType.ERROR));
+                            runLater(() ->
+                                    booksView.showAlertAndWait("Invalid rating format. Please enter a rating or a range such as 3-5.", Alert.AlertType.ERROR));
                         }
                         break;
                     case Genre:
-                        searchBooksByGenre(searchFor);
+                        if (sort == null) {
+                            searchBooksByGenre(searchFor);
+                        } else {
+                            searchBooksByRatingRange(1, 5, searchFor, sort, limit);
+                        }
+                        break;
+                    case Published:
+                        try {
+                            Date[] period = parsePublishedPeriod(searchFor);
+                            searchBooksByPublished(searchFor, period[0], period[1]);
+                        } catch (DateTimeException e) {
+                            runLater(() ->
+                                    booksView.showAlertAndWait("Invalid period. Enter a year (1984), a decade (1980s), years (1980-1989) or dates (2001-05-01..2001-06-30).", Alert.AlertType.ERROR));
+                        }
+                        break;
+                    case Fuzzy:
+                        searchBooksFuzzy(searchFor);
+                        break;
+                    case All:
+                        searchAll(searchFor);
                         break;
                 }
             } else {
-                Platform.runLater(() ->
+                runLater(() ->
                         booksView.showAlertAndWait("Enter a search string!", WARNING));
             }
         } catch (Exception e) {
-            Platform.runLater(() ->
+            runLater(() ->
                     booksView.showAlertAndWait("Search error: " + e.getMessage(), ERROR));
         }
     }
@@ -0,0 +1,27 @@
+package kth.decitong.librarydb.view;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for one background task of the {@link Controller}. The event
+ * duration is the run time on the background thread; the time spent in the executor
+ * queue before that is recorded separately.
+ */
+@Name("kth.decitong.librarydb.ControllerTask")
+@Label("Controller Task")
+@Category({"LibraryDB", "User Interface"})
+@Description("A user action run on a background thread")
+@StackTrace(false)
+class ControllerTaskEvent extends jdk.jfr.Event {
+    @Label("Task")
+    String task;
+
+    @Label("Queue Wait")
+    @Timespan(Timespan.NANOSECONDS)
+    long queueWait;
+}
@@ -0,0 +1,19 @@
+package kth.decitong.librarydb.view;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for replacing the rows of the books table on the FX
+ * application thread.
+ */
+@Name("kth.decitong.librarydb.DisplayBooks")
+@Label("Display Books")
+@Category({"LibraryDB", "User Interface"})
+@StackTrace(false)
+class DisplayBooksEvent extends jdk.jfr.Event {
+    @Label("Rows")
+    int rows;
+}
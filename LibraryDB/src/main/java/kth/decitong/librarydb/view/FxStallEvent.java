@@ -0,0 +1,33 @@
+package kth.decitong.librarydb.view;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event for a stall of the FX application thread found by the
+ * {@link FxStallWatchdog}, committed when the thread runs again. The stack is the one the
+ * FX thread had during the stall, not the stack of the thread committing the event.
+ */
+@Name("kth.decitong.librarydb.FxStall")
+@Label("FX Thread Stall")
+@Category({"LibraryDB", "User Interface"})
+@Description("The FX application thread did not run queued work for longer than the threshold")
+@StackTrace(false)
+class FxStallEvent extends jdk.jfr.Event {
+    @Label("Stall")
+    @Timespan(Timespan.NANOSECONDS)
+    long stall;
+
+    @Label("FX Thread Stack")
+    String stack;
+
+    @Label("Queued Updates")
+    int queuedUpdates;
+
+    @Label("Queued Tasks")
+    String queuedTasks;
+}
@@ -0,0 +1,287 @@
+package kth.decitong.librarydb.view;
+
+import javafx.application.Platform;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Detects stalls of the FX application thread, the freezes a user sees when an event
+ * handler or a queued update runs too long. A watchdog thread posts a heartbeat with
+ * {@link Platform#runLater} and, while it has not run, checks every quarter threshold how
+ * long it has been waiting. Once that exceeds the threshold, the watchdog samples the
+ * stack of the FX thread and the updates queued through {@link #runLater} behind it; when
+ * the heartbeat finally runs, the stall is logged with the sample, recorded as a
+ * {@link FxStallEvent} and counted in a histogram. A stall is measured from the posting of
+ * the heartbeat, so it is up to one check interval shorter than the real freeze.
+ * <p>
+ * A modal dialog waiting in showAndWait runs a nested event loop, so it is not a stall.
+ * Only one watchdog is active at a time, and the queued updates are only tracked while
+ * one is.
+ */
+public final class FxStallWatchdog implements AutoCloseable {
+    private static final System.Logger LOGGER = System.getLogger(FxStallWatchdog.class.getName());
+    /** The stall histogram has buckets from 1 to 16 times the threshold, the last one open. */
+    private static final int HISTOGRAM_BUCKETS = 5;
+    private static final int MAX_STACK_FRAMES = 40;
+    private static final long MIN_CHECK_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private static volatile FxStallWatchdog active;
+
+    /** An update posted through {@link #runLater} that has not run yet. */
+    private static final class QueuedUpdate {
+        private final String task;
+        private final long postedAt;
+
+        private QueuedUpdate(String task, long postedAt) {
+            this.task = task;
+            this.postedAt = postedAt;
+        }
+    }
+
+    /** What the FX thread was doing while a heartbeat waited. */
+    private static final class StallSample {
+        private final long heartbeat;
+        private final String stack;
+        private final int queuedUpdates;
+        private final String queuedTasks;
+
+        private StallSample(long heartbeat, String stack, int queuedUpdates, String queuedTasks) {
+            this.heartbeat = heartbeat;
+            this.stack = stack;
+            this.queuedUpdates = queuedUpdates;
+            this.queuedTasks = queuedTasks;
+        }
+    }
+
+    private final long thresholdNanos;
+    /** Runs work on the watched thread, {@link Platform#runLater} outside of tests. */
+    private final Executor fxThreadExecutor;
+    private final ScheduledExecutorService scheduler;
+    private final ConcurrentLinkedQueue<QueuedUpdate> queued = new ConcurrentLinkedQueue<>();
+    private final AtomicReference<StallSample> sample = new AtomicReference<>();
+    private final Runnable heartbeat = this::heartbeat;
+    /** When the waiting heartbeat was posted, or 0 if none is waiting. */
+    private volatile long heartbeatPostedAt;
+    private volatile Thread fxThread;
+
+    // written on the FX thread only, read by report()
+    private final long[] histogram = new long[HISTOGRAM_BUCKETS];
+    private volatile long stalls;
+    private volatile long stalledNanos;
+    private volatile long longestStallNanos;
+
+    private FxStallWatchdog(long thresholdMillis, Executor fxThreadExecutor) {
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.fxThreadExecutor = fxThreadExecutor;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "fx-stall-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts watching the FX application thread, which must be running, replacing the
+     * active watchdog if there is one.
+     * @param thresholdMillis the shortest delay of queued work that counts as a stall
+     * @return the watchdog, to close when the application stops
+     */
+    public static FxStallWatchdog start(long thresholdMillis) {
+        return start(thresholdMillis, Platform::runLater);
+    }
+
+    /**
+     * Starts watching the single thread the executor runs its work on, in place of the FX
+     * application thread, so the watchdog can be tested without the FX toolkit.
+     */
+    static FxStallWatchdog start(long thresholdMillis, Executor fxThreadExecutor) {
+        if (thresholdMillis < 1) {
+            throw new IllegalArgumentException("Invalid stall threshold: " + thresholdMillis);
+        }
+        FxStallWatchdog watchdog = new FxStallWatchdog(thresholdMillis, fxThreadExecutor);
+        long checkInterval = Math.max(MIN_CHECK_INTERVAL_NANOS, watchdog.thresholdNanos / 4);
+        watchdog.scheduler.scheduleAtFixedRate(watchdog::check, checkInterval, checkInterval, TimeUnit.NANOSECONDS);
+        FxStallWatchdog previous = active;
+        active = watchdog;
+        if (previous != null) {
+            previous.close();
+        }
+        return watchdog;
+    }
+
+    /**
+     * Runs the update on the FX application thread like {@link Platform#runLater}, and
+     * lists it under the task's name in stall reports while it is queued.
+     * @param task what posted the update, e.g. the name of a background task, or null
+     * @param update the update
+     */
+    public static void runLater(String task, Runnable update) {
+        FxStallWatchdog watchdog = active;
+        if (watchdog == null) {
+            Platform.runLater(update);
+            return;
+        }
+        QueuedUpdate entry = new QueuedUpdate(task == null ? "fx" : task, System.nanoTime());
+        watchdog.queued.add(entry);
+        watchdog.fxThreadExecutor.execute(() -> {
+            // remove scans from the head: cheap while updates run in the order they were
+            // posted, which Platform.runLater keeps; an update run out of order, e.g. from a
+            // nested event loop, costs a scan of the updates queued before it
+            watchdog.queued.remove(entry);
+            update.run();
+        });
+    }
+
+    /**
+     * @return the number of stalls so far
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * @return the longest stall so far, in nanoseconds
+     */
+    public long getLongestStallNanos() {
+        return longestStallNanos;
+    }
+
+    /**
+     * Formats the number of stalls, their total and longest duration and the stall
+     * histogram, with buckets doubling from the threshold.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+                "FX thread stalls over %d ms: %d, total %.0f ms, longest %.0f ms%n",
+                TimeUnit.NANOSECONDS.toMillis(thresholdNanos), stalls, stalledNanos / 1e6, longestStallNanos / 1e6));
+        long threshold = TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            long from = threshold << i;
+            String bucket = i == HISTOGRAM_BUCKETS - 1
+                    ? String.format(Locale.ROOT, ">= %d ms", from)
+                    : String.format(Locale.ROOT, "%d-%d ms", from, from * 2);
+            report.append(String.format(Locale.ROOT, "  %-16s %d%n", bucket, histogram[i]));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Stops watching and logs the report.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        if (active == this) {
+            active = null;
+        }
+        LOGGER.log(System.Logger.Level.INFO, report());
+    }
+
+    /**
+     * Runs on the watchdog thread: posts a heartbeat if none is waiting, and samples the FX
+     * thread once per stall if the waiting one is overdue.
+     */
+    private void check() {
+        long posted = heartbeatPostedAt;
+        long now = System.nanoTime();
+        if (posted == 0) {
+            heartbeatPostedAt = now;
+            fxThreadExecutor.execute(heartbeat);
+            return;
+        }
+        if (now - posted < thresholdNanos) {
+            return;
+        }
+        StallSample current = sample.get();
+        if (current == null || current.heartbeat != posted) {
+            sample.set(sampleFxThread(posted, now));
+        }
+    }
+
+    /**
+     * Runs on the FX thread: measures how long the heartbeat waited and records a stall.
+     */
+    private void heartbeat() {
+        fxThread = Thread.currentThread();
+        long posted = heartbeatPostedAt;
+        long waited = System.nanoTime() - posted;
+        heartbeatPostedAt = 0;
+        StallSample stallSample = sample.getAndSet(null);
+        if (waited < thresholdNanos) {
+            return;
+        }
+        if (stallSample != null && stallSample.heartbeat != posted) {
+            stallSample = null;
+        }
+        recordStall(waited, stallSample);
+    }
+
+    private void recordStall(long nanos, StallSample stallSample) {
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BUCKETS - 1 && nanos >= thresholdNanos << (bucket + 1)) {
+            bucket++;
+        }
+        histogram[bucket]++;
+        stalls++;
+        stalledNanos += nanos;
+        longestStallNanos = Math.max(longestStallNanos, nanos);
+
+        String stack = stallSample == null ? "(not sampled)" : stallSample.stack;
+        String queuedTasks = stallSample == null ? "" : stallSample.queuedTasks;
+        int queuedUpdates = stallSample == null ? 0 : stallSample.queuedUpdates;
+        LOGGER.log(System.Logger.Level.WARNING, String.format(Locale.ROOT,
+                "FX thread stalled for %.0f ms; %d queued updates%s%nFX thread stack:%n%s",
+                nanos / 1e6, queuedUpdates, queuedTasks.isEmpty() ? "" : " (" + queuedTasks + ")", stack));
+        FxStallEvent event = new FxStallEvent();
+        if (event.shouldCommit()) {
+            event.stall = nanos;
+            event.stack = stack;
+            event.queuedUpdates = queuedUpdates;
+            event.queuedTasks = queuedTasks;
+            event.commit();
+        }
+    }
+
+    private StallSample sampleFxThread(long heartbeat, long now) {
+        Thread thread = fxThread;
+        StringBuilder stack = new StringBuilder();
+        if (thread == null) {
+            stack.append("(the FX thread has not run a heartbeat yet)");
+        } else {
+            StackTraceElement[] frames = thread.getStackTrace();
+            for (int i = 0; i < Math.min(frames.length, MAX_STACK_FRAMES); i++) {
+                stack.append("\tat ").append(frames[i]).append(System.lineSeparator());
+            }
+            if (frames.length > MAX_STACK_FRAMES) {
+                stack.append("\t... ").append(frames.length - MAX_STACK_FRAMES).append(" more");
+            }
+        }
+
+        // queued updates by task, with the age of the oldest
+        Map<String, long[]> byTask = new TreeMap<>();
+        int count = 0;
+        for (QueuedUpdate update : queued) {
+            long[] countAndOldest = byTask.computeIfAbsent(update.task, task -> new long[2]);
+            countAndOldest[0]++;
+            countAndOldest[1] = Math.max(countAndOldest[1], now - update.postedAt);
+            count++;
+        }
+        StringBuilder tasks = new StringBuilder();
+        for (Map.Entry<String, long[]> task : byTask.entrySet()) {
+            if (tasks.length() > 0) {
+                tasks.append(", ");
+            }
+            tasks.append(String.format(Locale.ROOT, "%s x%d, oldest %.0f ms", task.getKey(),
+                    task.getValue()[0], task.getValue()[1] / 1e6));
+        }
+        return new StallSample(heartbeat, stack.toString(), count, tasks.toString());
+    }
+}
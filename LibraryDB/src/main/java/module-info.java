@@ -4,6 +4,9 @@ module kth.decitong.librarydb.librarydb {
     requires org.mongodb.driver.core;
     requires org.mongodb.driver.sync.client;
     requires org.mongodb.bson;
+    requires java.net.http;
+    requires jdk.httpserver;
+    requires jdk.jfr;
 
 
     opens kth.decitong.librarydb to javafx.fxml;
@@ -0,0 +1,69 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AuthorFieldMigrationTest {
+    private static final AuthorFieldMigration MIGRATION = new AuthorFieldMigration(null, null, 1, 10, 0);
+
+    @Test
+    void readsBooksWithEitherOrBothFields() {
+        assertEquals(Arrays.asList(1, 2), AuthorFieldMigration.authorIds(book(Arrays.asList(1, 2), null)));
+        assertEquals(Arrays.asList(3), AuthorFieldMigration.authorIds(book(null, Arrays.asList(3))));
+        assertEquals(Arrays.asList(1, 2, 3), AuthorFieldMigration.authorIds(book(Arrays.asList(1, 2), Arrays.asList(2, 3))));
+        assertEquals(Collections.emptyList(), AuthorFieldMigration.authorIds(book(null, null)));
+    }
+
+    @Test
+    void movesTheLegacyIdsAndDropsSummariesThatMissThem() {
+        Document bookDoc = book(Arrays.asList(1), Arrays.asList(1, 2))
+                .append("authorSummaries", Collections.singletonList(new Document("authorID", 1)));
+
+        BsonDocument update = render(((UpdateOneModel<Document>) MIGRATION.rewrite(bookDoc)).getUpdate());
+
+        assertEquals(new BsonArray(Arrays.asList(new BsonInt32(1), new BsonInt32(2))),
+                update.getDocument("$set").get("authors"));
+        assertTrue(update.getDocument("$unset").containsKey(AuthorFieldMigration.LEGACY_FIELD));
+        assertTrue(update.getDocument("$unset").containsKey("authorSummaries"));
+    }
+
+    @Test
+    void keepsSummariesWhenNoAuthorIsAdded() {
+        Document bookDoc = book(Arrays.asList(1, 2), Arrays.asList(2))
+                .append("authorSummaries", Collections.singletonList(new Document("authorID", 1)));
+
+        BsonDocument update = render(((UpdateOneModel<Document>) MIGRATION.rewrite(bookDoc)).getUpdate());
+
+        assertFalse(update.getDocument("$unset").containsKey("authorSummaries"));
+        String filter = render(((UpdateOneModel<Document>) MIGRATION.rewrite(bookDoc)).getFilter()).toJson();
+        assertTrue(filter.contains("\"authors\"") && filter.contains("\"authorIDs\""), filter);
+    }
+
+    private static Document book(List<Integer> authors, List<Integer> legacy) {
+        Document bookDoc = new Document("_id", 7).append("bookId", 7);
+        if (authors != null) {
+            bookDoc.append("authors", authors);
+        }
+        if (legacy != null) {
+            bookDoc.append(AuthorFieldMigration.LEGACY_FIELD, legacy);
+        }
+        return bookDoc;
+    }
+
+    private static BsonDocument render(org.bson.conversions.Bson bson) {
+        return bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+}
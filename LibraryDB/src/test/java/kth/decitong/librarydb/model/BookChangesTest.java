@@ -0,0 +1,71 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookChangesTest {
+    private static final Date PUBLISHED = Date.from(Instant.parse("1965-08-01T00:00:00Z"));
+
+    @Test
+    void changesBetweenLeaveOutTheEqualFields() {
+        Book book = new Book(7, "0000000007", "Dune", PUBLISHED, 4, Genre.ACTION);
+
+        BookChanges changes = BookChanges.between(book, "Dune", new Date(PUBLISHED.getTime()), 5, Genre.ACTION);
+
+        assertNull(changes.getTitle());
+        assertNull(changes.getPublished());
+        assertNull(changes.getGenre());
+        assertEquals(5, changes.getRating());
+        assertTrue(BookChanges.between(book, "Dune", PUBLISHED, 4, Genre.ACTION).isEmpty());
+    }
+
+    @Test
+    void appliedChangesKeepTheAuthorsAndTakeTheNextVersion() {
+        Book book = new Book(7, "0000000007", "Dune", PUBLISHED, 4, Genre.ACTION);
+        book.addAuthors(new Author(1, "Frank", "Herbert", null));
+        book.setVersion(2);
+
+        Book updated = new BookChanges("Dune Messiah", null, null, Genre.DRAMA).applyTo(book);
+
+        assertEquals("Dune Messiah", updated.getTitle());
+        assertEquals(Genre.DRAMA, updated.getGenre());
+        assertEquals(PUBLISHED, updated.getPublished());
+        assertEquals(4, updated.getRating());
+        assertEquals("0000000007", updated.getIsbn());
+        assertEquals(1, updated.getAuthors().size());
+        assertEquals(3, updated.getVersion());
+        assertEquals("Dune", book.getTitle(), "the book that was read must not change");
+        assertEquals(2, book.getVersion());
+    }
+
+    @Test
+    void rejectsRatingsOutsideOneToFive() {
+        assertThrows(IllegalArgumentException.class, () -> BookChanges.rating(0));
+        assertThrows(IllegalArgumentException.class, () -> new BookChanges(null, null, 6, null));
+    }
+
+    @Test
+    void authorChangesTellWhetherTheEmbeddedNameChanges() {
+        Author author = new Author(1, "Frank", "Herbert", PUBLISHED);
+        author.setVersion(1);
+
+        AuthorChanges birthDateOnly = AuthorChanges.between(author, "Frank", "Herbert", new Date(0));
+        AuthorChanges renamed = AuthorChanges.between(author, "Franklin", "Herbert", PUBLISHED);
+
+        assertFalse(birthDateOnly.changesName());
+        assertTrue(renamed.changesName());
+        assertNull(renamed.getLastName());
+        Author updated = renamed.applyTo(author);
+        assertEquals("Franklin", updated.getFirstName());
+        assertEquals(PUBLISHED, updated.getBirthDate());
+        assertEquals(2, updated.getVersion());
+    }
+}
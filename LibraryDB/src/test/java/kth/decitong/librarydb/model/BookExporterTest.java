@@ -0,0 +1,115 @@
+package kth.decitong.librarydb.model;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BookExporterTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void writesCsvWithQuotedFields() throws IOException {
+        Path file = directory.resolve("books.csv");
+        try (BookExporter exporter = new BookExporter(file, BookExporter.Format.CSV, false, null)) {
+            exporter.write(book(1, "Good Omens, or \"The Nice and Accurate Prophecies\"", date("1990-05-01"),
+                    new Author(1, "Terry", "Pratchett", null), new Author(2, "Neil", "Gaiman", null)));
+            exporter.write(book(2, "Undated", null));
+            assertEquals(2, exporter.finish());
+        }
+
+        assertEquals(Arrays.asList(
+                "bookId,isbn,title,published,rating,genre,authors",
+                "1,0000000001,\"Good Omens, or \"\"The Nice and Accurate Prophecies\"\"\",1990-05-01,4,COMEDY,"
+                        + "Terry Pratchett; Neil Gaiman",
+                "2,0000000002,Undated,,4,COMEDY,"),
+                Files.readAllLines(file, StandardCharsets.UTF_8));
+        assertEquals(Collections.singletonList(file), files());
+    }
+
+    @Test
+    void writesGzippedJsonLinesThatReadBackAsBooks() throws IOException {
+        Path file = directory.resolve("books.jsonl.gz");
+        List<Long> reported = new ArrayList<>();
+        try (BookExporter exporter = new BookExporter(file, BookExporter.Format.JSONL, true, reported::add)) {
+            for (int i = 1; i <= BookExporter.PROGRESS_INTERVAL + 5; i++) {
+                exporter.write(book(i, "Book " + i, date("2000-01-01"), new Author(1, "Ursula", "Le Guin", null)));
+            }
+            exporter.finish();
+        }
+
+        assertEquals(Arrays.asList((long) BookExporter.PROGRESS_INTERVAL, BookExporter.PROGRESS_INTERVAL + 5L),
+                reported);
+        List<String> lines;
+        try (InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+            lines = Arrays.asList(new String(in.readAllBytes(), StandardCharsets.UTF_8).split("\n"));
+        }
+        assertEquals(BookExporter.PROGRESS_INTERVAL + 5, lines.size());
+        Book last = BookDocuments.toBook(Document.parse(lines.get(lines.size() - 1)));
+        assertEquals(BookExporter.PROGRESS_INTERVAL + 5, last.getBookId());
+        assertEquals(date("2000-01-01"), last.getPublished());
+        assertEquals("Le Guin", last.getAuthors().get(0).getLastName());
+    }
+
+    @Test
+    void abandonedExportLeavesNoFileAndKeepsTheOldOne() throws IOException {
+        Path file = directory.resolve("books.csv");
+        Files.writeString(file, "previous export\n");
+
+        try (BookExporter exporter = new BookExporter(file, BookExporter.Format.CSV, false, null)) {
+            exporter.write(book(1, "Dune", date("1965-08-01")));
+        }
+
+        assertEquals("previous export\n", Files.readString(file));
+        assertEquals(Collections.singletonList(file), files());
+    }
+
+    @Test
+    void failedWriteCleansUpOnClose() throws IOException {
+        Path file = directory.resolve("books.csv");
+
+        try (BookExporter exporter = new BookExporter(file, BookExporter.Format.CSV, false, null)) {
+            assertThrows(NullPointerException.class, () -> exporter.write(
+                    new Book(1, "0000000001", "No genre", null, 3, null)));
+        }
+
+        assertFalse(Files.exists(file));
+        assertEquals(Collections.emptyList(), files());
+    }
+
+    private List<Path> files() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toList();
+        }
+    }
+
+    private static Book book(int id, String title, Date published, Author... authors) {
+        Book book = new Book(id, String.format("%010d", id), title, published, 4, Genre.COMEDY);
+        for (Author author : authors) {
+            book.addAuthors(author);
+        }
+        return book;
+    }
+
+    private static Date date(String day) {
+        return Date.from(Instant.parse(day + "T00:00:00Z"));
+    }
+}
@@ -0,0 +1,183 @@
+package kth.decitong.librarydb.model;
+
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookSchemaTest {
+    private static final Date MIDNIGHT_UTC = Date.from(Instant.parse("1954-07-29T00:00:00Z"));
+    /** The same day as stored by an older client in Stockholm, at local midnight; Sweden had no summer time then. */
+    private static final Date LEGACY_MIDNIGHT = Date.from(Instant.parse("1954-07-28T23:00:00Z"));
+    private static final TimeZone DEFAULT_ZONE = TimeZone.getDefault();
+
+    @AfterEach
+    void restoreTimeZone() {
+        TimeZone.setDefault(DEFAULT_ZONE);
+    }
+
+    @Test
+    void keysOfBothLayouts() {
+        assertEquals("title", BookSchema.V1.key("title"));
+        assertEquals("t", BookSchema.V2.key("title"));
+        assertEquals("as", BookSchema.V2.key("authorSummaries"));
+        assertEquals("bookId", BookSchema.V2.key("bookId"));
+        assertThrows(IllegalArgumentException.class, () -> BookSchema.V2.key("authorIDs"));
+        assertTrue(BookSchema.V1.keys().contains(AuthorFieldMigration.LEGACY_FIELD));
+        assertFalse(BookSchema.V2.keys().contains(AuthorFieldMigration.LEGACY_FIELD));
+    }
+
+    @Test
+    void fieldsOfANewBook() {
+        Book book = new Book(7, "9780261103252", "The Fellowship of the Ring", MIDNIGHT_UTC, 5, Genre.DRAMA);
+
+        Document v1 = BookSchema.V1.fields(book);
+        assertEquals("9780261103252", v1.get("isbn"));
+        assertEquals("the fellowship of the ring", v1.get("titleFolded"));
+        assertEquals(MIDNIGHT_UTC, v1.get("published"));
+        assertEquals("DRAMA", v1.get("genre"));
+
+        Document v2 = BookSchema.V2.fields(book);
+        assertEquals("9780261103252", v2.get("i"));
+        assertEquals("the fellowship of the ring", v2.get("tf"));
+        assertEquals(-5635, v2.get("p"));
+        assertEquals(Genre.DRAMA.getCode(), v2.get("g"));
+        assertEquals(5, v2.get("r"));
+    }
+
+    @Test
+    void convertsBetweenLayoutsBothWays() {
+        Document v1 = new Document("bookId", 7)
+                .append("isbn", "9780261103252")
+                .append("title", "The Fellowship of the Ring")
+                .append("published", MIDNIGHT_UTC)
+                .append("rating", 5)
+                .append("genre", "Drama")
+                .append("authors", Arrays.asList(1, 2))
+                .append(AuthorFieldMigration.LEGACY_FIELD, Arrays.asList(2, 3))
+                .append("version", 4L);
+        assertSame(BookSchema.V1, BookSchema.of(v1));
+
+        Document v2 = BookSchema.V2.convert(v1);
+        v2.put("bookId", 7);
+        assertSame(BookSchema.V2, BookSchema.of(v2));
+        assertEquals(Arrays.asList(1, 2, 3), v2.get("a"), "legacy author ids are merged");
+        assertFalse(v2.containsKey(AuthorFieldMigration.LEGACY_FIELD));
+        assertBook(BookSchema.toBook(v1), BookSchema.toBook(v2));
+        assertEquals(BookSchema.authorIds(v1), BookSchema.authorIds(v2));
+
+        Document back = BookSchema.V1.convert(v2);
+        back.put("bookId", 7);
+        assertBook(BookSchema.toBook(v1), BookSchema.toBook(back));
+        assertEquals(Arrays.asList(1, 2, 3), back.get("authors"));
+    }
+
+    @Test
+    void convertKeepsSummariesAndLeavesOutVersionZero() {
+        List<Document> summaries = Arrays.asList(new Document("authorID", 1).append("firstName", "J. R. R.")
+                .append("lastName", "Tolkien").append("birthDate", null));
+        Document v1 = new Document("bookId", 7)
+                .append("isbn", "0261103253")
+                .append("title", null)
+                .append("published", null)
+                .append("rating", 3)
+                .append("genre", "SCI_FI")
+                .append("authors", Arrays.asList(1))
+                .append("authorSummaries", summaries);
+
+        Document v2 = BookSchema.V2.convert(v1);
+        assertEquals(summaries, v2.get("as"));
+        assertFalse(v2.containsKey("v"));
+        assertNull(v2.get("p"));
+        v2.put("bookId", 7);
+        Book book = BookSchema.toBook(v2);
+        assertNull(book.getTitle());
+        assertNull(book.getPublished());
+        assertEquals(Genre.SCI_FI, book.getGenre());
+        assertEquals(summaries, BookSchema.authorSummaries(v2));
+    }
+
+    @Test
+    void datesKeepTheirDayInEveryTimeZone() {
+        Date nextDay = Date.from(Instant.parse("1954-07-30T00:00:00Z"));
+        for (String zone : new String[] {"UTC", "Europe/Stockholm", "Pacific/Kiritimati", "America/Los_Angeles"}) {
+            TimeZone.setDefault(TimeZone.getTimeZone(zone));
+
+            assertEquals(-5635, BookSchema.V2.published(MIDNIGHT_UTC), zone);
+            assertEquals(MIDNIGHT_UTC, readBackFromV2(MIDNIGHT_UTC), zone);
+            assertEquals(nextDay, readBackFromV2(nextDay), zone);
+
+            // the local midnights of older clients keep their day in their own zone
+            assertEquals(-5635, BookSchema.V2.published(LEGACY_MIDNIGHT), zone);
+            assertEquals(MIDNIGHT_UTC, readBackFromV2(LEGACY_MIDNIGHT), zone);
+            Date winterMidnight = Date.from(Instant.parse("1954-01-14T23:00:00Z"));
+            assertEquals(LocalDate.of(1954, 1, 15), CalendarDays.toLocalDate(winterMidnight), zone);
+        }
+    }
+
+    @Test
+    void v1DatesReadAsTheirCalendarDay() {
+        assertEquals(MIDNIGHT_UTC, BookSchema.toBook(v1Book(LEGACY_MIDNIGHT)).getPublished());
+        assertEquals(MIDNIGHT_UTC, BookSchema.toBook(v1Book(MIDNIGHT_UTC)).getPublished());
+
+        Document v2 = BookSchema.V2.convert(v1Book(LEGACY_MIDNIGHT));
+        assertEquals(-5635, v2.get("p"), "converting keeps the day an older client wrote");
+    }
+
+    @Test
+    void v1BoundIncludesBothWaysOfStoringTheDay() {
+        Date bound = (Date) BookSchema.V1.publishedBound(MIDNIGHT_UTC);
+        assertEquals(LEGACY_MIDNIGHT, bound);
+        Date dayBefore = Date.from(Instant.parse("1954-07-28T00:00:00Z"));
+        Date legacyDayBefore = Date.from(Instant.parse("1954-07-27T23:00:00Z"));
+        assertTrue(dayBefore.before(bound));
+        assertTrue(legacyDayBefore.before(bound));
+    }
+
+    @Test
+    void publishedBoundRoundsUpToAWholeDay() {
+        assertEquals(-5635, BookSchema.V2.publishedBound(MIDNIGHT_UTC));
+        Date morning = Date.from(Instant.parse("1954-07-29T08:00:00Z"));
+        assertEquals(Date.from(Instant.parse("1954-07-29T23:00:00Z")), BookSchema.V1.publishedBound(morning));
+        assertEquals(-5634, BookSchema.V2.publishedBound(morning));
+    }
+
+    private static Document v1Book(Date published) {
+        return new Document("bookId", 7)
+                .append("isbn", "0261103253")
+                .append("title", "The Two Towers")
+                .append("published", published)
+                .append("rating", 4)
+                .append("genre", "DRAMA")
+                .append("authors", Arrays.asList(1));
+    }
+
+    private static Date readBackFromV2(Date published) {
+        Book book = new Book(1, "0261103253", "Title", published, 3, Genre.DRAMA);
+        Document v2 = BookSchema.V2.fields(book).append("bookId", 1);
+        return BookSchema.toBook(v2).getPublished();
+    }
+
+    private static void assertBook(Book expected, Book actual) {
+        assertEquals(expected.getBookId(), actual.getBookId());
+        assertEquals(expected.getIsbn(), actual.getIsbn());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getPublished(), actual.getPublished());
+        assertEquals(expected.getRating(), actual.getRating());
+        assertEquals(expected.getGenre(), actual.getGenre());
+        assertEquals(expected.getVersion(), actual.getVersion());
+    }
+}
@@ -0,0 +1,48 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class BookSortTest {
+    private final Book dune = new Book(1, "0000000001", "Dune", date("1965-08-01"), 5, Genre.ACTION);
+    private final Book anansi = new Book(2, "0000000002", "Anansi Boys", date("2005-09-20"), 3, Genre.COMEDY);
+    private final Book undated = new Book(3, "0000000003", "Undated", null, 4, Genre.DRAMA);
+
+    @Test
+    void sortsInMemoryLikeTheIndexes() {
+        assertEquals(Arrays.asList(1, 3, 2), sorted(BookSort.Rating));
+        assertEquals(Arrays.asList(2, 1, 3), sorted(BookSort.Published), "newest first, undated last");
+        assertEquals(Arrays.asList(2, 1, 3), sorted(BookSort.Title));
+    }
+
+    @Test
+    void describesTheSortedField() {
+        assertEquals("rating", BookSort.Rating.getField());
+        assertEquals(-1, BookSort.Rating.getDirection());
+        assertEquals("published", BookSort.Published.getField());
+        assertEquals(-1, BookSort.Published.getDirection());
+        assertEquals("title", BookSort.Title.getField());
+        assertEquals(1, BookSort.Title.getDirection());
+    }
+
+    private List<Integer> sorted(BookSort sort) {
+        List<Book> books = new ArrayList<>(Arrays.asList(undated, dune, anansi));
+        books.sort(sort.comparator());
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getBookId());
+        }
+        return ids;
+    }
+
+    private static Date date(String day) {
+        return Date.from(Instant.parse(day + "T00:00:00Z"));
+    }
+}
@@ -0,0 +1,302 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BooksDbImplTest {
+
+    @Test
+    void authorSearchJoinsTheLegacyAuthorIdsInV1() {
+        String pipeline = render(BooksDbImpl.authorSearchPipeline(BookSchema.V1, Filters.eq("lastName", "Tolkien"),
+                false));
+
+        assertTrue(pipeline.contains("{\"$lookup\": {\"from\": \"books\", \"localField\": \"authorID\", "
+                + "\"foreignField\": \"authorIDs\", \"as\": \"legacyBook\"}}"), pipeline);
+        assertTrue(pipeline.contains("{\"$setUnion\": [\"$book\", \"$legacyBook\"]}"), pipeline);
+        assertTrue(pipeline.contains("{\"$setUnion\": [{\"$ifNull\": [\"$authors\", []]}, "
+                + "{\"$ifNull\": [\"$authorIDs\", []]}]}"), pipeline);
+        assertTrue(pipeline.contains("\"localField\": \"allAuthorIds\""), pipeline);
+    }
+
+    @Test
+    void authorSearchUsesOnlyTheCompactFieldInV2() {
+        String pipeline = render(BooksDbImpl.authorSearchPipeline(BookSchema.V2, Filters.eq("lastName", "Tolkien"),
+                false));
+
+        assertFalse(pipeline.contains("authorIDs"), pipeline);
+        assertFalse(pipeline.contains("$setUnion"), pipeline);
+        assertTrue(pipeline.contains("\"foreignField\": \"a\""), pipeline);
+        assertTrue(pipeline.contains("{\"$lookup\": {\"from\": \"authors\", \"localField\": \"a\""), pipeline);
+    }
+
+    @Test
+    void authorSearchLeavesEmbeddedSummariesToTheBooks() {
+        List<Bson> pipeline = BooksDbImpl.authorSearchPipeline(BookSchema.V1, Filters.eq("lastName", "Tolkien"), true);
+
+        assertEquals("{\"$replaceRoot\": {\"newRoot\": \"$book\"}}", render(pipeline.get(pipeline.size() - 1)));
+    }
+
+    @Test
+    void bookSearchMatchesSortsAndLimitsBeforeJoiningTheAuthors() {
+        List<Bson> pipeline = BooksDbImpl.bookSearchPipeline(BookSchema.V2, Filters.eq("r", 5),
+                Sorts.ascending("p"), 20, false);
+
+        assertEquals(Arrays.asList(
+                "{\"$match\": {\"r\": 5}}",
+                "{\"$sort\": {\"p\": 1}}",
+                "{\"$limit\": 20}",
+                "{\"$lookup\": {\"from\": \"authors\", \"localField\": \"a\", \"foreignField\": \"authorID\", "
+                        + "\"as\": \"authorDocs\"}}"),
+                Arrays.asList(render(pipeline).split("\n")));
+    }
+
+    @Test
+    void bookSearchJoinsTheLegacyAuthorIdsInV1() {
+        String pipeline = render(BooksDbImpl.bookSearchPipeline(BookSchema.V1, Filters.eq("isbn", "0000000001"),
+                null, 0, false));
+
+        assertFalse(pipeline.contains("$sort"), pipeline);
+        assertFalse(pipeline.contains("$limit"), pipeline);
+        assertTrue(pipeline.contains("{\"$setUnion\": [{\"$ifNull\": [\"$authors\", []]}, "
+                + "{\"$ifNull\": [\"$authorIDs\", []]}]}"), pipeline);
+        assertTrue(pipeline.contains("{\"$lookup\": {\"from\": \"authors\", \"localField\": \"allAuthorIds\""),
+                pipeline);
+    }
+
+    @Test
+    void bookSearchLeavesEmbeddedSummariesToTheBooks() {
+        List<Bson> pipeline = BooksDbImpl.bookSearchPipeline(BookSchema.V2, Filters.eq("r", 5), null, 0, true);
+
+        assertEquals("{\"$match\": {\"r\": 5}}", render(pipeline));
+    }
+
+    @Test
+    void joinedBooksListTheirAuthorsInTheBooksOrder() {
+        Book book = new Book(7, "0000000007", "Good Omens", null, 4, Genre.COMEDY);
+        Document bookDoc = new Document("bookId", 7).append("authors", Collections.singletonList(2))
+                .append(AuthorFieldMigration.LEGACY_FIELD, Arrays.asList(2, 1))
+                .append("authorDocs", Arrays.asList(
+                        new Document("authorID", 1).append("firstName", "Neil").append("lastName", "Gaiman"),
+                        new Document("authorID", 2).append("firstName", "Terry").append("lastName", "Pratchett")));
+        bookDoc.putAll(BookSchema.V1.fields(book));
+
+        Book joined = BooksDbImpl.joinedBook(bookDoc);
+
+        assertEquals("Good Omens", joined.getTitle());
+        assertEquals(2, joined.getAuthors().size());
+        assertEquals("Pratchett", joined.getAuthors().get(0).getLastName());
+        assertEquals("Gaiman", joined.getAuthors().get(1).getLastName());
+    }
+
+    /**
+     * Nothing listens on port 1, so the connect fails after the server selection timeout.
+     * Callers racing with it must only ever see BooksDbException, and the failed connect
+     * must leave the data layer ready for another attempt.
+     */
+    @Test
+    void failedConnectLeavesNoHalfOpenConnection() throws InterruptedException {
+        BooksDbImpl db = new BooksDbImpl(null, "mongodb://127.0.0.1:1/?directConnection=true");
+        AtomicBoolean connecting = new AtomicBoolean(true);
+        ConcurrentLinkedQueue<Throwable> races = new ConcurrentLinkedQueue<>();
+        Thread[] callers = new Thread[4];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new Thread(() -> {
+                while (connecting.get()) {
+                    try {
+                        db.searchBooksByTitle("dune");
+                        races.add(new AssertionError("a search ran without a connection"));
+                    } catch (BooksDbException e) {
+                        // expected: not connected
+                    } catch (RuntimeException e) {
+                        races.add(e);
+                    }
+                    try {
+                        db.addAuthor(new Author(1, "Frank", "Herbert", null));
+                        races.add(new AssertionError("a write ran without a connection"));
+                    } catch (BooksDbException e) {
+                        // expected: not connected
+                    } catch (RuntimeException e) {
+                        races.add(e);
+                    }
+                }
+            });
+            callers[i].start();
+        }
+        try {
+            BooksDbException failed = assertThrows(BooksDbException.class, () -> db.connect("library"));
+            assertTrue(failed.getMessage().startsWith("Error connecting to MongoDB"), failed.getMessage());
+        } finally {
+            connecting.set(false);
+            for (Thread caller : callers) {
+                caller.join();
+            }
+        }
+
+        assertEquals(Collections.emptyList(), new ArrayList<>(races));
+        assertEquals(BooksDbImpl.State.DISCONNECTED, db.getState());
+        BooksDbException notConnected = assertThrows(BooksDbException.class, () -> db.searchBooksByISBN("1"));
+        assertEquals("Not connected to a database", notConnected.getMessage());
+        assertThrows(BooksDbException.class, db::disconnect);
+        assertEquals(BooksDbImpl.State.DISCONNECTED, db.getState());
+    }
+
+    @Test
+    void embeddedSummariesAreUsedOnlyWhenTheyCoverEveryAuthor() {
+        Document pratchett = summary(2, "Terry", "Pratchett");
+        Document gaiman = summary(1, "Neil", "Gaiman");
+
+        Document complete = new Document("bookId", 7).append("i", "0000000007").append("a", Arrays.asList(2, 1))
+                .append("as", Arrays.asList(pratchett, gaiman));
+        assertEquals(Arrays.asList(pratchett, gaiman), BooksDbImpl.completeAuthorSummaries(complete));
+
+        Document missingAuthor = new Document("bookId", 7).append("i", "0000000007").append("a", Arrays.asList(2, 1))
+                .append("as", Collections.singletonList(pratchett));
+        assertNull(BooksDbImpl.completeAuthorSummaries(missingAuthor));
+
+        Document withoutBirthDate = new Document("bookId", 7).append("i", "0000000007")
+                .append("a", Collections.singletonList(2))
+                .append("as", Collections.singletonList(new Document("authorID", 2).append("lastName", "Pratchett")));
+        assertNull(BooksDbImpl.completeAuthorSummaries(withoutBirthDate), "written before summaries had birth dates");
+
+        Document legacyAuthor = new Document("bookId", 7).append("isbn", "0000000007")
+                .append("authors", Collections.singletonList(2))
+                .append(AuthorFieldMigration.LEGACY_FIELD, Collections.singletonList(1))
+                .append("authorSummaries", Collections.singletonList(pratchett));
+        assertNull(BooksDbImpl.completeAuthorSummaries(legacyAuthor), "the legacy author has no summary");
+
+        assertNull(BooksDbImpl.completeAuthorSummaries(
+                new Document("bookId", 7).append("i", "0000000007").append("a", Arrays.asList(2, 1))));
+    }
+
+    private static Document summary(int authorId, String firstName, String lastName) {
+        return new Document("authorID", authorId).append("firstName", firstName).append("lastName", lastName)
+                .append("birthDate", null);
+    }
+
+    /**
+     * Every combination of genre and sort of a rating range search must find an index with
+     * the genre (equality), then the sort field, then the rating (range), so the server
+     * reads only the returned books instead of sorting all matches.
+     */
+    @Test
+    void everyRatingRangeSearchHasAnEqualitySortRangeIndex() {
+        for (BookSchema s : BookSchema.values()) {
+            List<BsonDocument> indexes = createdBookIndexes(s);
+            for (BookSort sort : BookSort.values()) {
+                BsonDocument order = renderDocument(BooksDbImpl.ratingRangeOrder(s, sort));
+                String sortKey = order.getFirstKey();
+                assertEquals(s.key(sort.getField()), sortKey);
+                assertEquals(sort.getDirection(), order.getInt32(sortKey).getValue());
+
+                assertTrue(hasIndex(indexes, sortKey, s.key("rating")), s + " " + sort + " without a genre");
+                assertTrue(hasIndex(indexes, s.key("genre"), sortKey, s.key("rating")), s + " " + sort + " in a genre");
+            }
+        }
+    }
+
+    /**
+     * @return whether an index starts with the fields, a field sorted on and ranged over
+     *         counting once
+     */
+    private static boolean hasIndex(List<BsonDocument> indexes, String... fields) {
+        List<String> prefix = new ArrayList<>(new LinkedHashSet<>(Arrays.asList(fields)));
+        for (BsonDocument index : indexes) {
+            List<String> keys = new ArrayList<>(index.keySet());
+            if (keys.size() >= prefix.size() && keys.subList(0, prefix.size()).equals(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the key patterns of the book indexes created for the layout
+     */
+    @SuppressWarnings("unchecked")
+    private static List<BsonDocument> createdBookIndexes(BookSchema s) {
+        List<BsonDocument> indexes = new ArrayList<>();
+        MongoCollection<Document> books = (MongoCollection<Document>) Proxy.newProxyInstance(
+                MongoCollection.class.getClassLoader(), new Class<?>[] {MongoCollection.class},
+                (proxy, method, args) -> {
+                    if (!method.getName().equals("createIndex")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    indexes.add(renderDocument((Bson) args[0]));
+                    return "index";
+                });
+        BooksDbImpl.createBookIndexes(books, s);
+        return indexes;
+    }
+
+    @Test
+    void versionGuardTakesAMissingVersionAsTheFirst() {
+        Book neverUpdated = new Book(7, "0000000007", "Dune", null, 4, Genre.ACTION);
+        Book updated = new Book(7, "0000000007", "Dune", null, 4, Genre.ACTION);
+        updated.setVersion(3);
+
+        assertEquals("{\"$and\": [{\"bookId\": 7}, {\"version\": {\"$in\": [0, null]}}]}",
+                render(BooksDbImpl.bookVersionFilter(BookSchema.Phase.V1, neverUpdated)));
+        assertEquals("{\"$and\": [{\"bookId\": 7}, {\"v\": 3}]}",
+                render(BooksDbImpl.bookVersionFilter(BookSchema.Phase.V2, updated)));
+        assertEquals("{\"$and\": [{\"bookId\": 7}, {\"version\": 3}]}",
+                render(BooksDbImpl.bookVersionFilter(BookSchema.Phase.EXPANDING, updated)));
+    }
+
+    @Test
+    void bookUpdateSetsOnlyTheChangedFieldsInEveryWrittenLayout() {
+        Book book = new Book(7, "0000000007", "Dune", null, 4, Genre.ACTION);
+        book.setVersion(3);
+
+        BsonDocument expanding = renderDocument(BooksDbImpl.bookUpdate(BookSchema.Phase.EXPANDING, book,
+                new BookChanges("Dune Messiah", null, 5, null)));
+        BsonDocument sets = expanding.getDocument("$set");
+
+        assertEquals(Collections.singleton("$set"), expanding.keySet(), expanding.toJson());
+        assertEquals(new LinkedHashSet<>(Arrays.asList("title", "titleFolded", "rating", "version",
+                "t", "tf", "r", "v")), sets.keySet());
+        assertEquals("dune messiah", sets.getString("tf").getValue());
+        assertEquals(4, sets.getNumber("version").longValue());
+        assertEquals(4, sets.getNumber("v").longValue());
+
+        BsonDocument v2 = renderDocument(BooksDbImpl.bookUpdate(BookSchema.Phase.CONTRACTING, book,
+                BookChanges.rating(2))).getDocument("$set");
+        assertEquals(new LinkedHashSet<>(Arrays.asList("r", "v")), v2.keySet());
+    }
+
+    private static String render(List<Bson> pipeline) {
+        List<String> stages = new ArrayList<>();
+        for (Bson stage : pipeline) {
+            stages.add(render(stage));
+        }
+        return String.join("\n", stages);
+    }
+
+    private static String render(Bson stage) {
+        return renderDocument(stage).toJson();
+    }
+
+    private static BsonDocument renderDocument(Bson bson) {
+        return bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+}
@@ -0,0 +1,87 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CallPermitsTest {
+
+    @Test
+    void drainWaitsForTheCallsInProgress() throws InterruptedException {
+        CallPermits permits = new CallPermits();
+        assertTrue(permits.tryAcquire());
+        CountDownLatch drained = new CountDownLatch(1);
+        Thread closer = new Thread(() -> {
+            permits.drain();
+            drained.countDown();
+        });
+        closer.start();
+
+        assertFalse(drained.await(200, TimeUnit.MILLISECONDS), "drain returned with a call in progress");
+        assertFalse(permits.tryAcquire(), "a draining connection takes no new calls");
+        assertEquals(1, permits.inUse());
+
+        permits.release();
+        assertTrue(drained.await(5, TimeUnit.SECONDS));
+        assertEquals(0, permits.inUse());
+    }
+
+    /**
+     * The pattern of BooksDbImpl.acquire: a check that throws after the permit was taken
+     * must give it back, or the connection can never be closed.
+     */
+    @Test
+    void failedCallsGiveTheirPermitBack() throws InterruptedException {
+        CallPermits permits = new CallPermits();
+        for (int i = 0; i < 100; i++) {
+            assertThrows(IllegalStateException.class, () -> acquireThenFail(permits));
+        }
+        assertEquals(0, permits.inUse());
+
+        Thread closer = new Thread(permits::drain);
+        closer.start();
+        closer.join(5_000);
+        assertFalse(closer.isAlive());
+    }
+
+    @Test
+    void concurrentCallsBalance() throws InterruptedException {
+        CallPermits permits = new CallPermits();
+        Thread[] callers = new Thread[8];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new Thread(() -> {
+                for (int j = 0; j < 10_000; j++) {
+                    if (permits.tryAcquire()) {
+                        permits.release();
+                    }
+                }
+            });
+            callers[i].start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+        assertEquals(0, permits.inUse());
+    }
+
+    private static void acquireThenFail(CallPermits permits) {
+        assertTrue(permits.tryAcquire());
+        boolean acquired = false;
+        try {
+            if (permits.inUse() > 0) {
+                throw new IllegalStateException("phase refresh failed");
+            }
+            acquired = true;
+        } finally {
+            if (!acquired) {
+                permits.release();
+            }
+        }
+    }
+}
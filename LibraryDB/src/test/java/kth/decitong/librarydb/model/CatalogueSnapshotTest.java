@@ -0,0 +1,144 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class CatalogueSnapshotTest {
+    private final Author tolkien = new Author(1, "J. R. R.", "Tolkien", null);
+    private final Author marquez = new Author(2, "Gabriel", "García Márquez", null);
+
+    @Test
+    void searchesTheBaseThroughItsIndexes() {
+        CatalogueSnapshot snapshot = catalogue();
+
+        assertEquals(ids(1), ids(snapshot.searchBooksByISBN("0000000001")));
+        assertEquals(ids(), ids(snapshot.searchBooksByISBN("9999999999")));
+        assertEquals(ids(1, 2), ids(snapshot.searchBooksByTitle(TextQuery.parse("the"), 10)));
+        assertEquals(ids(3), ids(snapshot.searchBooksByTitle(TextQuery.parse("Anos"), 10)));
+        assertEquals(ids(3), ids(snapshot.searchBooksByAuthor(TextQuery.parse("marquez"), 10)));
+        assertEquals(ids(3), ids(snapshot.searchBooksByAuthor(TextQuery.parse("Garc.a"), 10)));
+        assertEquals(ids(1, 2), ids(snapshot.searchBooksByGenre("DRAMA")));
+        assertEquals(ids(), ids(snapshot.searchBooksByGenre("POETRY")));
+        assertEquals(ids(3), ids(snapshot.searchBooksByRating(4)));
+        assertEquals(ids(1, 3), ids(snapshot.searchBooksByRating(4, 5, null, BookSort.Rating.comparator(), 10)));
+        assertEquals(ids(2, 3), ids(snapshot.searchBooksByPublished(date("1954-11-11"), date("2000-01-01"), 10)));
+    }
+
+    @Test
+    void writesGoToTheOverlayWithoutChangingTheBase() {
+        CatalogueSnapshot base = catalogue();
+        Book retitled = book(2, "0000000002", "El otoño del patriarca", "1975-01-01", 1, Genre.COMEDY, marquez);
+        Book added = book(4, "0000000004", "The Silmarillion", "1977-09-15", 4, Genre.DRAMA, tolkien);
+
+        CatalogueSnapshot changed = base.withBooks(2, Arrays.asList(retitled, added), Collections.singletonList(1));
+
+        assertEquals(2, changed.getChangeToken());
+        assertEquals(3, changed.overlaySize());
+        assertEquals(ids(1, 2, 3), ids(base.getBooks()));
+        assertEquals("The Two Towers", base.getBook(2).getTitle());
+
+        assertNull(changed.getBook(1));
+        assertEquals("El otoño del patriarca", changed.getBook(2).getTitle());
+        assertEquals(ids(3, 2, 4), ids(changed.getBooks()));
+        assertEquals(ids(4), ids(changed.searchBooksByTitle(TextQuery.parse("the"), 10)));
+        assertEquals(ids(3, 2), ids(changed.searchBooksByAuthor(TextQuery.parse("marquez"), 10)));
+        assertEquals(ids(4), ids(changed.searchBooksByGenre("DRAMA")));
+        assertEquals(ids(2), ids(changed.searchBooksByRating(1)));
+        assertEquals(ids(2), ids(changed.searchBooksByISBN("0000000002")));
+        assertEquals(ids(), ids(changed.searchBooksByISBN("0000000001")));
+        assertEquals(ids(3, 2, 4), ids(changed.searchBooksByPublished(date("1900-01-01"), date("2000-01-01"), 10)));
+        assertEquals(ids(3), ids(changed.searchBooksByPublished(date("1900-01-01"), date("2000-01-01"), 1)));
+
+        CatalogueSnapshot compacted = changed.compacted();
+        assertEquals(0, compacted.overlaySize());
+        assertSame(compacted, compacted.compacted());
+        assertEquals(ids(changed.getBooks()), ids(compacted.getBooks()));
+        assertEquals(ids(changed.searchBooksByAuthor(TextQuery.parse("marquez"), 10)),
+                ids(compacted.searchBooksByAuthor(TextQuery.parse("marquez"), 10)));
+    }
+
+    @Test
+    void changedAuthorsShowInTheirBooks() {
+        CatalogueSnapshot snapshot = catalogue();
+        Author renamed = new Author(1, "John Ronald Reuel", "Tolkien", null);
+
+        CatalogueSnapshot changed = snapshot.withAuthor(2, renamed);
+
+        assertEquals(3, changed.overlaySize(), "the author and the two books written by the author");
+        assertEquals("John Ronald Reuel", changed.getBook(1).getAuthors().get(0).getFirstName());
+        assertEquals(ids(1, 2), ids(changed.searchBooksByAuthor(TextQuery.parse("ronald"), 10)));
+        assertEquals(ids(), ids(snapshot.searchBooksByAuthor(TextQuery.parse("ronald"), 10)));
+        assertEquals(2, changed.getAuthors().size());
+        assertEquals("John Ronald Reuel", changed.getAuthors().get(0).getFirstName());
+
+        Author newAuthor = new Author(3, "Ursula", "Le Guin", null);
+        CatalogueSnapshot coAuthored = changed.withBookAuthor(3, 3, newAuthor);
+        assertEquals(3, coAuthored.getAuthors().size());
+        assertEquals(ids(3), ids(coAuthored.searchBooksByAuthor(TextQuery.parse("le guin"), 10)));
+        assertEquals(ids(3), ids(coAuthored.searchBooksByAuthor(TextQuery.parse("marquez"), 10)));
+    }
+
+    @Test
+    void savesTheOverlayWithTheCatalogue(@TempDir Path directory) throws IOException {
+        CatalogueSnapshot changed = catalogue()
+                .withAuthor(2, new Author(3, "Ursula", "Le Guin", null))
+                .withBooks(3, Collections.singletonList(
+                        book(4, "0000000004", "A Wizard of Earthsea", "1968-11-01", 5, Genre.ACTION,
+                                new Author(3, "Ursula", "Le Guin", null))),
+                        Collections.singletonList(2));
+        Path file = directory.resolve("catalogue.snapshot");
+
+        CatalogueSnapshot.write(file, changed.getChangeToken(), changed.getAuthors(), changed.getBooks());
+        CatalogueSnapshot read = CatalogueSnapshot.read(file);
+
+        assertEquals(3, read.getChangeToken());
+        assertEquals(ids(1, 3, 4), ids(read.getBooks()));
+        assertEquals(3, read.getAuthors().size());
+        assertEquals(ids(4), ids(read.searchBooksByAuthor(TextQuery.parse("guin"), 10)));
+    }
+
+    private CatalogueSnapshot catalogue() {
+        return new CatalogueSnapshot(1, Arrays.asList(tolkien, marquez), Arrays.asList(
+                book(1, "0000000001", "The Fellowship of the Ring", "1954-07-29", 5, Genre.DRAMA, tolkien),
+                book(2, "0000000002", "The Two Towers", "1954-11-11", 3, Genre.DRAMA, tolkien),
+                book(3, "0000000003", "Cien años de soledad", "1967-05-30", 4, Genre.COMEDY, marquez)));
+    }
+
+    private static Book book(int id, String isbn, String title, String published, int rating, Genre genre,
+                             Author... authors) {
+        Book book = new Book(id, isbn, title, date(published), rating, genre);
+        for (Author author : authors) {
+            book.addAuthors(author);
+        }
+        return book;
+    }
+
+    private static Date date(String day) {
+        return Date.from(Instant.parse(day + "T00:00:00Z"));
+    }
+
+    private static List<Integer> ids(Integer... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static List<Integer> ids(List<Book> books) {
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getBookId());
+        }
+        return ids;
+    }
+}
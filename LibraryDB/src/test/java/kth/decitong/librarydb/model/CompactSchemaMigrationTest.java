@@ -0,0 +1,86 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.UpdateOneModel;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompactSchemaMigrationTest {
+    private static final CompactSchemaMigration EXPANSION = CompactSchemaMigration.expansion(null, null, 1, 10, 0);
+    private static final CompactSchemaMigration CONTRACTION = CompactSchemaMigration.contraction(null, null, 1, 10, 0);
+
+    /**
+     * Books written by older clients, by the application in V1 and during the expansion
+     * in both layouts all read as the same book, before and after the migration.
+     */
+    @Test
+    void migratesACatalogueMixingBothLayouts() {
+        Document legacy = v1Book(1, Date.from(Instant.parse("1999-12-31T23:00:00Z")));
+        Document utc = v1Book(2, Date.from(Instant.parse("2000-01-01T00:00:00Z")));
+        Document both = v1Book(3, Date.from(Instant.parse("2000-01-01T00:00:00Z")));
+        both.putAll(BookSchema.V2.convert(both));
+
+        for (Document bookDoc : Arrays.asList(legacy, utc, both)) {
+            Book before = BookSchema.toBook(bookDoc);
+            assertEquals(Date.from(Instant.parse("2000-01-01T00:00:00Z")), before.getPublished());
+
+            Document expanded = new Document(bookDoc);
+            BsonDocument set = update(EXPANSION, bookDoc).getDocument("$set");
+            set.forEach((key, value) -> expanded.put(key, value.isInt32() ? value.asInt32().getValue() : null));
+            assertEquals(10957, set.getInt32("p").getValue(), "the 1st of January 2000");
+            assertEquals(BookSchema.V2, BookSchema.of(expanded));
+
+            Document contracted = new Document(bookDoc);
+            contracted.putAll(BookSchema.V2.convert(bookDoc));
+            for (String key : update(CONTRACTION, contracted).getDocument("$unset").keySet()) {
+                contracted.remove(key);
+            }
+            assertFalse(contracted.containsKey("published"));
+            Book after = BookSchema.toBook(contracted);
+            assertEquals(before.getPublished(), after.getPublished());
+            assertEquals(before.getTitle(), after.getTitle());
+            assertEquals(before.getGenre(), after.getGenre());
+            assertEquals(Arrays.asList(1, 2), BookSchema.authorIds(contracted));
+        }
+    }
+
+    @Test
+    void expansionIsGuardedByTheFieldsThatChangeWithoutAVersion() {
+        Document bookDoc = v1Book(1, Date.from(Instant.parse("2000-01-01T00:00:00Z")));
+        BsonDocument filter = render(((UpdateOneModel<Document>) EXPANSION.rewrite(bookDoc)).getFilter());
+        String guards = filter.toJson();
+        for (String field : new String[] {"version", "authors", AuthorFieldMigration.LEGACY_FIELD, "authorSummaries"}) {
+            assertTrue(guards.contains("\"" + field + "\""), field);
+        }
+    }
+
+    private static BsonDocument update(CompactSchemaMigration migration, Document bookDoc) {
+        return render(((UpdateOneModel<Document>) migration.rewrite(bookDoc)).getUpdate());
+    }
+
+    private static BsonDocument render(org.bson.conversions.Bson bson) {
+        return bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+
+    private static Document v1Book(int bookId, Date published) {
+        return new Document("_id", bookId)
+                .append("bookId", bookId)
+                .append("isbn", "000000000" + bookId)
+                .append("title", "Book " + bookId)
+                .append("published", published)
+                .append("rating", 3)
+                .append("genre", "CRIME")
+                .append("authors", Arrays.asList(1))
+                .append(AuthorFieldMigration.LEGACY_FIELD, Arrays.asList(2))
+                .append("version", 1L);
+    }
+}
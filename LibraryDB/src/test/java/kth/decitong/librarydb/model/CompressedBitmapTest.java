@@ -0,0 +1,231 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompressedBitmapTest {
+    private static final int CHUNK = 1 << 16;
+    /** The most values a chunk keeps as a sorted array before it becomes a bitmap. */
+    private static final int ARRAY_MAX = 4096;
+
+    @Test
+    void emptyBitmap() {
+        CompressedBitmap empty = new CompressedBitmap();
+        CompressedBitmap other = bitmapOf(1, 2, CHUNK + 3);
+
+        assertEquals(0, empty.cardinality());
+        assertFalse(empty.contains(0));
+        assertEquals(0, empty.and(other).cardinality());
+        assertEquals(0, other.and(empty).cardinality());
+        assertEquals(0, empty.andCardinality(other));
+        assertEquals(3, CompressedBitmap.or(Arrays.asList(empty, other)).cardinality());
+        assertEquals(0, CompressedBitmap.or(Collections.emptyList()).cardinality());
+        assertEquals(0, empty.rangeCardinality(0, Integer.MAX_VALUE));
+        assertEquals(0, empty.first(new int[4]));
+    }
+
+    @Test
+    void chunkAtTheArrayLimitThenOneMore() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        BitSet expected = new BitSet();
+        // every 16th value of the chunk, so the array fills up before the chunk does
+        for (int i = 0; i < ARRAY_MAX; i++) {
+            bitmap.add(i * 16);
+            expected.set(i * 16);
+        }
+        assertMatches(expected, bitmap);
+
+        bitmap.add(7);
+        expected.set(7);
+        assertMatches(expected, bitmap);
+        assertFalse(bitmap.contains(8));
+
+        // adding a value that is already there changes nothing on either side of the limit
+        bitmap.add(7);
+        bitmap.add(16);
+        assertMatches(expected, bitmap);
+    }
+
+    @Test
+    void intersectionOfBitmapChunksShrinksBackBelowTheArrayLimit() {
+        CompressedBitmap even = new CompressedBitmap();
+        CompressedBitmap multiplesOfThree = new CompressedBitmap();
+        for (int i = 0; i < CHUNK; i++) {
+            if (i % 2 == 0) {
+                even.add(i);
+            }
+            if (i % 3 == 0) {
+                multiplesOfThree.add(i);
+            }
+        }
+        CompressedBitmap multiplesOfSix = even.and(multiplesOfThree);
+        BitSet expected = new BitSet();
+        for (int i = 0; i < CHUNK; i += 6) {
+            expected.set(i);
+        }
+        assertMatches(expected, multiplesOfSix);
+
+        CompressedBitmap sparse = bitmapOf(6, 7, 12, 13, 60000);
+        assertMatches(bitSetOf(6, 12, 60000), multiplesOfSix.and(sparse));
+        assertMatches(bitSetOf(6, 12, 60000), sparse.and(multiplesOfSix));
+        assertEquals(3, multiplesOfSix.andCardinality(sparse));
+        assertEquals(3, sparse.andCardinality(multiplesOfSix));
+    }
+
+    @Test
+    void unionOfArrayChunksGrowsPastTheArrayLimit() {
+        CompressedBitmap low = new CompressedBitmap();
+        CompressedBitmap high = new CompressedBitmap();
+        BitSet expected = new BitSet();
+        for (int i = 0; i < ARRAY_MAX; i++) {
+            low.add(i);
+            high.add(CHUNK - 1 - i);
+            expected.set(i);
+            expected.set(CHUNK - 1 - i);
+        }
+        CompressedBitmap union = CompressedBitmap.or(Arrays.asList(low, high));
+        assertMatches(expected, union);
+        assertEquals(0, low.andCardinality(high));
+    }
+
+    @Test
+    void orOfOneBitmapIsACopy() {
+        CompressedBitmap bitmap = bitmapOf(1, 2, 3);
+        CompressedBitmap copy = CompressedBitmap.or(Collections.singletonList(bitmap));
+        copy.add(4);
+        assertFalse(bitmap.contains(4));
+        assertEquals(3, bitmap.cardinality());
+    }
+
+    @Test
+    void randomSetsAgreeWithBitSet() {
+        Random random = new Random(42);
+        for (int round = 0; round < 20; round++) {
+            BitSet a = randomSet(random);
+            BitSet b = randomSet(random);
+            BitSet c = randomSet(random);
+            CompressedBitmap bitmapA = bitmapOf(a);
+            CompressedBitmap bitmapB = bitmapOf(b);
+            CompressedBitmap bitmapC = bitmapOf(c);
+
+            BitSet and = (BitSet) a.clone();
+            and.and(b);
+            assertMatches(and, bitmapA.and(bitmapB));
+            assertEquals(and.cardinality(), bitmapA.andCardinality(bitmapB));
+
+            BitSet or = (BitSet) a.clone();
+            or.or(b);
+            or.or(c);
+            assertMatches(or, CompressedBitmap.or(Arrays.asList(bitmapA, bitmapB, bitmapC)));
+
+            int from = random.nextInt(4 * CHUNK);
+            int to = from + random.nextInt(2 * CHUNK);
+            assertEquals(a.get(from, to).cardinality(), bitmapA.rangeCardinality(from, to));
+        }
+    }
+
+    @Test
+    void rangeAcrossChunkBoundaries() {
+        CompressedBitmap range = CompressedBitmap.range(CHUNK - 10, 2 * CHUNK + 10);
+        assertEquals(CHUNK + 20, range.cardinality());
+        assertFalse(range.contains(CHUNK - 11));
+        assertTrue(range.contains(CHUNK - 10));
+        assertTrue(range.contains(2 * CHUNK + 9));
+        assertFalse(range.contains(2 * CHUNK + 10));
+
+        assertEquals(0, CompressedBitmap.range(5, 5).cardinality());
+        assertEquals(0, CompressedBitmap.range(-1, 5).cardinality());
+        assertEquals(1, CompressedBitmap.range(CHUNK - 1, CHUNK).cardinality());
+
+        CompressedBitmap values = bitmapOf(CHUNK - 1, CHUNK, CHUNK + 1, 3 * CHUNK);
+        assertEquals(2, values.rangeCardinality(CHUNK - 1, CHUNK + 1));
+        assertEquals(3, values.rangeCardinality(0, 3 * CHUNK));
+        assertEquals(4, values.rangeCardinality(0, 3 * CHUNK + 1));
+        assertEquals(0, values.rangeCardinality(CHUNK + 2, CHUNK + 2));
+        assertEquals(2, values.andCardinality(CompressedBitmap.range(CHUNK, CHUNK + 2)));
+    }
+
+    @Test
+    void firstValuesInIncreasingOrder() {
+        CompressedBitmap bitmap = bitmapOf(2 * CHUNK + 5, 3, CHUNK, 1);
+        int[] firstThree = new int[3];
+        assertEquals(3, bitmap.first(firstThree));
+        assertArrayEquals(new int[] {1, 3, CHUNK}, firstThree);
+
+        int[] all = new int[10];
+        assertEquals(4, bitmap.first(all));
+        assertArrayEquals(new int[] {1, 3, CHUNK, 2 * CHUNK + 5}, Arrays.copyOf(all, 4));
+
+        CompressedBitmap dense = CompressedBitmap.range(100, 100 + 2 * ARRAY_MAX);
+        int[] firstTwo = new int[2];
+        assertEquals(2, dense.first(firstTwo));
+        assertArrayEquals(new int[] {100, 101}, firstTwo);
+    }
+
+    @Test
+    void negativeValuesAreRejected() {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        assertThrows(IllegalArgumentException.class, () -> bitmap.add(-1));
+        assertFalse(bitmap.contains(-1));
+    }
+
+    /**
+     * A few chunks, some sparse enough for arrays and some dense enough for bitmaps.
+     */
+    private static BitSet randomSet(Random random) {
+        BitSet set = new BitSet();
+        for (int chunk = 0; chunk < 4; chunk++) {
+            if (random.nextInt(4) == 0) {
+                continue;
+            }
+            int values = random.nextBoolean() ? random.nextInt(ARRAY_MAX) : ARRAY_MAX + random.nextInt(4 * ARRAY_MAX);
+            for (int i = 0; i < values; i++) {
+                set.set(chunk * CHUNK + random.nextInt(CHUNK));
+            }
+        }
+        return set;
+    }
+
+    private static CompressedBitmap bitmapOf(int... values) {
+        CompressedBitmap bitmap = new CompressedBitmap();
+        for (int value : values) {
+            bitmap.add(value);
+        }
+        return bitmap;
+    }
+
+    private static CompressedBitmap bitmapOf(BitSet values) {
+        return bitmapOf(values.stream().toArray());
+    }
+
+    private static BitSet bitSetOf(int... values) {
+        BitSet set = new BitSet();
+        for (int value : values) {
+            set.set(value);
+        }
+        return set;
+    }
+
+    private static void assertMatches(BitSet expected, CompressedBitmap actual) {
+        assertEquals(expected.cardinality(), actual.cardinality());
+        int[] values = new int[expected.cardinality()];
+        assertEquals(values.length, actual.first(values));
+        assertArrayEquals(expected.stream().toArray(), values);
+        int last = expected.length() + 1;
+        List<Integer> probes = Arrays.asList(0, 1, last, last + CHUNK);
+        for (int probe : probes) {
+            assertEquals(expected.get(probe), actual.contains(probe), "contains " + probe);
+        }
+    }
+}
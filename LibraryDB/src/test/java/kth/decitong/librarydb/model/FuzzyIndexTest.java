@@ -0,0 +1,81 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class FuzzyIndexTest {
+    private final Author tolkien = new Author(1, "John", "Tolkien", null);
+    private final Author herbert = new Author(2, "Frank", "Herbert", null);
+    private final FuzzyIndex index = new FuzzyIndex(7, Arrays.asList(
+            book(1, "The Hobbit", tolkien),
+            book(2, "The Two Towers", tolkien),
+            book(3, "Dune", herbert),
+            book(4, "Dune Messiah", herbert),
+            book(5, "Children of Dune", herbert)));
+
+    @Test
+    void toleratesOneTypoInShortWordsAndTwoInLongOnes() {
+        assertEquals(ids(1), ids(index.search("hobit", 10)));
+        assertEquals(ids(4), ids(index.search("mesiah", 10)));
+        assertEquals(ids(), ids(index.search("hbbt", 10)), "two edits in a word of four letters");
+        assertEquals(ids(), ids(index.search("dnue", 10)), "a transposition is two edits");
+        assertEquals(ids(1, 2), ids(index.search("tolkein", 10)));
+        assertEquals(ids(5, 3, 4), ids(index.search("herbret", 10)));
+    }
+
+    @Test
+    void matchesVeryShortWordsExactly() {
+        assertEquals(ids(5), ids(index.search("of", 10)));
+        assertEquals(ids(), ids(index.search("od", 10)));
+    }
+
+    @Test
+    void ranksBooksMatchingMoreWordsFirst() {
+        // equal scores are ordered like the books, by title
+        assertEquals(ids(4, 5, 3), ids(index.search("dune mesiah", 10)));
+        assertEquals(ids(2, 1), ids(index.search("two tolkien", 10)));
+        assertEquals(ids(4), ids(index.search("dune mesiah", 1)));
+        assertEquals(ids(), ids(index.search("dune", 0)));
+    }
+
+    @Test
+    void keepsTheChangeTokenItWasBuiltAt() {
+        assertEquals(7, index.getChangeToken());
+        assertEquals(ids(), ids(new FuzzyIndex(0, new ArrayList<>()).search("dune", 10)));
+    }
+
+    @Test
+    void inMemoryCatalogueRebuildsTheIndexAfterAChange() throws BooksDbException {
+        InMemoryBooksDb db = new InMemoryBooksDb();
+        db.connect("test");
+        db.addBook(new Book(1, "0000000001", "Dune", null, 5, Genre.ACTION));
+        assertEquals(ids(1), ids(db.searchBooksFuzzy("dume")));
+
+        db.addBook(new Book(2, "0000000002", "Dune Messiah", null, 4, Genre.ACTION));
+
+        assertEquals(ids(1, 2), ids(db.searchBooksFuzzy("dume")));
+    }
+
+    private static Book book(int id, String title, Author author) {
+        Book book = new Book(id, String.format("%010d", id), title, null, 3, Genre.DRAMA);
+        book.addAuthors(author);
+        return book;
+    }
+
+    private static List<Integer> ids(Integer... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static List<Integer> ids(List<Book> books) {
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getBookId());
+        }
+        return ids;
+    }
+}
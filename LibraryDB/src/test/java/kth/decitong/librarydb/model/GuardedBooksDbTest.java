@@ -0,0 +1,196 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoTimeoutException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class GuardedBooksDbTest {
+
+    private interface Search {
+        List<Book> run() throws BooksDbException;
+    }
+
+    /**
+     * Counts the title searches and runs them as the test says; everything else is the
+     * in-memory catalogue.
+     */
+    private static final class StubBooksDb extends InMemoryBooksDb {
+        final AtomicInteger searches = new AtomicInteger();
+        volatile Search search = Collections::emptyList;
+
+        @Override
+        public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+            searches.incrementAndGet();
+            return search.run();
+        }
+    }
+
+    @Test
+    void failedCallsGiveTheirPermitBack() throws BooksDbException {
+        StubBooksDb stub = new StubBooksDb();
+        GuardedBooksDb guarded = new GuardedBooksDb(stub, 1, 1, 1, 0, 100, 3, 10_000);
+
+        stub.search = () -> {
+            throw new BooksDbException("Error searching for books by title in MongoDB: no such index");
+        };
+        for (int i = 0; i < 10; i++) {
+            assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+        }
+        stub.search = () -> {
+            throw new IllegalStateException("bug in the data layer");
+        };
+        for (int i = 0; i < 10; i++) {
+            assertThrows(IllegalStateException.class, () -> guarded.searchBooksByTitle("x"));
+        }
+
+        stub.search = Collections::emptyList;
+        assertEquals(Collections.emptyList(), guarded.searchBooksByTitle("x"),
+                "the only search permit was not given back");
+        assertEquals(21, stub.searches.get());
+    }
+
+    @Test
+    void rejectsCallsBeyondTheQueueAndKeepsTheKindsApart() throws Exception {
+        StubBooksDb stub = new StubBooksDb();
+        stub.connect("test");
+        GuardedBooksDb guarded = new GuardedBooksDb(stub, 1, 1, 1, 0, 100, 3, 10_000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        stub.search = () -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Collections.emptyList();
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<Book>> slow = executor.submit(() -> guarded.searchBooksByTitle("slow"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            BooksDbException rejected = assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+            assertTrue(rejected.getMessage().contains("Too many pending search requests"), rejected.getMessage());
+            assertEquals(1, stub.searches.get(), "a rejected call reached the data layer");
+
+            guarded.addAuthor(new Author(1, "Ursula", "Le Guin", null));
+            assertEquals(1, guarded.getAllAuthors().size(), "a busy search held up writes and reads");
+
+            finish.countDown();
+            slow.get(5, TimeUnit.SECONDS);
+            stub.search = Collections::emptyList;
+            guarded.searchBooksByTitle("x");
+        } finally {
+            finish.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void waitingCallsGiveUpAfterTheMaximumWait() throws Exception {
+        StubBooksDb stub = new StubBooksDb();
+        GuardedBooksDb guarded = new GuardedBooksDb(stub, 1, 1, 1, 1, 100, 3, 10_000);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        stub.search = () -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Collections.emptyList();
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<Book>> slow = executor.submit(() -> guarded.searchBooksByTitle("slow"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            BooksDbException timedOut = assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+            assertTrue(timedOut.getMessage().contains("Timed out waiting"), timedOut.getMessage());
+
+            finish.countDown();
+            slow.get(5, TimeUnit.SECONDS);
+            guarded.searchBooksByTitle("x");
+            assertEquals(2, stub.searches.get());
+        } finally {
+            finish.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void breakerOpensAfterRepeatedTimeoutsAndClosesAfterASuccessfulTrial() throws Exception {
+        StubBooksDb stub = new StubBooksDb();
+        GuardedBooksDb guarded = new GuardedBooksDb(stub, 2, 1, 1, 0, 100, 2, 200);
+        stub.search = () -> {
+            throw new BooksDbException("Error searching for books by title in MongoDB: timed out",
+                    new MongoTimeoutException("Timed out after 30000 ms"));
+        };
+
+        assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+        assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+        BooksDbException open = assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+        assertTrue(open.getMessage().startsWith("Database unavailable"), open.getMessage());
+        assertEquals(2, stub.searches.get(), "an open breaker let a call through");
+
+        Thread.sleep(300);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+        stub.search = () -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Collections.emptyList();
+        };
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<List<Book>> trial = executor.submit(() -> guarded.searchBooksByTitle("trial"));
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            BooksDbException halfOpen = assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+            assertTrue(halfOpen.getMessage().contains("checking whether it has recovered"), halfOpen.getMessage());
+
+            finish.countDown();
+            trial.get(5, TimeUnit.SECONDS);
+            guarded.searchBooksByTitle("x");
+            guarded.searchBooksByTitle("x");
+            assertEquals(5, stub.searches.get());
+        } finally {
+            finish.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failedTrialOpensTheBreakerAgain() throws Exception {
+        StubBooksDb stub = new StubBooksDb();
+        GuardedBooksDb guarded = new GuardedBooksDb(stub, 1, 1, 1, 0, 100, 1, 200);
+        stub.search = () -> {
+            throw new BooksDbException("timed out", new MongoTimeoutException("Timed out after 30000 ms"));
+        };
+        assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+
+        Thread.sleep(300);
+        assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("trial"));
+        assertEquals(2, stub.searches.get());
+        BooksDbException open = assertThrows(BooksDbException.class, () -> guarded.searchBooksByTitle("x"));
+        assertTrue(open.getMessage().startsWith("Database unavailable, retry in"), open.getMessage());
+        assertEquals(2, stub.searches.get());
+    }
+}
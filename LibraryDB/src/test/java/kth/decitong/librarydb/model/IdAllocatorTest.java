@@ -0,0 +1,155 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoException;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IdAllocatorTest {
+
+    /**
+     * A 'counters' collection holding one counter document, updated atomically like the
+     * server does.
+     */
+    private static final class Counters {
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger leases = new AtomicInteger();
+        final AtomicBoolean failing = new AtomicBoolean();
+
+        @SuppressWarnings("unchecked")
+        MongoCollection<Document> collection() {
+            return (MongoCollection<Document>) Proxy.newProxyInstance(MongoCollection.class.getClassLoader(),
+                    new Class<?>[] {MongoCollection.class}, (proxy, method, args) -> {
+                        BsonDocument update = render((Bson) args[1]);
+                        switch (method.getName()) {
+                            case "findOneAndUpdate":
+                                if (failing.get()) {
+                                    throw new MongoException("not primary");
+                                }
+                                leases.incrementAndGet();
+                                int inc = update.getDocument("$inc").getNumber("next").intValue();
+                                return new Document("_id", "books").append("next", next.addAndGet(inc));
+                            case "updateOne":
+                                int max = update.getDocument("$max").getNumber("next").intValue();
+                                next.accumulateAndGet(max, Math::max);
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+
+    @Test
+    void leasesOneBlockPerBlockSizeIds() throws BooksDbException {
+        Counters counters = new Counters();
+        IdAllocator allocator = new IdAllocator(counters.collection(), "books", 10);
+
+        List<Integer> ids = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            ids.add(allocator.nextId());
+        }
+
+        assertEquals(1, (int) ids.get(0), "ids start at 1");
+        assertEquals(25, new HashSet<>(ids).size());
+        assertEquals(3, counters.leases.get());
+        assertEquals(30, counters.next.get());
+    }
+
+    @Test
+    void concurrentClientsNeverGetTheSameId() throws InterruptedException {
+        Counters counters = new Counters();
+        ConcurrentLinkedQueue<Integer> ids = new ConcurrentLinkedQueue<>();
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread[] clients = new Thread[4];
+        for (int c = 0; c < clients.length; c++) {
+            IdAllocator allocator = new IdAllocator(counters.collection(), "books", 7);
+            clients[c] = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    try {
+                        ids.add(allocator.nextId());
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    }
+                }
+            });
+            clients[c].start();
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+
+        assertEquals(Collections.emptyList(), new ArrayList<>(failures));
+        assertEquals(2000, new HashSet<>(ids).size());
+    }
+
+    @Test
+    void seedingSkipsTheIdsAlreadyInUse() throws BooksDbException {
+        Counters counters = new Counters();
+        IdAllocator allocator = new IdAllocator(counters.collection(), "books", 10);
+
+        allocator.seedFrom(highestId(new Document("bookId", 41)), "bookId");
+        allocator.seedFrom(highestId(new Document("bookId", 3)), "bookId");
+
+        assertEquals(42, allocator.nextId());
+        IdAllocator fresh = new IdAllocator(new Counters().collection(), "authors", 10);
+        fresh.seedFrom(highestId(null), "authorID");
+        assertEquals(1, fresh.nextId());
+    }
+
+    @Test
+    void failedLeaseIsRetriedByTheNextCall() throws BooksDbException {
+        Counters counters = new Counters();
+        IdAllocator allocator = new IdAllocator(counters.collection(), "books", 2);
+        assertEquals(1, allocator.nextId());
+
+        counters.failing.set(true);
+        BooksDbException failed = assertThrows(BooksDbException.class, allocator::nextId);
+        assertTrue(failed.getMessage().startsWith("Error allocating books ids: "), failed.getMessage());
+        assertThrows(BooksDbException.class, allocator::nextId);
+
+        counters.failing.set(false);
+        assertEquals(2, allocator.nextId());
+        assertEquals(3, allocator.nextId());
+        assertEquals(2, counters.leases.get());
+        assertThrows(IllegalArgumentException.class, () -> new IdAllocator(counters.collection(), "books", 0));
+    }
+
+    /**
+     * A collection whose sorted, limited find returns the given document.
+     */
+    @SuppressWarnings("unchecked")
+    private static MongoCollection<Document> highestId(Document highest) {
+        FindIterable<Document> found = (FindIterable<Document>) Proxy.newProxyInstance(
+                FindIterable.class.getClassLoader(), new Class<?>[] {FindIterable.class},
+                (proxy, method, args) -> method.getName().equals("first") ? highest : proxy);
+        return (MongoCollection<Document>) Proxy.newProxyInstance(MongoCollection.class.getClassLoader(),
+                new Class<?>[] {MongoCollection.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("find") || args != null) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return found;
+                });
+    }
+
+    private static BsonDocument render(Bson bson) {
+        return bson.toBsonDocument(Document.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+}
@@ -0,0 +1,213 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryBooksDbTest {
+
+    @Test
+    void searchesLikeTheMongoDbImplementation() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+
+        assertEquals(ids(1, 2), ids(db.searchBooksByTitle("the")));
+        assertEquals(ids(3), ids(db.searchBooksByTitle("anos")));
+        assertEquals(ids(3), ids(db.searchBooksByAuthor("marquez")));
+        assertEquals(ids(1, 2), ids(db.searchBooksByGenre("drama")));
+        assertEquals(ids(3), ids(db.searchBooksByRating(4)));
+        assertEquals(ids(2), ids(db.searchBooksByISBN("0000000002")));
+        assertEquals(ids(2, 3), ids(db.searchBooksByPublished(date("1954-11-11"), date("2000-01-01"))));
+        assertEquals("García Márquez", db.searchBooksByISBN("0000000003").get(0).getAuthors().get(0).getLastName());
+    }
+
+    @Test
+    void callersNeverShareTheStoredBooks() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+        Book found = db.searchBooksByISBN("0000000001").get(0);
+
+        found.addAuthors(new Author(9, "Someone", "Else", null));
+
+        assertEquals(1, db.searchBooksByISBN("0000000001").get(0).getAuthors().size());
+    }
+
+    @Test
+    void importSkipsBooksWithAKnownIdOrIsbn() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+        Book sameId = new Book(1, "0000000009", "Another", date("2001-01-01"), 3, Genre.DRAMA);
+        Book sameIsbn = new Book(9, "0000000002", "Another", date("2001-01-01"), 3, Genre.DRAMA);
+        Book fresh = new Book(10, "0000000010", "The Silmarillion", date("1977-09-15"), 4, Genre.DRAMA);
+
+        List<Book> skipped = db.importBooks(Arrays.asList(sameId, sameIsbn, fresh));
+
+        assertEquals(Arrays.asList(sameId, sameIsbn), skipped);
+        assertEquals(ids(10), ids(db.searchBooksByISBN("0000000010")));
+        assertThrows(BooksDbException.class, () -> db.addBook(fresh));
+    }
+
+    @Test
+    void rejectsCallsWhenNotConnected() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+        db.disconnect();
+
+        assertThrows(BooksDbException.class, () -> db.searchBooksByTitle("the"));
+        assertThrows(BooksDbException.class, db::disconnect);
+    }
+
+    @Test
+    void concurrentWritersAndReadersSeeConsistentBooks() throws Exception {
+        InMemoryBooksDb db = new InMemoryBooksDb();
+        db.connect("test");
+        Author author = new Author(1, "Ursula", "Le Guin", null);
+        db.addAuthor(author);
+        ConcurrentLinkedQueue<Throwable> failures = new ConcurrentLinkedQueue<>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            int writer = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        int bookId = writer * 1000 + i;
+                        Book book = new Book(bookId, String.format("%010d", bookId), "Earthsea " + bookId,
+                                date("1968-11-01"), 5, Genre.ACTION);
+                        db.addBook(book);
+                        db.addAuthorToBook(author, book);
+                        for (Book found : db.searchBooksByTitle("earthsea")) {
+                            if (found.getAuthors().size() > 1) {
+                                failures.add(new AssertionError("book " + found.getBookId() + " has "
+                                        + found.getAuthors().size() + " authors"));
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Collections.emptyList(), new ArrayList<>(failures));
+        assertEquals(800, db.searchBooksByTitle("earthsea").size());
+        assertEquals(800, db.searchBooksByAuthor("guin").size());
+    }
+
+    @Test
+    void ratingRangeSearchReturnsTheFirstBooksInTheGivenOrder() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+        db.addBook(new Book(4, "0000000004", "Anansi Boys", date("2005-09-20"), 4, Genre.COMEDY));
+        db.addBook(new Book(5, "0000000005", "Undated", null, 2, Genre.COMEDY));
+
+        assertEquals(Arrays.asList(4, 3), ordered(db.searchBooksByRating(4, 5, "comedy", BookSort.Published, 10)));
+        assertEquals(Arrays.asList(4, 3, 5), ordered(db.searchBooksByRating(1, 5, "COMEDY", BookSort.Published, 10)));
+        assertEquals(Arrays.asList(4, 3), ordered(db.searchBooksByRating(1, 5, "COMEDY", BookSort.Title, 2)));
+        assertEquals(Arrays.asList(1), ordered(db.searchBooksByRating(5, 5, null, BookSort.Rating, 10)));
+        assertEquals(ids(1, 3, 4), ids(db.searchBooksByRating(4, 5, null, BookSort.Rating, 10)));
+        assertEquals(5, ordered(db.searchBooksByRating(1, 5, null, BookSort.Rating, 10)).get(4));
+        assertEquals(ids(), ids(db.searchBooksByRating(4, 5, null, BookSort.Rating, 0)));
+        assertEquals(ids(), ids(db.searchBooksByRating(5, 4, null, BookSort.Rating, 10)));
+    }
+
+    @Test
+    void updatesBasedOnAStaleCopyAreRejected() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+        Book mine = db.searchBooksByISBN("0000000002").get(0);
+        Book theirs = db.searchBooksByISBN("0000000002").get(0);
+
+        Book updated = db.updateBook(theirs, BookChanges.rating(5));
+        BooksDbException conflict = assertThrows(BooksDbException.class,
+                () -> db.updateBook(mine, new BookChanges("The Return of the King", null, null, null)));
+
+        assertTrue(conflict.getMessage().contains("was changed by someone else"), conflict.getMessage());
+        assertEquals(1, updated.getVersion());
+        assertEquals(1, updated.getAuthors().size());
+        Book stored = db.searchBooksByISBN("0000000002").get(0);
+        assertEquals("The Two Towers", stored.getTitle());
+        assertEquals(5, stored.getRating());
+        assertEquals(1, stored.getVersion());
+        assertEquals(ids(1, 2), ids(db.searchBooksByRating(5)));
+        assertThrows(BooksDbException.class, () -> db.updateBook(
+                new Book(9, "0000000009", "Missing", null, 1, Genre.DRAMA), BookChanges.rating(2)));
+    }
+
+    @Test
+    void batchUpdatesSkipBooksChangedInTheMeantime() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+        List<Book> listed = db.searchBooksByGenre("drama");
+        db.updateBook(db.searchBooksByISBN("0000000001").get(0), new BookChanges("Fellowship", null, null, null));
+
+        assertEquals(1, db.updateBooks(listed, BookChanges.rating(1)));
+        assertEquals(0, db.updateBooks(listed, new BookChanges(null, null, null, null)));
+
+        assertEquals(5, db.searchBooksByISBN("0000000001").get(0).getRating());
+        assertEquals(1, db.searchBooksByISBN("0000000002").get(0).getRating());
+        assertEquals(1, db.searchBooksByISBN("0000000002").get(0).getVersion());
+    }
+
+    @Test
+    void authorUpdatesAreVersionedAndShowInTheirBooks() throws BooksDbException {
+        InMemoryBooksDb db = catalogue();
+        Author stale = db.getAuthorsForBook(3).get(0);
+
+        Author renamed = db.updateAuthor(stale, new AuthorChanges("Gabo", null, null));
+
+        assertEquals(1, renamed.getVersion());
+        assertEquals("Gabo", db.searchBooksByISBN("0000000003").get(0).getAuthors().get(0).getFirstName());
+        assertThrows(BooksDbException.class, () -> db.updateAuthor(stale, new AuthorChanges(null, "Márquez", null)));
+        assertEquals("García Márquez", db.getAuthorsForBook(3).get(0).getLastName());
+    }
+
+    private static InMemoryBooksDb catalogue() throws BooksDbException {
+        InMemoryBooksDb db = new InMemoryBooksDb();
+        db.connect("test");
+        Author tolkien = new Author(1, "J. R. R.", "Tolkien", null);
+        Author marquez = new Author(2, "Gabriel", "García Márquez", null);
+        db.addAuthor(tolkien);
+        db.addAuthor(marquez);
+        add(db, new Book(1, "0000000001", "The Fellowship of the Ring", date("1954-07-29"), 5, Genre.DRAMA), tolkien);
+        add(db, new Book(2, "0000000002", "The Two Towers", date("1954-11-11"), 3, Genre.DRAMA), tolkien);
+        add(db, new Book(3, "0000000003", "Cien años de soledad", date("1967-05-30"), 4, Genre.COMEDY), marquez);
+        return db;
+    }
+
+    private static void add(InMemoryBooksDb db, Book book, Author author) throws BooksDbException {
+        db.addBook(book);
+        db.addAuthorToBook(author, book);
+    }
+
+    private static Date date(String day) {
+        return Date.from(Instant.parse(day + "T00:00:00Z"));
+    }
+
+    private static List<Integer> ids(Integer... ids) {
+        return Arrays.asList(ids);
+    }
+
+    private static List<Integer> ordered(List<Book> books) {
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getBookId());
+        }
+        return ids;
+    }
+
+    private static List<Integer> ids(List<Book> books) {
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getBookId());
+        }
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,104 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class RankedMergeTest {
+
+    @Test
+    void titleMatchesRankExactThenPrefixThenWordThenSubstring() {
+        Book substring = book(1, "Rethinking");
+        Book word = book(2, "The Thinking Machine");
+        Book prefix = book(3, "Thinking, Fast and Slow");
+        Book exact = book(4, "Thinking");
+
+        RankedMerge merge = new RankedMerge(" THINKING ");
+        List<Book> ranked = merge.add(SearchMode.Title, Arrays.asList(substring, word, prefix, exact));
+
+        assertEquals(Arrays.asList(exact, prefix, word, substring), ranked);
+    }
+
+    @Test
+    void isbnMatchRanksFirst() {
+        Book byIsbn = book(1, "Unrelated");
+        Book byTitle = book(2, "9780261103252");
+
+        RankedMerge merge = new RankedMerge("9780261103252");
+        merge.add(SearchMode.Title, Collections.singletonList(byTitle));
+        List<Book> ranked = merge.add(SearchMode.ISBN, Collections.singletonList(byIsbn));
+
+        assertEquals(Arrays.asList(byIsbn, byTitle), ranked);
+    }
+
+    @Test
+    void authorFullNameRanksAboveAPartOfTheName() {
+        Book fullName = book(1, "B", author(1, "Ursula", "Le Guin"));
+        Book lastName = book(2, "A", author(2, "Anne", "Ursula Le Guin Society"));
+        Book withoutNames = book(3, "C");
+
+        RankedMerge merge = new RankedMerge("ursula le guin");
+        List<Book> ranked = merge.add(SearchMode.Author, Arrays.asList(withoutNames, lastName, fullName));
+
+        assertEquals(Arrays.asList(fullName, lastName, withoutNames), ranked);
+    }
+
+    @Test
+    void bookFoundTwiceIsMergedWithABonus() {
+        Book titleOnly = book(1, "Dune Messiah");
+        Book inTitle = book(2, "Dune Messiah II");
+        Book inTitleWithAuthor = book(2, "Dune Messiah II", author(1, "Frank", "Herbert"));
+
+        RankedMerge merge = new RankedMerge("dune");
+        merge.add(SearchMode.Title, Arrays.asList(inTitle, titleOnly));
+        List<Book> ranked = merge.add(SearchMode.Author, Collections.singletonList(inTitleWithAuthor));
+
+        assertEquals(2, merge.size());
+        assertEquals(2, ranked.get(0).getBookId());
+        assertSame(inTitleWithAuthor, ranked.get(0), "the copy with the authors is kept");
+        assertEquals(1, ranked.get(1).getBookId());
+    }
+
+    @Test
+    void tiesAreBrokenByTitle() {
+        Book b = book(1, "Beta Tales");
+        Book a = book(2, "Alpha Tales");
+        Book c = book(3, "Gamma Tales");
+
+        List<Book> ranked = new RankedMerge("tales").add(SearchMode.Title, Arrays.asList(c, b, a));
+
+        assertEquals(Arrays.asList(a, b, c), ranked);
+    }
+
+    @Test
+    void resultsCanArriveInAnyOrder() {
+        Book byIsbn = book(1, "Other");
+        Book byTitle = book(2, "0261103253 notes");
+
+        RankedMerge titleFirst = new RankedMerge("0261103253");
+        titleFirst.add(SearchMode.Title, Collections.singletonList(byTitle));
+        List<Book> rankedTitleFirst = titleFirst.add(SearchMode.ISBN, Collections.singletonList(byIsbn));
+        RankedMerge isbnFirst = new RankedMerge("0261103253");
+        isbnFirst.add(SearchMode.ISBN, Collections.singletonList(byIsbn));
+        List<Book> rankedIsbnFirst = isbnFirst.add(SearchMode.Title, Collections.singletonList(byTitle));
+
+        assertEquals(rankedTitleFirst, rankedIsbnFirst);
+    }
+
+    private static Book book(int bookId, String title, Author... authors) {
+        Book book = new Book(bookId, String.format("%013d", bookId), title, null, 3, Genre.DRAMA);
+        for (Author author : authors) {
+            book.addAuthors(author);
+        }
+        return book;
+    }
+
+    private static Author author(int authorId, String firstName, String lastName) {
+        return new Author(authorId, firstName, lastName, null);
+    }
+}
@@ -0,0 +1,92 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ReadCacheTest {
+    private final AtomicLong changeToken = new AtomicLong(1);
+    private final AtomicInteger tokenReads = new AtomicInteger();
+    private final LongSupplier readChangeToken = () -> {
+        tokenReads.incrementAndGet();
+        return changeToken.get();
+    };
+    private final List<Author> authors = Arrays.asList(
+            new Author(1, "Ursula", "Le Guin", null), new Author(2, "Frank", "Herbert", null));
+
+    @Test
+    void keepsValuesUntilTheChangeTokenMoves() {
+        ReadCache cache = new ReadCache(0);
+        long generation = cache.validate(readChangeToken);
+        cache.putAuthors(generation, authors);
+        cache.putBooksByGenre(generation, "DRAMA", Collections.singletonList(book(1)));
+
+        assertEquals(generation, cache.validate(readChangeToken));
+        assertEquals(authors, cache.getAuthors());
+        assertEquals(1, cache.getBooksByGenre("DRAMA").size());
+        assertNull(cache.getBooksByGenre("COMEDY"));
+
+        changeToken.set(2);
+        long next = cache.validate(readChangeToken);
+
+        assertEquals(generation + 1, next);
+        assertNull(cache.getAuthors());
+        assertNull(cache.getBooksByGenre("DRAMA"));
+    }
+
+    @Test
+    void readsTheChangeTokenOncePerInterval() {
+        ReadCache cache = new ReadCache(60_000);
+        long generation = cache.validate(readChangeToken);
+        cache.putAuthors(generation, authors);
+        changeToken.set(2);
+
+        for (int i = 0; i < 10; i++) {
+            cache.validate(readChangeToken);
+        }
+
+        assertEquals(1, tokenReads.get());
+        assertEquals(authors, cache.getAuthors(), "served until the next check");
+
+        cache.invalidate();
+        cache.validate(readChangeToken);
+        assertEquals(2, tokenReads.get(), "an invalidation forces the next check");
+        assertNull(cache.getAuthors());
+    }
+
+    @Test
+    void dropsValuesReadBeforeAnInvalidation() {
+        ReadCache cache = new ReadCache(0);
+        long generation = cache.validate(readChangeToken);
+
+        cache.invalidate();
+        cache.putAuthors(generation, authors);
+        cache.putBooksByGenre(generation, "DRAMA", Collections.singletonList(book(1)));
+
+        assertNull(cache.getAuthors());
+        assertNull(cache.getBooksByGenre("DRAMA"));
+    }
+
+    @Test
+    void callersGetCopies() {
+        ReadCache cache = new ReadCache(0);
+        long generation = cache.validate(readChangeToken);
+        cache.putBooksByGenre(generation, "DRAMA", Collections.singletonList(book(1)));
+
+        cache.getBooksByGenre("DRAMA").add(book(2));
+
+        assertEquals(1, cache.getBooksByGenre("DRAMA").size());
+    }
+
+    private static Book book(int id) {
+        return new Book(id, String.format("%010d", id), "Book " + id, null, 3, Genre.DRAMA);
+    }
+}
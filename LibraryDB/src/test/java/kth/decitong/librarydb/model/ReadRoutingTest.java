@@ -0,0 +1,123 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.ReadConcern;
+import com.mongodb.ReadPreference;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Read routing and read-your-writes sessions of a {@link BooksDbImpl.Connection}. The
+ * client never reaches a server: collections are created lazily, and sessions come from
+ * a stand-in that records how they were advanced.
+ */
+class ReadRoutingTest {
+    private final MongoClient lazyClient = MongoClients.create("mongodb://127.0.0.1:1/?serverSelectionTimeoutMS=100");
+    /** The operation times read sessions were advanced to. */
+    private final List<BsonTimestamp> advancedTo = new ArrayList<>();
+
+    @AfterEach
+    void closeClient() {
+        lazyClient.close();
+    }
+
+    @Test
+    void readsFromThePrimaryUseTheWriteHandles() {
+        BooksDbImpl.Connection c = new BooksDbImpl.Connection(client(), "library", null, false);
+
+        assertTrue(c.readsFromPrimary);
+        assertSame(c.books, c.readBooks);
+        assertSame(c.authors, c.readAuthors);
+        assertNull(c.startReadSession());
+    }
+
+    @Test
+    void routedReadsGoToTheSecondariesWhileWritesStayOnThePrimary() {
+        ReadPreference secondary = ReadPreference.secondaryPreferred(90, TimeUnit.SECONDS);
+        BooksDbImpl.Connection c = new BooksDbImpl.Connection(client(), "library", secondary, true);
+
+        assertEquals(secondary, c.readBooks.getReadPreference());
+        assertEquals(secondary, c.readAuthors.getReadPreference());
+        assertEquals(ReadConcern.MAJORITY, c.readBooks.getReadConcern());
+        assertEquals(ReadPreference.primary(), c.books.getReadPreference());
+        assertEquals(ReadPreference.primary(), c.catalogueMeta.getReadPreference());
+    }
+
+    @Test
+    void readSessionsStartAfterTheLatestWrite() {
+        BooksDbImpl.Connection c = new BooksDbImpl.Connection(client(), "library", ReadPreference.secondary(), true);
+
+        c.startReadSession();
+        assertEquals(new ArrayList<>(), advancedTo, "nothing written yet");
+
+        BsonTimestamp earlier = new BsonTimestamp(1_700_000_000, 1);
+        BsonTimestamp later = new BsonTimestamp(1_700_000_000, 2);
+        c.recordWrite(session(later));
+        c.recordWrite(session(earlier));
+        c.recordWrite(session(null));
+        c.startReadSession();
+
+        assertEquals(List.of(later), advancedTo, "a write finishing late must not move the session back");
+    }
+
+    @Test
+    void rejectsStalenessBoundsTheServerRefuses() {
+        BooksDbImpl db = new BooksDbImpl();
+
+        assertThrows(IllegalArgumentException.class, () -> db.enableReadRouting("secondary", 30));
+        assertThrows(IllegalArgumentException.class, () -> db.enableReadRouting("fastest", 0));
+        db.enableReadRouting("nearest", 90);
+        db.enableReadRouting("primary", 0);
+    }
+
+    /**
+     * The lazy client, except that sessions are stand-ins recording their advances.
+     */
+    private MongoClient client() {
+        return (MongoClient) Proxy.newProxyInstance(MongoClient.class.getClassLoader(),
+                new Class<?>[] {MongoClient.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("startSession")) {
+                        return session(null);
+                    }
+                    return method.invoke(lazyClient, args);
+                });
+    }
+
+    private ClientSession session(BsonTimestamp operationTime) {
+        BsonDocument clusterTime = operationTime == null ? null
+                : new BsonDocument("clusterTime", operationTime).append("signature", new BsonInt64(0));
+        return (ClientSession) Proxy.newProxyInstance(ClientSession.class.getClassLoader(),
+                new Class<?>[] {ClientSession.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getOperationTime":
+                            return operationTime;
+                        case "getClusterTime":
+                            return clusterTime;
+                        case "advanceOperationTime":
+                            advancedTo.add((BsonTimestamp) args[0]);
+                            return null;
+                        case "advanceClusterTime":
+                        case "close":
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
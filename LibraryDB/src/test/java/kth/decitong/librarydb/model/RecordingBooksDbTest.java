@@ -0,0 +1,101 @@
+package kth.decitong.librarydb.model;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecordingBooksDbTest {
+    private static final String EVENT = "kth.decitong.librarydb.BooksDbCall";
+
+    /**
+     * Makes two round trips per title search and fails every ISBN search.
+     */
+    private static final class StubBooksDb extends InMemoryBooksDb {
+        @Override
+        public List<Book> searchBooksByTitle(String title) throws BooksDbException {
+            RoundTripCounter.increment();
+            RoundTripCounter.increment();
+            return super.searchBooksByTitle(title);
+        }
+
+        @Override
+        public ArrayList<Book> searchBooksByISBN(String ISBN) throws BooksDbException {
+            RoundTripCounter.increment();
+            throw new BooksDbException("Error searching for books by ISBN in MongoDB: timed out");
+        }
+    }
+
+    @Test
+    void recordsEachCallWithItsRowsRoundTripsAndOutcome(@TempDir Path directory) throws Exception {
+        RecordingBooksDb db = new RecordingBooksDb(new StubBooksDb());
+        List<RecordedEvent> events;
+        try (Recording recording = new Recording()) {
+            recording.enable(EVENT);
+            recording.start();
+
+            db.connect("test");
+            db.addBook(new Book(1, "0000000001", "Dune", null, 5, Genre.ACTION));
+            db.addBook(new Book(2, "0000000002", "Dune Messiah", null, 4, Genre.ACTION));
+            assertEquals(2, db.searchBooksByTitle("dune").size());
+            assertThrows(BooksDbException.class, () -> db.searchBooksByISBN("0000000001"));
+
+            recording.stop();
+            Path file = directory.resolve("calls.jfr");
+            recording.dump(file);
+            events = read(file);
+        }
+
+        assertEquals(Arrays.asList("connect", "addBook", "addBook", "searchBooksByTitle", "searchBooksByISBN"),
+                operations(events));
+        RecordedEvent search = events.get(3);
+        assertEquals(2, search.getInt("rows"));
+        assertEquals(2, search.getLong("roundTrips"));
+        assertFalse(search.getBoolean("failed"));
+        RecordedEvent failed = events.get(4);
+        assertEquals(0, failed.getInt("rows"));
+        assertEquals(1, failed.getLong("roundTrips"));
+        assertTrue(failed.getBoolean("failed"));
+    }
+
+    @Test
+    void callsWithoutARecordingStillReachTheDataLayer() throws BooksDbException {
+        RecordingBooksDb db = new RecordingBooksDb(new StubBooksDb());
+        db.connect("test");
+        db.addBook(new Book(1, "0000000001", "Dune", null, 5, Genre.ACTION));
+
+        assertEquals(1, db.searchBooksByTitle("dune").size());
+        assertThrows(BooksDbException.class, () -> db.searchBooksByISBN("0000000001"));
+    }
+
+    private static List<RecordedEvent> read(Path file) throws IOException {
+        List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            if (event.getEventType().getName().equals(EVENT)) {
+                events.add(event);
+            }
+        }
+        events.sort((a, b) -> a.getStartTime().compareTo(b.getStartTime()));
+        return events;
+    }
+
+    private static List<String> operations(List<RecordedEvent> events) {
+        List<String> operations = new ArrayList<>();
+        for (RecordedEvent event : events) {
+            operations.add(event.getString("operation"));
+        }
+        return operations;
+    }
+}
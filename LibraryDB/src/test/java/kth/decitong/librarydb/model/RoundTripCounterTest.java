@@ -0,0 +1,49 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class RoundTripCounterTest {
+
+    @Test
+    void countsRoundTripsPerThread() throws InterruptedException {
+        long before = RoundTripCounter.current();
+        Thread other = new Thread(() -> {
+            RoundTripCounter.increment();
+            RoundTripCounter.increment();
+        });
+        other.start();
+        other.join();
+
+        RoundTripCounter.increment();
+
+        assertEquals(before + 1, RoundTripCounter.current());
+    }
+
+    @Test
+    void tasksCountedAsCallerAddToTheCallersCount() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            long before = RoundTripCounter.current();
+            long poolCount = pool.submit(RoundTripCounter::current).get(5, TimeUnit.SECONDS);
+
+            pool.submit(RoundTripCounter.countedAsCaller(() -> {
+                RoundTripCounter.increment();
+                RoundTripCounter.increment();
+                return null;
+            })).get(5, TimeUnit.SECONDS);
+            pool.submit(() -> RoundTripCounter.increment()).get(5, TimeUnit.SECONDS);
+
+            assertEquals(before + 2, RoundTripCounter.current(), "only the scatter the caller waited for counts");
+            assertEquals(poolCount + 1, (long) pool.submit(RoundTripCounter::current).get(5, TimeUnit.SECONDS),
+                    "the pool thread keeps its own count");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ScalableBloomFilterTest {
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    @Test
+    void emptyFilterContainsNothing() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1000, FALSE_POSITIVE_RATE);
+        for (int i = 0; i < 1000; i++) {
+            assertFalse(filter.mightContain(i));
+            assertFalse(filter.mightContain(isbn(i)));
+        }
+    }
+
+    @Test
+    void noFalseNegativesWhileGrowing() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(100, FALSE_POSITIVE_RATE);
+        int keys = 100 * (1 + 2 + 4 + 8 + 16);
+        for (int i = 0; i < keys; i++) {
+            filter.add(i);
+            filter.add(isbn(i));
+        }
+        for (int i = 0; i < keys; i++) {
+            assertTrue(filter.mightContain(i), "key " + i);
+            assertTrue(filter.mightContain(isbn(i)), "key " + isbn(i));
+        }
+    }
+
+    @Test
+    void growsOnlyOnceTheNewestFilterIsFull() {
+        int capacity = 1000;
+        ScalableBloomFilter filter = new ScalableBloomFilter(capacity, FALSE_POSITIVE_RATE);
+        long initialSize = filter.sizeInBytes();
+        for (int i = 0; i < capacity; i++) {
+            filter.add(i);
+        }
+        assertEquals(initialSize, filter.sizeInBytes(), "size at capacity");
+
+        // a false positive of the first filter is not counted, so it may take a few more keys
+        for (int i = capacity; i < capacity + 100 && filter.sizeInBytes() == initialSize; i++) {
+            filter.add(i);
+        }
+        long grownSize = filter.sizeInBytes();
+        assertTrue(grownSize > 2 * initialSize, "the second filter holds twice as many keys");
+    }
+
+    @Test
+    void addingAKeyAgainDoesNotFillTheFilter() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(10, FALSE_POSITIVE_RATE);
+        long initialSize = filter.sizeInBytes();
+        for (int i = 0; i < 1000; i++) {
+            filter.add("9780000000001");
+        }
+        assertEquals(initialSize, filter.sizeInBytes());
+    }
+
+    @Test
+    void falsePositiveRateStaysBoundedAfterGrowth() {
+        ScalableBloomFilter filter = new ScalableBloomFilter(1000, FALSE_POSITIVE_RATE);
+        int keys = 64_000;
+        for (int i = 0; i < keys; i++) {
+            filter.add(isbn(i));
+        }
+        int probes = 100_000;
+        int falsePositives = 0;
+        for (int i = keys; i < keys + probes; i++) {
+            if (filter.mightContain(isbn(i))) {
+                falsePositives++;
+            }
+        }
+        // the keys and the hashes are fixed, so the measured rate is the same on every run
+        assertTrue(falsePositives < probes * FALSE_POSITIVE_RATE,
+                "false positive rate " + (double) falsePositives / probes);
+    }
+
+    @Test
+    void invalidParametersAreRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ScalableBloomFilter(0, FALSE_POSITIVE_RATE));
+        assertThrows(IllegalArgumentException.class, () -> new ScalableBloomFilter(100, 0));
+        assertThrows(IllegalArgumentException.class, () -> new ScalableBloomFilter(100, 1));
+    }
+
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
@@ -0,0 +1,43 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SchemaPhaseTest {
+    private static final BookSchema.Phase[] PHASES = BookSchema.Phase.values();
+
+    @Test
+    void migrationStepsInOrder() {
+        assertEquals(Arrays.asList(BookSchema.Phase.V1, BookSchema.Phase.EXPANDING, BookSchema.Phase.SWITCHING,
+                BookSchema.Phase.CONTRACTING, BookSchema.Phase.V2), Arrays.asList(PHASES));
+        assertEquals(BookSchema.V1, BookSchema.Phase.V1.readSchema());
+        assertEquals(Collections.singletonList(BookSchema.V1), BookSchema.Phase.V1.writeSchemas());
+        assertEquals(BookSchema.V2, BookSchema.Phase.V2.readSchema());
+        assertEquals(Collections.singletonList(BookSchema.V2), BookSchema.Phase.V2.writeSchemas());
+    }
+
+    @Test
+    void everyPhaseWritesTheLayoutItReads() {
+        for (BookSchema.Phase phase : PHASES) {
+            assertTrue(phase.writeSchemas().contains(phase.readSchema()), phase.name());
+        }
+    }
+
+    /**
+     * Clients are at most one step apart, so each must read what the other writes.
+     */
+    @Test
+    void neighbouringPhasesReadEachOthersWrites() {
+        for (int i = 0; i + 1 < PHASES.length; i++) {
+            BookSchema.Phase older = PHASES[i];
+            BookSchema.Phase newer = PHASES[i + 1];
+            assertTrue(older.writeSchemas().contains(newer.readSchema()), older + " writes what " + newer + " reads");
+            assertTrue(newer.writeSchemas().contains(older.readSchema()), newer + " writes what " + older + " reads");
+        }
+    }
+}
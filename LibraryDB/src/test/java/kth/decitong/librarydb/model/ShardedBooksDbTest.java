@@ -0,0 +1,191 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShardedBooksDbTest {
+    private static final int BOOKS = 200;
+    private final Author leGuin = new Author(1, "Ursula", "Le Guin", null);
+    private final Author herbert = new Author(2, "Frank", "Herbert", null);
+
+    @Test
+    void keepsEachBookOnOneShardAndEveryAuthorOnAll() throws BooksDbException {
+        List<InMemoryBooksDb> shards = shards(4);
+        ShardedBooksDb sharded = new ShardedBooksDb(shards);
+        fill(sharded);
+
+        int stored = 0;
+        for (InMemoryBooksDb shard : shards) {
+            int onShard = shard.searchBooksByPublished(date(0), date(BOOKS + 1)).size();
+            assertTrue(onShard > BOOKS / 8, "a shard holds only " + onShard + " books");
+            stored += onShard;
+            assertEquals(2, shard.getAllAuthors().size());
+        }
+        assertEquals(BOOKS, stored);
+        for (int bookId = 1; bookId <= BOOKS; bookId++) {
+            BooksDbInterface shard = sharded.shardFor(bookId);
+            assertEquals(1, shard.searchBooksByISBN(isbn(bookId)).size(), "book " + bookId + " is not on its shard");
+            assertEquals(1, sharded.getAuthorsForBook(bookId).size());
+        }
+    }
+
+    @Test
+    void mergesSearchesLikeASingleBackend() throws BooksDbException {
+        ShardedBooksDb sharded = new ShardedBooksDb(shards(3));
+        InMemoryBooksDb single = new InMemoryBooksDb();
+        single.connect("test");
+        fill(sharded);
+        fill(single);
+
+        assertEquals(sorted(single.searchBooksByTitle("book 1")), sorted(sharded.searchBooksByTitle("book 1")));
+        assertEquals(sorted(single.searchBooksByAuthor("herbert")), sorted(sharded.searchBooksByAuthor("herbert")));
+        assertEquals(sorted(single.searchBooksByGenre("drama")), sorted(sharded.searchBooksByGenre("drama")));
+        assertEquals(sorted(single.searchBooksByRating(3)), sorted(sharded.searchBooksByRating(3)));
+        assertEquals(ids(single.searchBooksByPublished(date(20), date(60))),
+                ids(sharded.searchBooksByPublished(date(20), date(60))));
+        assertEquals(ids(single.searchBooksByRating(2, 4, null, BookSort.Published, 15)),
+                ids(sharded.searchBooksByRating(2, 4, null, BookSort.Published, 15)));
+        assertEquals(ids(single.searchBooksByRating(1, 5, "action", BookSort.Title, 10)),
+                ids(sharded.searchBooksByRating(1, 5, "action", BookSort.Title, 10)));
+
+        FacetSelection everything = new FacetSelection(Collections.emptySet(), Collections.emptySet(), null, null);
+        FacetResult expected = single.searchBooksByFacets(everything, 10);
+        FacetResult merged = sharded.searchBooksByFacets(everything, 10);
+        assertEquals(expected.getTotal(), merged.getTotal());
+        assertEquals(expected.getGenreCounts(), merged.getGenreCounts());
+        assertEquals(expected.getRatingCounts(), merged.getRatingCounts());
+        assertEquals(expected.getYearCounts(), merged.getYearCounts());
+        assertEquals(ids(expected.getBooks()), ids(merged.getBooks()));
+    }
+
+    @Test
+    void importSkipsRepeatsWithinTheBatch() throws BooksDbException {
+        ShardedBooksDb sharded = new ShardedBooksDb(shards(3));
+        Book first = book(1);
+        Book sameIsbn = new Book(2, isbn(1), "Copy", date(2), 3, Genre.DRAMA);
+        Book sameId = new Book(1, isbn(3), "Copy", date(3), 3, Genre.DRAMA);
+        Book other = book(4);
+
+        List<Book> skipped = sharded.importBooks(Arrays.asList(first, sameIsbn, sameId, other));
+
+        assertEquals(2, skipped.size());
+        assertSame(sameIsbn, skipped.get(0));
+        assertSame(sameId, skipped.get(1));
+        assertEquals(Arrays.asList(1, 4), sorted(sharded.searchBooksByTitle("book")));
+    }
+
+    @Test
+    void failedConnectDisconnectsTheOtherShards() {
+        List<InMemoryBooksDb> shards = shards(0);
+        shards.add(new InMemoryBooksDb());
+        shards.add(new InMemoryBooksDb() {
+            @Override
+            public void connect(String database) throws BooksDbException {
+                throw new BooksDbException("Error connecting to MongoDB: timed out");
+            }
+        });
+        shards.add(new InMemoryBooksDb());
+        ShardedBooksDb sharded = new ShardedBooksDb(shards);
+
+        BooksDbException e = assertThrows(BooksDbException.class, () -> sharded.connect("test"));
+
+        assertTrue(e.getMessage().startsWith("Error connecting to shard 1"), e.getMessage());
+        assertThrows(BooksDbException.class, () -> shards.get(0).searchBooksByTitle("x"), "shard 0 still connected");
+        assertThrows(BooksDbException.class, () -> shards.get(2).searchBooksByTitle("x"), "shard 2 still connected");
+    }
+
+    @Test
+    void searchFailsWhenAnyShardFails() throws BooksDbException {
+        List<InMemoryBooksDb> shards = shards(2);
+        ShardedBooksDb sharded = new ShardedBooksDb(shards);
+        shards.get(1).disconnect();
+
+        BooksDbException e = assertThrows(BooksDbException.class, () -> sharded.searchBooksByTitle("book"));
+
+        assertTrue(e.getMessage().startsWith("Shard 1: "), e.getMessage());
+    }
+
+    @Test
+    void splitsShardConnectionStrings() {
+        assertEquals(Arrays.asList("mongodb://a:27017", "mongodb://b:27017"),
+                BooksDbImpl.splitConnectionStrings(" mongodb://a:27017,mongodb://b:27017 "));
+        assertEquals(Arrays.asList("mongodb://a:27017", "mongodb+srv://cluster.example.net/"),
+                BooksDbImpl.splitConnectionStrings("mongodb://a:27017\n  mongodb+srv://cluster.example.net/"));
+        assertEquals(Arrays.asList("mongodb://a:27017,b:27017/?replicaSet=rs0", "mongodb://c:27017"),
+                BooksDbImpl.splitConnectionStrings("mongodb://a:27017,b:27017/?replicaSet=rs0, mongodb://c:27017"));
+        assertEquals(Collections.emptyList(), BooksDbImpl.splitConnectionStrings("  "));
+    }
+
+    @Test
+    void needsAtLeastOneShard() {
+        assertThrows(IllegalArgumentException.class, () -> new ShardedBooksDb(new ArrayList<InMemoryBooksDb>()));
+        List<InMemoryBooksDb> one = shards(1);
+        assertSame(one.get(0), new ShardedBooksDb(one).shardFor(42));
+    }
+
+    private List<InMemoryBooksDb> shards(int count) {
+        List<InMemoryBooksDb> shards = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            InMemoryBooksDb shard = new InMemoryBooksDb();
+            try {
+                shard.connect("test");
+            } catch (BooksDbException e) {
+                throw new AssertionError(e);
+            }
+            shards.add(shard);
+        }
+        return shards;
+    }
+
+    private void fill(BooksDbInterface db) throws BooksDbException {
+        db.addAuthor(leGuin);
+        db.addAuthor(herbert);
+        for (int bookId = 1; bookId <= BOOKS; bookId++) {
+            Book book = book(bookId);
+            db.addBook(book);
+            db.addAuthorToBook(bookId % 2 == 0 ? leGuin : herbert, book);
+        }
+    }
+
+    private static Book book(int bookId) {
+        Genre genre = Genre.values()[bookId % Genre.values().length];
+        return new Book(bookId, isbn(bookId), "Book " + bookId, date(bookId), bookId % 5 + 1, genre);
+    }
+
+    private static String isbn(int bookId) {
+        return String.format("%010d", bookId);
+    }
+
+    /**
+     * @return a distinct publication date per book, a bit over a month apart
+     */
+    private static Date date(int bookId) {
+        return Date.from(Instant.parse("1950-01-01T00:00:00Z").plus(40L * bookId, ChronoUnit.DAYS));
+    }
+
+    private static List<Integer> ids(List<Book> books) {
+        List<Integer> ids = new ArrayList<>();
+        for (Book book : books) {
+            ids.add(book.getBookId());
+        }
+        return ids;
+    }
+
+    private static List<Integer> sorted(List<Book> books) {
+        List<Integer> ids = ids(books);
+        Collections.sort(ids);
+        return ids;
+    }
+}
@@ -0,0 +1,103 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TextQueryTest {
+
+    @Test
+    void foldRemovesCaseAndAccents() {
+        assertEquals("garcia marquez", TextQuery.fold("García Márquez"));
+        assertEquals("bronte", TextQuery.fold("BRONTË"));
+        assertEquals("cafe", TextQuery.fold("Café"));
+        assertEquals("", TextQuery.fold(""));
+        assertNull(TextQuery.fold(null));
+    }
+
+    @Test
+    void plainTextIsALiteral() {
+        TextQuery query = TextQuery.parse("Cien Años");
+        assertTrue(query.isLiteral());
+        assertFalse(query.isPrefix());
+        assertEquals("cien anos", query.getLiteral());
+        assertTrue(query.matches("Cien años de soledad"));
+        assertTrue(query.matches("Los cien anos"));
+        assertFalse(query.matches("Cien dias"));
+        assertFalse(query.matches(null));
+    }
+
+    @Test
+    void leadingCaretMakesAPrefix() {
+        TextQuery query = TextQuery.parse("^the");
+        assertTrue(query.isLiteral());
+        assertTrue(query.isPrefix());
+        assertEquals("the", query.getLiteral());
+        assertTrue(query.matches("The Hobbit"));
+        assertFalse(query.matches("Into the Wild"));
+        // MongoDB compares strings by code point, above every value that starts with 'the'
+        assertTrue(compareCodePoints("the", query.prefixEnd()) < 0);
+        assertTrue(compareCodePoints("the\uFFFF\uFFFF", query.prefixEnd()) < 0);
+        assertTrue(compareCodePoints("the" + new String(Character.toChars(0x10FFFE)), query.prefixEnd()) < 0);
+        assertTrue(compareCodePoints("thf", query.prefixEnd()) > 0);
+    }
+
+    @Test
+    void metacharactersMakeARegularExpression() {
+        for (String regex : new String[] {"a.c", "hob+it", "(war|peace)", "end$", "^x*", "[ab]c", "a\\.c"}) {
+            TextQuery query = TextQuery.parse(regex);
+            assertFalse(query.isLiteral(), regex);
+            assertNull(query.getLiteral(), regex);
+        }
+        TextQuery query = TextQuery.parse("war|peace");
+        assertTrue(query.matches("War and Peace"));
+        assertTrue(query.matches("PEACE"));
+        // a regular expression is matched against the unfolded value
+        assertFalse(TextQuery.parse("cafe.").matches("Café!"));
+        assertTrue(TextQuery.parse("caf.").matches("Café"));
+    }
+
+    @Test
+    void quotedTextIsALiteral() {
+        TextQuery query = TextQuery.parse(Pattern.quote("C++ (3rd ed.)"));
+        assertTrue(query.isLiteral());
+        assertFalse(query.isPrefix());
+        assertEquals("c++ (3rd ed.)", query.getLiteral());
+        assertTrue(query.matches("Learning C++ (3rd Ed.)"));
+        assertFalse(query.matches("Learning C (3rd Ed.)"));
+
+        TextQuery prefix = TextQuery.parse("^\\QÉtude.\\E");
+        assertTrue(prefix.isLiteral());
+        assertTrue(prefix.isPrefix());
+        assertEquals("etude.", prefix.getLiteral());
+        assertTrue(prefix.matches("Étude. No 1"));
+        assertFalse(prefix.matches("Une étude."));
+    }
+
+    @Test
+    void textAroundAQuoteIsARegularExpression() {
+        assertFalse(TextQuery.parse("\\Qa.b\\E.*").isLiteral());
+        assertFalse(TextQuery.parse("x\\Qa.b\\E").isLiteral());
+        assertFalse(TextQuery.parse("\\Qa\\E\\Qb\\E").isLiteral());
+        assertFalse(TextQuery.parse("\\Q\\E").isLiteral());
+        assertTrue(TextQuery.parse("\\Qa.b\\E.*").matches("xa.by"));
+    }
+
+    @Test
+    void invalidRegularExpressionIsRejected() {
+        assertThrows(PatternSyntaxException.class, () -> TextQuery.parse("(unclosed"));
+        assertThrows(PatternSyntaxException.class, () -> TextQuery.parse("*"));
+    }
+
+    private static int compareCodePoints(String a, String b) {
+        return Arrays.compare(a.codePoints().toArray(), b.codePoints().toArray());
+    }
+}
@@ -0,0 +1,101 @@
+package kth.decitong.librarydb.model;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertOneModel;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class WriteBehindQueueTest {
+    /** Keys of the documents written, in batches. */
+    private final List<List<Integer>> batches = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger commits = new AtomicInteger();
+
+    @Test
+    void unexpectedFailureFailsItsBatchAndKeepsTheFlusherRunning() throws Exception {
+        RuntimeException bug = new IllegalStateException("codec bug");
+        try (WriteBehindQueue queue = new WriteBehindQueue(collection(bug), "bookId", 10, 0, commits::incrementAndGet)) {
+            CompletableFuture<Void> failed = queue.insert(new Document("bookId", 1));
+            ExecutionException e = assertThrows(ExecutionException.class, () -> failed.get(5, TimeUnit.SECONDS));
+            assertInstanceOf(BooksDbException.class, e.getCause());
+            assertEquals(bug, e.getCause().getCause());
+
+            queue.insert(new Document("bookId", 2)).get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(Collections.singletonList(Collections.singletonList(2)), batches);
+        assertEquals(1, commits.get());
+    }
+
+    @Test
+    void databaseFailureFailsEveryWriteOfTheBatch() throws Exception {
+        MongoException down = new MongoException("not primary");
+        try (WriteBehindQueue queue = new WriteBehindQueue(collection(down), "bookId", 10, 50, commits::incrementAndGet)) {
+            CompletableFuture<Void> first = queue.insert(new Document("bookId", 1));
+            CompletableFuture<Void> second = queue.insert(new Document("bookId", 2));
+            for (CompletableFuture<Void> write : List.of(first, second)) {
+                ExecutionException e = assertThrows(ExecutionException.class, () -> write.get(5, TimeUnit.SECONDS));
+                assertEquals(down, e.getCause().getCause());
+            }
+        }
+        assertEquals(0, commits.get());
+    }
+
+    @Test
+    void writesWithTheSameKeyGoInSeparateBatchesInOrder() throws Exception {
+        try (WriteBehindQueue queue = new WriteBehindQueue(collection(null), "bookId", 10, 50, commits::incrementAndGet)) {
+            CompletableFuture<Void> first = queue.insert(new Document("bookId", 1));
+            CompletableFuture<Void> other = queue.insert(new Document("bookId", 2));
+            CompletableFuture<Void> again = queue.insert(new Document("bookId", 1));
+            CompletableFuture.allOf(first, other, again).get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(List.of(List.of(1, 2), List.of(1)), batches);
+    }
+
+    @Test
+    void closedQueueRefusesWrites() {
+        WriteBehindQueue queue = new WriteBehindQueue(collection(null), "bookId", 10, 0, commits::incrementAndGet);
+        queue.close();
+
+        ExecutionException e = assertThrows(ExecutionException.class,
+                () -> queue.insert(new Document("bookId", 1)).get(5, TimeUnit.SECONDS));
+        assertInstanceOf(BooksDbException.class, e.getCause());
+    }
+
+    /**
+     * A collection whose first bulk write throws the given failure, or none if it is null,
+     * and whose other bulk writes succeed.
+     */
+    @SuppressWarnings("unchecked")
+    private MongoCollection<Document> collection(RuntimeException firstFailure) {
+        AtomicInteger calls = new AtomicInteger();
+        return (MongoCollection<Document>) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {MongoCollection.class}, (proxy, method, args) -> {
+                    if (!method.getName().equals("bulkWrite")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    if (calls.getAndIncrement() == 0 && firstFailure != null) {
+                        throw firstFailure;
+                    }
+                    List<Integer> keys = new ArrayList<>();
+                    for (WriteModel<Document> model : (List<WriteModel<Document>>) args[0]) {
+                        keys.add(((InsertOneModel<Document>) model).getDocument().getInteger("bookId"));
+                    }
+                    batches.add(keys);
+                    return null;
+                });
+    }
+}
@@ -0,0 +1,123 @@
+package kth.decitong.librarydb.model;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class YearBucketsTest {
+
+    @Test
+    void collectsTheRangeOldestFirstWithAnExclusiveEnd() {
+        Book newYearsEve = book(1, "1999-12-31T23:59:59Z");
+        Book newYearsDay = book(2, "2000-01-01T00:00:00Z");
+        Book summer = book(3, "2000-07-01T00:00:00Z");
+        Book nextYear = book(4, "2001-01-01T00:00:00Z");
+        YearBuckets buckets = new YearBuckets(Arrays.asList(nextYear, summer, newYearsDay, newYearsEve));
+
+        assertEquals(Arrays.asList(newYearsDay, summer),
+                collect(buckets, "2000-01-01T00:00:00Z", "2001-01-01T00:00:00Z"));
+        assertEquals(Arrays.asList(newYearsEve, newYearsDay, summer, nextYear),
+                collect(buckets, "1900-01-01T00:00:00Z", "2100-01-01T00:00:00Z"));
+        assertEquals(Collections.singletonList(newYearsEve),
+                collect(buckets, "1999-12-31T23:59:59Z", "2000-01-01T00:00:00Z"));
+        assertEquals(Collections.emptyList(), collect(buckets, "2000-01-01T00:00:00Z", "2000-01-01T00:00:00Z"));
+        assertEquals(Collections.emptyList(), collect(buckets, "2001-01-01T00:00:00Z", "2000-01-01T00:00:00Z"));
+        assertEquals(Collections.emptyList(), collect(buckets, "1800-01-01T00:00:00Z", "1900-01-01T00:00:00Z"));
+    }
+
+    @Test
+    void stopsAtTheLimit() {
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            books.add(book(i, (1990 + i) + "-06-01T00:00:00Z"));
+        }
+        YearBuckets buckets = new YearBuckets(books);
+        List<Book> result = new ArrayList<>();
+        buckets.collect(date("1900-01-01T00:00:00Z"), date("2100-01-01T00:00:00Z"), 3, result);
+        assertEquals(books.subList(0, 3), result);
+    }
+
+    @Test
+    void sameDateIsOrderedByBookId() {
+        Book second = book(2, "2000-05-05T00:00:00Z");
+        Book first = book(1, "2000-05-05T00:00:00Z");
+        YearBuckets buckets = new YearBuckets();
+        buckets.add(second);
+        buckets.add(first);
+        assertEquals(Arrays.asList(first, second), collect(buckets, "2000-01-01T00:00:00Z", "2001-01-01T00:00:00Z"));
+    }
+
+    @Test
+    void addAndRemove() {
+        Book book = book(1, "2000-05-05T00:00:00Z");
+        Book undated = new Book(2, "0000000002", "Undated", null, 3, Genre.DRAMA);
+        YearBuckets buckets = new YearBuckets();
+        buckets.add(book);
+        buckets.add(book);
+        buckets.add(undated);
+        assertEquals(Collections.singletonList(book), collect(buckets, "1900-01-01T00:00:00Z", "2100-01-01T00:00:00Z"));
+
+        buckets.remove(book);
+        buckets.remove(undated);
+        buckets.remove(book(3, "1980-01-01T00:00:00Z"));
+        assertEquals(Collections.emptyList(), collect(buckets, "1900-01-01T00:00:00Z", "2100-01-01T00:00:00Z"));
+    }
+
+    @Test
+    void bulkAndIncrementalBucketsAgreeWithAScan() {
+        Random random = new Random(42);
+        long start = date("1950-01-01T00:00:00Z").getTime();
+        long span = date("2020-01-01T00:00:00Z").getTime() - start;
+        List<Book> books = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Date published = new Date(start + (long) (random.nextDouble() * span));
+            books.add(new Book(i, String.format("%010d", i), "Book " + i, published, 3, Genre.DRAMA));
+        }
+        YearBuckets bulk = new YearBuckets(books);
+        YearBuckets incremental = new YearBuckets();
+        for (Book book : books) {
+            incremental.add(book);
+        }
+
+        for (int i = 0; i < 50; i++) {
+            Date from = new Date(start + (long) (random.nextDouble() * span));
+            Date to = new Date(from.getTime() + (long) (random.nextDouble() * span / 10));
+            List<Book> expected = new ArrayList<>();
+            for (Book book : books) {
+                if (!book.getPublished().before(from) && book.getPublished().before(to)) {
+                    expected.add(book);
+                }
+            }
+            expected.sort((a, b) -> a.getPublished().compareTo(b.getPublished()));
+
+            List<Book> fromBulk = new ArrayList<>();
+            bulk.collect(from, to, Integer.MAX_VALUE, fromBulk);
+            List<Book> fromIncremental = new ArrayList<>();
+            incremental.collect(from, to, Integer.MAX_VALUE, fromIncremental);
+            assertEquals(expected, fromBulk);
+            assertEquals(expected, fromIncremental);
+        }
+    }
+
+    private static List<Book> collect(YearBuckets buckets, String from, String to) {
+        List<Book> result = new ArrayList<>();
+        buckets.collect(date(from), date(to), Integer.MAX_VALUE, result);
+        return result;
+    }
+
+    private static Book book(int bookId, String published) {
+        return new Book(bookId, String.format("%010d", bookId), "Book " + bookId, date(published), 3, Genre.DRAMA);
+    }
+
+    private static Date date(String instant) {
+        return Date.from(Instant.parse(instant));
+    }
+}
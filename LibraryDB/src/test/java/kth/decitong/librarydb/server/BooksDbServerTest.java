@@ -0,0 +1,106 @@
+package kth.decitong.librarydb.server;
+
+import com.sun.net.httpserver.HttpServer;
+import kth.decitong.librarydb.model.Book;
+import kth.decitong.librarydb.model.BooksDbInterface;
+import kth.decitong.librarydb.model.Genre;
+import kth.decitong.librarydb.model.GuardedBooksDb;
+import kth.decitong.librarydb.model.InMemoryBooksDb;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BooksDbServerTest {
+    private final HttpClient client = HttpClient.newHttpClient();
+    private HttpServer httpServer;
+
+    @AfterEach
+    void stop() {
+        if (httpServer != null) {
+            httpServer.stop(0);
+        }
+    }
+
+    @Test
+    void everyKindOfCallGetsAPermitWithOneThread() throws Exception {
+        GuardedBooksDb booksDb = BooksDbServer.guard(new InMemoryBooksDb(), 1);
+        booksDb.connect("test");
+
+        booksDb.addBook(new Book(1, "0000000001", "The Hobbit", new Date(0), 4, Genre.DRAMA));
+        assertEquals(1, booksDb.searchBooksByTitle("hobbit").size());
+        assertEquals(0, booksDb.getAllAuthors().size());
+    }
+
+    @Test
+    void guardRejectsNoPermits() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new GuardedBooksDb(new InMemoryBooksDb(), 0, 1, 1, 1, 100, 3, 1_000));
+    }
+
+    @Test
+    void reportsInvalidRequests() throws Exception {
+        start(new InMemoryBooksDb(), 10);
+
+        HttpResponse<String> badType = post("searchBooksByRating", "{\"rating\": \"five\"}");
+        assertEquals(400, badType.statusCode());
+        assertTrue(badType.body().contains("rating"), badType.body());
+        assertEquals(400, post("searchBooksByRating", "{}").statusCode());
+        assertEquals(400, post("searchBooksByTitle", "{\"query\": ").statusCode());
+        assertEquals(404, post("dropDatabase", "{}").statusCode());
+        HttpResponse<String> get = client.send(HttpRequest.newBuilder(uri("ping")).GET().build(),
+                HttpResponse.BodyHandlers.ofString());
+        assertEquals(405, get.statusCode());
+    }
+
+    @Test
+    void cutsListsOffAtMaxItems() throws Exception {
+        InMemoryBooksDb booksDb = new InMemoryBooksDb();
+        booksDb.connect("test");
+        for (int i = 1; i <= 3; i++) {
+            booksDb.addBook(new Book(i, "000000000" + i, "Book " + i, new Date(0), 3, Genre.CRIME));
+        }
+        start(booksDb, 2);
+
+        HttpResponse<String> response = post("searchBooksByGenre", "{\"query\": \"CRIME\"}");
+
+        assertEquals(200, response.statusCode());
+        Document result = Document.parse(response.body());
+        assertEquals(2, result.getList("items", Document.class).size());
+        assertEquals(Boolean.TRUE, result.getBoolean("truncated"));
+
+        Document all = Document.parse(post("searchBooksByRating", "{\"rating\": 3}").body());
+        assertEquals(2, all.getList("items", Document.class).size());
+        assertEquals(List.of(), Document.parse(post("searchBooksByRating", "{\"rating\": 5}").body())
+                .getList("items", Document.class));
+    }
+
+    private void start(BooksDbInterface booksDb, int maxItems) throws IOException {
+        httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        httpServer.createContext("/api/", new BooksDbServer(booksDb, "test", maxItems)::handle);
+        httpServer.start();
+    }
+
+    private HttpResponse<String> post(String operation, String json) throws IOException, InterruptedException {
+        return client.send(HttpRequest.newBuilder(uri(operation)).POST(HttpRequest.BodyPublishers.ofString(json))
+                .build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private URI uri(String operation) {
+        InetSocketAddress address = httpServer.getAddress();
+        return URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/api/" + operation);
+    }
+}
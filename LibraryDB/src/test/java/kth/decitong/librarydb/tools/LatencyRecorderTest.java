@@ -0,0 +1,51 @@
+package kth.decitong.librarydb.tools;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyRecorderTest {
+
+    @Test
+    void reportsNearestRankPercentiles() {
+        LatencyRecorder recorder = new LatencyRecorder();
+        for (int i = 5000; i >= 1; i--) {
+            recorder.record(i * 1_000_000L);
+        }
+
+        assertEquals(5000, recorder.getCount());
+        assertEquals(2500_000_000L, recorder.percentileNanos(50));
+        assertEquals(4950_000_000L, recorder.percentileNanos(99));
+        assertEquals(5000_000_000L, recorder.percentileNanos(100));
+        assertEquals(1_000_000L, recorder.percentileNanos(0));
+        assertTrue(recorder.summary().startsWith("n=5000 errors=0 p50=2500.00 p90=4500.00 p99=4950.00"),
+                recorder.summary());
+    }
+
+    @Test
+    void mergesSamplesAndErrors() {
+        LatencyRecorder first = new LatencyRecorder();
+        LatencyRecorder second = new LatencyRecorder();
+        first.record(1_000_000L);
+        first.recordError();
+        second.record(3_000_000L);
+        second.record(2_000_000L);
+        second.recordError();
+
+        first.merge(second);
+
+        assertEquals(3, first.getCount());
+        assertEquals(2, first.getErrors());
+        assertEquals(2_000_000L, first.percentileNanos(50));
+        assertEquals(3_000_000L, first.percentileNanos(100));
+    }
+
+    @Test
+    void emptyRecorderReportsZero() {
+        LatencyRecorder recorder = new LatencyRecorder();
+
+        assertEquals(0, recorder.percentileNanos(99));
+        assertEquals("n=0 errors=0 p50=0.00 p90=0.00 p99=0.00 p99.9=0.00 max=0.00 ms", recorder.summary());
+    }
+}
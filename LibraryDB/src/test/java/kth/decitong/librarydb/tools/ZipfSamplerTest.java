@@ -0,0 +1,43 @@
+package kth.decitong.librarydb.tools;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZipfSamplerTest {
+
+    @Test
+    void drawsRanksWithZipfianFrequencies() {
+        ZipfSampler sampler = new ZipfSampler(100, 1.0);
+        Random random = new Random(42);
+        int[] counts = new int[100];
+        int draws = 200_000;
+        for (int i = 0; i < draws; i++) {
+            counts[sampler.next(random)]++;
+        }
+
+        // rank k has probability 1 / ((k + 1) * H(100)), H(100) being about 5.187
+        assertEquals(draws / 5.187, counts[0], draws * 0.01);
+        assertEquals(2.0, counts[0] / (double) counts[1], 0.1);
+        assertEquals(10.0, counts[0] / (double) counts[9], 1.0);
+        assertTrue(counts[99] > 0, "the rarest rank was never drawn");
+    }
+
+    @Test
+    void singleRankIsAlwaysDrawn() {
+        ZipfSampler sampler = new ZipfSampler(1, 1.2);
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(0, sampler.next(random));
+        }
+    }
+
+    @Test
+    void needsAtLeastOneRank() {
+        assertThrows(IllegalArgumentException.class, () -> new ZipfSampler(0, 1.0));
+    }
+}
@@ -0,0 +1,118 @@
+package kth.decitong.librarydb.view;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The watchdog watches a single thread executor standing in for the FX application
+ * thread, so no FX toolkit is needed.
+ */
+class FxStallWatchdogTest {
+    private static final String EVENT = "kth.decitong.librarydb.FxStall";
+
+    @Test
+    void recordsAStallWithTheStackAndTheUpdatesQueuedBehindIt(@TempDir Path directory) throws Exception {
+        ExecutorService fxThread = Executors.newSingleThreadExecutor(task -> new Thread(task, "fake-fx"));
+        List<RecordedEvent> events = new ArrayList<>();
+        FxStallWatchdog watchdog = FxStallWatchdog.start(50, fxThread);
+        try (Recording recording = new Recording()) {
+            recording.enable(EVENT);
+            recording.start();
+            // the FX thread can only be sampled once it has run a heartbeat
+            Thread.sleep(100);
+            List<String> ran = new ArrayList<>();
+
+            FxStallWatchdog.runLater("load", FxStallWatchdogTest::blockTheFxThread);
+            FxStallWatchdog.runLater("search", () -> ran.add("first"));
+            FxStallWatchdog.runLater("search", () -> ran.add("second"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (watchdog.getStalls() == 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            fxThread.submit(() -> { }).get(5, TimeUnit.SECONDS);
+
+            recording.stop();
+            Path file = directory.resolve("stalls.jfr");
+            recording.dump(file);
+            events.addAll(RecordingFile.readAllEvents(file));
+            assertEquals(List.of("first", "second"), ran);
+        } finally {
+            watchdog.close();
+            fxThread.shutdownNow();
+        }
+
+        assertEquals(1, watchdog.getStalls());
+        assertTrue(watchdog.getLongestStallNanos() >= TimeUnit.MILLISECONDS.toNanos(250),
+                "the stall was measured as " + watchdog.getLongestStallNanos() + " ns");
+        assertEquals(1, events.size());
+        RecordedEvent stall = events.get(0);
+        assertTrue(stall.getString("stack").contains("blockTheFxThread"), stall.getString("stack"));
+        assertEquals(2, stall.getInt("queuedUpdates"));
+        assertTrue(stall.getString("queuedTasks").startsWith("search x2, oldest "), stall.getString("queuedTasks"));
+
+        String report = watchdog.report();
+        assertTrue(report.startsWith("FX thread stalls over 50 ms: 1, "), report);
+        assertTrue(report.matches("(?s).*  50-100 ms +0\\R.*"), report);
+        assertEquals(1, histogramTotal(report), report);
+    }
+
+    @Test
+    void delaysUnderTheThresholdAreNoStalls() throws Exception {
+        ExecutorService fxThread = Executors.newSingleThreadExecutor();
+        FxStallWatchdog watchdog = FxStallWatchdog.start(500, fxThread);
+        try {
+            for (int i = 0; i < 10; i++) {
+                FxStallWatchdog.runLater(null, () -> sleep(10));
+            }
+            Thread.sleep(400);
+        } finally {
+            watchdog.close();
+            fxThread.shutdownNow();
+        }
+
+        assertEquals(0, watchdog.getStalls());
+        assertEquals(0, histogramTotal(watchdog.report()));
+    }
+
+    @Test
+    void rejectsThresholdsUnderAMillisecond() {
+        assertThrows(IllegalArgumentException.class, () -> FxStallWatchdog.start(0, Runnable::run));
+    }
+
+    private static void blockTheFxThread() {
+        sleep(400);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static long histogramTotal(String report) {
+        long total = 0;
+        for (String line : report.split("\\R")) {
+            if (line.startsWith("  ")) {
+                String[] columns = line.trim().split("\\s+");
+                total += Long.parseLong(columns[columns.length - 1]);
+            }
+        }
+        return total;
+    }
+}